@@ -44,6 +44,7 @@ import org.mgenterprises.openbooks.saving.SaveServerConnection;
 import org.mgenterprises.openbooks.saving.Saveable;
 import org.mgenterprises.openbooks.saving.server.FileBackedSaveManager;
 import org.mgenterprises.openbooks.saving.server.HibernateBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.cache.CachingSaveManager;
 import org.mgenterprises.openbooks.saving.server.SaveManager;
 import org.mgenterprises.openbooks.saving.server.SaveServer;
 import org.mgenterprises.openbooks.saving.server.security.BCrypt;
@@ -78,7 +79,7 @@ public class Main {
     
     public static void main(String[] args) throws UnknownHostException {
         SessionFactory sessionFactory = buildSessionFactory();
-        SaveManager saveManager = new HibernateBackedSaveManager(sessionFactory);//FileBackedSaveManager(file);
+        SaveManager saveManager = new CachingSaveManager(new HibernateBackedSaveManager(sessionFactory));//FileBackedSaveManager(file);
         UserManager userManager = new HibernateBackedUserManager(sessionFactory);
         UserProfile userProfile = new UserProfile();
         userProfile.setUsername("admin");
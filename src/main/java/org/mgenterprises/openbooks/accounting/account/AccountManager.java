@@ -26,6 +26,7 @@ package org.mgenterprises.openbooks.accounting.account;
 
 import java.io.IOException;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.ServerBackedMap;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
 
@@ -38,5 +39,9 @@ public class AccountManager extends ServerBackedMap<Account> {
     public AccountManager(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
         super(new Account(), saveServerConnection);
     }
+
+    public AccountManager(SaveServerSession saveServerSession) {
+        super(new Account(), saveServerSession);
+    }
     
 }
@@ -26,6 +26,7 @@ package org.mgenterprises.openbooks.accounting.transaction;
 
 import java.io.IOException;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.ServerBackedMap;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
 
@@ -38,5 +39,9 @@ public class TransactionManager extends ServerBackedMap<Transaction>{
     public TransactionManager(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
         super(new Transaction(), saveServerConnection);
     }
+
+    public TransactionManager(SaveServerSession saveServerSession) {
+        super(new Transaction(), saveServerSession);
+    }
     
 }
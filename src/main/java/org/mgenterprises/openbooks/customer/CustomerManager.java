@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import org.mgenterprises.openbooks.invoicing.invoice.Invoice;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.Saveable;
 import org.mgenterprises.openbooks.saving.ServerBackedMap;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
@@ -42,6 +43,10 @@ public class CustomerManager extends ServerBackedMap<Customer>{
     public CustomerManager(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
         super(new Customer(), saveServerConnection);
     }
+
+    public CustomerManager(SaveServerSession saveServerSession) {
+        super(new Customer(), saveServerSession);
+    }
     
     public void addCustomer(Customer item) throws IOException{
         put(item);
@@ -58,7 +63,7 @@ public class CustomerManager extends ServerBackedMap<Customer>{
     }
     
     public boolean exists(int id) throws IOException{
-        return existsAndAllowed(String.valueOf(id));
+        return exists(String.valueOf(id));
     }
     
     public void deleteCustomer(int id) throws IOException {
@@ -73,4 +78,11 @@ public class CustomerManager extends ServerBackedMap<Customer>{
         return (int) highestId();
     }
     
+    /**
+     * @return Customer number for a new customer that no other user is given
+     */
+    public int getNextId() throws IOException {
+        return (int) nextId();
+    }
+    
 }
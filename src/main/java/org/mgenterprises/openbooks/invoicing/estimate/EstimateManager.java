@@ -27,6 +27,7 @@ package org.mgenterprises.openbooks.invoicing.estimate;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.ServerBackedMap;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
 
@@ -39,6 +40,10 @@ public class EstimateManager extends ServerBackedMap<Estimate>{
     public EstimateManager(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
         super(new Estimate(), saveServerConnection);
     }
+
+    public EstimateManager(SaveServerSession saveServerSession) {
+        super(new Estimate(), saveServerSession);
+    }
     
     public Estimate getEstimate(long id) throws IOException {
         return get(String.valueOf(id));
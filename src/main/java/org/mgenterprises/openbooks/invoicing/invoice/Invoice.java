@@ -41,6 +41,7 @@ import javax.persistence.Temporal;
 import javax.persistence.Transient;
 import org.hibernate.annotations.Cascade;
 import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Indexed;
 import org.mgenterprises.openbooks.saving.Saveable;
 
 /**
@@ -135,6 +136,7 @@ public class Invoice extends Saveable implements Serializable {
         this.purchaseOrderNumber = purchaseOrderNumber;
     }
 
+    @Indexed
     public int getCustomerID() {
         return customerID;
     }
@@ -161,6 +163,7 @@ public class Invoice extends Saveable implements Serializable {
         return new SimpleDateFormat("MM/dd/yyyy").format(dateDue);
     }
     
+    @Indexed(ordered = true)
     @Temporal(javax.persistence.TemporalType.TIMESTAMP)
     public Date getDateDue() {
         return dateDue;
@@ -26,9 +26,13 @@ package org.mgenterprises.openbooks.invoicing.invoice;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.invoicing.item.Item;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.ServerBackedMap;
+import org.mgenterprises.openbooks.saving.query.Predicates;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
 
 /**
@@ -36,12 +40,18 @@ import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthen
  * @author Manuel Gauto
  */
 public class InvoiceManager extends ServerBackedMap<Invoice>{
+    private static final String ITEM_TYPE = new Item().getSaveableModuleName();
 
     public InvoiceManager(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
         super(new Invoice(), saveServerConnection);
     }
+
+    public InvoiceManager(SaveServerSession saveServerSession) {
+        super(new Invoice(), saveServerSession);
+    }
     
     public void addInvoice(Invoice item) throws IOException{
+        assignItemIds(item);
         put(item);
     }
     
@@ -50,43 +60,91 @@ public class InvoiceManager extends ServerBackedMap<Invoice>{
     }
     
     public void updateInvoice(Invoice invoice) throws IOException {
+        assignItemIds(invoice);
         put(invoice);
     }
     
+    /**
+     * Gives the line items without an ID one from the server's item
+     * sequence, as they are stored in the id column of {@link Item}. The ids
+     * of one invoice are reserved with a single request.
+     */
+    private void assignItemIds(Invoice invoice) throws IOException {
+        InvoiceItem[] invoiceItems = invoice.getInvoiceItems();
+        if(invoiceItems == null) {
+            return;
+        }
+        int count = 0;
+        for(InvoiceItem invoiceItem : invoiceItems) {
+            if(invoiceItem.getID() == 0) {
+                count++;
+            }
+        }
+        if(count == 0) {
+            return;
+        }
+        long nextId = reserveIds(ITEM_TYPE, count);
+        for(InvoiceItem invoiceItem : invoiceItems) {
+            if(invoiceItem.getID() == 0) {
+                invoiceItem.setID(nextId++);
+            }
+        }
+    }
+    
     public boolean exists(long id) throws IOException {
-        return existsAndAllowed(String.valueOf(id));
+        return exists(String.valueOf(id));
     }
     
     public int removeAllCustomerInvoices(Customer customer) throws IOException{
-        int count = 0;
-        for(Invoice invoice : values()) {
-            if(invoice.getCustomerID()==customer.getCustomerNumber()){
-                remove(String.valueOf(invoice.getInvoiceNumber()));
-                count++;
-            }
+        ArrayList<String> invoiceIds = new ArrayList<String>();
+        for(Invoice invoice : getCustomerInvoices(customer)) {
+            invoiceIds.add(String.valueOf(invoice.getInvoiceNumber()));
         }
-        return count;
+        return removeAll(invoiceIds);
     }
 
     public long getHighestID() throws IOException {
         return highestId();
     }
     
+    /**
+     * @return Invoice number for a new invoice that no other user is given
+     */
+    public long getNextID() throws IOException {
+        return nextId();
+    }
+    
     public Invoice[] getInvoices() throws IOException {
         ArrayList<Invoice> invoiceList = values();
         Invoice[] invoices = new Invoice[invoiceList.size()];
         return invoiceList.toArray(invoices);
     }
     
+    /**
+     * Looks the invoices up by the indexed customer id on the server instead
+     * of reading every invoice
+     */
     public Invoice[] getCustomerInvoices(Customer customer) throws IOException {
-        ArrayList<Invoice> customerInvoices = new ArrayList<Invoice>();
-        for(Invoice invoice : values()) {
-            if(invoice.getCustomerID()==customer.getCustomerNumber()){
-                customerInvoices.add(invoice);
-            }
+        Invoice[] customerInvoices = getWhere(Predicates.eq("customerID", customer.getCustomerNumber()), false);
+        if(customerInvoices == null) {
+            throw new IOException("SaveServer rejected the invoice query for customer " + customer.getCustomerNumber());
+        }
+        return customerInvoices;
+    }
+    
+    /**
+     * Returns the invoices due in a range of dates, looked up by the indexed
+     * due date
+     * 
+     * @param from First due date, inclusive, or null for no lower bound
+     * @param to Last due date, inclusive, or null for no upper bound
+     */
+    public Invoice[] getInvoicesDue(Date from, Date to) throws IOException {
+        Invoice[] dueInvoices = getWhere(Predicates.range("dateDue", from, to), false);
+        if(dueInvoices == null) {
+            throw new IOException("SaveServer rejected the due date query");
         }
-        Invoice[] temp = new Invoice[customerInvoices.size()];
-        return customerInvoices.toArray(temp);
+        return dueInvoices;
     }
     
 }
@@ -26,8 +26,6 @@ package org.mgenterprises.openbooks.invoicing.item;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
@@ -54,8 +52,12 @@ public class Item extends Saveable{
         this.basePrice = basePrice;
     }
     
+    /**
+     * Handed out by the SaveServer's id sequence of this class, through
+     * {@link ItemManager#addItem(Item)} or, for the line items of an
+     * invoice, through InvoiceManager. Both share this id column.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.TABLE)
     public long getID() {
         return ID;
     }
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.Saveable;
 import org.mgenterprises.openbooks.saving.ServerBackedMap;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
@@ -41,8 +42,18 @@ public class ItemManager extends ServerBackedMap<Item>{
     public ItemManager(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
         super(new Item(), saveServerConnection);
     }
+
+    public ItemManager(SaveServerSession saveServerSession) {
+        super(new Item(), saveServerSession);
+    }
     
+    /**
+     * Stores an item, giving it an ID from the server first if it has none
+     */
     public void addItem(Item item) throws IOException{
+        if(item.getID() == 0) {
+            item.setID(nextId());
+        }
         put(item);
     }
     
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadReader;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+
+/**
+ * Receives the change notifications the SaveServer pushes for one type and
+ * remembers which objects changed until the owning map refreshes them.
+ * Notifications are handled on the connection's reader thread and every
+ * batch is acknowledged as soon as it has been recorded.
+ *
+ * @author Manuel Gauto
+ */
+class ChangeSubscription implements ResponseHandler {
+    private final MultiplexedConnection connection;
+    private final Set<String> changedIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long lastChangeId;
+    private volatile int requestId;
+    private volatile boolean active = false;
+    private volatile boolean closed = false;
+
+    ChangeSubscription(MultiplexedConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Asks the server to start pushing changes
+     *
+     * @param type Type to watch
+     * @param lastChangeId Last change id the caller has already applied
+     */
+    void open(String type, long lastChangeId) throws IOException {
+        this.lastChangeId = lastChangeId;
+        PayloadWriter request = new PayloadWriter();
+        request.writeStringArray(new String[]{type});
+        request.writeLong(lastChangeId);
+        this.requestId = connection.send(Frame.request(OpCode.SUBSCRIBE, request), this);
+    }
+
+    @Override
+    public boolean onFrame(Frame response) {
+        if (!response.isPartial()) {
+            closed = true;
+            return true;
+        }
+        try {
+            PayloadReader reader = response.reader();
+            long coveredId = reader.readLong();
+            int count = reader.readInt();
+            for (int i = 0; i < count; i++) {
+                reader.readLong();
+                reader.readString();
+                changedIds.add(reader.readString());
+            }
+            lastChangeId = coveredId;
+            active = true;
+            PayloadWriter ack = new PayloadWriter(12);
+            ack.writeInt(response.getRequestId());
+            ack.writeLong(coveredId);
+            connection.post(Frame.request(OpCode.ACK, ack));
+        } catch (IOException ex) {
+            //The map falls back to reading the journal
+            Logger.getLogger(ChangeSubscription.class.getName()).log(Level.WARNING, null, ex);
+            closed = true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onFailure(IOException failure) {
+        closed = true;
+    }
+
+    /**
+     * @return True once the server has confirmed the subscription and until
+     * it ends
+     */
+    boolean isActive() {
+        return active && !closed;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return Id of the latest change recorded by this subscription
+     */
+    long getLastChangeId() {
+        return lastChangeId;
+    }
+
+    /**
+     * Returns the ids of the objects that changed since the last call and
+     * forgets them
+     */
+    ArrayList<String> drainChangedIds() {
+        ArrayList<String> drained = new ArrayList<String>();
+        for (String id : changedIds) {
+            if (changedIds.remove(id)) {
+                drained.add(id);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Puts ids back after a refresh failed so they are tried again
+     */
+    void restoreChangedIds(ArrayList<String> ids) {
+        changedIds.addAll(ids);
+    }
+
+    /**
+     * Asks the server to stop pushing changes
+     */
+    void close() throws IOException {
+        if (!closed) {
+            PayloadWriter request = new PayloadWriter(4);
+            request.writeInt(requestId);
+            connection.call(Frame.request(OpCode.UNSUBSCRIBE, request));
+        }
+    }
+}
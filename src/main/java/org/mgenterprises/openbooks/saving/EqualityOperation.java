@@ -33,7 +33,8 @@ public enum EqualityOperation {
     GREATER(">"),
     LESS("<"),
     GREATER_EQUALS(">="),
-    LESS_EQUALS("<=");
+    LESS_EQUALS("<="),
+    NOT_EQUALS("<>");
     
     private String opString;
 
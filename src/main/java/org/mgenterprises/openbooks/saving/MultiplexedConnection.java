@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSocket;
+import org.mgenterprises.openbooks.saving.protocol.CompressionStatistics;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+
+/**
+ * An authenticated connection to the SaveServer that can have many requests
+ * in flight at once. Requests are written as soon as they are submitted and
+ * tagged with an id; a reader thread hands every response to whoever is
+ * waiting for that id, in whatever order the server answers. Instances are
+ * safe to share between threads.
+ *
+ * @author Manuel Gauto
+ */
+public class MultiplexedConnection {
+    private final SSLSocket socket;
+    private final FrameCodec codec;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, ResponseHandler> pendingById = new ConcurrentHashMap<Integer, ResponseHandler>();
+    /**
+     * Guards registering a request together with writing it, so no request is
+     * written after the connection has been closed
+     */
+    private final Object writeLock = new Object();
+    private volatile IOException failure;
+    private final Thread readerThread;
+
+    /**
+     * @param socket Socket the session runs on
+     * @param codec Codec that has already completed the handshake and login
+     */
+    public MultiplexedConnection(SSLSocket socket, FrameCodec codec) {
+        this.socket = socket;
+        this.codec = codec;
+        this.readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "SaveServer-reader-" + socket.getLocalPort());
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    /**
+     * Sends a request without waiting for the response
+     *
+     * @param request Request to send
+     * @return Handle to wait on for the response
+     * @throws IOException Thrown if the connection has failed
+     */
+    public PendingResponse submit(Frame request) throws IOException {
+        PendingResponse pendingResponse = new PendingResponse(request.getOpCode());
+        send(request, pendingResponse);
+        return pendingResponse;
+    }
+
+    /**
+     * Sends a request whose result the server streams back in chunks
+     *
+     * @param request Request to send
+     * @return Stream of the partial frames answering the request
+     * @throws IOException Thrown if the connection has failed
+     */
+    public ResponseStream openStream(Frame request) throws IOException {
+        ResponseStream responseStream = new ResponseStream(this, request.getOpCode());
+        responseStream.setRequestId(send(request, responseStream));
+        return responseStream;
+    }
+
+    /**
+     * Sends a request that the server does not answer
+     *
+     * @param request Request to send
+     * @throws IOException Thrown if the connection has failed
+     */
+    public void post(Frame request) throws IOException {
+        synchronized (writeLock) {
+            checkOpen();
+            try {
+                codec.writeFrame(request);
+            } catch (IOException ex) {
+                fail(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Sends a request and hands every frame answering it to the handler
+     *
+     * @return Id the request was sent with
+     */
+    int send(Frame request, ResponseHandler pendingResponse) throws IOException {
+        int requestId;
+        synchronized (writeLock) {
+            checkOpen();
+            requestId = nextRequestId.incrementAndGet();
+            pendingById.put(requestId, pendingResponse);
+            try {
+                codec.writeFrame(request.withRequestId(requestId));
+            } catch (IOException ex) {
+                fail(ex);
+                throw ex;
+            }
+        }
+        //The reader may have failed while we were registering
+        if (failure != null && pendingById.remove(requestId, pendingResponse)) {
+            pendingResponse.onFailure(failure);
+        }
+        return requestId;
+    }
+
+    /**
+     * Sends a request and waits for the response
+     *
+     * @param request Request to send
+     * @return Response from the server
+     * @throws IOException Thrown if the connection fails
+     */
+    public Frame call(Frame request) throws IOException {
+        return submit(request).await();
+    }
+
+    /**
+     * Ends the session. Requests still in flight fail.
+     */
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (failure == null) {
+                try {
+                    codec.writeFrame(Frame.request(OpCode.DISCONNECT));
+                } catch (IOException ex) {
+                    Logger.getLogger(MultiplexedConnection.class.getName()).log(Level.FINE, null, ex);
+                }
+                fail(new IOException("Connection closed"));
+            }
+        }
+        socket.close();
+    }
+
+    /**
+     * Drops the connection without saying goodbye, used when the server has
+     * stopped answering. Requests in flight fail with the given cause.
+     */
+    void abort(IOException cause) {
+        fail(cause);
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(MultiplexedConnection.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    public int getProtocolVersion() {
+        return codec.getVersion();
+    }
+
+    public CompressionStatistics getCompressionStatistics() {
+        return codec.getCompressionStatistics();
+    }
+
+    /**
+     * @return Number of requests that have been sent but not answered yet
+     */
+    public int getInFlightCount() {
+        return pendingById.size();
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                Frame response = codec.readFrame();
+                if (response == null) {
+                    fail(new EOFException("SaveServer closed the connection"));
+                    return;
+                }
+                ResponseHandler pendingResponse = pendingById.get(response.getRequestId());
+                if (pendingResponse != null) {
+                    if (pendingResponse.onFrame(response)) {
+                        pendingById.remove(response.getRequestId());
+                    }
+                } else {
+                    Logger.getLogger(MultiplexedConnection.class.getName()).log(Level.WARNING, "Dropping unexpected {0} response for request {1}", new Object[]{response.getOpCode(), response.getRequestId()});
+                }
+            }
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private void fail(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        ArrayList<ResponseHandler> waiting = new ArrayList<ResponseHandler>(pendingById.values());
+        pendingById.clear();
+        for (ResponseHandler response : waiting) {
+            response.onFailure(failure);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Connection to SaveServer is closed", failure);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+
+/**
+ * The response to a request that has been sent to the SaveServer but may not
+ * have been answered yet
+ *
+ * @author Manuel Gauto
+ */
+public class PendingResponse implements ResponseHandler {
+    private final OpCode opCode;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Frame response;
+    private volatile IOException failure;
+
+    public PendingResponse(OpCode opCode) {
+        this.opCode = opCode;
+    }
+
+    @Override
+    public boolean onFrame(Frame response) {
+        this.response = response;
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public void onFailure(IOException failure) {
+        this.failure = failure;
+        done.countDown();
+    }
+
+    /**
+     * Waits for the server to answer
+     *
+     * @return The response frame
+     * @throws IOException Thrown if the connection failed before the response arrived
+     */
+    public Frame await() throws IOException {
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + opCode + " response");
+        }
+        if (failure != null) {
+            throw new IOException(opCode + " request failed", failure);
+        }
+        return response;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public OpCode getOpCode() {
+        return opCode;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.IOException;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+
+/**
+ * Receives the response frames for one request sent over a
+ * {@link MultiplexedConnection}
+ *
+ * @author Manuel Gauto
+ */
+interface ResponseHandler {
+
+    /**
+     * Called on the connection's reader thread for every frame answering the
+     * request
+     *
+     * @param response Frame received from the server
+     * @return True if this was the last frame for the request
+     */
+    boolean onFrame(Frame response);
+
+    /**
+     * Called if the connection fails before the last frame arrives
+     *
+     * @param failure Cause of the failure
+     */
+    void onFailure(IOException failure);
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+
+/**
+ * The response to a request that the SaveServer answers with a series of
+ * partial frames followed by a final frame. The server sends at most
+ * {@link FrameCodec#STREAM_WINDOW} frames ahead of what the consumer has
+ * read and is granted credit for more as it reads, so a large result is never
+ * held in memory all at once and the connection never waits on a slow
+ * consumer.
+ *
+ * @author Manuel Gauto
+ */
+public class ResponseStream implements ResponseHandler, Closeable {
+    /**
+     * Number of partial frames read before the server is granted credit for
+     * as many more
+     */
+    static final int CREDIT_BATCH = FrameCodec.STREAM_WINDOW / 2;
+    private static final Object FAILED = new Object();
+
+    private final MultiplexedConnection connection;
+    private final OpCode opCode;
+    private final BlockingQueue<Object> frames = new LinkedBlockingQueue<Object>();
+    private volatile int requestId;
+    /**
+     * Partial frames read since credit was last granted, only used by the consumer
+     */
+    private int readSinceCredit = 0;
+    private volatile Frame trailer;
+    private volatile IOException failure;
+    private volatile boolean cancelled = false;
+
+    ResponseStream(MultiplexedConnection connection, OpCode opCode) {
+        this.connection = connection;
+        this.opCode = opCode;
+    }
+
+    /**
+     * @param requestId Id the request was sent with, needed to grant credit
+     */
+    void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    @Override
+    public boolean onFrame(Frame response) {
+        boolean last = !response.isPartial();
+        if (last) {
+            trailer = response;
+        }
+        if (!cancelled) {
+            frames.offer(response);
+        }
+        return last;
+    }
+
+    @Override
+    public void onFailure(IOException failure) {
+        this.failure = failure;
+        frames.offer(FAILED);
+    }
+
+    /**
+     * Waits for the next partial frame
+     *
+     * @return The next partial frame, or null once the final frame has arrived
+     * @throws IOException Thrown if the connection failed before the stream ended
+     */
+    public Frame next() throws IOException {
+        if (cancelled) {
+            return null;
+        }
+        Object next;
+        try {
+            next = frames.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + opCode + " response");
+        }
+        if (next == FAILED) {
+            //Leave the marker so later calls fail too
+            frames.offer(FAILED);
+            throw new IOException(opCode + " request failed", failure);
+        }
+        Frame frame = (Frame) next;
+        if (!frame.isPartial()) {
+            return null;
+        }
+        if (++readSinceCredit >= CREDIT_BATCH) {
+            grantCredit(readSinceCredit);
+            readSinceCredit = 0;
+        }
+        return frame;
+    }
+
+    private void grantCredit(int count) throws IOException {
+        PayloadWriter credit = new PayloadWriter(8);
+        credit.writeInt(requestId);
+        credit.writeInt(count);
+        connection.post(Frame.request(OpCode.CREDIT, credit));
+    }
+
+    /**
+     * @return The final frame, or null if it has not arrived yet
+     */
+    public Frame getTrailer() {
+        return trailer;
+    }
+
+    /**
+     * Stops buffering the rest of the stream and asks the server to end it.
+     * Frames the server has already sent are read and discarded.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        frames.clear();
+        if (trailer == null && failure == null) {
+            try {
+                grantCredit(0);
+            } catch (IOException ex) {
+                Logger.getLogger(ResponseStream.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        cancel();
+    }
+
+    public OpCode getOpCode() {
+        return opCode;
+    }
+}
@@ -24,6 +24,8 @@
 
 package org.mgenterprises.openbooks.saving;
 
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+
 /**
  *
  * @author mgauto
@@ -36,6 +38,16 @@ public class SaveServerConnection {
     
     private String pathToKeyStore;
     private char[] keyStorePassword;
+    /**
+     * Smallest request payload that is compressed, or -1 to not ask the
+     * server for compression
+     */
+    private int compressionThreshold = FrameCodec.DEFAULT_COMPRESSION_THRESHOLD;
+    /**
+     * Milliseconds between two heartbeats, 0 disables them. Must be shorter
+     * than the read timeout of the server.
+     */
+    private long heartbeatIntervalMillis = 30000;
     public SaveServerConnection(String serverAddress, short serverPort, String username, String password, String pathToKeyStore, char[] keyStorePassword) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
@@ -76,6 +88,22 @@ public class SaveServerConnection {
     public void setKeyStorePassword(char[] keyStorePassword) {
         this.keyStorePassword = keyStorePassword;
     }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
     
     
 }
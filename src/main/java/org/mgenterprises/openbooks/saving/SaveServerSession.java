@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import com.google.gson.Gson;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadReader;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
+import org.mgenterprises.openbooks.saving.server.authentication.UserLoginAttempt;
+import org.mgenterprises.openbooks.saving.server.statistics.ServerStatistics;
+import org.mgenterprises.openbooks.saving.server.statistics.StatisticsReport;
+
+/**
+ * One authenticated connection to the SaveServer that every
+ * {@link ServerBackedMap} of the application can share. Every request names
+ * the type it is for, so the maps use the session as independent channels
+ * without getting in each other's way. Sharing a session means the keystore
+ * is loaded, the TLS handshake is done and the password is checked once
+ * instead of once per map.
+ *
+ * While open, the session sends a heartbeat every
+ * {@link SaveServerConnection#getHeartbeatIntervalMillis()} so the server
+ * does not drop it when idle. If a heartbeat is still unanswered when the
+ * next one is due the server is considered gone and the connection is
+ * dropped, failing every request in flight instead of leaving it hanging.
+ *
+ * @author Manuel Gauto
+ */
+public class SaveServerSession implements Closeable {
+    /**
+     * TLS contexts by keystore path, so reconnecting does not reload the keystore
+     */
+    private static final ConcurrentHashMap<String, SSLContext> sslContexts = new ConcurrentHashMap<String, SSLContext>();
+    /**
+     * Sends the heartbeats of every session in this process
+     */
+    private static final ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SaveServer-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final SaveServerConnection saveServerConnection;
+    private final Gson gson = new Gson();
+    private volatile MultiplexedConnection connection;
+    private ScheduledFuture<?> heartbeat;
+    private volatile PendingResponse lastHeartbeat;
+
+    /**
+     * Connects and logs in
+     *
+     * @param saveServerConnection Connection data for link to server
+     * @throws IOException Thrown if the server cannot be reached
+     * @throws SaveServerAuthenticationFailureException Thrown if the server refuses the credentials
+     */
+    public SaveServerSession(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
+        this.saveServerConnection = saveServerConnection;
+        connect();
+    }
+
+    /**
+     * Opens a new connection and logs in, replacing the current connection if
+     * there is one
+     *
+     * @throws IOException Thrown if the server cannot be reached
+     * @throws SaveServerAuthenticationFailureException Thrown if the server refuses the credentials
+     */
+    public synchronized void connect() throws IOException, SaveServerAuthenticationFailureException {
+        if (connection != null && connection.isOpen()) {
+            connection.close();
+        }
+        SSLContext sslContext = getSSLContext(saveServerConnection);
+        if (sslContext == null) {
+            throw new IOException("Unable to load keystore " + saveServerConnection.getPathToKeyStore());
+        }
+        SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(saveServerConnection.getServerAddress(), saveServerConnection.getServerPort());
+        try {
+            sslSocket.startHandshake();
+            FrameCodec codec = new FrameCodec(sslSocket.getInputStream(), sslSocket.getOutputStream());
+            try {
+                //Agree on a protocol version before anything else is sent
+                codec.negotiateAsClient();
+            } catch (IOException ex) {
+                //The server refuses connections once it reaches its connection cap
+                throw new IOException("SaveServer closed the connection, it may be at capacity", ex);
+            }
+            login(codec);
+            this.connection = new MultiplexedConnection(sslSocket, codec);
+            startHeartbeat();
+        } catch (IOException | SaveServerAuthenticationFailureException ex) {
+            sslSocket.close();
+            throw ex;
+        }
+    }
+
+    private void startHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+        lastHeartbeat = null;
+        long interval = saveServerConnection.getHeartbeatIntervalMillis();
+        if (interval > 0) {
+            heartbeat = heartbeatScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sendHeartbeat();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendHeartbeat() {
+        MultiplexedConnection current = connection;
+        if (current == null || !current.isOpen()) {
+            return;
+        }
+        PendingResponse previous = lastHeartbeat;
+        if (previous != null && !previous.isDone()) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.WARNING, "SaveServer did not answer the heartbeat, dropping the connection");
+            current.abort(new IOException("SaveServer stopped answering"));
+            return;
+        }
+        try {
+            lastHeartbeat = current.submit(Frame.request(OpCode.PING));
+        } catch (IOException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private void login(FrameCodec codec) throws IOException, SaveServerAuthenticationFailureException {
+        UserLoginAttempt userLoginAttempt = new UserLoginAttempt(saveServerConnection.getUsername(), saveServerConnection.getPassword());
+        PayloadWriter login = new PayloadWriter();
+        login.writeJson(gson, userLoginAttempt, UserLoginAttempt.class);
+        login.writeBoolean(saveServerConnection.getCompressionThreshold() >= 0);
+        codec.writeFrame(Frame.request(OpCode.LOGIN, login));
+        Frame response = codec.readFrame();
+        if (response == null) {
+            throw new IOException("SaveServer closed the connection during login");
+        }
+        if (!response.isOk()) {
+            throw new SaveServerAuthenticationFailureException();
+        }
+        PayloadReader loginResponse = response.reader();
+        if (loginResponse.hasRemaining() && loginResponse.readBoolean()) {
+            codec.enableCompression(saveServerConnection.getCompressionThreshold());
+        }
+    }
+
+    private static SSLContext getSSLContext(SaveServerConnection saveServerConnection) {
+        String path = saveServerConnection.getPathToKeyStore();
+        SSLContext sslContext = sslContexts.get(path);
+        if (sslContext != null) {
+            return sslContext;
+        }
+        try {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            try (FileInputStream keyStoreInput = new FileInputStream(path)) {
+                ks.load(keyStoreInput, saveServerConnection.getKeyStorePassword());
+            }
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            kmf.init(ks, saveServerConnection.getKeyStorePassword());
+
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+            tmf.init(ks);
+
+            sslContext = SSLContext.getInstance("TLS");
+            TrustManager[] trustManagers = tmf.getTrustManagers();
+            sslContext.init(kmf.getKeyManagers(), trustManagers, null);
+            sslContexts.put(path, sslContext);
+            return sslContext;
+        } catch (IOException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (CertificateException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (KeyManagementException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (KeyStoreException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (UnrecoverableKeyException ex) {
+            Logger.getLogger(SaveServerSession.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    /**
+     * @return The connection requests are sent over
+     * @throws IOException Thrown if the session has been closed or the connection failed
+     */
+    public MultiplexedConnection getConnection() throws IOException {
+        MultiplexedConnection current = connection;
+        if (current == null || !current.isOpen()) {
+            throw new IOException("Not connected to the SaveServer");
+        }
+        return current;
+    }
+
+    /**
+     * Reads the request statistics of the SaveServer. Requires the
+     * {@link ServerStatistics#ACCESS_RIGHT} access right.
+     *
+     * @return Statistics report, or null if the user may not read it
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public StatisticsReport getServerStatistics() throws IOException {
+        Frame response = getConnection().call(Frame.request(OpCode.STATS));
+        if (!response.isOk()) {
+            return null;
+        }
+        return response.reader().readJson(gson, StatisticsReport.class);
+    }
+
+    /**
+     * Releases every lock taken over this session, whichever map took it.
+     *
+     * @return Number of locks released
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public int releaseAllLocks() throws IOException {
+        MultiplexedConnection current = getConnection();
+        PayloadWriter request = new PayloadWriter();
+        request.writeString("");
+        Frame response = current.call(Frame.request(OpCode.RELEASEALL, request));
+        if (!response.isOk()) {
+            return 0;
+        }
+        return (int) response.reader().readLong();
+    }
+
+    public boolean isOpen() {
+        MultiplexedConnection current = connection;
+        return current != null && current.isOpen();
+    }
+
+    public SaveServerConnection getSaveServerConnection() {
+        return saveServerConnection;
+    }
+
+    /**
+     * Ends the session for every map using it
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
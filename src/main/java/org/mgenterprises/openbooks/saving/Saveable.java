@@ -31,6 +31,7 @@ package org.mgenterprises.openbooks.saving;
  */
 public abstract class Saveable{
     private boolean locked = false;
+    private long version = 0;
     
     public Saveable() {
     }
@@ -42,6 +43,22 @@ public abstract class Saveable{
     public boolean isLocked() {
         return locked;
     }
+
+    /**
+     * Version the server handed out with this object for types that use
+     * optimistic concurrency. It grows with every write, a PUT only succeeds
+     * while it is current. -1 means the object was read while it was being
+     * written, so a PUT based on it always conflicts.
+     * 
+     * @return Version of the object, 0 if it was never written
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
     
     public abstract String getSaveableModuleName();
     
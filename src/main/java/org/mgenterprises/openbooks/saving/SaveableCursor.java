@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import com.google.gson.Gson;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+
+/**
+ * Iterates over a GET ALL or QUERY result the server streams. Only the chunk
+ * currently being read is decoded, the rest stays on the wire until it is
+ * needed. Closing a cursor early discards whatever is left.
+ *
+ * @author Manuel Gauto
+ */
+public class SaveableCursor<V extends Saveable> implements Closeable {
+    private static final Saveable[] EMPTY = new Saveable[0];
+
+    private final Gson gson;
+    private final Class<V> valueClass;
+    private ResponseStream stream;
+    private Frame finalFrame;
+    private Saveable[] chunk = EMPTY;
+    private int position = 0;
+
+    SaveableCursor(Gson gson, ResponseStream stream, Class<V> valueClass) {
+        this.gson = gson;
+        this.stream = stream;
+        this.valueClass = valueClass;
+    }
+
+    public boolean hasNext() throws IOException {
+        while (position >= chunk.length) {
+            if (stream == null) {
+                return false;
+            }
+            Frame frame = stream.next();
+            if (frame == null) {
+                finalFrame = stream.getTrailer();
+                stream = null;
+                return false;
+            }
+            chunk = frame.reader().readJson(gson, Saveable[].class);
+            position = 0;
+        }
+        return true;
+    }
+
+    public V next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return valueClass.cast(chunk[position++]);
+    }
+
+    /**
+     * @return True if the whole result has been read and the server reported
+     * success
+     */
+    public boolean isOk() {
+        return finalFrame != null && finalFrame.isOk();
+    }
+
+    @Override
+    public void close() {
+        if (stream != null) {
+            stream.cancel();
+            stream = null;
+        }
+        chunk = EMPTY;
+    }
+}
@@ -27,39 +27,29 @@ package org.mgenterprises.openbooks.saving;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.security.spec.InvalidKeySpecException;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.mgenterprises.openbooks.saving.protocol.CompressionStatistics;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadReader;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.PredicateCodec;
+import org.mgenterprises.openbooks.saving.query.Predicates;
 import org.mgenterprises.openbooks.saving.server.SaveManager;
-import org.mgenterprises.openbooks.saving.server.SaveServer;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
-import org.mgenterprises.openbooks.saving.server.authentication.UserLoginAttempt;
 import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
-import org.mgenterprises.openbooks.saving.server.security.SecureMessage;
 
 /**
  * Allows easy access to the OpenBooks storage backend.
@@ -70,92 +60,100 @@ import org.mgenterprises.openbooks.saving.server.security.SecureMessage;
  * different system double checking the locks and access since we can't 100 percent
  * trust the client.
  * 
+ * All requests go over a {@link MultiplexedConnection} so a map can be shared
+ * between threads and several requests can be in flight at the same time.
+ * 
  * @author mgauto
  */
 public class ServerBackedMap<V extends Saveable> {    
+    /**
+     * Shortest time between two renewals by {@link #renewOnActivity()}
+     */
+    private static final long MIN_LEASE_RENEWAL_MILLIS = 10000;
     private V v;
+    private final Class<V> valueClass;
     private Gson gson;
     private byte[] salt;
-    private ArrayList<String> lockedIDs = new ArrayList<String>(); 
+    /**
+     * Ids of the objects this map took locks on, by type
+     */
+    private ConcurrentHashMap<String, Set<String>> lockedIDs = new ConcurrentHashMap<String, Set<String>>();
     
-    private SSLSocket socket;
-    private BufferedWriter bw;
-    private BufferedReader br;
-    private HashMap<String, V> cache = new HashMap<String, V>();
-    long lastJournalId = 0;
+    private SaveServerSession session;
+    private ConcurrentHashMap<String, V> cache = new ConcurrentHashMap<String, V>();
+    private volatile long lastJournalId = 0;
+    /**
+     * Server pushed changes to this type, null until the cache has been
+     * filled or if the server cannot push changes
+     */
+    private ChangeSubscription subscription;
+    /**
+     * Ids reserved from the server and not handed out yet, from nextReservedId
+     * up to but not including reservedIdLimit. Guarded by idBlockLock
+     */
+    private final Object idBlockLock = new Object();
+    private long nextReservedId;
+    private long reservedIdLimit;
+    private int idBlockSize = 1;
+    /**
+     * When this map last renewed the lease of the user and the lease time the
+     * server answered with, -1 if locks do not expire
+     */
+    private volatile long leaseRenewedAt;
+    private volatile long leaseLength;
 
     /**
-     * Default Constructor 
+     * Default Constructor. Opens a session used only by this map, use
+     * {@link #ServerBackedMap(org.mgenterprises.openbooks.saving.Saveable, org.mgenterprises.openbooks.saving.SaveServerSession)}
+     * to share one between maps.
      * 
      * @param v Instance of the type that this map will be managing
      * @param saveServerConnection Connection data for link to server
      */
     public ServerBackedMap(V v, SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
+        this(v, new SaveServerSession(saveServerConnection));
+    }
+    
+    /**
+     * Creates a map that sends its requests over an existing session
+     * 
+     * @param v Instance of the type that this map will be managing
+     * @param session Session shared with other maps
+     */
+    public ServerBackedMap(V v, SaveServerSession session) {
         this.v = v;
+        this.valueClass = classOf(v);
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeAdapter(Saveable.class, new AbstractSaveableAdapter());
         //gsonBuilder.registerTypeAdapter(Saveable[].class, new AbstractSaveableArrayAdapter());
         gson = gsonBuilder.create();
-        //Connect to the server
-        connectToServer(saveServerConnection);
+        this.session = session;
+    }
+    
+    /**
+     * @return Class of the given value, which is a Class of V since v is a V
+     */
+    @SuppressWarnings("unchecked")
+    private static <V extends Saveable> Class<V> classOf(V v) {
+        return (Class<V>) v.getClass();
     }
     
     public void connectToServer(SaveServerConnection saveServerConnection) throws IOException, SaveServerAuthenticationFailureException {
-        String host = saveServerConnection.getServerAddress();
-        int port = saveServerConnection.getServerPort();
-        
-        SSLSocket sslSocket = null;
-        try {
-            KeyStore ks = KeyStore.getInstance("JKS");
-            ks.load(new FileInputStream(saveServerConnection.getPathToKeyStore()), saveServerConnection.getKeyStorePassword());
-
-            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-            kmf.init(ks, saveServerConnection.getKeyStorePassword());
-
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-            tmf.init(ks);
-
-            SSLContext sc = SSLContext.getInstance("TLS");
-            TrustManager[] trustManagers = tmf.getTrustManagers();
-            sc.init(kmf.getKeyManagers(), trustManagers, null);
-            
-            SSLSocketFactory ssf = sc.getSocketFactory();
-            sslSocket = (SSLSocket) ssf.createSocket(host, port);
-        } catch (NoSuchAlgorithmException ex) {
-            Logger.getLogger(ServerBackedMap.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (CertificateException ex) {
-            Logger.getLogger(ServerBackedMap.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (KeyManagementException ex) {
-            Logger.getLogger(ServerBackedMap.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (KeyStoreException ex) {
-            Logger.getLogger(ServerBackedMap.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (UnrecoverableKeyException ex) {
-            Logger.getLogger(ServerBackedMap.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        if(sslSocket != null) {
-            sslSocket.startHandshake();
-            //Get Streams
-            OutputStream outputStream = sslSocket.getOutputStream();
-            InputStream inputStream = sslSocket.getInputStream();
-            //Create Writers and Readers
-            bw = new BufferedWriter(new OutputStreamWriter(outputStream));
-            br = new BufferedReader(new InputStreamReader(inputStream));
-            //Start authentication
-            String username = saveServerConnection.getUsername();
-            String password = saveServerConnection.getPassword();
-            UserLoginAttempt userLoginAttempt = new UserLoginAttempt(username, password);
-            String userLoginAttemptJson = gson.toJson(userLoginAttempt);
-            bw.write(userLoginAttemptJson);
-            bw.newLine();
-            bw.flush();
-            String response = br.readLine();
-            if(response.equals("OK")) {
-                this.socket = sslSocket;
-            } else {
-                throw new SaveServerAuthenticationFailureException();
-            }
-        }
-        
+        this.session = new SaveServerSession(saveServerConnection);
+    }
+    
+    public SaveServerSession getSession() {
+        return session;
+    }
+    
+    /**
+     * Returns the compression counters of the session this map uses
+     * 
+     * @return Compression statistics, all zero if compression was not agreed on
+     * @throws IOException Thrown if the session is closed
+     */
+    public CompressionStatistics getCompressionStatistics() throws IOException {
+        return session.getConnection().getCompressionStatistics();
     }
     
     /**
@@ -168,24 +166,77 @@ public class ServerBackedMap<V extends Saveable> {
      * @throws IOException Thrown if there is a problem connecting to the server
      */
     public boolean existsAndAllowed(String key) throws IOException {
-        return get(key)!=null;
+        return submitKeyRequest(OpCode.EXISTS, v.getSaveableModuleName(), key).await().isOk();
+    }
+    
+    /**
+     * Check if the specified key exists, whoever holds its lock. Does not
+     * lock the object.
+     * 
+     * @param key Key to check
+     * @return true if the key exists
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public boolean exists(String key) throws IOException {
+        Frame response = submitKeyRequest(OpCode.EXISTS, v.getSaveableModuleName(), key).await();
+        return response.isOk() || response.getStatus()==Frame.STATUS_LOCKED;
     }
     
     /**
      * Persists the specified value to the database.
      * The object will overwrite any object that is already persisted that has the same key and type.
+     * If the type uses optimistic concurrency the value must carry the version
+     * it was read at, which is advanced when the put succeeds.
      * 
      * @param value Object that will be persisted in the database
      * @return ChangeRecord Id that is associated with this request or -1 if it failed
+     * @throws VersionConflictException Thrown if someone else wrote the object since it was read
      * @throws IOException Thrown if there is a problem connecting to the server
      */
     public long put(V value) throws IOException {
-        String request = "PUT"+SaveServer.DELIMITER+gson.toJson(value, Saveable.class);
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        return Long.parseLong(response);
+        PayloadWriter request = new PayloadWriter();
+        request.writeJson(gson, value, Saveable.class);
+        Frame response = call(Frame.request(OpCode.PUT, request));
+        if(response.getStatus()==Frame.STATUS_CONFLICT) {
+            PayloadReader reader = response.reader();
+            long currentVersion = reader.readLong();
+            Saveable current = reader.readBoolean() ? reader.<Saveable>readJson(gson, Saveable.class) : null;
+            throw new VersionConflictException(v.getSaveableModuleName()+" "+value.getUniqueId()+" was changed since version "+value.getVersion(), current, currentVersion);
+        }
+        if(!response.isOk()) {
+            return -1;
+        }
+        long changeId = response.reader().readLong();
+        value.setVersion(changeId+1);
+        return changeId;
+    }
+    
+    /**
+     * Persists several values with one request. The server writes them in a
+     * single transaction and journals them with a single commit.
+     * 
+     * @param values Objects that will be persisted in the database
+     * @return ChangeRecord Ids in the same order as values, -1 for objects that were rejected,
+     * -2 for objects of an optimistic type that were changed since they were read
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public long[] putAll(Collection<? extends V> values) throws IOException {
+        Saveable[] saveables = values.toArray(new Saveable[values.size()]);
+        PayloadWriter request = new PayloadWriter();
+        request.writeJson(gson, saveables, Saveable[].class);
+        Frame response = call(Frame.request(OpCode.MULTIPUT, request));
+        if(!response.isOk()) {
+            long[] failed = new long[values.size()];
+            Arrays.fill(failed, -1);
+            return failed;
+        }
+        long[] changeIds = response.reader().readLongArray();
+        for(int i = 0; i < changeIds.length && i < saveables.length; i++) {
+            if(changeIds[i] >= 0) {
+                saveables[i].setVersion(changeIds[i]+1);
+            }
+        }
+        return changeIds;
     }
     
     /**
@@ -196,19 +247,61 @@ public class ServerBackedMap<V extends Saveable> {
      * @return Object requested or null if it does not exist
      * @throws IOException Thrown if there is a problem connecting to the server
      */
-    public synchronized V get(String key) throws IOException {
-        String request = "GET"+SaveServer.DELIMITER+v.getSaveableModuleName()+SaveServer.DELIMITER+key;
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        if(response.equals("NO")) {
+    public V get(String key) throws IOException {
+        Frame response = submitKeyRequest(OpCode.GET, v.getSaveableModuleName(), key).await();
+        return readGetResponse(key, response);
+    }
+    
+    /**
+     * Reads an object without locking it, for views that only show it. The
+     * object is marked locked if someone else holds its lock.
+     * 
+     * @param key Key to search for
+     * @return The object and the holder of its lock, or null if it does not exist
+     * @throws IOException Thrown if there is a problem connecting to the server
+     * or the server is too old to read without locking
+     */
+    public Snapshot<V> peek(String key) throws IOException {
+        return peekAll(Collections.singletonList(key)).get(key);
+    }
+    
+    /**
+     * Reads several objects with one request without locking any of them
+     * 
+     * @param keys Keys to retrieve
+     * @return The objects that were found and the holders of their locks, by key
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public Map<String, Snapshot<V>> peekAll(Collection<String> keys) throws IOException {
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        Frame response = submitKeysRequest(OpCode.PEEK, keyArray).await();
+        Map<String, Snapshot<V>> found = new HashMap<String, Snapshot<V>>();
+        if(!response.isOk()) {
+            return found;
+        }
+        PayloadReader reader = response.reader();
+        String[] holders = reader.readStringArray();
+        Saveable[] saveables = reader.readJson(gson, Saveable[].class);
+        for(int i = 0; i < keyArray.length; i++) {
+            if(saveables[i] != null) {
+                found.put(keyArray[i], new Snapshot<V>(valueClass.cast(saveables[i]), holders[i]));
+            }
+        }
+        return found;
+    }
+    
+    private V readGetResponse(String key, Frame response) throws IOException {
+        if(!response.isOk()) {
             return null;
         } else {
             try {
-                Saveable saveable = gson.fromJson(response, Saveable.class);
-                this.lockedIDs.add(v.getSaveableModuleName()+":#:"+key);
-                return (V) saveable;
+                PayloadReader reader = response.reader();
+                Saveable saveable = reader.readJson(gson, Saveable.class);
+                //Only remember locks that were granted to this user
+                if(reader.readBoolean()) {
+                    addLockedId(v.getSaveableModuleName(), key);
+                }
+                return valueClass.cast(saveable);
             }
             catch(JsonSyntaxException ex) {
                 return null;
@@ -217,33 +310,97 @@ public class ServerBackedMap<V extends Saveable> {
     }
     
     /**
-     * This method is used to generate custom queries to retrieve a set of saveables.
-     * The queries are built from keys, operations, values and conjunctions. These parts
-     * are combined by the {@link SaveManager} implementation to retrieve the objects
-     * requested. 
+     * Retrieves several saveables with one request. Like {@link #get(String)}
+     * every object that is returned is locked if nobody else holds it.
      * 
-     * @param keys Keys to use in the WHERE query
-     * @param operations Determines how the key should be compared with the value
-     * @param values values to check for
-     * @param conjunctions Determines the logical links between the key/value comparisons(AND, OR)
+     * @param keys Keys to retrieve
+     * @return Objects that were found, by key
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public Map<String, V> getAll(Collection<String> keys) throws IOException {
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        Frame response = submitKeysRequest(OpCode.MULTIGET, keyArray).await();
+        return readMultiGetResponse(keyArray, response);
+    }
+    
+    private Map<String, V> readMultiGetResponse(String[] keys, Frame response) throws IOException {
+        Map<String, V> found = new HashMap<String, V>();
+        if(!response.isOk()) {
+            return found;
+        }
+        PayloadReader reader = response.reader();
+        Saveable[] saveables = reader.readJson(gson, Saveable[].class);
+        boolean[] held = reader.readBooleanArray();
+        for(int i = 0; i < keys.length; i++) {
+            if(saveables[i] != null) {
+                found.put(keys[i], valueClass.cast(saveables[i]));
+            }
+            if(held[i]) {
+                addLockedId(v.getSaveableModuleName(), keys[i]);
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * This method is used to run custom queries to retrieve a set of saveables.
+     * The query is a {@link Predicate} on the properties of the saveable, built
+     * with {@link Predicates}. The {@link SaveManager} implementation on the
+     * server decides how to run it.
+     * 
+     * @param predicate Condition the objects must meet
      * @param tryLockAll Determines whether or not the objects retrieved should be locked.
-     * @return
+     * @return The matching objects, or null if the server rejected the query
      * @throws IOException  Thrown if there is a problem connecting to the server
      */
-    public synchronized V[] getWhere(String[] keys, EqualityOperation[] operations, String[] values, String[] conjunctions, boolean tryLockAll) throws IOException {
-        String request = "GETWHERE"+SaveServer.DELIMITER+v.getSaveableModuleName()+SaveServer.DELIMITER+Arrays.toString(keys)+SaveServer.DELIMITER+Arrays.toString(operations)+SaveServer.DELIMITER+Arrays.toString(values)+SaveServer.DELIMITER+Arrays.toString(conjunctions)+SaveServer.DELIMITER+tryLockAll;
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        if(response.equals("NO")) return null;
-        try {
-            Saveable[] saveable = gson.fromJson(response, Saveable[].class);
-            return (V[]) saveable;
+    public V[] getWhere(Predicate predicate, boolean tryLockAll) throws IOException {
+        ArrayList<V> result = new ArrayList<V>();
+        try (SaveableCursor<V> cursor = cursorWhere(predicate, tryLockAll)) {
+            while(cursor.hasNext()) {
+                V saveable = cursor.next();
+                //Objects that are not marked locked were locked for this user
+                if(tryLockAll && !saveable.isLocked()) {
+                    addLockedId(v.getSaveableModuleName(), saveable.getUniqueId());
+                }
+                result.add(saveable);
+            }
+            if(!cursor.isOk()) return null;
         }
         catch(JsonSyntaxException ex) {
             return null;
         }
+        return result.toArray((V[]) Array.newInstance(v.getClass(), result.size()));
+    }
+    
+    /**
+     * Runs a query and returns a cursor over the matches. Large results are
+     * streamed, so they can be processed without holding them all in memory.
+     * The cursor should be closed once it is no longer needed.
+     * 
+     * @see #getWhere(org.mgenterprises.openbooks.saving.query.Predicate, boolean) 
+     * @return Cursor over the objects that match the query
+     * @throws IOException Thrown if there is a problem connecting to the server 
+     */
+    public SaveableCursor<V> cursorWhere(Predicate predicate, boolean tryLockAll) throws IOException {
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(v.getSaveableModuleName());
+        PredicateCodec.write(request, predicate);
+        request.writeBoolean(tryLockAll);
+        return openCursor(Frame.request(OpCode.QUERY, request));
+    }
+    
+    /**
+     * Returns a cursor over all the values stored of the given type without
+     * going through the cache. The same lock caveats as {@link #values()} apply.
+     * The cursor should be closed once it is no longer needed.
+     * 
+     * @return Cursor over the values of the given type
+     * @throws IOException Thrown if there is a problem connecting to the server 
+     */
+    public SaveableCursor<V> cursorAll() throws IOException {
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(v.getSaveableModuleName());
+        return openCursor(Frame.request(OpCode.GET_ALL, request));
     }
     
     /**
@@ -253,35 +410,60 @@ public class ServerBackedMap<V extends Saveable> {
      * and therefore should not be edited. If you wish to edit an object
      * you must use the get() method instead.
      * 
+     * The cached values are kept fresh with changes the server pushes, or by
+     * reading the journal if the server cannot push them.
+     * 
      * @return ArrayList of the values of the given type
      * @throws IOException Thrown if there is a problem connecting to the server 
      */
-    public ArrayList<V> values() throws IOException {
+    public synchronized ArrayList<V> values() throws IOException {
         if(cache.isEmpty()) {
             this.lastJournalId = this.getLatestChangeRecordId();
-            for(V v : primeCache()) {
-                cache.put(v.getUniqueId(), v);
+            primeCache();
+        } else if(subscription != null && subscription.isActive()) {
+            this.lastJournalId = subscription.getLastChangeId();
+            ArrayList<String> changedIds = subscription.drainChangedIds();
+            try {
+                refresh(changedIds);
+            } catch(IOException ex) {
+                subscription.restoreChangedIds(changedIds);
+                throw ex;
             }
         } else {
             applyChanges();
         }
+        if(subscription == null || subscription.isClosed()) {
+            subscribe();
+        }
         return new ArrayList<V>(cache.values());
     }
     
+    private void subscribe() throws IOException {
+        subscription = new ChangeSubscription(session.getConnection());
+        subscription.open(v.getSaveableModuleName(), lastJournalId);
+    }
     
-    private ArrayList<V> primeCache() throws IOException {
-        String request = "GET"+SaveServer.DELIMITER+v.getSaveableModuleName()+SaveServer.DELIMITER+"ALL";
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        if(response.equals("NO")) return null;
-        Saveable[] saveables = gson.fromJson(response, Saveable[].class);
-        ArrayList<V> saveablesList = new ArrayList<V>(saveables.length);
-        for(Saveable saveable : saveables) {
-            saveablesList.add((V)saveable);
+    /**
+     * Stops the server from pushing changes to this map. The next call to
+     * {@link #values()} subscribes again.
+     * 
+     * @throws IOException Thrown if there is a problem connecting to the server 
+     */
+    public synchronized void unsubscribe() throws IOException {
+        if(subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+    }
+    
+    
+    private void primeCache() throws IOException {
+        try (SaveableCursor<V> cursor = cursorAll()) {
+            while(cursor.hasNext()) {
+                V value = cursor.next();
+                cache.put(value.getUniqueId(), value);
+            }
         }
-        return saveablesList;
     }
     
     /**
@@ -291,12 +473,7 @@ public class ServerBackedMap<V extends Saveable> {
      * @throws IOException IOException Thrown if there is a problem connecting to the server 
      */
     public long size() throws IOException {
-        String request = "SIZE"+SaveServer.DELIMITER+v.getSaveableModuleName();
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        return Long.parseLong(response);
+        return longCall(OpCode.SIZE);
     }
     
     /**
@@ -306,12 +483,75 @@ public class ServerBackedMap<V extends Saveable> {
      * @throws IOException IOException Thrown if there is a problem connecting to the server 
      */
     public long highestId() throws IOException {
-        String request = "HIGHESTID"+SaveServer.DELIMITER+v.getSaveableModuleName();
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        return Long.parseLong(response);
+        return longCall(OpCode.HIGHESTID);
+    }
+    
+    /**
+     * Returns an id for a new object that no other client is given. Ids are
+     * reserved from the server in blocks of {@link #getIdBlockSize()}, so
+     * only one call per block goes to the server. Ids of a block that are
+     * not used before the map is discarded are lost.
+     * 
+     * @return Unused id
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public long nextId() throws IOException {
+        synchronized(idBlockLock) {
+            if(nextReservedId >= reservedIdLimit) {
+                nextReservedId = reserveIds(idBlockSize);
+                reservedIdLimit = nextReservedId + idBlockSize;
+            }
+            return nextReservedId++;
+        }
+    }
+    
+    /**
+     * Reserves consecutive ids for new objects with a single request, for
+     * example to create a batch of objects.
+     * 
+     * @param count Number of ids, 1 to 10000
+     * @return First id of the block, the block ends at first + count - 1
+     * @throws IOException Thrown if there is a problem connecting to the server
+     * or the server refused the request
+     */
+    public long reserveIds(int count) throws IOException {
+        return reserveIds(v.getSaveableModuleName(), count);
+    }
+    
+    /**
+     * Reserves consecutive ids from the sequence of another type, for
+     * objects that are stored along with the objects of this map
+     * 
+     * @param type Saveable module name of the sequence
+     * @param count Number of ids, 1 to 10000
+     * @return First id of the block, the block ends at first + count - 1
+     * @throws IOException Thrown if there is a problem connecting to the server
+     * or the server refused the request
+     */
+    protected long reserveIds(String type, int count) throws IOException {
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(type);
+        request.writeInt(count);
+        Frame response = call(Frame.request(OpCode.NEXTID, request));
+        if(!response.isOk()) {
+            throw new IOException(OpCode.NEXTID+" for "+type+" failed with status "+response.getStatus());
+        }
+        return response.reader().readLong();
+    }
+    
+    public int getIdBlockSize() {
+        return idBlockSize;
+    }
+    
+    /**
+     * Sets how many ids {@link #nextId()} reserves at once. Larger blocks
+     * save round trips when many objects are created but leave gaps in the
+     * ids when the map is discarded with ids left over.
+     * 
+     * @param idBlockSize Ids per block, 1 to 10000
+     */
+    public void setIdBlockSize(int idBlockSize) {
+        this.idBlockSize = idBlockSize;
     }
     
     /**
@@ -321,12 +561,8 @@ public class ServerBackedMap<V extends Saveable> {
      * @throws IOException  IOException Thrown if there is a problem connecting to the server 
      */
     public boolean remove(String key) throws IOException {
-        String request = "REMOVE"+SaveServer.DELIMITER+v.getSaveableModuleName()+SaveServer.DELIMITER+key;
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        if(Boolean.getBoolean(response)){
+        Frame response = submitKeyRequest(OpCode.REMOVE, v.getSaveableModuleName(), key).await();
+        if(response.isOk()){
             cache.remove(key);
             releaseLock(v.getSaveableModuleName(), key);
             return true;
@@ -335,19 +571,147 @@ public class ServerBackedMap<V extends Saveable> {
     }
     
     /**
+     * Removes several objects with one request. The server removes them in a
+     * single transaction; only objects this user holds the lock on are removed.
+     * 
+     * @param keys Keys of the objects to remove
+     * @return Number of objects that were removed
+     * @throws IOException  IOException Thrown if there is a problem connecting to the server 
+     */
+    public int removeAll(Collection<String> keys) throws IOException {
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        Frame response = submitKeysRequest(OpCode.MULTIREMOVE, keyArray).await();
+        if(!response.isOk()) {
+            return 0;
+        }
+        boolean[] removed = response.reader().readBooleanArray();
+        String type = v.getSaveableModuleName();
+        ArrayList<String> removedKeys = new ArrayList<String>();
+        for(int i = 0; i < keyArray.length; i++) {
+            if(removed[i]) {
+                cache.remove(keyArray[i]);
+                removedKeys.add(keyArray[i]);
+            }
+        }
+        releaseLocks(type, removedKeys);
+        return removedKeys.size();
+    }
+    
+    /**
+     * Releases every lock this map holds. Each type is released with a
+     * single request and all of them are sent before any answer is awaited.
      * 
      * @throws IOException  IOException Thrown if there is a problem connecting to the server 
      */
-    public synchronized void releaseAllLocks() throws IOException {
-        System.out.println("Releasing locks: "+v.getSaveableModuleName());
-        ArrayList<String> tempIDs = new ArrayList<String>(lockedIDs);
-        for(String s : tempIDs) {
-            String[] parts = s.split(":#:");
-            String type = parts[0];
-            String id = parts[1];
-            System.out.println("      Released: "+id);
-            releaseLock(type, id);
+    public void releaseAllLocks() throws IOException {
+        HashMap<String, List<String>> held = new HashMap<String, List<String>>();
+        for(Map.Entry<String, Set<String>> type : lockedIDs.entrySet()) {
+            held.put(type.getKey(), new ArrayList<String>(type.getValue()));
+        }
+        ArrayList<PendingResponse> responses = new ArrayList<PendingResponse>();
+        for(Map.Entry<String, List<String>> type : held.entrySet()) {
+            submitReleases(type.getKey(), type.getValue(), responses);
+        }
+        awaitReleases(responses);
+        for(Map.Entry<String, List<String>> type : held.entrySet()) {
+            lockedIDs.get(type.getKey()).removeAll(type.getValue());
+        }
+    }
+    
+    /**
+     * Locks several objects of this map's type with one request
+     * 
+     * @param keys Keys of the objects to lock
+     * @param all true to lock every object or none of them, locks held
+     * before are kept either way
+     * @return Keys of the objects whose lock this user holds afterwards
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public Set<String> tryLockAll(Collection<String> keys, boolean all) throws IOException {
+        String type = v.getSaveableModuleName();
+        Set<String> locked = new HashSet<String>();
+        String[] keyArray = keys.toArray(new String[keys.size()]);
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(type);
+        request.writeStringArray(keyArray);
+        request.writeBoolean(all);
+        Frame response = call(Frame.request(OpCode.LOCKMANY, request));
+        if(!response.isOk()) {
+            return locked;
+        }
+        boolean[] held = response.reader().readBooleanArray();
+        for(int i = 0; i < keyArray.length; i++) {
+            if(held[i]) {
+                locked.add(keyArray[i]);
+                addLockedId(type, keyArray[i]);
+            }
+        }
+        return locked;
+    }
+    
+    /**
+     * Releases several locks of this map's type with one request
+     * 
+     * @param keys Keys of the objects to release
+     * @return Number of locks that were released
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public int releaseLocks(Collection<String> keys) throws IOException {
+        return releaseLocks(v.getSaveableModuleName(), new ArrayList<String>(keys));
+    }
+    
+    private int releaseLocks(String type, List<String> ids) throws IOException {
+        ArrayList<PendingResponse> responses = new ArrayList<PendingResponse>();
+        submitReleases(type, ids, responses);
+        int released = awaitReleases(responses);
+        for(String id : ids) {
+            removeLockedId(type, id);
+        }
+        return released;
+    }
+    
+    private void addLockedId(String type, String id) {
+        Set<String> ids = lockedIDs.get(type);
+        if(ids == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            ids = lockedIDs.putIfAbsent(type, created);
+            if(ids == null) {
+                ids = created;
+            }
+        }
+        ids.add(id);
+    }
+    
+    private void removeLockedId(String type, String id) {
+        Set<String> ids = lockedIDs.get(type);
+        if(ids != null) {
+            ids.remove(id);
+        }
+    }
+    
+    /**
+     * Sends the release of several locks of one type as one RELEASEMANY
+     * without waiting for the answer
+     */
+    private void submitReleases(String type, List<String> ids, List<PendingResponse> responses) throws IOException {
+        if(ids.isEmpty()) {
+            return;
+        }
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(type);
+        request.writeStringArray(ids.toArray(new String[ids.size()]));
+        responses.add(session.getConnection().submit(Frame.request(OpCode.RELEASEMANY, request)));
+    }
+    
+    private static int awaitReleases(List<PendingResponse> responses) throws IOException {
+        int released = 0;
+        for(PendingResponse pending : responses) {
+            Frame response = pending.await();
+            if(response.isOk()) {
+                released += (int) response.reader().readLong();
+            }
         }
+        return released;
     }
     
     /**
@@ -357,14 +721,10 @@ public class ServerBackedMap<V extends Saveable> {
      * @return
      * @throws IOException  IOException Thrown if there is a problem connecting to the server 
      */
-    public synchronized boolean tryLock(String type, String id) throws IOException {
-        String request = "LOCK"+SaveServer.DELIMITER+type+SaveServer.DELIMITER+id;
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        if(response.equals("200") || response.equals("302")) {
-            this.lockedIDs.add(type+":#:"+id);
+    public boolean tryLock(String type, String id) throws IOException {
+        Frame response = submitKeyRequest(OpCode.LOCK, type, id).await();
+        if(response.getStatus() == Frame.STATUS_OK || response.getStatus() == Frame.STATUS_ALREADY_HELD) {
+            addLockedId(type, id);
             return true;
         }
         return false;
@@ -378,52 +738,154 @@ public class ServerBackedMap<V extends Saveable> {
      * @throws IOException  IOException Thrown if there is a problem connecting to the server 
      */
     public boolean releaseLock(String type, String id) throws IOException {
-        String request = "RELEASE"+SaveServer.DELIMITER+type+SaveServer.DELIMITER+id;
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        this.lockedIDs.remove(type+":#:"+id);
-        return (response.equals("200"));
+        Frame response = submitKeyRequest(OpCode.RELEASE, type, id).await();
+        removeLockedId(type, id);
+        return response.isOk();
+    }
+    
+    /**
+     * Returns how long the locks of the user stay held if no further request
+     * is sent. Every request of the user renews them, heartbeats do not.
+     * 
+     * @return Milliseconds left, 0 if the user holds no lease, -1 if locks do
+     * not expire
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public long getLeaseRemaining() throws IOException {
+        return leaseCall(false);
+    }
+    
+    /**
+     * Renews the lease on the locks of the user
+     * 
+     * @return Milliseconds until the locks are released unless renewed again,
+     * 0 if the user holds no lease, -1 if locks do not expire
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public long renewLease() throws IOException {
+        long remaining = leaseCall(true);
+        leaseRenewedAt = System.currentTimeMillis();
+        leaseLength = remaining < 0 ? -1 : Math.max(remaining, MIN_LEASE_RENEWAL_MILLIS);
+        return remaining;
+    }
+    
+    /**
+     * Call when the user works on something, for example while typing into a
+     * form of a locked object. Renews the lease once half of it has passed
+     * since this map last renewed it, so frequent calls are cheap.
+     * 
+     * @throws IOException Thrown if there is a problem connecting to the server
+     */
+    public void renewOnActivity() throws IOException {
+        if(leaseLength >= 0 && System.currentTimeMillis() - leaseRenewedAt >= leaseLength / 2) {
+            renewLease();
+        }
+    }
+    
+    private long leaseCall(boolean renew) throws IOException {
+        PayloadWriter request = new PayloadWriter(1);
+        request.writeBoolean(renew);
+        Frame response = call(Frame.request(OpCode.LEASE, request));
+        if(!response.isOk()) {
+            throw new IOException(OpCode.LEASE+" failed with status "+response.getStatus());
+        }
+        return response.reader().readLong();
     }
     
     private void applyChanges() throws IOException {
         ChangeRecord[] changes = getChangeRecordsSince(lastJournalId);
+        String type = v.getSaveableModuleName();
+        ArrayList<String> changedIds = new ArrayList<String>();
         for(ChangeRecord change : changes) {
-            if(change.getType().equals(v.getSaveableModuleName())) {
-                V changed = this.get(change.getObjectId());
-                this.cache.put(changed.getUniqueId(), changed);
-                this.releaseLock(v.getSaveableModuleName(), changed.getUniqueId());
+            if(change.getType().equals(type) && !changedIds.contains(change.getObjectId())) {
+                changedIds.add(change.getObjectId());
             }
             this.lastJournalId = change.getChangeId();
         }
+        refresh(changedIds);
+    }
+    
+    /**
+     * Fetches every changed object with one PEEK, which takes no locks, and
+     * updates the cache.
+     */
+    private void refresh(ArrayList<String> changedIds) throws IOException {
+        if(changedIds.isEmpty()) {
+            return;
+        }
+        Map<String, Snapshot<V>> fetched = peekAll(changedIds);
+        for(String id : changedIds) {
+            Snapshot<V> changed = fetched.get(id);
+            if(changed == null) {
+                this.cache.remove(id);
+            } else {
+                this.cache.put(changed.getSaveable().getUniqueId(), changed.getSaveable());
+            }
+        }
     }
     
     private ChangeRecord[] getChangeRecordsSince(long id) throws IOException {
-        String request = "READJOURNAL"+SaveServer.DELIMITER+String.valueOf(id);
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        if(response.equals("NO")) {
-            return null;
+        PayloadWriter request = new PayloadWriter(8);
+        request.writeLong(id);
+        Frame response = call(Frame.request(OpCode.READJOURNAL, request));
+        if(!response.isOk()) {
+            return new ChangeRecord[0];
         }
-        System.out.println(response);
-        ChangeRecord[] changes = gson.fromJson(response, ChangeRecord[].class);
+        ChangeRecord[] changes = response.reader().readJson(gson, ChangeRecord[].class);
         return changes;
     }
     
     private long getLatestChangeRecordId() throws IOException {
-        String request = "READJOURNAL"+SaveServer.DELIMITER+"SIZE";
-        bw.write(request);
-        bw.newLine();
-        bw.flush();
-        String response = br.readLine();
-        try {
-            long size = Long.parseLong(response);
-            return size;
-        } catch(NumberFormatException ex) {
+        Frame response = call(Frame.request(OpCode.JOURNALSIZE));
+        if(!response.isOk()) {
             return -1;
         }
+        return response.reader().readLong();
+    }
+    
+    /**
+     * Sends a request that only carries the type of this map and returns the
+     * number the server answers with
+     */
+    private long longCall(OpCode opCode) throws IOException {
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(v.getSaveableModuleName());
+        Frame response = call(Frame.request(opCode, request));
+        if(!response.isOk()) {
+            throw new IOException(opCode+" for "+v.getSaveableModuleName()+" failed with status "+response.getStatus());
+        }
+        return response.reader().readLong();
+    }
+    
+    /**
+     * Sends a request that names a single object without waiting for the response
+     */
+    private PendingResponse submitKeyRequest(OpCode opCode, String type, String key) throws IOException {
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(type);
+        request.writeString(key);
+        return session.getConnection().submit(Frame.request(opCode, request));
+    }
+    
+    /**
+     * Sends a request that names several objects of this map's type without
+     * waiting for the response
+     */
+    private PendingResponse submitKeysRequest(OpCode opCode, String[] keys) throws IOException {
+        PayloadWriter request = new PayloadWriter();
+        request.writeString(v.getSaveableModuleName());
+        request.writeStringArray(keys);
+        return session.getConnection().submit(Frame.request(opCode, request));
+    }
+    
+    /**
+     * Sends a request whose result the server streams and reads it with a cursor
+     */
+    private SaveableCursor<V> openCursor(Frame request) throws IOException {
+        return new SaveableCursor<V>(gson, session.getConnection().openStream(request), valueClass);
+    }
+    
+    private Frame call(Frame request) throws IOException {
+        return session.getConnection().call(request);
     }
 }
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.mgenterprises.openbooks.saving;
+
+/**
+ * An object read with PEEK together with the holder of its lock at the time
+ * it was read. Reading it did not lock it, editing it needs
+ * {@link ServerBackedMap#tryLock(String, String)} first unless its type uses
+ * optimistic concurrency.
+ *
+ * @author Manuel Gauto
+ */
+public class Snapshot<V extends Saveable> {
+    private final V saveable;
+    private final String lockHolder;
+
+    public Snapshot(V saveable, String lockHolder) {
+        this.saveable = saveable;
+        this.lockHolder = lockHolder;
+    }
+
+    public V getSaveable() {
+        return saveable;
+    }
+
+    /**
+     * @return User holding the lock of the object, empty if nobody does
+     */
+    public String getLockHolder() {
+        return lockHolder;
+    }
+
+    /**
+     * @return true if somebody holds the lock of the object
+     */
+    public boolean isHeld() {
+        return !lockHolder.isEmpty();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.mgenterprises.openbooks.saving;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a PUT of an object of an optimistic type is rejected because
+ * the object was written by someone else since it was read. The edit can be
+ * merged into the current object and put again.
+ *
+ * @author Manuel Gauto
+ */
+public class VersionConflictException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final Saveable current;
+    private final long currentVersion;
+
+    public VersionConflictException(String message, Saveable current, long currentVersion) {
+        super(message);
+        this.current = current;
+        this.currentVersion = currentVersion;
+    }
+
+    /**
+     * @return Object as it is stored now, null if it was removed
+     */
+    public Saveable getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return Version a retry has to carry, also when the object was removed
+     */
+    public long getCurrentVersion() {
+        return currentVersion;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how well compression is working on one session. Sizes
+ * only cover frames that were compressed, so the ratios are not diluted by
+ * the small frames that are sent as-is.
+ *
+ * @author Manuel Gauto
+ */
+public class CompressionStatistics {
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+
+    private final AtomicLong framesCompressed = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong framesDecompressed = new AtomicLong();
+    private final AtomicLong bytesBeforeDecompression = new AtomicLong();
+    private final AtomicLong bytesAfterDecompression = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    /**
+     * @return CPU time used by the current thread, or wall clock time if the
+     * JVM cannot measure CPU time
+     */
+    static long now() {
+        return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void recordCompressed(int originalSize, int compressedSize, long nanos) {
+        framesCompressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(originalSize);
+        bytesAfterCompression.addAndGet(compressedSize);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a frame that was over the threshold but did not shrink enough
+     * to be worth sending compressed
+     */
+    void recordSkipped(long nanos) {
+        framesSkipped.incrementAndGet();
+        compressionNanos.addAndGet(nanos);
+    }
+
+    void recordDecompressed(int compressedSize, int originalSize, long nanos) {
+        framesDecompressed.incrementAndGet();
+        bytesBeforeDecompression.addAndGet(compressedSize);
+        bytesAfterDecompression.addAndGet(originalSize);
+        decompressionNanos.addAndGet(nanos);
+    }
+
+    public long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    public long getFramesDecompressed() {
+        return framesDecompressed.get();
+    }
+
+    /**
+     * @return Size of sent payloads divided by their size before compression
+     */
+    public double getSentRatio() {
+        return ratio(bytesAfterCompression.get(), bytesBeforeCompression.get());
+    }
+
+    /**
+     * @return Size of received payloads divided by their size after decompression
+     */
+    public double getReceivedRatio() {
+        return ratio(bytesBeforeDecompression.get(), bytesAfterDecompression.get());
+    }
+
+    /**
+     * @return Bytes that did not have to be sent thanks to compression
+     */
+    public long getBytesSaved() {
+        return bytesBeforeCompression.get() - bytesAfterCompression.get();
+    }
+
+    /**
+     * @return CPU time spent compressing, in nanoseconds
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    /**
+     * @return CPU time spent decompressing, in nanoseconds
+     */
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+
+    private static double ratio(long compressed, long original) {
+        return original == 0 ? 1.0 : (double) compressed / original;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent %d frames at %.2f (%d skipped, %d ms), received %d frames at %.2f (%d ms)",
+                getFramesCompressed(), getSentRatio(), getFramesSkipped(), getCompressionNanos() / 1000000,
+                getFramesDecompressed(), getReceivedRatio(), getDecompressionNanos() / 1000000);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+/**
+ * A single protocol message. Requests and responses share the same layout,
+ * responses additionally carry a status code. A response carries the request
+ * id of the request it answers so several requests can be in flight on one
+ * connection.
+ *
+ * @author Manuel Gauto
+ */
+public class Frame {
+    public static final short STATUS_REQUEST = 0;
+    public static final short STATUS_OK = 200;
+    /**
+     * One chunk of a streamed result, more frames for the same request follow
+     */
+    public static final short STATUS_PARTIAL = 206;
+    public static final short STATUS_ALREADY_HELD = 302;
+    public static final short STATUS_BAD_REQUEST = 400;
+    public static final short STATUS_DENIED = 401;
+    public static final short STATUS_NOT_FOUND = 404;
+    /**
+     * A PUT of an optimistic type carried an out of date version, the
+     * payload holds the current version and object, if it still exists
+     */
+    public static final short STATUS_CONFLICT = 409;
+    public static final short STATUS_ERROR = 500;
+    public static final short STATUS_LOCKED = 503;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int requestId;
+    private final OpCode opCode;
+    private final short status;
+    private final byte[] payload;
+    private final int payloadLength;
+
+    public Frame(int requestId, OpCode opCode, short status, byte[] payload, int payloadLength) {
+        this.requestId = requestId;
+        this.opCode = opCode;
+        this.status = status;
+        this.payload = payload;
+        this.payloadLength = payloadLength;
+    }
+
+    public static Frame request(OpCode opCode, PayloadWriter payload) {
+        return new Frame(0, opCode, STATUS_REQUEST, payload.getBuffer(), payload.size());
+    }
+
+    public static Frame request(OpCode opCode) {
+        return new Frame(0, opCode, STATUS_REQUEST, EMPTY, 0);
+    }
+
+    public static Frame response(OpCode opCode, short status, PayloadWriter payload) {
+        return new Frame(0, opCode, status, payload.getBuffer(), payload.size());
+    }
+
+    public static Frame response(OpCode opCode, short status) {
+        return new Frame(0, opCode, status, EMPTY, 0);
+    }
+
+    /**
+     * Returns a copy of this frame tagged with the given request id
+     *
+     * @param requestId Id of the request this frame belongs to
+     * @return Tagged frame
+     */
+    public Frame withRequestId(int requestId) {
+        return new Frame(requestId, opCode, status, payload, payloadLength);
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public OpCode getOpCode() {
+        return opCode;
+    }
+
+    public short getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == STATUS_OK;
+    }
+
+    public boolean isPartial() {
+        return status == STATUS_PARTIAL;
+    }
+
+    /**
+     * Returns the backing array of the payload. Only the first
+     * {@link #getPayloadLength()} bytes are part of the frame.
+     *
+     * @return Payload buffer
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public PayloadReader reader() {
+        return new PayloadReader(payload, 0, payloadLength);
+    }
+}
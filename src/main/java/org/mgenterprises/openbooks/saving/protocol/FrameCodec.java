@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes frames on a SaveServer connection.
+ *
+ * A session starts with a version handshake: the client sends the magic
+ * number followed by the highest and lowest protocol versions it speaks, and
+ * the server answers with the magic number and the version it picked, or 0
+ * if there is no version both sides understand.
+ *
+ * After the handshake every frame is laid out as
+ * <pre>
+ * int   length     number of bytes that follow
+ * int   requestId  chosen by the client, echoed in the response
+ * byte  opcode
+ * short status     0 for requests
+ * byte[] payload
+ * </pre>
+ * Responses may arrive in any order, the request id tells which request
+ * they answer.
+ *
+ * Large results are streamed: the server answers with any number of
+ * {@link Frame#STATUS_PARTIAL} frames followed by one final frame. It sends
+ * at most {@link #STREAM_WINDOW} partial frames ahead of what the client has
+ * read, the client makes room for more with {@link OpCode#CREDIT}.
+ *
+ * Peers may agree at login to compress large payloads. A compressed frame
+ * has {@link #COMPRESSED_FLAG} set in its opcode byte and its payload is the
+ * uncompressed length as an int followed by deflate data. Payloads below the
+ * threshold, or that do not shrink, are sent as-is.
+ *
+ * Clients can subscribe to changes and the server pushes them as they
+ * happen, see {@link OpCode#SUBSCRIBE}. The server drops sessions that stay
+ * silent for too long and clients keep idle sessions alive with
+ * {@link OpCode#PING}.
+ *
+ * Every operation in {@link OpCode} is available in version 1. Later
+ * versions are negotiated with the same handshake.
+ *
+ * @author Manuel Gauto
+ */
+public class FrameCodec {
+    public static final int MAGIC = 0x4F425350;
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int MIN_PROTOCOL_VERSION = 1;
+    /**
+     * Bytes of a frame after its length and before its payload
+     */
+    private static final int HEADER_SIZE = 7;
+    /**
+     * Partial frames of a stream the server may send before the client grants
+     * credit for more
+     */
+    public static final int STREAM_WINDOW = 8;
+    /**
+     * Frames larger than this are rejected before any memory is allocated for them
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /**
+     * Set in the opcode byte of frames whose payload is compressed
+     */
+    public static final int COMPRESSED_FLAG = 0x80;
+    /**
+     * Payloads smaller than this are not worth compressing
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int version = 0;
+    /**
+     * Smallest payload that is compressed, or -1 while compression is off
+     */
+    private volatile int compressionThreshold = -1;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] compressionBuffer;
+    private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+    public FrameCodec(InputStream inputStream, OutputStream outputStream) {
+        this.in = new DataInputStream(new BufferedInputStream(inputStream));
+        this.out = new DataOutputStream(new BufferedOutputStream(outputStream));
+    }
+
+    /**
+     * Performs the client side of the version handshake
+     *
+     * @return Negotiated protocol version
+     * @throws IOException Thrown if the server does not speak a compatible version
+     */
+    public int negotiateAsClient() throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeByte(MIN_PROTOCOL_VERSION);
+        out.flush();
+        if (in.readInt() != MAGIC) {
+            throw new ProtocolException("Peer is not a SaveServer");
+        }
+        int chosen = in.readUnsignedByte();
+        if (chosen == 0) {
+            throw new ProtocolException("SaveServer does not support protocol versions " + MIN_PROTOCOL_VERSION + " to " + PROTOCOL_VERSION);
+        }
+        this.version = chosen;
+        return chosen;
+    }
+
+    /**
+     * Performs the server side of the version handshake
+     *
+     * @return Negotiated protocol version
+     * @throws IOException Thrown if the client does not speak a compatible version
+     */
+    public int negotiateAsServer() throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new ProtocolException("Peer is not a SaveServer client");
+        }
+        int clientMax = in.readUnsignedByte();
+        int clientMin = in.readUnsignedByte();
+        int chosen = Math.min(clientMax, PROTOCOL_VERSION);
+        if (chosen < Math.max(clientMin, MIN_PROTOCOL_VERSION)) {
+            chosen = 0;
+        }
+        out.writeInt(MAGIC);
+        out.writeByte(chosen);
+        out.flush();
+        if (chosen == 0) {
+            throw new ProtocolException("Client protocol versions " + clientMin + " to " + clientMax + " are not supported");
+        }
+        this.version = chosen;
+        return chosen;
+    }
+
+    /**
+     * Reads the next frame
+     *
+     * @return The frame or null if the peer closed the connection between frames
+     * @throws IOException Thrown if the connection fails or the frame is malformed
+     */
+    public Frame readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        int requestId = in.readInt();
+        byte code = in.readByte();
+        short status = in.readShort();
+        boolean compressed = hasCompression() && (code & COMPRESSED_FLAG) != 0;
+        if (compressed) {
+            code = (byte) (code & ~COMPRESSED_FLAG);
+        }
+        OpCode opCode = OpCode.fromCode(code);
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+        if (opCode == null) {
+            throw new ProtocolException("Unknown opcode " + code);
+        }
+        if (compressed) {
+            payload = decompress(payload);
+        }
+        return new Frame(requestId, opCode, status, payload, payload.length);
+    }
+
+    /**
+     * Writes a frame and flushes it to the connection
+     *
+     * @param frame Frame to send
+     * @throws IOException Thrown if the connection fails
+     */
+    public synchronized void writeFrame(Frame frame) throws IOException {
+        if (frame.getPayloadLength() + HEADER_SIZE > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Frame of " + frame.getPayloadLength() + " bytes exceeds the maximum frame size");
+        }
+        int code = frame.getOpCode().getCode();
+        byte[] payload = frame.getPayload();
+        int payloadLength = frame.getPayloadLength();
+        int compressedLength = compress(payload, payloadLength);
+        if (compressedLength > 0) {
+            code |= COMPRESSED_FLAG;
+            payload = compressionBuffer;
+            payloadLength = compressedLength;
+        }
+        out.writeInt(payloadLength + HEADER_SIZE);
+        out.writeInt(frame.getRequestId());
+        out.writeByte(code);
+        out.writeShort(frame.getStatus());
+        out.write(payload, 0, payloadLength);
+        out.flush();
+    }
+
+    /**
+     * Compresses a payload into {@link #compressionBuffer} if it is large
+     * enough and actually shrinks
+     *
+     * @return Length of the compressed payload, or 0 if it should be sent as-is
+     */
+    private int compress(byte[] payload, int length) {
+        if (compressionThreshold < 0 || length < compressionThreshold) {
+            return 0;
+        }
+        long start = CompressionStatistics.now();
+        //Anything that does not fit in the original size is not worth sending
+        if (compressionBuffer == null || compressionBuffer.length < length) {
+            compressionBuffer = new byte[length];
+        }
+        deflater.reset();
+        deflater.setInput(payload, 0, length);
+        deflater.finish();
+        compressionBuffer[0] = (byte) (length >>> 24);
+        compressionBuffer[1] = (byte) (length >>> 16);
+        compressionBuffer[2] = (byte) (length >>> 8);
+        compressionBuffer[3] = (byte) length;
+        int compressedLength = 4;
+        while (!deflater.finished() && compressedLength < length) {
+            compressedLength += deflater.deflate(compressionBuffer, compressedLength, length - compressedLength);
+        }
+        long elapsed = CompressionStatistics.now() - start;
+        if (!deflater.finished()) {
+            compressionStatistics.recordSkipped(elapsed);
+            return 0;
+        }
+        compressionStatistics.recordCompressed(length, compressedLength, elapsed);
+        return compressedLength;
+    }
+
+    private byte[] decompress(byte[] payload) throws IOException {
+        long start = CompressionStatistics.now();
+        if (payload.length < 4) {
+            throw new ProtocolException("Compressed payload is missing its length");
+        }
+        int length = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid uncompressed length " + length);
+        }
+        byte[] result = new byte[length];
+        inflater.reset();
+        inflater.setInput(payload, 4, payload.length - 4);
+        try {
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int count = inflater.inflate(result, read, length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != length || !inflater.finished()) {
+                throw new ProtocolException("Compressed payload does not match its length " + length);
+            }
+        } catch (DataFormatException ex) {
+            throw new ProtocolException("Corrupt compressed payload: " + ex.getMessage());
+        }
+        compressionStatistics.recordDecompressed(payload.length, length, CompressionStatistics.now() - start);
+        return result;
+    }
+
+    /**
+     * Turns on compression for the rest of the session. Both peers must have
+     * agreed to it at login.
+     *
+     * @param threshold Smallest payload that is compressed when sending
+     */
+    public synchronized void enableCompression(int threshold) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            inflater = new Inflater();
+        }
+        this.compressionThreshold = Math.max(threshold, 0);
+    }
+
+    /**
+     * @return true if compression has been agreed on for this session
+     */
+    public boolean hasCompression() {
+        return compressionThreshold >= 0;
+    }
+
+    public CompressionStatistics getCompressionStatistics() {
+        return compressionStatistics;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+            //The inflater may still be in use by a reader thread, it is
+            //released when it is collected
+            synchronized (this) {
+                compressionThreshold = -1;
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+/**
+ * Operations understood by the SaveServer. Responses carry the opcode of
+ * the request they answer.
+ *
+ * Payloads are built with {@link PayloadWriter} and read back with
+ * {@link PayloadReader}. The expected fields are listed for each operation.
+ *
+ * @author Manuel Gauto
+ */
+public enum OpCode {
+    /**
+     * Request: json UserLoginAttempt, compression flag. Response: whether
+     * the rest of the session is compressed
+     */
+    LOGIN(1),
+    /**
+     * Request: type, id. Response: json Saveable, whether the lock is held by
+     * the user. Locks the object if it is free
+     */
+    GET(2),
+    /**
+     * Request: type. Response: partial frames of json Saveable[] followed by
+     * a final frame holding the total count. Does not lock
+     */
+    GET_ALL(3),
+    /**
+     * Request: type, predicate as written by PredicateCodec, tryLockAll.
+     * Response: json Saveable[], streamed like {@link #GET_ALL}
+     */
+    QUERY(4),
+    /**
+     * Request: json Saveable. Response: change id. The object and its
+     * ChangeRecord are stored in one transaction
+     */
+    PUT(5),
+    /**
+     * Request: type, id. Response: status only. Needs the lock of the
+     * object, which is removed and journaled in one transaction
+     */
+    REMOVE(6),
+    /**
+     * Request: type. Response: count
+     */
+    SIZE(7),
+    /**
+     * Request: type. Response: highest id. Racy for picking new ids, use
+     * {@link #NEXTID} instead
+     */
+    HIGHESTID(8),
+    /**
+     * Request: type, id. Response: status only
+     */
+    LOCK(9),
+    /**
+     * Request: type, id. Response: status only
+     */
+    RELEASE(10),
+    /**
+     * Request: last change id seen. Response: json ChangeRecord[] of the
+     * changes after it
+     */
+    READJOURNAL(11),
+    /**
+     * Request: nothing. Response: latest change id
+     */
+    JOURNALSIZE(12),
+    /**
+     * Request: nothing. Ends the session, no response is sent
+     */
+    DISCONNECT(13),
+    /**
+     * Request: type, ids[]. Response: json Saveable[] aligned with ids, null
+     * where an object does not exist, then held[] telling whether the user
+     * holds each lock. Locks every returned object that is free
+     */
+    MULTIGET(14),
+    /**
+     * Request: json Saveable[]. Response: change ids[] aligned with the
+     * request, -1 where an object was rejected. Persisted in one transaction
+     */
+    MULTIPUT(15),
+    /**
+     * Request: type, ids[]. Response: removed[] aligned with ids. Removed
+     * and journaled in one transaction
+     */
+    MULTIREMOVE(16),
+    /**
+     * Request: types[], last change id seen. Response: a partial frame for
+     * every batch of changes to those types, starting with an empty one once
+     * the subscription is active. Each holds the change id it covers up to,
+     * a count and then change id, type and object id for every change. The
+     * final frame is only sent after {@link #UNSUBSCRIBE}
+     */
+    SUBSCRIBE(17),
+    /**
+     * Request: request id of the SUBSCRIBE. Response: status only
+     */
+    UNSUBSCRIBE(18),
+    /**
+     * Request: request id of the SUBSCRIBE, change id covered by the last
+     * batch applied. No response is sent
+     */
+    ACK(19),
+    /**
+     * Request: nothing. Response: json StatisticsReport. Needs the
+     * SaveServer.STATS access right
+     */
+    STATS(20),
+    /**
+     * Request: nothing. Response: status only. Sent by idle clients so the
+     * server does not time the session out
+     */
+    PING(21),
+    /**
+     * Request: type, count. Response: first id of a block of count
+     * consecutive ids that is not handed out to anyone else. Needs the PUT
+     * right on the type
+     */
+    NEXTID(22),
+    /**
+     * Request: type, id. Response: status only, OK if the object exists and
+     * nobody else holds its lock, LOCKED if someone else does and NOT_FOUND
+     * if it does not exist. Does not lock
+     */
+    EXISTS(23),
+    /**
+     * Request: renew flag. Response: milliseconds until the locks of the user
+     * are released unless it sends another request, 0 if it holds no lease,
+     * -1 if locks do not expire. Every request except PING, ACK, DISCONNECT
+     * and LEASE without the renew flag renews the lease
+     */
+    LEASE(24),
+    /**
+     * Request: type, ids[], all flag. Response: held[] aligned with ids,
+     * true where the user holds the lock afterwards. With the all flag either
+     * every lock is taken or none that was not held before
+     */
+    LOCKMANY(25),
+    /**
+     * Request: type, ids[]. Response: number of locks released. Locks held
+     * by someone else are left alone
+     */
+    RELEASEMANY(26),
+    /**
+     * Request: type, empty for every type. Response: number of locks
+     * released. Releases the locks taken over this session
+     */
+    RELEASEALL(27),
+    /**
+     * Request: type, ids[]. Response: lock holders[] aligned with ids, empty
+     * where nobody holds the lock, then json Saveable[] aligned with ids,
+     * null where an object does not exist. Takes no locks, objects are only
+     * marked locked if someone else holds them
+     */
+    PEEK(28),
+    /**
+     * Request: request id of a streamed GET_ALL or QUERY, number of further
+     * partial frames the client has room for, 0 to end the stream early.
+     * No response is sent
+     */
+    CREDIT(29);
+
+    private final byte code;
+
+    private OpCode(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static OpCode fromCode(byte code) {
+        for (OpCode opCode : values()) {
+            if (opCode.code == code) {
+                return opCode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+
+/**
+ * Reads fields written by {@link PayloadWriter}, in the same order they were written
+ *
+ * @author Manuel Gauto
+ */
+public class PayloadReader {
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+
+    public PayloadReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public int readByte() throws ProtocolException {
+        require(1);
+        return buffer[position++];
+    }
+
+    public boolean readBoolean() throws ProtocolException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws ProtocolException {
+        require(4);
+        int value = ((buffer[position] & 0xff) << 24)
+                | ((buffer[position + 1] & 0xff) << 16)
+                | ((buffer[position + 2] & 0xff) << 8)
+                | (buffer[position + 3] & 0xff);
+        position += 4;
+        return value;
+    }
+
+    public long readLong() throws ProtocolException {
+        long high = readInt();
+        long low = readInt() & 0xffffffffL;
+        return (high << 32) | low;
+    }
+
+    public byte[] readBytes() throws ProtocolException {
+        int length = readLength();
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, position, bytes, 0, length);
+        position += length;
+        return bytes;
+    }
+
+    public String readString() throws ProtocolException {
+        int length = readInt();
+        if (length == -1) {
+            return null;
+        }
+        position -= 4;
+        length = readLength();
+        String value = new String(buffer, position, length, PayloadWriter.UTF8);
+        position += length;
+        return value;
+    }
+
+    public String[] readStringArray() throws ProtocolException {
+        int length = readInt();
+        if (length < 0 || length > remaining()) {
+            throw new ProtocolException("Invalid array length " + length);
+        }
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = readString();
+        }
+        return values;
+    }
+
+    public long[] readLongArray() throws ProtocolException {
+        int length = readArrayLength(8);
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = readLong();
+        }
+        return values;
+    }
+
+    public boolean[] readBooleanArray() throws ProtocolException {
+        int length = readArrayLength(1);
+        boolean[] values = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = readBoolean();
+        }
+        return values;
+    }
+
+    /**
+     * Deserializes a JSON field straight from the frame buffer
+     *
+     * @param gson Gson used to deserialize
+     * @param type Type to deserialize to
+     * @return Deserialized object
+     */
+    public <T> T readJson(Gson gson, Type type) throws ProtocolException {
+        int length = readLength();
+        InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(buffer, position, length), PayloadWriter.UTF8);
+        position += length;
+        return gson.fromJson(reader, type);
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public int remaining() {
+        return limit - position;
+    }
+
+    private int readArrayLength(int elementSize) throws ProtocolException {
+        int length = readInt();
+        if (length < 0 || (long) length * elementSize > remaining()) {
+            throw new ProtocolException("Invalid array length " + length);
+        }
+        return length;
+    }
+
+    private int readLength() throws ProtocolException {
+        int length = readInt();
+        if (length < 0) {
+            throw new ProtocolException("Negative field length " + length);
+        }
+        require(length);
+        return length;
+    }
+
+    private void require(int bytes) throws ProtocolException {
+        if (limit - position < bytes) {
+            throw new ProtocolException("Payload truncated, needed " + bytes + " bytes but only " + (limit - position) + " remain");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Builds frame payloads. Every field is length prefixed so values may contain
+ * any character, and JSON is streamed straight into the buffer instead of
+ * being built as a String first.
+ *
+ * @author Manuel Gauto
+ */
+public class PayloadWriter {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+    private int count;
+
+    public PayloadWriter() {
+        this(256);
+    }
+
+    public PayloadWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public PayloadWriter writeByte(int value) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) value;
+        return this;
+    }
+
+    public PayloadWriter writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public PayloadWriter writeInt(int value) {
+        ensureCapacity(4);
+        putInt(count, value);
+        count += 4;
+        return this;
+    }
+
+    public PayloadWriter writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        return writeInt((int) value);
+    }
+
+    public PayloadWriter writeBytes(byte[] bytes, int offset, int length) {
+        writeInt(length);
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+        return this;
+    }
+
+    /**
+     * Writes a string, null is preserved
+     */
+    public PayloadWriter writeString(String value) {
+        if (value == null) {
+            return writeInt(-1);
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    public PayloadWriter writeStringArray(String[] values) {
+        writeInt(values.length);
+        for (String value : values) {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public PayloadWriter writeLongArray(long[] values) {
+        writeInt(values.length);
+        for (long value : values) {
+            writeLong(value);
+        }
+        return this;
+    }
+
+    public PayloadWriter writeBooleanArray(boolean[] values) {
+        writeInt(values.length);
+        for (boolean value : values) {
+            writeBoolean(value);
+        }
+        return this;
+    }
+
+    /**
+     * Serializes the object with the given Gson instance directly into the payload
+     *
+     * @param gson Gson used to serialize
+     * @param value Object to serialize
+     * @param type Type to serialize the object as
+     */
+    public PayloadWriter writeJson(Gson gson, Object value, Type type) {
+        int lengthPosition = count;
+        writeInt(0);
+        int start = count;
+        Writer writer = new OutputStreamWriter(new BufferOutputStream(), UTF8);
+        gson.toJson(value, type, writer);
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            //Cannot happen, the buffer is in memory
+            throw new IllegalStateException(ex);
+        }
+        putInt(lengthPosition, count - start);
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The backing buffer, only the first {@link #size()} bytes are valid
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    private void putInt(int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+        }
+    }
+
+    private class BufferOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.query;
+
+import java.util.List;
+
+/**
+ * Combines predicates with AND or OR. An empty AND matches everything and an
+ * empty OR matches nothing.
+ *
+ * @author Manuel Gauto
+ */
+public final class Junction extends Predicate {
+
+    public enum Type {
+        AND, OR
+    }
+
+    private final Type type;
+    private final List<Predicate> operands;
+
+    Junction(Type type, List<Predicate> operands) {
+        this.type = type;
+        this.operands = operands;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The combined predicates. The list is unmodifiable.
+     */
+    public List<Predicate> getOperands() {
+        return operands;
+    }
+
+    @Override
+    public <R> R accept(PredicateVisitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+    @Override
+    public String toString() {
+        if (operands.isEmpty()) {
+            return type == Type.AND ? "TRUE" : "FALSE";
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < operands.size(); i++) {
+            if (i > 0) {
+                sb.append(" ").append(type).append(" ");
+            }
+            sb.append(operands.get(i));
+        }
+        return sb.append(")").toString();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.query;
+
+import java.util.regex.Pattern;
+
+/**
+ * Matches a string property against a SQL LIKE pattern, where % stands for
+ * any run of characters and _ for exactly one. Matching is case sensitive.
+ *
+ * @author Manuel Gauto
+ */
+public final class LikePredicate extends Predicate {
+    private final String property;
+    private final String pattern;
+    /**
+     * The pattern as a regular expression, built on first in-memory use
+     */
+    private volatile Pattern regex;
+
+    LikePredicate(String property, String pattern) {
+        this.property = property;
+        this.pattern = pattern;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    Pattern getRegex() {
+        Pattern compiled = regex;
+        if (compiled == null) {
+            StringBuilder sb = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : pattern.toCharArray()) {
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        sb.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    sb.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                sb.append(Pattern.quote(literal.toString()));
+            }
+            compiled = Pattern.compile(sb.toString(), Pattern.DOTALL);
+            regex = compiled;
+        }
+        return compiled;
+    }
+
+    @Override
+    public <R> R accept(PredicateVisitor<R> visitor) {
+        return visitor.visit(this);
+    }
+
+    @Override
+    public String toString() {
+        return property + " LIKE " + Predicates.format(pattern);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.query;
+
+/**
+ * Condition on the properties of a Saveable, used to query a SaveManager.
+ * Predicates are immutable. Build them with {@link Predicates}.
+ *
+ * The same predicate can be compiled to a database query or evaluated
+ * against objects in memory with {@link #matches(Object)}. Both follow SQL
+ * semantics: a comparison with a missing (null) property is neither true
+ * nor false, so neither the comparison nor its negation matches.
+ *
+ * @author Manuel Gauto
+ */
+public abstract class Predicate {
+
+    Predicate() {
+    }
+
+    public abstract <R> R accept(PredicateVisitor<R> visitor);
+
+    public Predicate and(Predicate other) {
+        return Predicates.and(this, other);
+    }
+
+    public Predicate or(Predicate other) {
+        return Predicates.or(this, other);
+    }
+
+    public Predicate negate() {
+        return Predicates.not(this);
+    }
+
+    /**
+     * Evaluates the predicate against an object in memory
+     *
+     * @param object Object whose properties are tested
+     * @return True if the object matches
+     */
+    public boolean matches(Object object) {
+        return PredicateEvaluator.matches(this, object);
+    }
+
+    /**
+     * @return The predicate in a readable, SQL like form
+     */
+    @Override
+    public abstract String toString();
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.mgenterprises.openbooks.saving.EqualityOperation;
+import org.mgenterprises.openbooks.saving.protocol.PayloadReader;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+import org.mgenterprises.openbooks.saving.protocol.ProtocolException;
+
+/**
+ * Writes predicates into frame payloads and reads them back. Each node is a
+ * tag byte followed by its fields, operands are written depth first. Values
+ * are a type byte followed by the value.
+ *
+ * Reading enforces limits on nesting and size, since the payload comes from
+ * the network.
+ *
+ * @author Manuel Gauto
+ */
+public final class PredicateCodec {
+    private static final int COMPARISON = 1;
+    private static final int IN = 2;
+    private static final int BETWEEN = 3;
+    private static final int LIKE = 4;
+    private static final int NOT = 5;
+    private static final int AND = 6;
+    private static final int OR = 7;
+
+    private static final int STRING_VALUE = 1;
+    private static final int LONG_VALUE = 2;
+    private static final int DOUBLE_VALUE = 3;
+    private static final int BOOLEAN_VALUE = 4;
+    private static final int DATE_VALUE = 5;
+
+    public static final int MAX_DEPTH = 32;
+    public static final int MAX_NODES = 4096;
+
+    private PredicateCodec() {
+    }
+
+    public static void write(final PayloadWriter writer, Predicate predicate) {
+        predicate.accept(new PredicateVisitor<Void>() {
+            @Override
+            public Void visit(Comparison comparison) {
+                writer.writeByte(COMPARISON);
+                writer.writeString(comparison.getProperty());
+                writer.writeString(comparison.getOperation().name());
+                writeValue(writer, comparison.getValue());
+                return null;
+            }
+
+            @Override
+            public Void visit(InPredicate in) {
+                writer.writeByte(IN);
+                writer.writeString(in.getProperty());
+                writer.writeInt(in.getValues().size());
+                for (Object value : in.getValues()) {
+                    writeValue(writer, value);
+                }
+                return null;
+            }
+
+            @Override
+            public Void visit(BetweenPredicate between) {
+                writer.writeByte(BETWEEN);
+                writer.writeString(between.getProperty());
+                writeValue(writer, between.getLow());
+                writeValue(writer, between.getHigh());
+                return null;
+            }
+
+            @Override
+            public Void visit(LikePredicate like) {
+                writer.writeByte(LIKE);
+                writer.writeString(like.getProperty());
+                writer.writeString(like.getPattern());
+                return null;
+            }
+
+            @Override
+            public Void visit(NotPredicate not) {
+                writer.writeByte(NOT);
+                not.getOperand().accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visit(Junction junction) {
+                writer.writeByte(junction.getType() == Junction.Type.AND ? AND : OR);
+                writer.writeInt(junction.getOperands().size());
+                for (Predicate operand : junction.getOperands()) {
+                    operand.accept(this);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void writeValue(PayloadWriter writer, Object value) {
+        if (value instanceof String) {
+            writer.writeByte(STRING_VALUE);
+            writer.writeString((String) value);
+        } else if (value instanceof Long) {
+            writer.writeByte(LONG_VALUE);
+            writer.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            writer.writeByte(DOUBLE_VALUE);
+            writer.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof Boolean) {
+            writer.writeByte(BOOLEAN_VALUE);
+            writer.writeBoolean((Boolean) value);
+        } else {
+            writer.writeByte(DATE_VALUE);
+            writer.writeLong(((Date) value).getTime());
+        }
+    }
+
+    public static Predicate read(PayloadReader reader) throws ProtocolException {
+        try {
+            return read(reader, 0, new int[1]);
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolException("Invalid predicate: " + ex.getMessage());
+        }
+    }
+
+    private static Predicate read(PayloadReader reader, int depth, int[] nodes) throws ProtocolException {
+        if (depth > MAX_DEPTH) {
+            throw new ProtocolException("Predicate nested deeper than " + MAX_DEPTH);
+        }
+        count(nodes, 1);
+        int tag = reader.readByte();
+        switch (tag) {
+            case COMPARISON: {
+                String property = reader.readString();
+                String operation = reader.readString();
+                EqualityOperation equalityOperation;
+                try {
+                    equalityOperation = EqualityOperation.valueOf(operation);
+                } catch (IllegalArgumentException ex) {
+                    throw new ProtocolException("Unknown operation " + operation);
+                }
+                return Predicates.compare(property, equalityOperation, readValue(reader));
+            }
+            case IN: {
+                String property = reader.readString();
+                int size = reader.readInt();
+                count(nodes, size);
+                List<Object> values = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(readValue(reader));
+                }
+                return Predicates.in(property, values);
+            }
+            case BETWEEN:
+                return Predicates.between(reader.readString(), readValue(reader), readValue(reader));
+            case LIKE:
+                return Predicates.like(reader.readString(), reader.readString());
+            case NOT:
+                return Predicates.not(read(reader, depth + 1, nodes));
+            case AND:
+            case OR: {
+                int size = reader.readInt();
+                count(nodes, size);
+                Predicate[] operands = new Predicate[size];
+                for (int i = 0; i < size; i++) {
+                    operands[i] = read(reader, depth + 1, nodes);
+                }
+                return tag == AND ? Predicates.and(operands) : Predicates.or(operands);
+            }
+            default:
+                throw new ProtocolException("Unknown predicate tag " + tag);
+        }
+    }
+
+    private static void count(int[] nodes, int added) throws ProtocolException {
+        if (added < 0 || nodes[0] + added > MAX_NODES) {
+            throw new ProtocolException("Predicate has more than " + MAX_NODES + " nodes");
+        }
+        nodes[0] += added;
+    }
+
+    private static Object readValue(PayloadReader reader) throws ProtocolException {
+        int type = reader.readByte();
+        switch (type) {
+            case STRING_VALUE:
+                return reader.readString();
+            case LONG_VALUE:
+                return reader.readLong();
+            case DOUBLE_VALUE:
+                return Double.longBitsToDouble(reader.readLong());
+            case BOOLEAN_VALUE:
+                return reader.readBoolean();
+            case DATE_VALUE:
+                return new Date(reader.readLong());
+            default:
+                throw new ProtocolException("Unknown value type " + type);
+        }
+    }
+}
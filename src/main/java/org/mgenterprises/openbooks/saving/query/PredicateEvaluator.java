@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.query;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evaluates predicates against objects in memory, for SaveManagers that
+ * cannot run queries themselves. Properties are read through their getters,
+ * or the field if there is no getter.
+ *
+ * Evaluation uses the three valued logic of SQL so results agree with the
+ * database: a comparison with a null property is unknown, NOT of unknown is
+ * unknown, and only predicates that are definitely true match.
+ *
+ * @author Manuel Gauto
+ */
+public final class PredicateEvaluator implements PredicateVisitor<Boolean> {
+    /**
+     * Property readers, by class and property name
+     */
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, AccessibleObject>> ACCESSORS = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, AccessibleObject>>();
+
+    private final Object object;
+
+    private PredicateEvaluator(Object object) {
+        this.object = object;
+    }
+
+    /**
+     * @param predicate Predicate to evaluate
+     * @param object Object to test
+     * @return True if the predicate is true for the object
+     * @throws IllegalArgumentException If the predicate names a property the
+     * object does not have, or compares values that cannot be compared
+     */
+    public static boolean matches(Predicate predicate, Object object) {
+        return Boolean.TRUE.equals(predicate.accept(new PredicateEvaluator(object)));
+    }
+
+    @Override
+    public Boolean visit(Comparison comparison) {
+        Integer order = compare(read(comparison.getProperty()), comparison.getValue());
+        if (order == null) {
+            return null;
+        }
+        switch (comparison.getOperation()) {
+            case EQUALS:
+                return order == 0;
+            case NOT_EQUALS:
+                return order != 0;
+            case GREATER:
+                return order > 0;
+            case GREATER_EQUALS:
+                return order >= 0;
+            case LESS:
+                return order < 0;
+            case LESS_EQUALS:
+                return order <= 0;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + comparison.getOperation());
+        }
+    }
+
+    @Override
+    public Boolean visit(InPredicate in) {
+        Object actual = read(in.getProperty());
+        if (actual == null) {
+            return null;
+        }
+        for (Object value : in.getValues()) {
+            if (compare(actual, value) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visit(BetweenPredicate between) {
+        Object actual = read(between.getProperty());
+        if (actual == null) {
+            return null;
+        }
+        return compare(actual, between.getLow()) >= 0 && compare(actual, between.getHigh()) <= 0;
+    }
+
+    @Override
+    public Boolean visit(LikePredicate like) {
+        Object actual = read(like.getProperty());
+        if (actual == null) {
+            return null;
+        }
+        return like.getRegex().matcher(actual.toString()).matches();
+    }
+
+    @Override
+    public Boolean visit(NotPredicate not) {
+        Boolean result = not.getOperand().accept(this);
+        return result == null ? null : !result;
+    }
+
+    @Override
+    public Boolean visit(Junction junction) {
+        //AND stops at the first false, OR at the first true
+        boolean decisive = junction.getType() == Junction.Type.OR;
+        boolean unknown = false;
+        for (Predicate operand : junction.getOperands()) {
+            Boolean result = operand.accept(this);
+            if (result == null) {
+                unknown = true;
+            } else if (result == decisive) {
+                return decisive;
+            }
+        }
+        return unknown ? null : !decisive;
+    }
+
+    /**
+     * @return Order of the property relative to the value, or null if the
+     * property is null
+     */
+    private static Integer compare(Object actual, Object value) {
+        if (actual == null) {
+            return null;
+        }
+        if (actual instanceof Character || actual instanceof Enum) {
+            actual = actual instanceof Enum ? ((Enum<?>) actual).name() : actual.toString();
+        }
+        if (actual instanceof Date) {
+            actual = ((Date) actual).getTime();
+        }
+        if (value instanceof Date) {
+            value = ((Date) value).getTime();
+        }
+        if (actual instanceof Number && value instanceof String) {
+            value = parseNumber((String) value);
+        } else if (actual instanceof String && value instanceof Number) {
+            actual = parseNumber((String) actual);
+        }
+        if (actual instanceof Number && value instanceof Number) {
+            if (isIntegral(actual) && isIntegral(value)) {
+                return Long.compare(((Number) actual).longValue(), ((Number) value).longValue());
+            }
+            return Double.compare(((Number) actual).doubleValue(), ((Number) value).doubleValue());
+        }
+        if (actual instanceof String && value instanceof String) {
+            return Integer.signum(((String) actual).compareTo((String) value));
+        }
+        if (actual instanceof Boolean && value instanceof Boolean) {
+            return Boolean.compare((Boolean) actual, (Boolean) value);
+        }
+        throw new IllegalArgumentException("Cannot compare " + actual.getClass().getSimpleName() + " " + actual + " to " + value);
+    }
+
+    private static boolean isIntegral(Object number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    private static Number parseNumber(String value) {
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException ex) {
+            try {
+                return Double.valueOf(value.trim());
+            } catch (NumberFormatException ex2) {
+                throw new IllegalArgumentException("Not a number: " + value);
+            }
+        }
+    }
+
+    /**
+     * Reads a possibly dotted property path, stopping at the first null
+     */
+    private Object read(String path) {
+        Object current = object;
+        for (String property : path.split("\\.")) {
+            if (current == null) {
+                return null;
+            }
+            current = readProperty(current, property);
+        }
+        return current;
+    }
+
+    private static Object readProperty(Object target, String property) {
+        AccessibleObject accessor = getAccessor(target.getClass(), property);
+        try {
+            if (accessor instanceof Method) {
+                return ((Method) accessor).invoke(target);
+            }
+            return ((Field) accessor).get(target);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            throw new IllegalArgumentException("Cannot read " + property + " of " + target.getClass().getName(), ex);
+        }
+    }
+
+    private static AccessibleObject getAccessor(Class<?> type, String property) {
+        ConcurrentHashMap<String, AccessibleObject> accessors = ACCESSORS.get(type);
+        if (accessors == null) {
+            accessors = new ConcurrentHashMap<String, AccessibleObject>();
+            ConcurrentHashMap<String, AccessibleObject> existing = ACCESSORS.putIfAbsent(type, accessors);
+            if (existing != null) {
+                accessors = existing;
+            }
+        }
+        AccessibleObject accessor = accessors.get(property);
+        if (accessor == null) {
+            accessor = findAccessor(type, property);
+            accessors.put(property, accessor);
+        }
+        return accessor;
+    }
+
+    private static AccessibleObject findAccessor(Class<?> type, String property) {
+        String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        for (String prefix : new String[]{"get", "is"}) {
+            try {
+                Method method = type.getMethod(prefix + suffix);
+                if (method.getReturnType() != void.class) {
+                    return method;
+                }
+            } catch (NoSuchMethodException ex) {
+                //Try the next naming convention
+            }
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(property);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException ex) {
+                //Look in the superclass
+            }
+        }
+        throw new IllegalArgumentException("Unknown property " + property + " of " + type.getName());
+    }
+}
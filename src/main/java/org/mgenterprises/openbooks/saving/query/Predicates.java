@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.mgenterprises.openbooks.saving.EqualityOperation;
+
+/**
+ * Builds predicates, for example
+ * <pre>
+ * Predicate overdue = Predicates.lt("dateDue", new Date())
+ *         .and(Predicates.not(Predicates.eq("amountPaid", 0)));
+ * </pre>
+ * Property names are bean properties of the queried Saveable, optionally
+ * dotted to reach into components. Values may be strings, numbers, booleans
+ * or dates; numbers are widened to Long or Double.
+ *
+ * @author Manuel Gauto
+ */
+public final class Predicates {
+    private static final Pattern PROPERTY_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+    private Predicates() {
+    }
+
+    public static Predicate eq(String property, Object value) {
+        return compare(property, EqualityOperation.EQUALS, value);
+    }
+
+    public static Predicate ne(String property, Object value) {
+        return compare(property, EqualityOperation.NOT_EQUALS, value);
+    }
+
+    public static Predicate gt(String property, Object value) {
+        return compare(property, EqualityOperation.GREATER, value);
+    }
+
+    public static Predicate ge(String property, Object value) {
+        return compare(property, EqualityOperation.GREATER_EQUALS, value);
+    }
+
+    public static Predicate lt(String property, Object value) {
+        return compare(property, EqualityOperation.LESS, value);
+    }
+
+    public static Predicate le(String property, Object value) {
+        return compare(property, EqualityOperation.LESS_EQUALS, value);
+    }
+
+    public static Predicate compare(String property, EqualityOperation operation, Object value) {
+        if (operation == null) {
+            throw new IllegalArgumentException("No operation given for " + property);
+        }
+        return new Comparison(checkProperty(property), operation, literal(value));
+    }
+
+    public static Predicate in(String property, Object... values) {
+        return in(property, Arrays.asList(values));
+    }
+
+    /**
+     * @param property Property to test
+     * @param values Accepted values. An empty collection matches nothing.
+     * @return The predicate
+     */
+    public static Predicate in(String property, Collection<?> values) {
+        checkProperty(property);
+        if (values.isEmpty()) {
+            return or();
+        }
+        List<Object> literals = new ArrayList<Object>(values.size());
+        for (Object value : values) {
+            literals.add(literal(value));
+        }
+        return new InPredicate(property, Collections.unmodifiableList(literals));
+    }
+
+    public static Predicate between(String property, Object low, Object high) {
+        return new BetweenPredicate(checkProperty(property), literal(low), literal(high));
+    }
+
+    /**
+     * @param low Lowest value, inclusive, or null for no lower bound
+     * @param high Highest value, inclusive, or null for no upper bound
+     * @return Predicate on the range
+     * @throws IllegalArgumentException If both bounds are null
+     */
+    public static Predicate range(String property, Object low, Object high) {
+        if (low != null && high != null) {
+            return between(property, low, high);
+        }
+        if (low != null) {
+            return ge(property, low);
+        }
+        if (high != null) {
+            return le(property, high);
+        }
+        throw new IllegalArgumentException("A range on " + property + " needs at least one bound");
+    }
+
+    public static Predicate like(String property, String pattern) {
+        return new LikePredicate(checkProperty(property), (String) literal(pattern));
+    }
+
+    public static Predicate not(Predicate predicate) {
+        if (predicate == null) {
+            throw new IllegalArgumentException("Nothing to negate");
+        }
+        return new NotPredicate(predicate);
+    }
+
+    /**
+     * @param predicates Predicates that must all match, none matches everything
+     * @return The conjunction
+     */
+    public static Predicate and(Predicate... predicates) {
+        return junction(Junction.Type.AND, predicates);
+    }
+
+    /**
+     * @param predicates Predicates of which one must match, none matches nothing
+     * @return The disjunction
+     */
+    public static Predicate or(Predicate... predicates) {
+        return junction(Junction.Type.OR, predicates);
+    }
+
+    /**
+     * @return Predicate that matches every object
+     */
+    public static Predicate all() {
+        return and();
+    }
+
+    private static Predicate junction(Junction.Type type, Predicate... predicates) {
+        List<Predicate> operands = new ArrayList<Predicate>(predicates.length);
+        for (Predicate predicate : predicates) {
+            if (predicate == null) {
+                throw new IllegalArgumentException("Null operand in " + type);
+            }
+            //Flatten nested junctions of the same type so equal queries look alike
+            if (predicate instanceof Junction && ((Junction) predicate).getType() == type) {
+                operands.addAll(((Junction) predicate).getOperands());
+            } else {
+                operands.add(predicate);
+            }
+        }
+        if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return new Junction(type, Collections.unmodifiableList(operands));
+    }
+
+    static String checkProperty(String property) {
+        if (property == null || !PROPERTY_NAME.matcher(property).matches()) {
+            throw new IllegalArgumentException("Invalid property name " + property);
+        }
+        return property;
+    }
+
+    /**
+     * Normalizes a value to one of the types a predicate can hold
+     */
+    static Object literal(Object value) {
+        if (value instanceof String || value instanceof Boolean || value instanceof Long || value instanceof Double) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Character) {
+            return value.toString();
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        throw new IllegalArgumentException("Unsupported value " + value);
+    }
+
+    static String format(Object value) {
+        if (value instanceof String) {
+            return "'" + ((String) value).replace("'", "''") + "'";
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,890 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.Id;
+import org.mgenterprises.openbooks.saving.AbstractSaveableAdapter;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.BetweenPredicate;
+import org.mgenterprises.openbooks.saving.query.Comparison;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.Predicates;
+import org.mgenterprises.openbooks.saving.server.btree.BTree;
+import org.mgenterprises.openbooks.saving.server.btree.BTreeConfiguration;
+import org.mgenterprises.openbooks.saving.server.btree.BTreeWork;
+import org.mgenterprises.openbooks.saving.server.btree.BTreeWriter;
+import org.mgenterprises.openbooks.saving.server.index.IndexedProperty;
+import org.mgenterprises.openbooks.saving.server.index.SecondaryIndexes;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+
+/**
+ * Keeps every object in one memory-mapped {@link BTree} file, for single
+ * node deployments that want neither a database nor a file per object.
+ * 
+ * Objects are keyed by type and uniqueId. Numeric ids sort as numbers, so
+ * the objects of a type are listed in id order and comparisons on the
+ * property holding the {@link Id} are answered with a range scan, as long
+ * as that property has held the uniqueId of every object written. Other
+ * predicates are evaluated in memory, narrowed down by the
+ * {@link org.mgenterprises.openbooks.saving.Indexed} properties the same way
+ * as in {@link FileBackedSaveManager}.
+ * 
+ * @author Manuel Gauto
+ */
+public class BTreeBackedSaveManager implements SaveManager, Closeable {
+    private static final byte DATA = 'D';
+    private static final byte LOCK = 'L';
+    /**
+     * Marks types whose id property does not always hold the uniqueId
+     */
+    private static final byte UNORDERED = 'U';
+    private static final byte NUMERIC_ID = 1;
+    private static final byte TEXT_ID = 2;
+    /**
+     * Entries read from the tree at a time while listing a type
+     */
+    private static final int SCAN_CHUNK = 256;
+    private final BTree tree;
+    private final Gson gson;
+    /**
+     * Indexes of the types queried so far, by type. Only changed inside a
+     * write of the tree, so no write can slip past them.
+     */
+    private final ConcurrentHashMap<String, SecondaryIndexes> secondaryIndexes = new ConcurrentHashMap<String, SecondaryIndexes>();
+    /**
+     * Object counts of the types counted so far, kept current by every write
+     */
+    private final ConcurrentHashMap<String, Long> counts = new ConcurrentHashMap<String, Long>();
+    /**
+     * Name of the id property of each type, empty if the type has none
+     */
+    private final ConcurrentHashMap<String, String> idProperties = new ConcurrentHashMap<String, String>();
+    /**
+     * Types known to be marked as unordered
+     */
+    private final Set<String> unorderedTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public BTreeBackedSaveManager(File file) throws IOException {
+        this(file, new BTreeConfiguration());
+    }
+
+    public BTreeBackedSaveManager(File file, BTreeConfiguration configuration) throws IOException {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.registerTypeAdapter(Saveable.class, new AbstractSaveableAdapter());
+        gson = gsonBuilder.create();
+        tree = new BTree(file, configuration);
+    }
+
+    /**
+     * @return The tree the objects are stored in
+     */
+    public BTree getTree() {
+        return tree;
+    }
+
+    @Override
+    public boolean persistSaveable(String type, String holder, Saveable saveable) {
+        return persistSaveables(holder, new Saveable[]{saveable})[0];
+    }
+
+    @Override
+    public boolean[] persistSaveables(String holder, Saveable[] saveables) {
+        ChangeRecord[] changes = persist(saveables, -1);
+        boolean[] persisted = new boolean[saveables.length];
+        for(int i = 0; i < saveables.length && changes != null; i++) {
+            persisted[i] = changes[i] != null;
+        }
+        return persisted;
+    }
+
+    @Override
+    public ChangeRecord[] persistJournaled(String[] holders, Saveable[] saveables, long firstChangeId) {
+        return persist(saveables, firstChangeId);
+    }
+
+    /**
+     * Persists the objects in one commit
+     *
+     * @param firstChangeId Id of the first ChangeRecord, or -1 to not journal
+     * the objects
+     * @return A ChangeRecord for each persisted object, which is only stored
+     * when journaling, or null if the commit failed
+     */
+    private ChangeRecord[] persist(final Saveable[] saveables, final long firstChangeId) {
+        final ChangeRecord[] changes = new ChangeRecord[saveables.length];
+        try {
+            final byte[][] values = new byte[saveables.length][];
+            for(int i = 0; i < saveables.length; i++) {
+                values[i] = toBytes(saveables[i]);
+            }
+            tree.write(new BTreeWork<Void>() {
+                @Override
+                public Void execute(BTreeWriter writer) throws IOException {
+                    long changeId = firstChangeId;
+                    for(int i = 0; i < saveables.length; i++) {
+                        String type = saveables[i].getSaveableModuleName();
+                        String id = saveables[i].getUniqueId();
+                        put(writer, type, id, values[i], saveables[i]);
+                        changes[i] = new ChangeRecord(changeId, type, id);
+                        if(firstChangeId >= 0) {
+                            put(writer, changes[i].getSaveableModuleName(), changes[i].getUniqueId(), toBytes(changes[i]), changes[i]);
+                            changeId++;
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        return changes;
+    }
+
+    @Override
+    public void removeLock(final String type, final String id) {
+        try {
+            tree.delete(lockKey(type, id));
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public int removeLocks(final String holder, final String type, final String[] ids) {
+        try {
+            return tree.write(new BTreeWork<Integer>() {
+                @Override
+                public Integer execute(BTreeWriter writer) throws IOException {
+                    int removed = 0;
+                    for(String id : ids) {
+                        byte[] key = lockKey(type, id);
+                        if(holder.equals(toHolder(writer.get(key)))) {
+                            writer.delete(key);
+                            removed++;
+                        }
+                    }
+                    return removed;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
+    }
+
+    @Override
+    public void removeSaveable(final String type, final String id) {
+        try {
+            tree.write(new BTreeWork<Void>() {
+                @Override
+                public Void execute(BTreeWriter writer) throws IOException {
+                    delete(writer, type, id);
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    @Override
+    public boolean[] removeSaveables(final String holder, final String type, final String[] ids) {
+        final boolean[] removed = new boolean[ids.length];
+        try {
+            tree.write(new BTreeWork<Void>() {
+                @Override
+                public Void execute(BTreeWriter writer) throws IOException {
+                    for(int i = 0; i < ids.length; i++) {
+                        removed[i] = delete(writer, type, ids[i]);
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            Arrays.fill(removed, false);
+        }
+        return removed;
+    }
+
+    @Override
+    public ChangeRecord[] removeJournaled(final String holder, final String type, final String[] ids, final long firstChangeId) {
+        final ChangeRecord[] changes = new ChangeRecord[ids.length];
+        try {
+            tree.write(new BTreeWork<Void>() {
+                @Override
+                public Void execute(BTreeWriter writer) throws IOException {
+                    long changeId = firstChangeId;
+                    for(int i = 0; i < ids.length; i++) {
+                        if(delete(writer, type, ids[i])) {
+                            changes[i] = new ChangeRecord(changeId++, type, ids[i]);
+                            put(writer, changes[i].getSaveableModuleName(), changes[i].getUniqueId(), toBytes(changes[i]), changes[i]);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        return changes;
+    }
+
+    @Override
+    public boolean createLock(final String holder, final String type, final String id) {
+        try {
+            return tree.write(new BTreeWork<Boolean>() {
+                @Override
+                public Boolean execute(BTreeWriter writer) throws IOException {
+                    byte[] key = lockKey(type, id);
+                    String lockHolder = toHolder(writer.get(key));
+                    if(lockHolder == null) {
+                        writer.put(key, holder.getBytes(Charsets.UTF_8));
+                        return true;
+                    }
+                    return lockHolder.equals(holder);
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    @Override
+    public ResourceLock[] getLocks() {
+        List<ResourceLock> locks = new ArrayList<ResourceLock>();
+        byte[] from = new byte[]{LOCK};
+        byte[] to = new byte[]{LOCK + 1};
+        try {
+            while(true) {
+                List<BTree.Entry> entries = tree.scan(from, to, SCAN_CHUNK, true);
+                for(BTree.Entry entry : entries) {
+                    byte[] key = entry.getKey();
+                    int end = 1;
+                    while(key[end] != 0) {
+                        end++;
+                    }
+                    ResourceLock lock = new ResourceLock();
+                    lock.setType(new String(key, 1, end - 1, Charsets.UTF_8));
+                    lock.setId(idOf(key, lock.getType()));
+                    lock.setHolder(toHolder(entry.getValue()));
+                    locks.add(lock);
+                }
+                if(entries.size() < SCAN_CHUNK) {
+                    break;
+                }
+                byte[] last = entries.get(entries.size() - 1).getKey();
+                from = Arrays.copyOf(last, last.length + 1);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return locks.toArray(new ResourceLock[locks.size()]);
+    }
+
+    @Override
+    public boolean hasLock(String type, String id) {
+        return findLockHolder(type, id) != null;
+    }
+
+    @Override
+    public boolean isLockedForUser(String user, String type, String id) {
+        String holder = findLockHolder(type, id);
+        return holder != null && !holder.equals(user);
+    }
+
+    @Override
+    public String getLockHolder(String type, String id) {
+        String holder = findLockHolder(type, id);
+        return holder == null ? "" : holder;
+    }
+
+    @Override
+    public Saveable getSaveable(String type, String id) {
+        try {
+            byte[] value = tree.get(dataKey(type, id));
+            if(value == null) {
+                return null;
+            }
+            Saveable saveable = toSaveable(value);
+            saveable.setLocked(hasLock(type, id));
+            return saveable;
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public Saveable[] getSaveables(String type, String[] ids) {
+        Saveable[] saveables = new Saveable[ids.length];
+        for(int i = 0; i < ids.length; i++) {
+            saveables[i] = getSaveable(type, ids[i]);
+        }
+        return saveables;
+    }
+
+    @Override
+    public Saveable[] getAllSaveables(String type) {
+        final ArrayList<Saveable> saveables = new ArrayList<Saveable>();
+        scan(type, typeStart(type), typeEnd(type), null, SCAN_CHUNK, new SaveableVisitor() {
+            @Override
+            public boolean visit(Saveable[] chunk) {
+                saveables.addAll(Arrays.asList(chunk));
+                return true;
+            }
+        });
+        return saveables.toArray(new Saveable[saveables.size()]);
+    }
+
+    @Override
+    public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor) {
+        streamWhere(type, null, chunkSize, visitor);
+    }
+
+    @Override
+    public long getSaveableCount(final String type) {
+        Long count = counts.get(type);
+        if(count != null) {
+            return count;
+        }
+        try {
+            //Counted inside a write so no other write changes the type meanwhile
+            return tree.write(new BTreeWork<Long>() {
+                @Override
+                public Long execute(BTreeWriter writer) throws IOException {
+                    Long count = counts.get(type);
+                    if(count == null) {
+                        count = tree.count(typeStart(type), typeEnd(type));
+                        counts.put(type, count);
+                    }
+                    return count;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * Scans the ids a comparison on the id property allows, narrows the
+     * objects down with the indexes of the type where the predicate allows
+     * it, and evaluates the predicate in memory on the rest.
+     */
+    @Override
+    public Saveable[] getWhere(String type, Predicate predicate) {
+        final ArrayList<Saveable> matches = new ArrayList<Saveable>();
+        streamWhere(type, predicate, SCAN_CHUNK, new SaveableVisitor() {
+            @Override
+            public boolean visit(Saveable[] chunk) {
+                matches.addAll(Arrays.asList(chunk));
+                return true;
+            }
+        });
+        return matches.toArray(new Saveable[matches.size()]);
+    }
+
+    @Override
+    public void streamWhere(String type, Predicate predicate, int chunkSize, SaveableVisitor visitor) {
+        byte[][] range = predicate == null ? null : idRange(type, predicate);
+        if(range != null) {
+            scan(type, range[0], range[1], predicate, chunkSize, visitor);
+            return;
+        }
+        Set<String> candidates = null;
+        if(predicate != null) {
+            try {
+                candidates = getSecondaryIndexes(type).candidates(predicate);
+            } catch (IOException ex) {
+                Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if(candidates == null) {
+            scan(type, typeStart(type), typeEnd(type), predicate, chunkSize, visitor);
+            return;
+        }
+        ArrayList<Saveable> chunk = new ArrayList<Saveable>(chunkSize);
+        for(String id : candidates) {
+            Saveable saveable = getSaveable(type, id);
+            if(saveable != null && predicate.matches(saveable)) {
+                chunk.add(saveable);
+            }
+            if(chunk.size() == chunkSize) {
+                if(!visitor.visit(chunk.toArray(new Saveable[chunk.size()]))) {
+                    return;
+                }
+                chunk.clear();
+            }
+        }
+        if(!chunk.isEmpty()) {
+            visitor.visit(chunk.toArray(new Saveable[chunk.size()]));
+        }
+    }
+
+    @Override
+    public Saveable[] getByIndex(String type, String property, Object value) {
+        IndexedProperty.of(getSaveableClass(type), property);
+        return getWhere(type, Predicates.eq(property, value));
+    }
+
+    @Override
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high) {
+        if(!IndexedProperty.of(getSaveableClass(type), property).isOrdered()) {
+            throw new IllegalArgumentException("Index on " + property + " of " + type + " is not ordered");
+        }
+        return getWhere(type, Predicates.range(property, low, high));
+    }
+
+    /**
+     * Returns the largest numeric id of the type, ids that are not numbers
+     * are ignored
+     */
+    @Override
+    public long getHighestUniqueId(String type) {
+        try {
+            byte[] key = tree.lastKey(idKey(DATA, type, NUMERIC_ID), idKey(DATA, type, TEXT_ID));
+            return key == null ? 0 : Math.max(0, Long.parseLong(idOf(key, type)));
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean exists(String type, String id) {
+        try {
+            return tree.contains(dataKey(type, id));
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return Every type that has objects stored
+     */
+    public List<String> getTypes() {
+        List<String> types = new ArrayList<String>();
+        byte[] to = new byte[]{DATA + 1};
+        try {
+            //Jump from the first key of each type past the end of the type
+            List<BTree.Entry> first = tree.scan(new byte[]{DATA}, to, 1, false);
+            while(!first.isEmpty()) {
+                byte[] key = first.get(0).getKey();
+                int end = 1;
+                while(key[end] != 0) {
+                    end++;
+                }
+                String type = new String(key, 1, end - 1, Charsets.UTF_8);
+                types.add(type);
+                first = tree.scan(typeEnd(type), to, 1, false);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return types;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+
+    /**
+     * Stores an object and keeps the count and the indexes of its type current
+     */
+    private void put(BTreeWriter writer, String type, String id, byte[] value, Saveable saveable) throws IOException {
+        if(!writer.put(dataKey(type, id), value)) {
+            adjustCount(type, 1);
+        }
+        if(!unorderedTypes.contains(type) && !getIdProperty(type).isEmpty() && !holdsId(type, id, saveable)) {
+            writer.put(unorderedKey(type), new byte[0]);
+            unorderedTypes.add(type);
+        }
+        SecondaryIndexes indexes = secondaryIndexes.get(type);
+        if(indexes != null) {
+            indexes.put(id, saveable);
+        }
+    }
+
+    private boolean delete(BTreeWriter writer, String type, String id) throws IOException {
+        if(!writer.delete(dataKey(type, id))) {
+            return false;
+        }
+        adjustCount(type, -1);
+        SecondaryIndexes indexes = secondaryIndexes.get(type);
+        if(indexes != null) {
+            indexes.remove(id);
+        }
+        return true;
+    }
+
+    /**
+     * Only called inside a write, so counts are not changed concurrently
+     */
+    private void adjustCount(String type, long delta) {
+        Long count = counts.get(type);
+        if(count != null) {
+            counts.put(type, count + delta);
+        }
+    }
+
+    /**
+     * Hands the objects of a key range that match the predicate to the
+     * visitor in chunks, reading the tree a chunk at a time
+     */
+    private void scan(String type, byte[] from, byte[] to, Predicate predicate, int chunkSize, SaveableVisitor visitor) {
+        ArrayList<Saveable> chunk = new ArrayList<Saveable>(chunkSize);
+        try {
+            while(true) {
+                List<BTree.Entry> entries = tree.scan(from, to, SCAN_CHUNK, true);
+                for(BTree.Entry entry : entries) {
+                    Saveable saveable = toSaveable(entry.getValue());
+                    if(predicate == null || predicate.matches(saveable)) {
+                        saveable.setLocked(hasLock(type, saveable.getUniqueId()));
+                        chunk.add(saveable);
+                    }
+                    if(chunk.size() == chunkSize) {
+                        if(!visitor.visit(chunk.toArray(new Saveable[chunk.size()]))) {
+                            return;
+                        }
+                        chunk.clear();
+                    }
+                }
+                if(entries.size() < SCAN_CHUNK) {
+                    break;
+                }
+                //Continue right after the last key
+                byte[] last = entries.get(entries.size() - 1).getKey();
+                from = Arrays.copyOf(last, last.length + 1);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if(!chunk.isEmpty()) {
+            visitor.visit(chunk.toArray(new Saveable[chunk.size()]));
+        }
+    }
+
+    /**
+     * Returns the key range of the ids a comparison on the id property of
+     * the type allows, or null if the predicate is not such a comparison
+     */
+    private byte[][] idRange(String type, Predicate predicate) {
+        String idProperty = getIdProperty(type);
+        if(idProperty.isEmpty() || !isOrdered(type)) {
+            return null;
+        }
+        Long low = null;
+        Long high = null;
+        if(predicate instanceof Comparison && ((Comparison) predicate).getProperty().equals(idProperty)) {
+            Comparison comparison = (Comparison) predicate;
+            Long value = toLong(comparison.getValue());
+            if(value == null) {
+                return null;
+            }
+            switch(comparison.getOperation()) {
+                case EQUALS:
+                    low = value;
+                    high = value;
+                    break;
+                case GREATER:
+                    if(value == Long.MAX_VALUE) {
+                        return new byte[][]{typeStart(type), typeStart(type)};
+                    }
+                    low = value + 1;
+                    break;
+                case GREATER_EQUALS:
+                    low = value;
+                    break;
+                case LESS:
+                    if(value == Long.MIN_VALUE) {
+                        return new byte[][]{typeStart(type), typeStart(type)};
+                    }
+                    high = value - 1;
+                    break;
+                case LESS_EQUALS:
+                    high = value;
+                    break;
+                default:
+                    return null;
+            }
+        } else if(predicate instanceof BetweenPredicate && ((BetweenPredicate) predicate).getProperty().equals(idProperty)) {
+            low = toLong(((BetweenPredicate) predicate).getLow());
+            high = toLong(((BetweenPredicate) predicate).getHigh());
+            if(low == null || high == null) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        byte[] from = low == null ? idKey(DATA, type, NUMERIC_ID) : numericKey(DATA, type, low);
+        byte[] to = high == null || high == Long.MAX_VALUE ? idKey(DATA, type, TEXT_ID) : numericKey(DATA, type, high + 1);
+        return new byte[][]{from, to};
+    }
+
+    /**
+     * Returns whether the id property of the type has held the uniqueId of
+     * every object written
+     */
+    private boolean isOrdered(String type) {
+        if(unorderedTypes.contains(type)) {
+            return false;
+        }
+        try {
+            if(tree.contains(unorderedKey(type))) {
+                unorderedTypes.add(type);
+                return false;
+            }
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return Whether the id property of the object holds its numeric uniqueId
+     */
+    private boolean holdsId(String type, String id, Saveable saveable) {
+        if(!isNumeric(id)) {
+            return false;
+        }
+        try {
+            return Predicates.eq(getIdProperty(type), Long.parseLong(id)).matches(saveable);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static Long toLong(Object value) {
+        if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        return null;
+    }
+
+    /**
+     * Finds the property annotated with {@link Id} on the type's class
+     */
+    private String getIdProperty(String type) {
+        String idProperty = idProperties.get(type);
+        if(idProperty != null) {
+            return idProperty;
+        }
+        idProperty = "";
+        for(Class<?> c = getSaveableClass(type); c != null && idProperty.isEmpty(); c = c.getSuperclass()) {
+            for(Method method : c.getDeclaredMethods()) {
+                String name = method.getName();
+                if(method.isAnnotationPresent(Id.class) && name.length() > 3 && (name.startsWith("get") || name.startsWith("is"))) {
+                    String property = name.substring(name.startsWith("get") ? 3 : 2);
+                    idProperty = Character.toLowerCase(property.charAt(0)) + property.substring(1);
+                }
+            }
+            for(Field field : c.getDeclaredFields()) {
+                if(field.isAnnotationPresent(Id.class)) {
+                    idProperty = field.getName();
+                }
+            }
+        }
+        idProperties.put(type, idProperty);
+        return idProperty;
+    }
+
+    private String findLockHolder(String type, String id) {
+        try {
+            return toHolder(tree.get(lockKey(type, id)));
+        } catch (IOException ex) {
+            Logger.getLogger(BTreeBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    private static String toHolder(byte[] value) {
+        return value == null ? null : new String(value, Charsets.UTF_8);
+    }
+
+    private byte[] toBytes(Saveable saveable) {
+        return gson.toJson(saveable, Saveable.class).getBytes(Charsets.UTF_8);
+    }
+
+    private Saveable toSaveable(byte[] value) {
+        return gson.fromJson(new String(value, Charsets.UTF_8), Saveable.class);
+    }
+
+    /**
+     * Types are saveable class names, types without a class have no indexes
+     */
+    private Class<?> getSaveableClass(String type) {
+        try {
+            return Class.forName(type);
+        } catch (ClassNotFoundException ex) {
+            return Object.class;
+        }
+    }
+
+    /**
+     * Returns the indexes of a type, building them from every object of the
+     * type on first use. The build runs as a write, so writes wait for it
+     * and then keep the indexes current.
+     */
+    private SecondaryIndexes getSecondaryIndexes(final String type) throws IOException {
+        SecondaryIndexes indexes = secondaryIndexes.get(type);
+        if(indexes != null) {
+            return indexes;
+        }
+        return tree.write(new BTreeWork<SecondaryIndexes>() {
+            @Override
+            public SecondaryIndexes execute(BTreeWriter writer) throws IOException {
+                SecondaryIndexes indexes = secondaryIndexes.get(type);
+                if(indexes == null) {
+                    final SecondaryIndexes built = new SecondaryIndexes(getSaveableClass(type));
+                    if(!built.isEmpty()) {
+                        scan(type, typeStart(type), typeEnd(type), null, SCAN_CHUNK, new SaveableVisitor() {
+                            @Override
+                            public boolean visit(Saveable[] chunk) {
+                                for(Saveable saveable : chunk) {
+                                    built.put(saveable.getUniqueId(), saveable);
+                                }
+                                return true;
+                            }
+                        });
+                    }
+                    secondaryIndexes.put(type, built);
+                    indexes = built;
+                }
+                return indexes;
+            }
+        });
+    }
+
+    /**
+     * Keys are a namespace byte, the type, a zero byte and the id. Numeric
+     * ids are stored as sign flipped big endian longs so they sort as
+     * numbers, ahead of all other ids.
+     */
+    private static byte[] dataKey(String type, String id) {
+        return key(DATA, type, id);
+    }
+
+    private static byte[] lockKey(String type, String id) {
+        return key(LOCK, type, id);
+    }
+
+    private static byte[] unorderedKey(String type) {
+        byte[] name = type.getBytes(Charsets.UTF_8);
+        byte[] key = new byte[name.length + 1];
+        key[0] = UNORDERED;
+        System.arraycopy(name, 0, key, 1, name.length);
+        return key;
+    }
+
+    private static byte[] key(byte namespace, String type, String id) {
+        if(isNumeric(id)) {
+            return numericKey(namespace, type, Long.parseLong(id));
+        }
+        byte[] prefix = idKey(namespace, type, TEXT_ID);
+        byte[] text = id.getBytes(Charsets.UTF_8);
+        byte[] key = Arrays.copyOf(prefix, prefix.length + text.length);
+        System.arraycopy(text, 0, key, prefix.length, text.length);
+        return key;
+    }
+
+    private static byte[] numericKey(byte namespace, String type, long id) {
+        byte[] prefix = idKey(namespace, type, NUMERIC_ID);
+        return ByteBuffer.allocate(prefix.length + 8).put(prefix).putLong(id ^ Long.MIN_VALUE).array();
+    }
+
+    /**
+     * @return Key prefix of the ids of one kind
+     */
+    private static byte[] idKey(byte namespace, String type, byte idKind) {
+        byte[] name = type.getBytes(Charsets.UTF_8);
+        byte[] key = new byte[name.length + 3];
+        key[0] = namespace;
+        System.arraycopy(name, 0, key, 1, name.length);
+        key[name.length + 2] = idKind;
+        return key;
+    }
+
+    private static byte[] typeStart(String type) {
+        return idKey(DATA, type, (byte) 0);
+    }
+
+    private static byte[] typeEnd(String type) {
+        byte[] start = typeStart(type);
+        start[start.length - 2] = 1;
+        return Arrays.copyOf(start, start.length - 1);
+    }
+
+    private static String idOf(byte[] key, String type) {
+        int start = type.getBytes(Charsets.UTF_8).length + 3;
+        if(key[start - 1] == NUMERIC_ID) {
+            return String.valueOf(ByteBuffer.wrap(key, start, 8).getLong() ^ Long.MIN_VALUE);
+        }
+        return new String(key, start, key.length - start, Charsets.UTF_8);
+    }
+
+    /**
+     * Only ids that read back the same from a long are stored as numbers
+     */
+    private static boolean isNumeric(String id) {
+        int length = id.length();
+        if(length == 0 || length > 20) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if((c < '0' || c > '9') && !(i == 0 && c == '-' && length > 1)) {
+                return false;
+            }
+        }
+        try {
+            return Long.toString(Long.parseLong(id)).equals(id);
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+}
@@ -24,179 +24,531 @@
 
 package org.mgenterprises.openbooks.saving.server;
 
+import com.google.common.base.Charsets;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.io.FileUtils;
 import org.mgenterprises.openbooks.saving.AbstractSaveableAdapter;
-import org.mgenterprises.openbooks.saving.EqualityOperation;
 import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.Predicates;
+import org.mgenterprises.openbooks.saving.server.index.IndexedProperty;
+import org.mgenterprises.openbooks.saving.server.index.SecondaryIndexes;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+import org.mgenterprises.openbooks.saving.server.log.LogStore;
+import org.mgenterprises.openbooks.saving.server.log.LogStoreConfiguration;
+import org.mgenterprises.openbooks.saving.server.log.LogWork;
+import org.mgenterprises.openbooks.saving.server.log.LogWriter;
 
 /**
- * Manages data access and persistence
+ * Manages data access and persistence without a database.
  * 
- * This was for initial testing only. This is replaced by the {@link HibernateBackedSaveManager}
+ * Objects are kept as json in a {@link LogStore} in the "log" directory below
+ * the save root, locks live in the same log. Writes are appends and reads are
+ * one positional read, so this is usable for small installations that do not
+ * want to run a database. A save root in the old layout, one file per object,
+ * is imported into the log the first time it is opened.
+ * 
+ * The {@link org.mgenterprises.openbooks.saving.Indexed} properties of a type
+ * are indexed in memory the first time the type is queried, and the indexes
+ * are kept up to date by every write after that.
  * @author mgauto
- * @deprecated
  */
-public class FileBackedSaveManager implements SaveManager {
+public class FileBackedSaveManager implements SaveManager, Closeable {
+    private static final String LOG_DIRECTORY_NAME = "log";
+    private static final String LOCK_SUFFIX = ".lock";
     private File saveRootDirectory;
     private Gson gson;
+    private LogStore logStore;
+    /**
+     * Indexes of the types queried so far, by type. Only changed while
+     * holding the log's append lock, so no write can slip past them.
+     */
+    private final ConcurrentHashMap<String, SecondaryIndexes> secondaryIndexes = new ConcurrentHashMap<String, SecondaryIndexes>();
+
+    public FileBackedSaveManager(File saveRootDirectory) throws IOException {
+        this(saveRootDirectory, new LogStoreConfiguration());
+    }
 
-    public FileBackedSaveManager(File saveRootDirectory) {
+    public FileBackedSaveManager(File saveRootDirectory, LogStoreConfiguration configuration) throws IOException {
         this.saveRootDirectory = saveRootDirectory;
-         GsonBuilder gsonBuilder = new GsonBuilder();
+        GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeAdapter(Saveable.class, new AbstractSaveableAdapter());
         //gsonBuilder.registerTypeAdapter(Saveable[].class, new AbstractSaveableArrayAdapter());
         gson = gsonBuilder.create();
+        this.logStore = new LogStore(new File(saveRootDirectory, LOG_DIRECTORY_NAME), configuration);
+        if (logStore.getTotalBytes() == 0) {
+            importLegacyFiles();
+        }
     }
     
     public boolean persistSaveable(String type, String holder, Saveable saveable) {
-        File saveDir = new File(saveRootDirectory + File.separator + saveable.getSaveableModuleName());
-        File saveFile = new File(saveRootDirectory + File.separator + saveable.getSaveableModuleName() + File.separator + saveable.getUniqueId());
+        return persistSaveables(holder, new Saveable[]{saveable})[0];
+    }
+    
+    public boolean[] persistSaveables(final String holder, final Saveable[] saveables) {
+        final boolean[] persisted = new boolean[saveables.length];
         try {
-            if(hasLock(saveable.getSaveableModuleName(), saveable.getUniqueId()) && !getLockHolder(saveable.getSaveableModuleName(), saveable.getUniqueId()).equals(holder)) {
-                return false;
+            final byte[][] values = new byte[saveables.length][];
+            for(int i = 0; i < saveables.length; i++) {
+                values[i] = gson.toJson(saveables[i], Saveable.class).getBytes(Charsets.UTF_8);
             }
-            else {
-                saveDir.mkdirs();
-                saveFile.createNewFile();
-                BufferedWriter bw = new BufferedWriter(new FileWriter(saveFile));
-                String json = gson.toJson(saveable, Saveable.class);
-                bw.write(json);
-                bw.newLine();
-                bw.flush();
-                bw.close();
-                return true;
+            logStore.write(new LogWork<Void>() {
+                @Override
+                public Void execute(LogWriter writer) throws IOException {
+                    for(int i = 0; i < saveables.length; i++) {
+                        String type = saveables[i].getSaveableModuleName();
+                        String id = saveables[i].getUniqueId();
+                        writer.put(type, id, values[i]);
+                        SecondaryIndexes indexes = secondaryIndexes.get(type);
+                        if(indexes != null) {
+                            indexes.put(id, saveables[i]);
+                        }
+                        persisted[i] = true;
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            Arrays.fill(persisted, false);
+        }
+        return persisted;
+    }
+    
+    @Override
+    public ChangeRecord[] persistJournaled(final String[] holders, final Saveable[] saveables, final long firstChangeId) {
+        final ChangeRecord[] changes = new ChangeRecord[saveables.length];
+        try {
+            final byte[][] values = new byte[saveables.length][];
+            for(int i = 0; i < saveables.length; i++) {
+                values[i] = gson.toJson(saveables[i], Saveable.class).getBytes(Charsets.UTF_8);
             }
+            //Objects and their records are appended together and synced once
+            logStore.write(new LogWork<Void>() {
+                @Override
+                public Void execute(LogWriter writer) throws IOException {
+                    long changeId = firstChangeId;
+                    for(int i = 0; i < saveables.length; i++) {
+                        String type = saveables[i].getSaveableModuleName();
+                        String id = saveables[i].getUniqueId();
+                        writer.put(type, id, values[i]);
+                        SecondaryIndexes indexes = secondaryIndexes.get(type);
+                        if(indexes != null) {
+                            indexes.put(id, saveables[i]);
+                        }
+                        changes[i] = new ChangeRecord(changeId++, type, id);
+                        writer.put(changes[i].getSaveableModuleName(), changes[i].getUniqueId(), gson.toJson(changes[i], Saveable.class).getBytes(Charsets.UTF_8));
+                    }
+                    return null;
+                }
+            });
         } catch (IOException ex) {
             Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
         }
-        return false;
+        return changes;
     }
     
-    public void removeLock(String type, String id) {
-        File saveFile = new File(saveRootDirectory + File.separator + type + File.separator + id +".lock");
-        FileUtils.deleteQuietly(saveFile);
+    public void removeLock(final String type, final String id) {
+        try {
+            logStore.write(new LogWork<Boolean>() {
+                @Override
+                public Boolean execute(LogWriter writer) throws IOException {
+                    return writer.unlock(type, id);
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
     
-    public void removeSaveable(String type, String id) {
-        File saveFile = new File(saveRootDirectory + File.separator + type + File.separator + id +".lock");
-        FileUtils.deleteQuietly(saveFile);
+    public int removeLocks(final String holder, final String type, final String[] ids) {
+        try {
+            return logStore.write(new LogWork<Integer>() {
+                @Override
+                public Integer execute(LogWriter writer) throws IOException {
+                    int released = 0;
+                    for(String id : ids) {
+                        if(holder.equals(writer.getLockHolder(type, id))) {
+                            writer.unlock(type, id);
+                            released++;
+                        }
+                    }
+                    return released;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        }
     }
     
-    public void createLock(String holder, String type, String id) {
-        File saveFile = new File(saveRootDirectory + File.separator + type + File.separator + id +".lock");
+    public void removeSaveable(final String type, final String id) {
         try {
-            saveFile.createNewFile();
-            FileWriter fw = new FileWriter(saveFile);
-            fw.append(holder);
-            fw.append("\n");
-            fw.flush();
-            fw.close();
+            logStore.write(new LogWork<Void>() {
+                @Override
+                public Void execute(LogWriter writer) throws IOException {
+                    delete(writer, type, id);
+                    return null;
+                }
+            });
         } catch (IOException ex) {
             Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
-    public boolean hasLock(String type, String id) {
-        return !getLockHolder(type, id).equals("");
+    public boolean[] removeSaveables(final String holder, final String type, final String[] ids) {
+        final boolean[] removed = new boolean[ids.length];
+        try {
+            logStore.write(new LogWork<Void>() {
+                @Override
+                public Void execute(LogWriter writer) throws IOException {
+                    for(int i = 0; i < ids.length; i++) {
+                        removed[i] = delete(writer, type, ids[i]);
+                    }
+                    return null;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            Arrays.fill(removed, false);
+        }
+        return removed;
     }
     
-    public String getLockHolder(String type, String id) {
-        File saveFile = new File(saveRootDirectory + File.separator + type + File.separator + id +".lock");
+    @Override
+    public ChangeRecord[] removeJournaled(final String holder, final String type, final String[] ids, final long firstChangeId) {
+        final ChangeRecord[] changes = new ChangeRecord[ids.length];
         try {
-            BufferedReader br = new BufferedReader(new FileReader(saveFile));
-            String data = br.readLine();
-            br.close();
-            return data;
-        } catch (FileNotFoundException ex) {
-            return "";
+            logStore.write(new LogWork<Void>() {
+                @Override
+                public Void execute(LogWriter writer) throws IOException {
+                    long changeId = firstChangeId;
+                    for(int i = 0; i < ids.length; i++) {
+                        if(delete(writer, type, ids[i])) {
+                            changes[i] = new ChangeRecord(changeId++, type, ids[i]);
+                            writer.put(changes[i].getSaveableModuleName(), changes[i].getUniqueId(), gson.toJson(changes[i], Saveable.class).getBytes(Charsets.UTF_8));
+                        }
+                    }
+                    return null;
+                }
+            });
         } catch (IOException ex) {
             Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
-            return "ERROR";
+            return null;
         }
+        return changes;
     }
     
-    public Saveable getSaveable(String type, String id) {
-        File saveFile = new File(saveRootDirectory + File.separator + type + File.separator + id);
+    public boolean createLock(final String holder, final String type, final String id) {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(saveFile));
-            String data = br.readLine();
-            br.close();
-            Saveable saveable = gson.fromJson(data, Saveable.class);
-            if(getLockHolder(type, id).length()> 0) {
-                saveable.setLocked(true);
+            return logStore.write(new LogWork<Boolean>() {
+                @Override
+                public Boolean execute(LogWriter writer) throws IOException {
+                    String lockHolder = writer.getLockHolder(type, id);
+                    if(lockHolder == null) {
+                        writer.lock(type, id, holder);
+                        return true;
+                    }
+                    return lockHolder.equals(holder);
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    @Override
+    public ResourceLock[] getLocks() {
+        List<ResourceLock> locks = new ArrayList<ResourceLock>();
+        for(Map.Entry<String, Map<String, String>> type : logStore.getLocks().entrySet()) {
+            for(Map.Entry<String, String> entry : type.getValue().entrySet()) {
+                ResourceLock lock = new ResourceLock();
+                lock.setType(type.getKey());
+                lock.setId(entry.getKey());
+                lock.setHolder(entry.getValue());
+                locks.add(lock);
             }
-            else {
-                saveable.setLocked(false);
+        }
+        return locks.toArray(new ResourceLock[locks.size()]);
+    }
+    
+    public boolean hasLock(String type, String id) {
+        return logStore.getLockHolder(type, id) != null;
+    }
+    
+    @Override
+    public boolean isLockedForUser(String user, String type, String id) {
+        String holder = logStore.getLockHolder(type, id);
+        return holder != null && !holder.equals(user);
+    }
+    
+    public String getLockHolder(String type, String id) {
+        String holder = logStore.getLockHolder(type, id);
+        return holder == null ? "" : holder;
+    }
+    
+    public Saveable getSaveable(String type, String id) {
+        try {
+            Saveable saveable = readSaveable(type, id);
+            if(saveable != null) {
+                saveable.setLocked(hasLock(type, id));
             }
             return saveable;
-        } catch (FileNotFoundException ex) {
-            return null;
         } catch (IOException ex) {
             Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
             return null;
         }
     }
     
+    public Saveable[] getSaveables(String type, String[] ids) {
+        Saveable[] saveables = new Saveable[ids.length];
+        for(int i = 0; i < ids.length; i++) {
+            saveables[i] = getSaveable(type, ids[i]);
+        }
+        return saveables;
+    }
+    
     public Saveable[] getAllSaveables(String type) {
-        File dir = new File(saveRootDirectory + File.separator + type);
-        if(!dir.exists()) {
-            return new Saveable[0];
-        }
-        File[] files = dir.listFiles();
-        
-        ArrayList<Saveable> saveableList = new ArrayList<Saveable>();
-        for(int i = 0; i < files.length; i++) {
-            String name = files[i].getName();
-            if(!name.contains(".lock")) {
-                saveableList.add(getSaveable(type, name));
+        List<String> ids = logStore.getIds(type);
+        ArrayList<Saveable> saveableList = new ArrayList<Saveable>(ids.size());
+        for(String id : ids) {
+            Saveable saveable = getSaveable(type, id);
+            //Removed since the ids were listed
+            if(saveable != null) {
+                saveableList.add(saveable);
             }
         }
         Saveable[] saveables = new Saveable[saveableList.size()];
         return saveableList.toArray(saveables);
     }
     
-    public long getSaveableCount(String type) {
-        File[] files = new File(saveRootDirectory + File.separator + type).listFiles();
-        int count = 0;
-        for (File file : files) {
-            if(!file.getName().contains(".lock")){
-                count ++;
+    public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor) {
+        ArrayList<Saveable> chunk = new ArrayList<Saveable>(chunkSize);
+        for(String id : logStore.getIds(type)) {
+            Saveable saveable = getSaveable(type, id);
+            if(saveable != null) {
+                chunk.add(saveable);
+            }
+            if(chunk.size() == chunkSize) {
+                if(!visitor.visit(chunk.toArray(new Saveable[chunk.size()]))) {
+                    return;
+                }
+                chunk.clear();
             }
         }
-        return count;
+        if(!chunk.isEmpty()) {
+            visitor.visit(chunk.toArray(new Saveable[chunk.size()]));
+        }
+    }
+    
+    public long getSaveableCount(String type) {
+        return logStore.getCount(type);
     }
 
     /**
-     * If you really want this you will need to implement this. 
+     * Narrows the objects down with the indexes of the type where the
+     * predicate allows it and evaluates the predicate in memory on the rest.
      * We would much rather use hibernate with a sqlite file for a flatfileish save
-     * @param keys
-     * @param values
-     * @return 
      */
     @Override
-    public Saveable[] getWhere(String type, String[] keys, EqualityOperation[] operations, String[] values, String[] conjunctions) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Saveable[] getWhere(String type, Predicate predicate) {
+        Set<String> candidates = null;
+        try {
+            candidates = getSecondaryIndexes(type).candidates(predicate);
+        } catch (IOException ex) {
+            Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        ArrayList<Saveable> matches = new ArrayList<Saveable>();
+        for(String id : candidates == null ? logStore.getIds(type) : candidates) {
+            Saveable saveable = getSaveable(type, id);
+            if(saveable != null && predicate.matches(saveable)) {
+                matches.add(saveable);
+            }
+        }
+        return matches.toArray(new Saveable[matches.size()]);
     }
 
     @Override
-    public boolean isLockedForUser(String user, String type, String id) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public Saveable[] getByIndex(String type, String property, Object value) {
+        IndexedProperty.of(getSaveableClass(type), property);
+        return getWhere(type, Predicates.eq(property, value));
     }
 
+    @Override
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high) {
+        if(!IndexedProperty.of(getSaveableClass(type), property).isOrdered()) {
+            throw new IllegalArgumentException("Index on " + property + " of " + type + " is not ordered");
+        }
+        return getWhere(type, Predicates.range(property, low, high));
+    }
+
+    @Override
+    public void streamWhere(String type, Predicate predicate, int chunkSize, SaveableVisitor visitor) {
+        Saveable[] matches = getWhere(type, predicate);
+        for(int start = 0; start < matches.length; start += chunkSize) {
+            if(!visitor.visit(Arrays.copyOfRange(matches, start, Math.min(start + chunkSize, matches.length)))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the largest numeric id of the type, ids that are not numbers
+     * are ignored
+     */
     @Override
     public long getHighestUniqueId(String type) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        long highest = 0;
+        for(String id : logStore.getIds(type)) {
+            try {
+                highest = Math.max(highest, Long.parseLong(id));
+            } catch (NumberFormatException ex) {
+                //Not a generated id
+            }
+        }
+        return highest;
+    }
+
+    @Override
+    public boolean exists(String type, String id) {
+        return logStore.contains(type, id);
+    }
+
+    /**
+     * @return Every type that has objects stored
+     */
+    public List<String> getTypes() {
+        return logStore.getTypes();
+    }
+
+    private Saveable readSaveable(String type, String id) throws IOException {
+        byte[] value = logStore.get(type, id);
+        if(value == null) {
+            return null;
+        }
+        return gson.fromJson(new String(value, Charsets.UTF_8), Saveable.class);
+    }
+
+    /**
+     * Deletes an object and drops it from the indexes of its type
+     */
+    private boolean delete(LogWriter writer, String type, String id) throws IOException {
+        if(!writer.delete(type, id)) {
+            return false;
+        }
+        SecondaryIndexes indexes = secondaryIndexes.get(type);
+        if(indexes != null) {
+            indexes.remove(id);
+        }
+        return true;
+    }
+
+    /**
+     * Types are saveable class names, types without a class have no indexes
+     */
+    private Class<?> getSaveableClass(String type) {
+        try {
+            return Class.forName(type);
+        } catch (ClassNotFoundException ex) {
+            return Object.class;
+        }
+    }
+
+    /**
+     * Returns the indexes of a type, building them from every object of the
+     * type on first use. The build holds the append lock, so writes wait for
+     * it and then keep the indexes current.
+     */
+    private SecondaryIndexes getSecondaryIndexes(final String type) throws IOException {
+        SecondaryIndexes indexes = secondaryIndexes.get(type);
+        if(indexes != null) {
+            return indexes;
+        }
+        return logStore.write(new LogWork<SecondaryIndexes>() {
+            @Override
+            public SecondaryIndexes execute(LogWriter writer) throws IOException {
+                SecondaryIndexes indexes = secondaryIndexes.get(type);
+                if(indexes == null) {
+                    indexes = new SecondaryIndexes(getSaveableClass(type));
+                    if(!indexes.isEmpty()) {
+                        for(String id : logStore.getIds(type)) {
+                            Saveable saveable = readSaveable(type, id);
+                            if(saveable != null) {
+                                indexes.put(id, saveable);
+                            }
+                        }
+                    }
+                    secondaryIndexes.put(type, indexes);
+                }
+                return indexes;
+            }
+        });
+    }
+
+    /**
+     * Saves the index of the log and closes it
+     */
+    @Override
+    public void close() throws IOException {
+        logStore.close();
+    }
+
+    /**
+     * Imports a save root in the old layout, a directory per type holding a
+     * json file per object and an id.lock file per lock
+     */
+    private void importLegacyFiles() throws IOException {
+        final File[] typeDirectories = saveRootDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && !file.getName().equals(LOG_DIRECTORY_NAME);
+            }
+        });
+        if(typeDirectories == null || typeDirectories.length == 0) {
+            return;
+        }
+        int imported = logStore.write(new LogWork<Integer>() {
+            @Override
+            public Integer execute(LogWriter writer) throws IOException {
+                int imported = 0;
+                for(File typeDirectory : typeDirectories) {
+                    String type = typeDirectory.getName();
+                    File[] files = typeDirectory.listFiles();
+                    if(files == null) {
+                        continue;
+                    }
+                    for(File file : files) {
+                        String name = file.getName();
+                        String content = new String(Files.readAllBytes(file.toPath()), Charsets.UTF_8).trim();
+                        if(name.endsWith(LOCK_SUFFIX)) {
+                            if(!content.isEmpty()) {
+                                writer.lock(type, name.substring(0, name.length() - LOCK_SUFFIX.length()), content);
+                            }
+                        }
+                        else if(!content.isEmpty()) {
+                            writer.put(type, name, content.getBytes(Charsets.UTF_8));
+                            imported++;
+                        }
+                    }
+                }
+                return imported;
+            }
+        });
+        Logger.getLogger(FileBackedSaveManager.class.getName()).log(Level.INFO, "Imported {0} objects from {1}", new Object[]{imported, saveRootDirectory});
     }
 }
@@ -21,49 +21,98 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package org.mgenterprises.openbooks.saving.server;
 
-import com.google.gson.Gson;
+import com.google.common.cache.CacheStats;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
+import org.hibernate.QueryException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.cfg.Configuration;
 import org.hibernate.criterion.Projections;
-import org.hibernate.exception.ConstraintViolationException;
-import org.mgenterprises.openbooks.saving.EqualityOperation;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
 import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.Predicates;
+import org.mgenterprises.openbooks.saving.server.hibernate.ConnectionPoolStatistics;
+import org.mgenterprises.openbooks.saving.server.hibernate.HqlQueryCompiler;
+import org.mgenterprises.openbooks.saving.server.hibernate.IndexMaintainer;
+import org.mgenterprises.openbooks.saving.server.hibernate.ReadSession;
+import org.mgenterprises.openbooks.saving.server.hibernate.ReadWork;
+import org.mgenterprises.openbooks.saving.server.hibernate.SessionTemplate;
+import org.mgenterprises.openbooks.saving.server.hibernate.UnitOfWork;
+import org.mgenterprises.openbooks.saving.server.index.IndexedProperty;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
 
 /**
+ * Every call runs in its own unit of work from {@link SessionTemplate}, so
+ * sessions and their connections are always released.
  *
  * @author Manuel Gauto
  */
 public class HibernateBackedSaveManager implements SaveManager{
+    private static final String RESOURCE_LOCK = ResourceLock.class.getName();
     private final SessionFactory sessionFactory;
+    private final SessionTemplate sessionTemplate;
+    private final HqlQueryCompiler queryCompiler;
 
     public HibernateBackedSaveManager(SessionFactory sessionFactory) {
         this.sessionFactory = sessionFactory;
+        this.sessionTemplate = new SessionTemplate(sessionFactory);
+        this.queryCompiler = new HqlQueryCompiler(sessionFactory);
+        try {
+            new IndexMaintainer(sessionFactory, sessionTemplate).ensureIndexes();
+        } catch(HibernateException ex) {
+            //Lookups still work without the indexes, only slower
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * @return Counters of the JDBC connection pool, or null if Hibernate is
+     * not configured to use the pool
+     */
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        return sessionTemplate.getConnectionPoolStatistics();
     }
 
+    /**
+     * @return Hits and misses of the cache of compiled queries
+     */
+    public CacheStats getQueryPlanCacheStatistics() {
+        return queryCompiler.getPlanCacheStatistics();
+    }
     
     @Override
-    public boolean persistSaveable(String type, String holder, Saveable saveable) {
-        String id = saveable.getUniqueId();
+    public boolean persistSaveable(final String type, final String holder, Saveable saveable) {
+        final String id = saveable.getUniqueId();
         try {
-            if(!hasLock(type, id) || getLockHolder(type, id).equals(holder)) {
-                Session session = sessionFactory.openSession();
-                session.beginTransaction();
-                session.saveOrUpdate(Class.forName(saveable.getSaveableModuleName()).cast(saveable));
-                session.getTransaction().commit();
-                return true;
-            }
-        } catch(ConstraintViolationException ex) {
+            final Object entity = Class.forName(saveable.getSaveableModuleName()).cast(saveable);
+            return sessionTemplate.write(new UnitOfWork<Boolean>() {
+                @Override
+                public Boolean execute(Session session) {
+                    session.saveOrUpdate(entity);
+                    return true;
+                }
+            });
+        } catch(HibernateException ex) {
             Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
-            return false;
         } catch (ClassNotFoundException ex) {
             Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -71,163 +120,511 @@ public class HibernateBackedSaveManager implements SaveManager{
     }
 
     @Override
-    public void removeLock(String type, String id) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        session.beginTransaction();
-        Query query = session.createQuery("delete from ResourceLock where type=:type and id=:id");
-        query.setString("type", type);
-        query.setString("id", id);
-        query.executeUpdate();
-        session.getTransaction().commit();
+    public boolean[] persistSaveables(final String holder, final Saveable[] saveables) {
+        final Object[] entities = new Object[saveables.length];
+        try {
+            for(int i = 0; i < saveables.length; i++) {
+                entities[i] = Class.forName(saveables[i].getSaveableModuleName()).cast(saveables[i]);
+            }
+            return sessionTemplate.write(new UnitOfWork<boolean[]>() {
+                @Override
+                public boolean[] execute(Session session) {
+                    saveOrUpdateAll(session, saveables, entities);
+                    boolean[] persisted = new boolean[saveables.length];
+                    Arrays.fill(persisted, true);
+                    return persisted;
+                }
+            });
+        } catch(HibernateException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (ClassNotFoundException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return new boolean[saveables.length];
     }
 
     @Override
-    public void removeSaveable(String type, String id) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Query query = session.createQuery("From "+getClassFromType(type)+" where saveableModuleName=:type AND uniqueId=:id");
-        query.setString("type", type);
-        query.setString("id", id);
-        Saveable saveable = (Saveable) query.uniqueResult();
-        session.delete(saveable);
-        session.getTransaction().commit();
+    public ChangeRecord[] persistJournaled(final String[] holders, final Saveable[] saveables, final long firstChangeId) {
+        final Object[] entities = new Object[saveables.length];
+        try {
+            for(int i = 0; i < saveables.length; i++) {
+                entities[i] = Class.forName(saveables[i].getSaveableModuleName()).cast(saveables[i]);
+            }
+            return sessionTemplate.write(new UnitOfWork<ChangeRecord[]>() {
+                @Override
+                public ChangeRecord[] execute(Session session) {
+                    ChangeRecord[] changes = new ChangeRecord[saveables.length];
+                    saveOrUpdateAll(session, saveables, entities);
+                    long changeId = firstChangeId;
+                    for(int i = 0; i < saveables.length; i++) {
+                        changes[i] = new ChangeRecord(changeId++, saveables[i].getSaveableModuleName(), saveables[i].getUniqueId());
+                        session.save(changes[i]);
+                    }
+                    return changes;
+                }
+            });
+        } catch(HibernateException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (ClassNotFoundException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
     }
 
     @Override
-    public void createLock(String holder, String type, String id) {
-        if(!hasLock(type, id)) {
-            ResourceLock resourceLock = new ResourceLock();
-            resourceLock.setHolder(holder);
-            resourceLock.setType(type);
-            resourceLock.setId(id);
-            Session session = sessionFactory.openSession();
-            session.beginTransaction();
-            session.saveOrUpdate(resourceLock);
-            session.getTransaction().commit();
+    public void removeLock(final String type, final String id) {
+        sessionTemplate.write(new UnitOfWork<Integer>() {
+            @Override
+            public Integer execute(Session session) {
+                Query query = session.createQuery("delete from ResourceLock where type=:type and id=:id");
+                query.setString("type", type);
+                query.setString("id", id);
+                return query.executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public int removeLocks(final String holder, final String type, final String[] ids) {
+        if(ids.length == 0) {
+            return 0;
+        }
+        try {
+            return sessionTemplate.write(new UnitOfWork<Integer>() {
+                @Override
+                public Integer execute(Session session) {
+                    Query query = session.createQuery("delete from ResourceLock where holder=:holder and type=:type and id in (:ids)");
+                    query.setString("holder", holder);
+                    query.setString("type", type);
+                    query.setParameterList("ids", ids);
+                    return query.executeUpdate();
+                }
+            });
+        } catch(HibernateException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
         }
     }
 
+    @Override
+    public void removeSaveable(final String type, final String id) {
+        sessionTemplate.write(new UnitOfWork<Void>() {
+            @Override
+            public Void execute(Session session) {
+                Map<String, Saveable> existing = getSaveablesById(SessionTemplate.readSession(session), type, Collections.singletonList(id));
+                Saveable saveable = existing.get(id);
+                if(saveable != null) {
+                    session.delete(saveable);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean[] removeSaveables(final String holder, final String type, final String[] ids) {
+        if(ids.length == 0) {
+            return new boolean[0];
+        }
+        try {
+            return sessionTemplate.write(new UnitOfWork<boolean[]>() {
+                @Override
+                public boolean[] execute(Session session) {
+                    boolean[] removed = new boolean[ids.length];
+                    Map<String, Saveable> existing = getSaveablesById(SessionTemplate.readSession(session), type, Arrays.asList(ids));
+                    for(int i = 0; i < ids.length; i++) {
+                        Saveable saveable = existing.remove(ids[i]);
+                        if(saveable != null) {
+                            session.delete(saveable);
+                            removed[i] = true;
+                        }
+                    }
+                    return removed;
+                }
+            });
+        } catch(HibernateException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return new boolean[ids.length];
+        }
+    }
+
+    @Override
+    public ChangeRecord[] removeJournaled(final String holder, final String type, final String[] ids, final long firstChangeId) {
+        if(ids.length == 0) {
+            return new ChangeRecord[0];
+        }
+        try {
+            return sessionTemplate.write(new UnitOfWork<ChangeRecord[]>() {
+                @Override
+                public ChangeRecord[] execute(Session session) {
+                    ChangeRecord[] changes = new ChangeRecord[ids.length];
+                    Map<String, Saveable> existing = getSaveablesById(SessionTemplate.readSession(session), type, Arrays.asList(ids));
+                    long changeId = firstChangeId;
+                    for(int i = 0; i < ids.length; i++) {
+                        Saveable saveable = existing.remove(ids[i]);
+                        if(saveable != null) {
+                            session.delete(saveable);
+                            changes[i] = new ChangeRecord(changeId++, type, ids[i]);
+                            session.save(changes[i]);
+                        }
+                    }
+                    return changes;
+                }
+            });
+        } catch(HibernateException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean createLock(final String holder, final String type, final String id) {
+        try {
+            return sessionTemplate.write(new UnitOfWork<Boolean>() {
+                @Override
+                public Boolean execute(Session session) {
+                    String lockHolder = getLockHolders(SessionTemplate.readSession(session), type, Collections.singletonList(id)).get(id);
+                    if(lockHolder == null) {
+                        ResourceLock resourceLock = new ResourceLock();
+                        resourceLock.setHolder(holder);
+                        resourceLock.setType(type);
+                        resourceLock.setId(id);
+                        session.saveOrUpdate(resourceLock);
+                        return true;
+                    }
+                    return lockHolder.equals(holder);
+                }
+            });
+        } catch(HibernateException ex) {
+            Logger.getLogger(HibernateBackedSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    @Override
+    public ResourceLock[] getLocks() {
+        return sessionTemplate.read(RESOURCE_LOCK, new ReadWork<ResourceLock[]>() {
+            @Override
+            public ResourceLock[] execute(ReadSession session) {
+                List<?> locks = session.createQuery("From ResourceLock").list();
+                return locks.toArray(new ResourceLock[locks.size()]);
+            }
+        });
+    }
+
     @Override
     public boolean hasLock(String type, String id) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Query query = session.createQuery("From ResourceLock where type=:type and id=:id");
-        query.setString("type", type);
-        query.setString("id", id);
-        ResourceLock resourceLock = (ResourceLock) query.uniqueResult();
-        session.getTransaction().commit();
-        return resourceLock!=null;
+        return findLockHolder(type, id) != null;
     }
 
     @Override
     public String getLockHolder(String type, String id) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Query query = session.createQuery("From ResourceLock where type=:type and id=:id");
-        query.setString("type", type);
-        query.setString("id", id);
-        ResourceLock resourceLock = (ResourceLock) query.uniqueResult();
-        session.getTransaction().commit();
-        return resourceLock==null ? "" : resourceLock.getHolder();
-        //return resourceLock.getHolder();
+        String lockHolder = findLockHolder(type, id);
+        return lockHolder==null ? "" : lockHolder;
     }
 
     @Override
-    public Saveable getSaveable(String type, String id) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Query query = session.createQuery("From "+getClassFromType(type)+" where saveableModuleName=:type AND uniqueId=:id");
-        query.setString("type", type);
-        query.setString("id", id);
-        Saveable saveable = (Saveable) query.uniqueResult();
-        session.getTransaction().commit();
-        return saveable;
+    public boolean isLockedForUser(String user, String type, String id) {
+        String lockHolder = findLockHolder(type, id);
+        return lockHolder!=null && !lockHolder.equals(user);
+    }
+
+    /**
+     * @return Holder of the lock, or null if the object is not locked
+     */
+    private String findLockHolder(final String type, final String id) {
+        return sessionTemplate.read(RESOURCE_LOCK, new ReadWork<String>() {
+            @Override
+            public String execute(ReadSession session) {
+                return getLockHolders(session, type, Collections.singletonList(id)).get(id);
+            }
+        });
     }
 
     @Override
-    public Saveable[] getAllSaveables(String type) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        String queryString = "From "+getClassFromType(type)+" where saveableModuleName=:type";
-        Query query = session.createQuery(queryString);
-        query.setString("type", type);
-        List list = query.list();
-        Saveable[] saveables = new Saveable[list.size()];
-        for(int i = 0; i < list.size(); i++){
-            saveables[i] = (Saveable) list.get(i);
+    public Saveable getSaveable(final String type, final String id) {
+        return sessionTemplate.read(type, new ReadWork<Saveable>() {
+            @Override
+            public Saveable execute(ReadSession session) {
+                Query query = session.createQuery("From "+getClassFromType(type)+" where saveableModuleName=:type AND uniqueId=:id");
+                query.setString("type", type);
+                query.setString("id", id);
+                return (Saveable) query.uniqueResult();
+            }
+        });
+    }
+
+    @Override
+    public Saveable[] getSaveables(final String type, final String[] ids) {
+        final Saveable[] saveables = new Saveable[ids.length];
+        if(ids.length == 0) {
+            return saveables;
+        }
+        Map<String, Saveable> found = sessionTemplate.read(type, new ReadWork<Map<String, Saveable>>() {
+            @Override
+            public Map<String, Saveable> execute(ReadSession session) {
+                return getSaveablesById(session, type, Arrays.asList(ids));
+            }
+        });
+        for(int i = 0; i < ids.length; i++) {
+            saveables[i] = found.get(ids[i]);
         }
-        session.getTransaction().commit();
         return saveables;
     }
 
     @Override
-    public long getSaveableCount(String type) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Number count = (Number) session.createCriteria(type).setProjection(Projections.rowCount()).uniqueResult();
-        session.getTransaction().commit();
-        return count==null?0:count.longValue();
+    public Saveable[] getAllSaveables(final String type) {
+        return sessionTemplate.read(type, new ReadWork<Saveable[]>() {
+            @Override
+            public Saveable[] execute(ReadSession session) {
+                Query query = session.createQuery("From "+getClassFromType(type)+" where saveableModuleName=:type");
+                query.setString("type", type);
+                return toSaveables(query.list());
+            }
+        });
     }
-    
-    public String getClassFromType(String type) {
-        String[] parts = type.split("\\.");
-        return parts[parts.length-1];
+
+    @Override
+    public void streamAllSaveables(final String type, final int chunkSize, final SaveableVisitor visitor) {
+        sessionTemplate.read(type, new ReadWork<Void>() {
+            @Override
+            public Void execute(ReadSession session) {
+                Query query = session.createQuery("From "+getClassFromType(type)+" where saveableModuleName=:type");
+                query.setString("type", type);
+                streamQuery(session, query, chunkSize, visitor);
+                return null;
+            }
+        });
     }
 
     @Override
-    public Saveable[] getWhere(String type, String[] keys, EqualityOperation[] operations, String[] values, String[] conjunctions) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        StringBuilder sb = new StringBuilder();
-        for(int i = 0; i < keys.length; i++) {
-            String key = keys[i];
-            sb.append(" ");
-            sb.append(key);
-            sb.append(operations[i]);
-            sb.append(values[i]);
-            sb.append(" ");
-            sb.append(conjunctions[i]);
-        }
-        String queryS = sb.toString();
-        System.out.println("Custom Hibernate Query: "+queryS);
-        String queryString = "From "+getClassFromType(type)+" where saveableModuleName=:type AND ("+queryS+")";
-        Query query = session.createQuery(queryString);
+    public long getSaveableCount(final String type) {
+        return sessionTemplate.read(type, new ReadWork<Long>() {
+            @Override
+            public Long execute(ReadSession session) {
+                Number count = (Number) session.createCriteria(type).setProjection(Projections.rowCount()).uniqueResult();
+                return count==null?0:count.longValue();
+            }
+        });
+    }
+    
+    @Override
+    public boolean exists(final String type, final String id) {
+        return sessionTemplate.read(type, new ReadWork<Boolean>() {
+            @Override
+            public Boolean execute(ReadSession session) {
+                Query query = session.createQuery("select count(*) from "+getClassFromType(type)+" where saveableModuleName=:type AND uniqueId=:id");
+                query.setString("type", type);
+                query.setString("id", id);
+                return ((Number) query.uniqueResult()).longValue() > 0;
+            }
+        });
+    }
+    
+    private Map<String, Saveable> getSaveablesById(ReadSession session, String type, Collection<String> ids) {
+        Query query = session.createQuery("From "+getClassFromType(type)+" where saveableModuleName=:type AND uniqueId in (:ids)");
+        query.setString("type", type);
+        query.setParameterList("ids", ids);
+        Map<String, Saveable> found = new HashMap<String, Saveable>();
+        for(Object result : query.list()) {
+            Saveable saveable = (Saveable) result;
+            found.put(saveable.getUniqueId(), saveable);
+        }
+        return found;
+    }
+
+    /**
+     * Queues an insert or update for each entity to be written, without a
+     * select per row. Which objects are already stored is read up front with
+     * one query per type: those are updated, the rest saved. An object that
+     * appears twice in a batch is in the session the second time, so merge
+     * copies its state there without going to the database.
+     */
+    private void saveOrUpdateAll(Session session, Saveable[] saveables, Object[] entities) {
+        Serializable[] keys = new Serializable[saveables.length];
+        Map<String, List<Serializable>> keysByType = new HashMap<String, List<Serializable>>();
+        for(int i = 0; i < saveables.length; i++) {
+            String type = saveables[i].getSaveableModuleName();
+            keys[i] = sessionFactory.getClassMetadata(type).getIdentifier(entities[i], (SessionImplementor) session);
+            if(!keysByType.containsKey(type)) {
+                keysByType.put(type, new ArrayList<Serializable>());
+            }
+            keysByType.get(type).add(keys[i]);
+        }
+        Map<String, Set<Serializable>> stored = new HashMap<String, Set<Serializable>>();
+        for(Map.Entry<String, List<Serializable>> entry : keysByType.entrySet()) {
+            stored.put(entry.getKey(), getStoredKeys(SessionTemplate.readSession(session), entry.getKey(), entry.getValue()));
+        }
+        Map<String, Set<Serializable>> written = new HashMap<String, Set<Serializable>>();
+        for(String type : keysByType.keySet()) {
+            written.put(type, new HashSet<Serializable>());
+        }
+        for(int i = 0; i < saveables.length; i++) {
+            String type = saveables[i].getSaveableModuleName();
+            if(keys[i] == null) {
+                session.save(entities[i]);
+            } else if(!written.get(type).add(keys[i])) {
+                session.merge(entities[i]);
+            } else if(stored.get(type).contains(keys[i])) {
+                session.update(entities[i]);
+            } else {
+                session.save(entities[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns which of the primary keys are stored, without loading the
+     * objects. Objects are matched by primary key rather than uniqueId, which
+     * is not indexed and is not the key of every type.
+     */
+    private Set<Serializable> getStoredKeys(ReadSession session, String type, Collection<Serializable> keys) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(type);
+        Set<Serializable> stored = new HashSet<Serializable>();
+        List<Serializable> present = new ArrayList<Serializable>(keys.size());
+        for(Serializable key : keys) {
+            if(key != null) {
+                present.add(key);
+            }
+        }
+        if(present.isEmpty()) {
+            return stored;
+        }
+        String idProperty = metadata.getIdentifierPropertyName();
+        Query query = session.createQuery("select e."+idProperty+" from "+getClassFromType(type)+" e where e."+idProperty+" in (:ids)");
+        query.setParameterList("ids", present);
+        for(Object result : query.list()) {
+            stored.add((Serializable) result);
+        }
+        return stored;
+    }
+
+    private static Map<String, String> getLockHolders(ReadSession session, String type, Collection<String> ids) {
+        Query query = session.createQuery("From ResourceLock where type=:type and id in (:ids)");
         query.setString("type", type);
-        List list = query.list();
+        query.setParameterList("ids", ids);
+        Map<String, String> holders = new HashMap<String, String>();
+        for(Object result : query.list()) {
+            ResourceLock resourceLock = (ResourceLock) result;
+            holders.put(resourceLock.getId(), resourceLock.getHolder());
+        }
+        return holders;
+    }
+
+    private static Saveable[] toSaveables(List list) {
         Saveable[] saveables = new Saveable[list.size()];
         for(int i = 0; i < list.size(); i++){
             saveables[i] = (Saveable) list.get(i);
         }
-        session.getTransaction().commit();
         return saveables;
     }
+    
+    public String getClassFromType(String type) {
+        String[] parts = type.split("\\.");
+        return parts[parts.length-1];
+    }
 
     @Override
-    public boolean isLockedForUser(String user, String type, String id) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Query query = session.createQuery("From ResourceLock where type=:type and id=:id");
-        query.setString("type", type);
-        query.setString("id", id);
-        ResourceLock resourceLock = (ResourceLock) query.uniqueResult();
-        session.getTransaction().commit();
-        return resourceLock!=null && !resourceLock.getHolder().equals(user);
+    public Saveable[] getWhere(final String type, final Predicate predicate) {
+        return sessionTemplate.read(type, new ReadWork<Saveable[]>() {
+            @Override
+            public Saveable[] execute(ReadSession session) {
+                return toSaveables(createWhereQuery(session, type, predicate).list());
+            }
+        });
+    }
+
+    @Override
+    public void streamWhere(final String type, final Predicate predicate, final int chunkSize, final SaveableVisitor visitor) {
+        sessionTemplate.read(type, new ReadWork<Void>() {
+            @Override
+            public Void execute(ReadSession session) {
+                Query query = createWhereQuery(session, type, predicate);
+                streamQuery(session, query, chunkSize, visitor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * The database index created by {@link IndexMaintainer} makes this a plain
+     * query on an indexed column
+     */
+    @Override
+    public Saveable[] getByIndex(String type, String property, Object value) {
+        getIndexedProperty(type, property);
+        return getWhere(type, Predicates.eq(property, value));
     }
 
     @Override
-    public long getHighestUniqueId(String type) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        Object critResult = session.createCriteria(type).setProjection(Projections.rowCount()).uniqueResult();
-        if(critResult != null) {
-            Long maxId = (Long) critResult;
-            session.close();
-            return maxId;
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high) {
+        if(!getIndexedProperty(type, property).isOrdered()) {
+            throw new IllegalArgumentException("Index on " + property + " of " + type + " is not ordered");
         }
-        else {
-            session.close();
-            return 0;
+        return getWhere(type, Predicates.range(property, low, high));
+    }
+
+    private IndexedProperty getIndexedProperty(String type, String property) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(type);
+        if(metadata == null) {
+            throw new IllegalArgumentException("Unknown type " + type);
+        }
+        return IndexedProperty.of(metadata.getMappedClass(EntityMode.POJO), property);
+    }
+
+    /**
+     * Scrolls through the results of a query and hands them to the visitor in
+     * chunks. The session is cleared after every chunk so only one chunk of
+     * entities is ever held in memory.
+     */
+    private static void streamQuery(ReadSession session, Query query, int chunkSize, SaveableVisitor visitor) {
+        query.setFetchSize(chunkSize);
+        query.setReadOnly(true);
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            ArrayList<Saveable> chunk = new ArrayList<Saveable>(chunkSize);
+            while(results.next()) {
+                chunk.add((Saveable) results.get(0));
+                if(chunk.size() == chunkSize) {
+                    if(!visitor.visit(chunk.toArray(new Saveable[chunk.size()]))) {
+                        return;
+                    }
+                    chunk.clear();
+                    session.clear();
+                }
+            }
+            if(!chunk.isEmpty()) {
+                visitor.visit(chunk.toArray(new Saveable[chunk.size()]));
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    private Query createWhereQuery(ReadSession session, String type, Predicate predicate) {
+        try {
+            return queryCompiler.createQuery(session, type, getClassFromType(type), predicate);
+        } catch(QueryException ex) {
+            //Most likely a property the type does not have
+            throw new IllegalArgumentException(ex.getMessage(), ex);
         }
     }
+
+    /**
+     * Returns the largest id of types with numeric ids. Types with other ids
+     * have no largest one, for them this is the number of objects.
+     */
+    @Override
+    public long getHighestUniqueId(final String type) {
+        ClassMetadata metadata = sessionFactory.getClassMetadata(type);
+        final boolean numericId = metadata != null && Number.class.isAssignableFrom(metadata.getIdentifierType().getReturnedClass());
+        final String idProperty = metadata == null ? null : metadata.getIdentifierPropertyName();
+        return sessionTemplate.read(type, new ReadWork<Long>() {
+            @Override
+            public Long execute(ReadSession session) {
+                Number maxId = (Number) session.createCriteria(type).setProjection(numericId ? Projections.max(idProperty) : Projections.rowCount()).uniqueResult();
+                return maxId==null?0:maxId.longValue();
+            }
+        });
+    }
 }
@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeJournal;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeJournalListener;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+
+/**
+ * Pushes the changes to a set of types to one client as they are recorded.
+ *
+ * The journal hands changes over through a bounded queue so recording a
+ * change never waits on a client. A separate thread sends them in batches and
+ * stops once {@link #MAX_UNACKED_BATCHES} batches have not been acknowledged.
+ * If a client falls so far behind that the queue fills up, the queue is
+ * dropped and the pusher catches up by reading the journal from the last
+ * change it sent, so a slow client costs a journal read rather than memory.
+ *
+ * @author Manuel Gauto
+ */
+class JournalSubscription implements ChangeJournalListener, Runnable {
+    static final int QUEUE_CAPACITY = 1024;
+    static final int BATCH_SIZE = 256;
+    static final int MAX_UNACKED_BATCHES = 4;
+    /**
+     * Queued after the queue overflows to wake the pusher
+     */
+    private static final ChangeRecord OVERFLOW = new ChangeRecord();
+
+    private final String user;
+    private final int requestId;
+    private final Set<String> types;
+    private final FrameCodec codec;
+    private final ChangeJournal changeJournal;
+    private final BlockingQueue<ChangeRecord> pending = new ArrayBlockingQueue<ChangeRecord>(QUEUE_CAPACITY);
+    /**
+     * Set while queued changes are being ignored because the pusher has to
+     * read the journal anyway
+     */
+    private volatile boolean overflowed = true;
+    private volatile boolean running = true;
+    /**
+     * Id of the last change sent, only used by the pusher thread
+     */
+    private long lastSentId;
+    private long lastAckedId;
+    private int unackedBatches = 0;
+    private Thread thread;
+
+    /**
+     * @param resumeFromId Last change id the client has seen, every later
+     * change to the types is sent first
+     */
+    JournalSubscription(String user, int requestId, Set<String> types, long resumeFromId, FrameCodec codec, ChangeJournal changeJournal) {
+        this.user = user;
+        this.requestId = requestId;
+        this.types = types;
+        this.lastSentId = resumeFromId;
+        this.lastAckedId = resumeFromId;
+        this.codec = codec;
+        this.changeJournal = changeJournal;
+    }
+
+    void start() {
+        changeJournal.addChangeJournalListener(this);
+        thread = new Thread(this, "SaveServer-subscription-" + user + "-" + requestId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ends the subscription. The final frame is sent once the pusher notices.
+     */
+    void stop() {
+        running = false;
+        changeJournal.removeChangeJournalListener(this);
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Called when the client has applied a batch
+     *
+     * @param changeId Change id the batch covered
+     */
+    synchronized void ack(long changeId) {
+        lastAckedId = Math.max(lastAckedId, changeId);
+        if (unackedBatches > 0) {
+            unackedBatches--;
+        }
+        notifyAll();
+    }
+
+    synchronized long getLastAckedId() {
+        return lastAckedId;
+    }
+
+    @Override
+    public void changesRecorded(ChangeRecord[] changes) {
+        if (overflowed) {
+            return;
+        }
+        for (ChangeRecord change : changes) {
+            if (!types.contains(change.getType())) {
+                continue;
+            }
+            if (!pending.offer(change)) {
+                overflowed = true;
+                //We are the only producer so there is room for the marker now
+                pending.clear();
+                pending.offer(OVERFLOW);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            sendBatch(new ArrayList<ChangeRecord>(0));
+            while (running) {
+                ArrayList<ChangeRecord> changes = new ArrayList<ChangeRecord>();
+                if (overflowed) {
+                    //Anything recorded from here on is queued, anything before is in the journal
+                    overflowed = false;
+                    for (ChangeRecord change : changeJournal.getChangesSince(lastSentId)) {
+                        if (types.contains(change.getType())) {
+                            changes.add(change);
+                        }
+                    }
+                } else {
+                    ChangeRecord first = pending.take();
+                    if (first == OVERFLOW) {
+                        continue;
+                    }
+                    changes.add(first);
+                    pending.drainTo(changes, BATCH_SIZE - 1);
+                    if (changes.remove(OVERFLOW)) {
+                        continue;
+                    }
+                }
+                for (int start = 0; start < changes.size(); start += BATCH_SIZE) {
+                    sendBatch(changes.subList(start, Math.min(start + BATCH_SIZE, changes.size())));
+                }
+            }
+        } catch (InterruptedException ex) {
+            //Stopped
+        } catch (IOException ex) {
+            Logger.getLogger("SaveServer").log(Level.FINE, "Subscription for " + user + " ended", ex);
+            return;
+        } finally {
+            changeJournal.removeChangeJournalListener(this);
+        }
+        try {
+            PayloadWriter payload = new PayloadWriter(8);
+            payload.writeLong(lastSentId);
+            codec.writeFrame(Frame.response(OpCode.SUBSCRIBE, Frame.STATUS_OK, payload).withRequestId(requestId));
+        } catch (IOException ex) {
+            Logger.getLogger("SaveServer").log(Level.FINE, "Subscription for " + user + " ended", ex);
+        }
+    }
+
+    private void sendBatch(List<ChangeRecord> changes) throws IOException, InterruptedException {
+        //Changes already sent can show up again after catching up from the journal
+        ArrayList<ChangeRecord> unsent = new ArrayList<ChangeRecord>(changes.size());
+        long coveredId = lastSentId;
+        for (ChangeRecord change : changes) {
+            if (change.getChangeId() > lastSentId) {
+                unsent.add(change);
+                coveredId = Math.max(coveredId, change.getChangeId());
+            }
+        }
+        if (unsent.isEmpty() && !changes.isEmpty()) {
+            return;
+        }
+        PayloadWriter payload = new PayloadWriter();
+        payload.writeLong(coveredId);
+        payload.writeInt(unsent.size());
+        for (ChangeRecord change : unsent) {
+            payload.writeLong(change.getChangeId());
+            payload.writeString(change.getType());
+            payload.writeString(change.getObjectId());
+        }
+        awaitWindow();
+        codec.writeFrame(Frame.response(OpCode.SUBSCRIBE, Frame.STATUS_PARTIAL, payload).withRequestId(requestId));
+        lastSentId = coveredId;
+    }
+
+    private synchronized void awaitWindow() throws InterruptedException {
+        while (unackedBatches >= MAX_UNACKED_BATCHES) {
+            wait();
+        }
+        unackedBatches++;
+    }
+}
@@ -24,24 +24,137 @@
 
 package org.mgenterprises.openbooks.saving.server;
 
-import org.mgenterprises.openbooks.saving.EqualityOperation;
+import org.mgenterprises.openbooks.saving.Indexed;
 import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
 
 /**
  * Manages data access and persistence
+ *
+ * Locks are only enforced by the
+ * {@link org.mgenterprises.openbooks.saving.server.locking.LockingSaveManager},
+ * which the server puts in front of the store. Stores keep the locks they
+ * are given but write and remove objects whatever their lock, so the
+ * holders passed to the writes and removes below are checked there alone.
  * @author mgauto
  */
 public interface SaveManager {
     
-    public Saveable[] getWhere(String type, String[] keys, EqualityOperation[] operations, String[] values, String[] conjunctions);
+    /**
+     * Returns the objects of a type that match a predicate
+     *
+     * @throws IllegalArgumentException If the predicate does not fit the type,
+     * for example because it names a property the type does not have
+     */
+    public Saveable[] getWhere(String type, Predicate predicate);
+    
+    /**
+     * Same as {@link #getWhere} but hands the results to the visitor in chunks
+     * as they are read, so the full result never has to be held in memory.
+     */
+    public void streamWhere(String type, Predicate predicate, int chunkSize, SaveableVisitor visitor);
+    
+    /**
+     * Returns the objects of a type whose {@link Indexed} property equals a
+     * value. The lookup uses the index, so it does not read every object.
+     *
+     * @throws IllegalArgumentException If the property is not indexed
+     */
+    public Saveable[] getByIndex(String type, String property, Object value);
+    
+    /**
+     * Returns the objects of a type whose ordered {@link Indexed} property
+     * lies between two values
+     *
+     * @param low Lowest value, inclusive, or null for no lower bound
+     * @param high Highest value, inclusive, or null for no upper bound
+     * @throws IllegalArgumentException If the property is not indexed and
+     * ordered, or both bounds are null
+     */
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high);
     
     public boolean persistSaveable(String type, String holder, Saveable saveable);
     
+    /**
+     * Persists several saveables in a single transaction. The
+     * LockingSaveManager skips objects that are locked by someone other than
+     * the holder.
+     * 
+     * @param holder User the objects are persisted for
+     * @param saveables Objects to persist, they may be of different types
+     * @return Whether each object was persisted, in the same order as saveables
+     */
+    public boolean[] persistSaveables(String holder, Saveable[] saveables);
+    
+    /**
+     * Persists the writes of several holders and a ChangeRecord for every
+     * persisted write in a single transaction. The LockingSaveManager skips
+     * the writes whose object is locked by someone other than its holder.
+     * 
+     * @param holders User each object is persisted for
+     * @param saveables Objects to persist, they may be of different types
+     * @param firstChangeId Id of the first ChangeRecord, the following
+     * records get consecutive ids
+     * @return The ChangeRecord of each object in the same order as saveables,
+     * null where the object was skipped, or null if the transaction failed
+     */
+    public ChangeRecord[] persistJournaled(String[] holders, Saveable[] saveables, long firstChangeId);
+    
     public void removeLock(String type, String id);
     
+    /**
+     * Releases several locks of one type at once. Locks that are not held by
+     * the holder are left alone.
+     * 
+     * @param holder User the locks must be held by
+     * @param type Type of the locked objects
+     * @param ids Ids of the locked objects
+     * @return Number of locks released
+     */
+    public int removeLocks(String holder, String type, String[] ids);
+    
     public void removeSaveable(String type, String id);
     
-    public void createLock(String holder, String type, String id);
+    /**
+     * Removes several saveables of one type in a single transaction. The
+     * LockingSaveManager only removes the objects whose lock the holder holds.
+     * 
+     * @param holder User the objects are removed for
+     * @param type Type of the objects
+     * @param ids Ids of the objects to remove
+     * @return Whether each object was removed, in the same order as ids
+     */
+    public boolean[] removeSaveables(String holder, String type, String[] ids);
+    
+    /**
+     * Removes several saveables of one type and stores a ChangeRecord for
+     * every removed object in a single transaction. The LockingSaveManager
+     * only removes the objects whose lock the holder holds.
+     * 
+     * @param holder User the objects are removed for
+     * @param type Saveable module name
+     * @param ids Ids of the objects to remove
+     * @param firstChangeId Id of the first ChangeRecord, the following
+     * records get consecutive ids
+     * @return The ChangeRecord of each id in the same order as ids, null
+     * where the object does not exist or was skipped, or null if the
+     * transaction failed
+     */
+    public ChangeRecord[] removeJournaled(String holder, String type, String[] ids, long firstChangeId);
+    
+    /**
+     * Locks an object for the holder unless someone else holds its lock
+     * 
+     * @return true if the holder holds the lock afterwards, also when it
+     * already did before
+     */
+    public boolean createLock(String holder, String type, String id);
+
+    /**
+     * @return Every stored lock
+     */
+    public ResourceLock[] getLocks();
     
     public boolean hasLock(String type, String id);
     
@@ -51,9 +164,35 @@ public interface SaveManager {
     
     public Saveable getSaveable(String type, String id);
     
+    /**
+     * Retrieves several saveables of one type with a single query
+     * 
+     * @param type Type of the objects
+     * @param ids Ids to look up
+     * @return The objects in the same order as ids, null where an id does not exist
+     */
+    public Saveable[] getSaveables(String type, String[] ids);
+    
     public Saveable[] getAllSaveables(String type);
     
+    /**
+     * Same as {@link #getAllSaveables} but hands the objects to the visitor in
+     * chunks as they are read, so the full table never has to be held in memory.
+     * 
+     * @param type Type of the objects
+     * @param chunkSize Maximum number of objects per chunk
+     * @param visitor Receives the chunks
+     */
+    public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor);
+    
     public long getSaveableCount(String type);
     
     public long getHighestUniqueId(String type);
+    
+    /**
+     * @param type Saveable module name
+     * @param id Unique id within the type
+     * @return true if an object with the id is stored
+     */
+    public boolean exists(String type, String id);
 }
@@ -23,22 +23,12 @@
  */
 package org.mgenterprises.openbooks.saving.server;
 
-import com.google.common.base.Charsets;
-import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -47,9 +37,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
-import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.KeyManagerFactory;
@@ -60,14 +47,20 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import org.mgenterprises.openbooks.saving.AbstractSaveableAdapter;
-import org.mgenterprises.openbooks.saving.EqualityOperation;
 import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
 import org.mgenterprises.openbooks.saving.server.access.ACTION;
-import org.mgenterprises.openbooks.saving.server.authentication.UserLoginAttempt;
-import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+import org.mgenterprises.openbooks.saving.server.catalog.CatalogingSaveManager;
+import org.mgenterprises.openbooks.saving.server.execution.SessionExecutor;
+import org.mgenterprises.openbooks.saving.server.execution.SessionExecutorConfiguration;
 import org.mgenterprises.openbooks.saving.server.journal.ChangeJournal;
-import org.mgenterprises.openbooks.saving.server.security.CryptoUtils;
-import org.mgenterprises.openbooks.saving.server.security.SecureMessage;
+import org.mgenterprises.openbooks.saving.server.locking.LockTable;
+import org.mgenterprises.openbooks.saving.server.locking.LockingSaveManager;
+import org.mgenterprises.openbooks.saving.server.pipeline.WritePipeline;
+import org.mgenterprises.openbooks.saving.server.pipeline.WritePipelineConfiguration;
+import org.mgenterprises.openbooks.saving.server.sequence.IdAllocator;
+import org.mgenterprises.openbooks.saving.server.statistics.ServerStatistics;
+import org.mgenterprises.openbooks.saving.server.statistics.StatisticsDumper;
 import org.mgenterprises.openbooks.saving.server.users.UserManager;
 
 /**
@@ -77,10 +70,6 @@ import org.mgenterprises.openbooks.saving.server.users.UserManager;
  */
 public class SaveServer implements Runnable {
 
-    /**
-     * Delimiter used for requests to the SaveServer
-     */
-    public static final String DELIMITER = ":#:";
     /**
      * Address to listen on
      */
@@ -100,18 +89,64 @@ public class SaveServer implements Runnable {
      */
     private Gson gson;
     private UserManager userManager;
-    private SaveManager saveManager;
+    /**
+     * The SaveManager given to the server behind a catalog of the live ids
+     * and the lock table, which every write of the server goes through
+     */
+    private CatalogingSaveManager saveManager;
+    /**
+     * Holds the locks of every session in memory and expires the leases of
+     * users that stopped sending requests
+     */
+    private LockTable lockTable;
     private ChangeJournal changeJournal;
+    /**
+     * Hands out ids for NEXTID, shared by every session
+     */
+    private IdAllocator idAllocator;
+    /**
+     * Commits the PUTs of all sessions in batches
+     */
+    private WritePipeline writePipeline;
+    private WritePipelineConfiguration writePipelineConfiguration = new WritePipelineConfiguration();
     private SecureRandom secureRandom = new SecureRandom();
 
     private String keyStoreLocation;
     private char[] keyStorePassword;
+    /**
+     * Runs client sessions and enforces the connection cap
+     */
+    private SessionExecutor sessionExecutor;
+    private SessionExecutorConfiguration sessionExecutorConfiguration;
+    /**
+     * Smallest response payload that is compressed for clients that ask for
+     * compression, or -1 to never compress
+     */
+    private int compressionThreshold = FrameCodec.DEFAULT_COMPRESSION_THRESHOLD;
+    /**
+     * Request counters and latencies of every session
+     */
+    private ServerStatistics serverStatistics = new ServerStatistics();
+    private StatisticsDumper statisticsDumper;
+    /**
+     * Closes sessions whose client has gone silent
+     */
+    private SessionReaper sessionReaper;
+
     public SaveServer(String listenAddress, short port, UserManager userManager, SaveManager saveManager, String keyStoreLocation, char[] keyStorePassword) throws UnknownHostException {
+        this(listenAddress, port, userManager, saveManager, keyStoreLocation, keyStorePassword, new SessionExecutorConfiguration());
+    }
+
+    public SaveServer(String listenAddress, short port, UserManager userManager, SaveManager saveManager, String keyStoreLocation, char[] keyStorePassword, SessionExecutorConfiguration sessionExecutorConfiguration) throws UnknownHostException {
+        this.sessionExecutorConfiguration = sessionExecutorConfiguration;
         this.port = port;
         this.bindAddress = InetAddress.getByName(listenAddress);
         this.userManager = userManager;
-        this.saveManager = saveManager;
-        this.changeJournal = new ChangeJournal(saveManager);
+        LockingSaveManager lockingSaveManager = new LockingSaveManager(saveManager);
+        this.lockTable = lockingSaveManager.getLockTable();
+        this.saveManager = new CatalogingSaveManager(lockingSaveManager);
+        this.changeJournal = new ChangeJournal(this.saveManager);
+        this.idAllocator = new IdAllocator(this.saveManager);
         this.keyStoreLocation = keyStoreLocation;
         this.keyStorePassword = keyStorePassword;
         GsonBuilder gsonBuilder = new GsonBuilder();
@@ -142,11 +177,29 @@ public class SaveServer implements Runnable {
             sc.init(kmf.getKeyManagers(), trustManagers, null);
             
             SSLServerSocketFactory factory = sc.getServerSocketFactory();
-            SSLServerSocket serverSocket=(SSLServerSocket) factory.createServerSocket(port);
+            SSLServerSocket serverSocket=(SSLServerSocket) factory.createServerSocket(port, sessionExecutorConfiguration.getAcceptBacklog(), bindAddress);
+            sessionExecutor = new SessionExecutor(sessionExecutorConfiguration);
+            writePipeline = new WritePipeline(changeJournal, writePipelineConfiguration);
+            sessionReaper = new SessionReaper(sessionExecutorConfiguration.getIdleTimeoutMillis());
+            sessionReaper.start(sessionExecutorConfiguration.getReaperIntervalMillis());
+            lockTable.start();
             while (running) {
                 SSLSocket socket = (SSLSocket) serverSocket.accept();
-                SaveServerRequestProcessor saveServerRequestProcessor = new SaveServerRequestProcessor(socket, secureRandom, gson, userManager, saveManager, changeJournal);
-                new Thread(saveServerRequestProcessor).start();
+                SaveServerRequestProcessor saveServerRequestProcessor = new SaveServerRequestProcessor(socket, secureRandom, gson, userManager, saveManager, changeJournal, idAllocator, lockTable, writePipeline, compressionThreshold, serverStatistics, sessionReaper, sessionExecutor, sessionExecutorConfiguration.getReadTimeoutMillis());
+                sessionReaper.register(saveServerRequestProcessor);
+                if (!sessionExecutor.submit(saveServerRequestProcessor)) {
+                    sessionReaper.unregister(saveServerRequestProcessor);
+                    //Over capacity, push back instead of queueing without bound
+                    Logger.getLogger("SaveServer").log(Level.WARNING, "Refused connection from {0}: {1} active, {2} queued", new Object[]{socket.getInetAddress(), sessionExecutor.getActiveSessions(), sessionExecutor.getQueuedSessions()});
+                    socket.close();
+                }
+            }
+            sessionExecutor.shutdown();
+            sessionReaper.stop();
+            lockTable.stop();
+            writePipeline.close();
+            if (statisticsDumper != null) {
+                statisticsDumper.stop();
             }
         } catch (IOException ex) {
             Logger.getLogger(SaveServer.class.getName()).log(Level.SEVERE, null, ex);
@@ -166,315 +219,116 @@ public class SaveServer implements Runnable {
     public void stop() {
         running = false;
     }
-}
-
-class SaveServerRequestProcessor implements Runnable {
 
-    private SSLSocket socket;
-    private SecureRandom secureRandom;
-    private CryptoUtils cryptoUtils = new CryptoUtils();
-    private Gson gson;
-    private UserManager userManager;
-    private SaveManager saveManager;
-    private ChangeJournal changeJournal;
-
-    public SaveServerRequestProcessor(SSLSocket socket, SecureRandom secureRandom, Gson gson, UserManager userManager, SaveManager saveManager, ChangeJournal changeJournal) {
-        this.socket = socket;
-        this.secureRandom = secureRandom;
-        this.gson = gson;
-        this.userManager = userManager;
-        this.saveManager = saveManager;
-        this.changeJournal = changeJournal;
-    }
-
-    @Override
-    public void run() {
-        try {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            String userLoginAttemptJson = br.readLine();
-            UserLoginAttempt userloginAttempt = gson.fromJson(userLoginAttemptJson, UserLoginAttempt.class);
-            String username = userloginAttempt.getUsername();
-            if(userManager.checkUserLoginAttempt(userloginAttempt)) {
-                //Inform the client of sucessful login
-                bw.write("OK");
-                bw.newLine();
-                bw.flush();
-                //Start the command loop
-                while(true) {
-                    //Wait for command
-                    String request = br.readLine();
-                    //Check to see if it the disconnect command
-                    if(request.equals("DISCONNECT")) break;
-
-                    //Split request string using delimiter
-                    String[] requestParts = request.split(SaveServer.DELIMITER);
-
-                    String verb = requestParts[0];
-                    String response = "500";
-                    switch (verb) {
-                        case "GET":
-                            response = processGET(username, requestParts);
-                            break;
-                        case "QUERY":
-                            response = processQUERY(username, requestParts);
-                            break;
-                        case "PUT":
-                            response = processPUT(username, requestParts);
-                            break;
-                        case "REMOVE":
-                            response = processREMOVE(username, requestParts);
-                            break;
-                        case "SIZE":
-                            response = processSIZE(username, requestParts);
-                            break;
-                        case "HIGHESTID":
-                            response = processHIGHESTID(username, requestParts);
-                            break;
-                        case "LOCK":
-                            response = processLOCK(username, requestParts);
-                            break;
-                        case "RELEASE":
-                            response = processRELEASE(username, requestParts);
-                            break;
-                        case "READJOURNAL":
-                            response = processREADJOURNAL(username, requestParts);
-                            break;
-                    } //Switch End
-                    //Send the response
-                    bw.write(response);
-                    bw.newLine();
-                    bw.flush();
-                } //Command Loop End
-                bw.close();
-                br.close();
-                socket.close();
-            } else {
-                //Inform the client of failed login
-                bw.write("FAIL");
-                bw.newLine();
-                bw.flush();
-                bw.close();
-                br.close();
-                socket.close();
-            }
-            
-        } catch (IOException ex) {
-            Logger.getLogger("SaveServer").log(Level.SEVERE, null, ex);
-        }
+    public ServerStatistics getServerStatistics() {
+        return serverStatistics;
     }
 
     /**
-     * Get the requested objects
-     * ALL does not lock objects
-     * locks object if it is not locked
-     * @param user
-     * @param requestParts
-     * @return 
+     * Writes the statistics to a file as json at a fixed interval
+     *
+     * @param file File to write, replaced on every write
+     * @param periodSeconds Seconds between two writes
      */
-    private String processGET(String user, String[] requestParts) {
-        String type = requestParts[1];
-        String id = requestParts[2];
-        //Make sure user can access this
-        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
-            if (id.equals("ALL")) {
-                Saveable[] saveables = saveManager.getAllSaveables(type);
-                return gson.toJson(saveables);
-            } else {
-                //Get lock status
-                String lockHolder = saveManager.getLockHolder(type, id);
-                //If it isn't locked, lock it    
-                if (lockHolder.equals("")) {
-                    saveManager.createLock(user, type, id);
-                    //Set lockholder to current user
-                    lockHolder=user;
-                }
-                Saveable saveable = saveManager.getSaveable(type, id);
-
-                //Check if the GET was successful
-                if (saveable != null) {
-                    //If it is locked by another user indicate that
-                    if (!lockHolder.equals(user)) {
-                        saveable.setLocked(true);
-                    } else {
-                        saveable.setLocked(false);
-                    }
-                    Logger.getLogger("SaveServer").log(Level.INFO, "GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
-                    return gson.toJson(saveable, Saveable.class);
-                } else {
-                    Logger.getLogger("SaveServer").log(Level.INFO, "GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
-                    saveManager.removeLock(type, id);
-                    return "404";
-                }
-            }
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
-            return "401";
+    public synchronized void startStatisticsDump(File file, long periodSeconds) {
+        if (statisticsDumper != null) {
+            statisticsDumper.stop();
         }
+        statisticsDumper = new StatisticsDumper(serverStatistics, file);
+        statisticsDumper.start(periodSeconds);
     }
 
-    private String processQUERY(String user, String[] requestParts) {
-        String type = requestParts[1];
-        String[] keys = fromArraysToString(requestParts[2]);
-        EqualityOperation[] operations = fromArraysToStringEO(requestParts[3]);
-        String[] values = fromArraysToString(requestParts[4]);
-        String[] conjunctions = fromArraysToString(requestParts[5]);
-        
-        boolean arraysOK = keys.length==operations.length&&operations.length==values.length&&values.length==conjunctions.length;
-        boolean tryLockAll = Boolean.getBoolean(requestParts[6]);
-        //Make sure user can access this
-        if (userManager.userHasAccessRight(user, type, ACTION.GET) || !arraysOK) {
-            Saveable[] result = saveManager.getWhere(type, keys, operations,values, conjunctions);
-            for(Saveable saveable : result) {
-                boolean isLockedForUser = saveManager.isLockedForUser(user, type, saveable.getUniqueId());
-                if(!isLockedForUser && tryLockAll) {
-                    saveManager.createLock(user, type, saveable.getUniqueId());
-                } else if(isLockedForUser) {
-                    saveable.setLocked(true);
-                }
-            }
-            Logger.getLogger("SaveServer").log(Level.INFO, "QUERY from {0} for t: {1} keys: {2}", new Object[]{user, type, requestParts[3]});
-            return gson.toJson(result, Saveable.class);
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied QUERY from {0} for t: {1} keys: {2}", new Object[]{user, type, requestParts[3]});
-            return "401";
-        }
+    public int getCompressionThreshold() {
+        return compressionThreshold;
     }
 
-    private static String[] fromArraysToString(String string) {
-        String[] strings = string.replace("[", "").replace("]", "").split(", ");
-        return strings;
-    }
-    
-    private static EqualityOperation[] fromArraysToStringEO(String string) {
-        String[] strings = string.replace("[", "").replace("]", "").split(", ");
-        EqualityOperation[] ops = new EqualityOperation[strings.length];
-        for(int i = 0; i < strings.length; i++) {
-            String s = strings[i];
-            for(EqualityOperation eo : EqualityOperation.values()) {
-                if(eo.toString().equals(s)) ops[i]=eo;
-            }
-        }
-        return ops;
+    /**
+     * Sets the smallest response payload that is compressed. Only sessions
+     * that asked for compression at login are affected.
+     *
+     * @param compressionThreshold Size in bytes, or -1 to never compress
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
     }
 
-    private String processSIZE(String user, String[] requestParts) {
-        String type = requestParts[1];
-        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
-            Logger.getLogger("SaveServer").log(Level.INFO, "SIZE from {0} for t: {1}", new Object[]{user, type});
-            return String.valueOf(saveManager.getSaveableCount(type));
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied SIZE from {0} for t: {1}", new Object[]{user, type});
-            return "401";
-        }
+    public WritePipelineConfiguration getWritePipelineConfiguration() {
+        return writePipelineConfiguration;
     }
 
-    public String processHIGHESTID(String user, String[] requestParts) {
-        String type = requestParts[1];
-        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
-            Logger.getLogger("SaveServer").log(Level.INFO, "HIGHESTID from {0} for t: {1}", new Object[]{user, type});
-            return String.valueOf(saveManager.getHighestUniqueId(type));
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied HIGHESTID from {0} for t: {1}", new Object[]{user, type});
-            return "401";
-        }
+    /**
+     * Sets how PUTs are batched. Takes effect when the server is started.
+     *
+     * @param writePipelineConfiguration Batch size and delay of the write pipeline
+     */
+    public void setWritePipelineConfiguration(WritePipelineConfiguration writePipelineConfiguration) {
+        this.writePipelineConfiguration = writePipelineConfiguration;
     }
-    
-    private String processPUT(String user, String[] requestParts) {
-        String data = requestParts[1];
 
-        JsonParser jsonParser = new JsonParser();
-        JsonElement json = jsonParser.parse(data);
-        JsonObject jsonObject = json.getAsJsonObject();
-        String type = jsonObject.get("type").getAsString();
+    /**
+     * @return Pipeline that commits the PUTs, or null before the server is started
+     */
+    public WritePipeline getWritePipeline() {
+        return writePipeline;
+    }
 
-        Saveable saveable = gson.fromJson(data, Saveable.class);
-        if (userManager.userHasAccessRight(user, saveable.getSaveableModuleName(), ACTION.PUT)) {
-            if (!saveManager.isLockedForUser(user, saveable.getSaveableModuleName(), saveable.getUniqueId())) {
-                saveManager.persistSaveable(type, user, saveable);
-                ChangeRecord change = new ChangeRecord();
-                change.setType(type);
-                change.setObjectId(saveable.getUniqueId());
-                long changeID = changeJournal.recordChange(change);
-                Logger.getLogger("SaveServer").log(Level.INFO, "PUT from {0}", new Object[]{user});
-                return String.valueOf(changeID);
-            } else {
-                Logger.getLogger("SaveServer").log(Level.INFO, "Denied PUT from {0}-Locked", new Object[]{user});
-                return "-1";
-            }
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied PUT from {0}", new Object[]{user});
-            return "-1";
-        }
+    /**
+     * @return Table holding the locks, write-through and the lease time are
+     * set on it
+     */
+    public LockTable getLockTable() {
+        return lockTable;
     }
 
-    private String processREMOVE(String user, String[] requestParts) {
-        if (requestParts.length != 3) {
-            return "404";
-        }
-        String type = requestParts[1];
-        String id = requestParts[2];
-        if (userManager.userHasAccessRight(user, type, ACTION.REMOVE)) {
-            if (saveManager.getLockHolder(type, id).equals(user)) {
-                saveManager.removeSaveable(type, id);
-                Logger.getLogger("SaveServer").log(Level.INFO, "REMOVE from {0} for {1} {2}", new Object[]{user, type, id});
-                return "200";
-            } else {
-                Logger.getLogger("SaveServer").log(Level.INFO, "Denied REMOVE from {0} for {1} {2}", new Object[]{user, type, id});
-                return "503";
-            }
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied REMOVE from {0} for {1} {2}", new Object[]{user, type, id});
-            return "401";
-        }
+    /**
+     * Sets how concurrent edits of a type are kept apart. Types are
+     * pessimistic unless set otherwise. Switching a type to optimistic loads
+     * its versions from the journal.
+     *
+     * @param type Saveable module name
+     * @param concurrencyMode Mode for the type
+     */
+    public void setConcurrencyMode(String type, ConcurrencyMode concurrencyMode) {
+        changeJournal.setOptimistic(type, concurrencyMode == ConcurrencyMode.OPTIMISTIC);
     }
 
-    private String processRELEASE(String user, String[] requestParts) {
-        String type = requestParts[1];
-        String id = requestParts[2];
-        if (saveManager.getLockHolder(type, id).equals(user)) {
-            saveManager.removeLock(type, id);
-            Logger.getLogger("SaveServer").log(Level.INFO, "RELEASE from {0} for {1} {2}", new Object[]{user, type, id});
-            return "200";
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied RELEASE from {0} for {1} {2}", new Object[]{user, type, id});
-            return "401";
-        }
+    public ConcurrencyMode getConcurrencyMode(String type) {
+        return changeJournal.isOptimistic(type) ? ConcurrencyMode.OPTIMISTIC : ConcurrencyMode.PESSIMISTIC;
     }
 
-    private String processLOCK(String user, String[] requestParts) {
-        String type = requestParts[1];
-        String id = requestParts[2];
+    /**
+     * Returns the number of accepted sessions that are waiting for a thread
+     *
+     * @return Accept queue depth
+     */
+    public int getQueuedSessionCount() {
+        return sessionExecutor == null ? 0 : sessionExecutor.getQueuedSessions();
+    }
 
-        String lockHolder = saveManager.getLockHolder(type, id);
-        if (lockHolder.equals("")) {
-            saveManager.createLock(user, type, id);
-            Logger.getLogger("SaveServer").log(Level.INFO, "LOCK from {0} for {1} {2}", new Object[]{user, type, id});
-            return "200";
-        } else if (lockHolder.equals(user)) {
-            Logger.getLogger("SaveServer").log(Level.INFO, "LOCK CHECK from {0} for {1} {2}", new Object[]{user, type, id});
-            return "302";
-        } else {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Denied LOCK from {0} for {1} {2}", new Object[]{user, type, id});
-            return "401";
-        }
+    /**
+     * Returns the number of sessions that are currently being served
+     *
+     * @return Active session count
+     */
+    public int getActiveSessionCount() {
+        return sessionExecutor == null ? 0 : sessionExecutor.getActiveSessions();
     }
-    
-    private String processREADJOURNAL(String user, String[] requestParts) {
-        String startIdString = requestParts[1];
-        try {
-            if(startIdString.equalsIgnoreCase("SIZE")) {
-                return String.valueOf(changeJournal.getLatestChangeId());
-            }
-            long startId = Long.parseLong(startIdString);
-            ChangeRecord[] changes = changeJournal.getChangesSince(startId);
-            return gson.toJson(changes);
-        } catch(NumberFormatException ex) {
-            Logger.getLogger("SaveServer").log(Level.INFO, "Invalid READJOURNAL requestfrom {0}", new Object[]{user});
-            return "400";
-        }
-        
+
+    /**
+     * Returns the number of connections that were refused because the server was full
+     *
+     * @return Rejected session count
+     */
+    public long getRejectedSessionCount() {
+        return sessionExecutor == null ? 0 : sessionExecutor.getRejectedSessions();
     }
 
+    /**
+     * Returns the number of sessions the reaper closed because their client went silent
+     *
+     * @return Reaped session count
+     */
+    public long getReapedSessionCount() {
+        return sessionReaper == null ? 0 : sessionReaper.getReapedSessions();
+    }
 }
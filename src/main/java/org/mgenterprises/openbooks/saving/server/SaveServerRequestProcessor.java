@@ -0,0 +1,1236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSocket;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.PredicateCodec;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadReader;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+import org.mgenterprises.openbooks.saving.protocol.ProtocolException;
+import org.mgenterprises.openbooks.saving.server.access.ACTION;
+import org.mgenterprises.openbooks.saving.server.authentication.UserLoginAttempt;
+import org.mgenterprises.openbooks.saving.server.execution.SessionExecutor;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeJournal;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+import org.mgenterprises.openbooks.saving.server.locking.LockTable;
+import org.mgenterprises.openbooks.saving.server.security.CryptoUtils;
+import org.mgenterprises.openbooks.saving.server.pipeline.WritePipeline;
+import org.mgenterprises.openbooks.saving.server.sequence.IdAllocator;
+import org.mgenterprises.openbooks.saving.server.statistics.ServerStatistics;
+import org.mgenterprises.openbooks.saving.server.statistics.StatisticsReport;
+import org.mgenterprises.openbooks.saving.server.users.UserManager;
+
+/**
+ * Serves a single client connection for the SaveServer
+ *
+ * @author mgauto
+ */
+class SaveServerRequestProcessor implements Runnable {
+
+    /**
+     * Number of objects sent per frame when a result is streamed
+     */
+    static final int STREAM_CHUNK_SIZE = 256;
+    /**
+     * How long a stream waits for the client to make room for more chunks
+     * before it is abandoned
+     */
+    static final long STREAM_CREDIT_TIMEOUT_MILLIS = 60000;
+    /**
+     * Requests whose payload starts with the Saveable type they are for
+     */
+    private static final EnumSet<OpCode> TYPED_REQUESTS = EnumSet.of(OpCode.GET, OpCode.GET_ALL, OpCode.QUERY,
+            OpCode.REMOVE, OpCode.SIZE, OpCode.HIGHESTID, OpCode.LOCK, OpCode.RELEASE, OpCode.MULTIGET, OpCode.MULTIREMOVE,
+            OpCode.NEXTID, OpCode.EXISTS, OpCode.LOCKMANY, OpCode.RELEASEMANY, OpCode.PEEK);
+    /**
+     * Requests an idle client sends, they do not renew the lease on its
+     * locks. LEASE renews only when asked to.
+     */
+    private static final EnumSet<OpCode> IDLE_REQUESTS = EnumSet.of(OpCode.PING, OpCode.ACK, OpCode.DISCONNECT, OpCode.LEASE, OpCode.CREDIT);
+
+    private SSLSocket socket;
+    private SecureRandom secureRandom;
+    private CryptoUtils cryptoUtils = new CryptoUtils();
+    private Gson gson;
+    private UserManager userManager;
+    private SaveManager saveManager;
+    private ChangeJournal changeJournal;
+    private IdAllocator idAllocator;
+    /**
+     * Locks of all sessions, renewed on every request of the user
+     */
+    private LockTable lockTable;
+    /**
+     * Commits PUTs of all sessions in shared batches
+     */
+    private WritePipeline writePipeline;
+    private FrameCodec codec;
+    /**
+     * Smallest response payload that is compressed, or -1 to refuse compression
+     */
+    private int compressionThreshold;
+    /**
+     * Change subscriptions of this session by the request id that opened them
+     */
+    private HashMap<Integer, JournalSubscription> subscriptions = new HashMap<Integer, JournalSubscription>();
+    /**
+     * Results being streamed to this session by the request id that asked for them
+     */
+    private ConcurrentHashMap<Integer, ChunkWriter> streams = new ConcurrentHashMap<Integer, ChunkWriter>();
+    private ServerStatistics serverStatistics;
+    /**
+     * Saveable type of the request being handled, for the statistics
+     */
+    private String requestType;
+    /**
+     * Payload bytes of the request being handled, for the statistics
+     */
+    private int requestBytes;
+    /**
+     * Set if the request being handled started a stream, which records its
+     * own statistics once it ends
+     */
+    private boolean streamStarted;
+    private SessionReaper sessionReaper;
+    /**
+     * Runs the streams of this session, under the same cap as the sessions
+     */
+    private SessionExecutor sessionExecutor;
+    private int readTimeoutMillis;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile String user;
+    /**
+     * Locks taken by this session by type, released when the session ends.
+     * Guarded by itself since streams lock objects from their own threads.
+     */
+    private HashMap<String, HashSet<String>> sessionLocks = new HashMap<String, HashSet<String>>();
+
+    public SaveServerRequestProcessor(SSLSocket socket, SecureRandom secureRandom, Gson gson, UserManager userManager, SaveManager saveManager, ChangeJournal changeJournal, IdAllocator idAllocator, LockTable lockTable, WritePipeline writePipeline, int compressionThreshold, ServerStatistics serverStatistics, SessionReaper sessionReaper, SessionExecutor sessionExecutor, int readTimeoutMillis) {
+        this.socket = socket;
+        this.sessionReaper = sessionReaper;
+        this.sessionExecutor = sessionExecutor;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.serverStatistics = serverStatistics;
+        this.compressionThreshold = compressionThreshold;
+        this.secureRandom = secureRandom;
+        this.gson = gson;
+        this.userManager = userManager;
+        this.saveManager = saveManager;
+        this.changeJournal = changeJournal;
+        this.idAllocator = idAllocator;
+        this.lockTable = lockTable;
+        this.writePipeline = writePipeline;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout(readTimeoutMillis);
+            codec = new FrameCodec(socket.getInputStream(), socket.getOutputStream());
+            codec.negotiateAsServer();
+
+            Frame loginFrame = codec.readFrame();
+            if (loginFrame == null || loginFrame.getOpCode() != OpCode.LOGIN) {
+                throw new ProtocolException("Expected LOGIN as the first frame");
+            }
+            PayloadReader login = loginFrame.reader();
+            UserLoginAttempt userloginAttempt = login.readJson(gson, UserLoginAttempt.class);
+            String username = userloginAttempt.getUsername();
+            if(userManager.checkUserLoginAttempt(userloginAttempt)) {
+                this.user = username;
+                //Inform the client of sucessful login and whether we will compress
+                boolean compress = login.readBoolean() && compressionThreshold >= 0;
+                PayloadWriter loginResponse = new PayloadWriter();
+                loginResponse.writeBoolean(compress);
+                codec.writeFrame(Frame.response(OpCode.LOGIN, Frame.STATUS_OK, loginResponse));
+                if (compress) {
+                    codec.enableCompression(compressionThreshold);
+                }
+                //Start the command loop
+                while(true) {
+                    //Wait for command
+                    Frame request = codec.readFrame();
+                    //Check to see if the client hung up or sent the disconnect command
+                    if(request == null || request.getOpCode() == OpCode.DISCONNECT) break;
+                    lastActivity = System.currentTimeMillis();
+
+                    long start = System.nanoTime();
+                    requestType = TYPED_REQUESTS.contains(request.getOpCode()) ? peekType(request) : null;
+                    requestBytes = request.getPayloadLength();
+                    streamStarted = false;
+                    Frame response;
+                    try {
+                        response = process(username, request);
+                    } catch (ProtocolException ex) {
+                        Logger.getLogger("SaveServer").log(Level.INFO, "Malformed {0} request from {1}: {2}", new Object[]{request.getOpCode(), username, ex.getMessage()});
+                        response = Frame.response(request.getOpCode(), Frame.STATUS_BAD_REQUEST);
+                    } catch (JsonParseException ex) {
+                        Logger.getLogger("SaveServer").log(Level.INFO, "Malformed {0} request from {1}: {2}", new Object[]{request.getOpCode(), username, ex.getMessage()});
+                        response = Frame.response(request.getOpCode(), Frame.STATUS_BAD_REQUEST);
+                    }
+                    //Send the response tagged with the id of the request it answers
+                    if (response != null) {
+                        codec.writeFrame(response.withRequestId(request.getRequestId()));
+                    }
+                    if (!streamStarted) {
+                        long responseBytes = response == null ? 0 : response.getPayloadLength();
+                        boolean error = response != null && response.getStatus() >= Frame.STATUS_BAD_REQUEST;
+                        serverStatistics.record(request.getOpCode().name(), requestType, System.nanoTime() - start, requestBytes, responseBytes, error);
+                    }
+                } //Command Loop End
+                if (codec.hasCompression()) {
+                    Logger.getLogger("SaveServer").log(Level.INFO, "Compression for {0}: {1}", new Object[]{username, codec.getCompressionStatistics()});
+                }
+            } else {
+                //Inform the client of failed login
+                codec.writeFrame(Frame.response(OpCode.LOGIN, Frame.STATUS_DENIED));
+            }
+        } catch (SocketTimeoutException ex) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Session of {0} timed out after {1} ms", new Object[]{user, readTimeoutMillis});
+        } catch (IOException ex) {
+            Logger.getLogger("SaveServer").log(Level.SEVERE, null, ex);
+        } finally {
+            endSession();
+        }
+    }
+
+    /**
+     * Releases everything the session holds. Runs however the session ended,
+     * so locks taken by a client that vanished do not outlive it.
+     */
+    private void endSession() {
+        sessionReaper.unregister(this);
+        stopSubscriptions();
+        stopStreams();
+        if (user != null) {
+            int released = 0;
+            synchronized (sessionLocks) {
+                for (Map.Entry<String, HashSet<String>> locks : sessionLocks.entrySet()) {
+                    HashSet<String> ids = locks.getValue();
+                    released += saveManager.removeLocks(user, locks.getKey(), ids.toArray(new String[ids.size()]));
+                }
+                sessionLocks.clear();
+            }
+            if (released > 0) {
+                Logger.getLogger("SaveServer").log(Level.INFO, "Released {0} locks left by {1}", new Object[]{released, user});
+            }
+        }
+        close();
+    }
+
+    /**
+     * Closes the connection. The session thread notices and cleans up.
+     */
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger("SaveServer").log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * @return Time the last frame was received, in milliseconds
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return Authenticated user, or null before login
+     */
+    String getUser() {
+        return user;
+    }
+
+    /**
+     * Locks an object for the user and remembers that this session took the lock
+     *
+     * @return true if the user holds the lock afterwards
+     */
+    private boolean lock(String user, String type, String id) {
+        if (!saveManager.createLock(user, type, id)) {
+            return false;
+        }
+        synchronized (sessionLocks) {
+            HashSet<String> ids = sessionLocks.get(type);
+            if (ids == null) {
+                ids = new HashSet<String>();
+                sessionLocks.put(type, ids);
+            }
+            ids.add(id);
+        }
+        return true;
+    }
+
+    /**
+     * Locks several objects of one type for the user in one pass over the
+     * lock table and remembers the locks the user holds afterwards
+     *
+     * @return Whether the user holds each lock afterwards, aligned with ids
+     */
+    private boolean[] lockAll(String user, String type, String[] ids, boolean all) {
+        boolean[] held = lockTable.acquireAll(user, type, ids, all);
+        synchronized (sessionLocks) {
+            HashSet<String> sessionIds = null;
+            for (int i = 0; i < ids.length; i++) {
+                if (!held[i]) {
+                    continue;
+                }
+                if (sessionIds == null) {
+                    sessionIds = sessionLocks.get(type);
+                    if (sessionIds == null) {
+                        sessionIds = new HashSet<String>();
+                        sessionLocks.put(type, sessionIds);
+                    }
+                }
+                sessionIds.add(ids[i]);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * Releases several locks of the user
+     *
+     * @return Number of locks released
+     */
+    private int unlockAll(String user, String type, String[] ids) {
+        synchronized (sessionLocks) {
+            HashSet<String> sessionIds = sessionLocks.get(type);
+            if (sessionIds != null) {
+                sessionIds.removeAll(Arrays.asList(ids));
+            }
+        }
+        return saveManager.removeLocks(user, type, ids);
+    }
+
+    /**
+     * Releases a lock of the user
+     *
+     * @return true if the user held the lock
+     */
+    private boolean unlock(String user, String type, String id) {
+        synchronized (sessionLocks) {
+            HashSet<String> ids = sessionLocks.get(type);
+            if (ids != null) {
+                ids.remove(id);
+            }
+        }
+        return saveManager.removeLocks(user, type, new String[]{id}) > 0;
+    }
+
+    /**
+     * Handles one request
+     *
+     * @return The response, or null if the request is not answered directly
+     */
+    private Frame process(String user, Frame request) throws IOException {
+        PayloadReader payload = request.reader();
+        int requestId = request.getRequestId();
+        if (!IDLE_REQUESTS.contains(request.getOpCode())) {
+            lockTable.renew(user);
+        }
+        switch (request.getOpCode()) {
+            case GET:
+                return processGET(user, payload);
+            case GET_ALL:
+                return processGETALL(user, payload, requestId);
+            case QUERY:
+                return processQUERY(user, payload, requestId);
+            case PUT:
+                return processPUT(user, payload);
+            case REMOVE:
+                return processREMOVE(user, payload);
+            case SIZE:
+                return processSIZE(user, payload);
+            case HIGHESTID:
+                return processHIGHESTID(user, payload);
+            case LOCK:
+                return processLOCK(user, payload);
+            case RELEASE:
+                return processRELEASE(user, payload);
+            case READJOURNAL:
+                return processREADJOURNAL(user, payload);
+            case JOURNALSIZE:
+                return processJOURNALSIZE(user, payload);
+            case MULTIGET:
+                return processMULTIGET(user, payload);
+            case MULTIPUT:
+                return processMULTIPUT(user, payload);
+            case MULTIREMOVE:
+                return processMULTIREMOVE(user, payload);
+            case SUBSCRIBE:
+                return processSUBSCRIBE(user, payload, requestId);
+            case UNSUBSCRIBE:
+                return processUNSUBSCRIBE(user, payload);
+            case ACK:
+                return processACK(user, payload);
+            case STATS:
+                return processSTATS(user, payload);
+            case PING:
+                return Frame.response(OpCode.PING, Frame.STATUS_OK);
+            case NEXTID:
+                return processNEXTID(user, payload);
+            case EXISTS:
+                return processEXISTS(user, payload);
+            case LEASE:
+                return processLEASE(user, payload);
+            case LOCKMANY:
+                return processLOCKMANY(user, payload);
+            case RELEASEMANY:
+                return processRELEASEMANY(user, payload);
+            case RELEASEALL:
+                return processRELEASEALL(user, payload);
+            case PEEK:
+                return processPEEK(user, payload);
+            case CREDIT:
+                return processCREDIT(payload);
+            default:
+                return Frame.response(request.getOpCode(), Frame.STATUS_BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Get the requested object
+     * locks object if it is not locked and its type is pessimistic
+     * @param user
+     * @param request
+     * @return 
+     */
+    private Frame processGET(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String id = request.readString();
+        //Make sure user can access this
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            //Misses are answered from the id catalog without taking a lock
+            if (!saveManager.exists(type, id)) {
+                Logger.getLogger("SaveServer").log(Level.INFO, "GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
+                return Frame.response(OpCode.GET, Frame.STATUS_NOT_FOUND);
+            }
+            boolean optimistic = changeJournal.isOptimistic(type);
+            long stamp = changeJournal.getVersionStamp();
+            //Get lock status
+            String lockHolder = saveManager.getLockHolder(type, id);
+            //If it isn't locked, lock it unless another user wins it first
+            if (lockHolder.equals("") && !optimistic) {
+                lockHolder = lock(user, type, id) ? user : saveManager.getLockHolder(type, id);
+            }
+            Saveable saveable = saveManager.getSaveable(type, id);
+
+            //Check if the GET was successful
+            if (saveable != null) {
+                //If it is locked by another user indicate that
+                saveable.setLocked(isLockedFor(user, lockHolder, optimistic));
+                saveable.setVersion(getVersion(type, id, stamp));
+                Logger.getLogger("SaveServer").log(Level.INFO, "GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
+                PayloadWriter response = new PayloadWriter();
+                response.writeJson(gson, saveable, Saveable.class);
+                response.writeBoolean(lockHolder.equals(user));
+                return Frame.response(OpCode.GET, Frame.STATUS_OK, response);
+            } else {
+                Logger.getLogger("SaveServer").log(Level.INFO, "GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
+                if (!optimistic) {
+                    unlock(user, type, id);
+                }
+                return Frame.response(OpCode.GET, Frame.STATUS_NOT_FOUND);
+            }
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied GET from {0} for t: {1} i: {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.GET, Frame.STATUS_DENIED);
+        }
+    }
+
+    /**
+     * Get all objects of a type
+     * Does not lock objects
+     */
+    private Frame processGETALL(String user, PayloadReader request, int requestId) throws IOException {
+        final String type = request.readString();
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "GET from {0} for t: {1} i: ALL", new Object[]{user, type});
+            final long stamp = changeJournal.getVersionStamp();
+            return new ChunkWriter(OpCode.GET_ALL, requestId) {
+                @Override
+                void produce() {
+                    saveManager.streamAllSaveables(type, STREAM_CHUNK_SIZE, this);
+                }
+
+                @Override
+                public boolean visit(Saveable[] chunk) {
+                    applyVersions(type, chunk, stamp);
+                    return super.visit(chunk);
+                }
+            }.start();
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied GET from {0} for t: {1} i: ALL", new Object[]{user, type});
+            return Frame.response(OpCode.GET_ALL, Frame.STATUS_DENIED);
+        }
+    }
+
+    /**
+     * Get several objects of one type with a single storage query
+     * Locks every object that is not locked yet, like GET
+     */
+    private Frame processMULTIGET(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String[] ids = request.readStringArray();
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            boolean optimistic = changeJournal.isOptimistic(type);
+            long stamp = changeJournal.getVersionStamp();
+            Saveable[] saveables = saveManager.getSaveables(type, ids);
+            boolean[] held;
+            if (optimistic) {
+                held = new boolean[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    if (saveables[i] != null) {
+                        String lockHolder = saveManager.getLockHolder(type, ids[i]);
+                        saveables[i].setLocked(isLockedFor(user, lockHolder, true));
+                        held[i] = lockHolder.equals(user);
+                    }
+                }
+            } else {
+                held = applyLocks(user, type, saveables);
+            }
+            applyVersions(type, saveables, stamp);
+            Logger.getLogger("SaveServer").log(Level.INFO, "MULTIGET from {0} for t: {1} count: {2}", new Object[]{user, type, ids.length});
+            PayloadWriter response = new PayloadWriter();
+            response.writeJson(gson, saveables, Saveable[].class);
+            response.writeBooleanArray(held);
+            return Frame.response(OpCode.MULTIGET, Frame.STATUS_OK, response);
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied MULTIGET from {0} for t: {1}", new Object[]{user, type});
+            return Frame.response(OpCode.MULTIGET, Frame.STATUS_DENIED);
+        }
+    }
+
+    /**
+     * Get objects with the holders of their locks, without locking anything
+     */
+    private Frame processPEEK(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String[] ids = request.readStringArray();
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            long stamp = changeJournal.getVersionStamp();
+            Saveable[] saveables = saveManager.getSaveables(type, ids);
+            String[] holders = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                if (saveables[i] == null) {
+                    holders[i] = "";
+                    continue;
+                }
+                holders[i] = saveManager.getLockHolder(type, ids[i]);
+                saveables[i].setLocked(isLockedFor(user, holders[i], true));
+            }
+            applyVersions(type, saveables, stamp);
+            Logger.getLogger("SaveServer").log(Level.INFO, "PEEK from {0} for t: {1} count: {2}", new Object[]{user, type, ids.length});
+            PayloadWriter response = new PayloadWriter();
+            response.writeStringArray(holders);
+            response.writeJson(gson, saveables, Saveable[].class);
+            return Frame.response(OpCode.PEEK, Frame.STATUS_OK, response);
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied PEEK from {0} for t: {1}", new Object[]{user, type});
+            return Frame.response(OpCode.PEEK, Frame.STATUS_DENIED);
+        }
+    }
+
+    private Frame processQUERY(final String user, PayloadReader request, int requestId) throws IOException {
+        final String type = request.readString();
+        final Predicate predicate = PredicateCodec.read(request);
+        //Optimistic types are written without locks, so reading them takes none
+        final boolean tryLockAll = request.readBoolean() && !changeJournal.isOptimistic(type);
+        
+        //Make sure user can access this
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "QUERY from {0} for t: {1} where: {2}", new Object[]{user, type, predicate});
+            final long stamp = changeJournal.getVersionStamp();
+            return new ChunkWriter(OpCode.QUERY, requestId) {
+                @Override
+                void produce() {
+                    saveManager.streamWhere(type, predicate, STREAM_CHUNK_SIZE, this);
+                }
+
+                @Override
+                public boolean visit(Saveable[] chunk) {
+                    applyQueryLocks(user, type, chunk, tryLockAll);
+                    applyVersions(type, chunk, stamp);
+                    return super.visit(chunk);
+                }
+            }.start();
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied QUERY from {0} for t: {1} where: {2}", new Object[]{user, type, predicate});
+            return Frame.response(OpCode.QUERY, Frame.STATUS_DENIED);
+        }
+    }
+
+    private void applyQueryLocks(String user, String type, Saveable[] result, boolean tryLockAll) {
+        if (tryLockAll) {
+            applyLocks(user, type, result);
+            return;
+        }
+        for(Saveable saveable : result) {
+            if(saveManager.isLockedForUser(user, type, saveable.getUniqueId())) {
+                saveable.setLocked(true);
+            }
+        }
+    }
+
+    /**
+     * Locks every object that is free with one pass over the lock table and
+     * marks the objects the user could not lock
+     *
+     * @param saveables Objects to lock, may contain nulls
+     * @return Whether the user holds the lock of each object afterwards,
+     * aligned with saveables
+     */
+    private boolean[] applyLocks(String user, String type, Saveable[] saveables) {
+        ArrayList<String> ids = new ArrayList<String>(saveables.length);
+        for (Saveable saveable : saveables) {
+            if (saveable != null) {
+                ids.add(saveable.getUniqueId());
+            }
+        }
+        boolean[] held = lockAll(user, type, ids.toArray(new String[ids.size()]), false);
+        boolean[] aligned = new boolean[saveables.length];
+        for (int i = 0, j = 0; i < saveables.length; i++) {
+            if (saveables[i] != null) {
+                aligned[i] = held[j++];
+                saveables[i].setLocked(!aligned[i]);
+            }
+        }
+        return aligned;
+    }
+
+    /**
+     * @param lockHolder Current holder of the lock, "" if nobody holds it
+     * @param optimistic true if the object is of an optimistic type, which
+     * can be written while nobody holds its lock
+     * @return true if the user may not write the object
+     */
+    private static boolean isLockedFor(String user, String lockHolder, boolean optimistic) {
+        if (optimistic && lockHolder.equals("")) {
+            return false;
+        }
+        return !lockHolder.equals(user);
+    }
+
+    /**
+     * Returns the version to hand out with an object that was read after the
+     * stamp was taken. If the object changed after the stamp the read may
+     * have seen the content from before that change, so it gets -1, which no
+     * PUT can match.
+     */
+    private long getVersion(String type, String id, long stamp) {
+        long version = changeJournal.getVersion(type, id);
+        return version - 1 > stamp ? -1 : version;
+    }
+
+    private void applyVersions(String type, Saveable[] saveables, long stamp) {
+        if (!changeJournal.isOptimistic(type)) {
+            return;
+        }
+        for (Saveable saveable : saveables) {
+            if (saveable != null) {
+                saveable.setVersion(getVersion(type, saveable.getUniqueId(), stamp));
+            }
+        }
+    }
+
+    private Frame processSIZE(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "SIZE from {0} for t: {1}", new Object[]{user, type});
+            return longResponse(OpCode.SIZE, saveManager.getSaveableCount(type));
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied SIZE from {0} for t: {1}", new Object[]{user, type});
+            return Frame.response(OpCode.SIZE, Frame.STATUS_DENIED);
+        }
+    }
+
+    private Frame processHIGHESTID(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "HIGHESTID from {0} for t: {1}", new Object[]{user, type});
+            return longResponse(OpCode.HIGHESTID, saveManager.getHighestUniqueId(type));
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied HIGHESTID from {0} for t: {1}", new Object[]{user, type});
+            return Frame.response(OpCode.HIGHESTID, Frame.STATUS_DENIED);
+        }
+    }
+    
+    private Frame processEXISTS(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String id = request.readString();
+        if (userManager.userHasAccessRight(user, type, ACTION.GET)) {
+            Logger.getLogger("SaveServer").log(Level.FINE, "EXISTS from {0} for t: {1} i: {2}", new Object[]{user, type, id});
+            if (!saveManager.exists(type, id)) {
+                return Frame.response(OpCode.EXISTS, Frame.STATUS_NOT_FOUND);
+            }
+            String lockHolder = saveManager.getLockHolder(type, id);
+            if (!lockHolder.equals("") && !lockHolder.equals(user)) {
+                return Frame.response(OpCode.EXISTS, Frame.STATUS_LOCKED);
+            }
+            return Frame.response(OpCode.EXISTS, Frame.STATUS_OK);
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied EXISTS from {0} for t: {1} i: {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.EXISTS, Frame.STATUS_DENIED);
+        }
+    }
+    
+    private Frame processNEXTID(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        int count = request.readInt();
+        if (count < 1 || count > IdAllocator.MAX_BLOCK_SIZE) {
+            return Frame.response(OpCode.NEXTID, Frame.STATUS_BAD_REQUEST);
+        }
+        //Ids are only useful for creating objects
+        if (userManager.userHasAccessRight(user, type, ACTION.PUT)) {
+            try {
+                long first = idAllocator.allocate(type, count);
+                Logger.getLogger("SaveServer").log(Level.FINE, "NEXTID from {0} for t: {1} gave {2} ids from {3}", new Object[]{user, type, count, first});
+                return longResponse(OpCode.NEXTID, first);
+            } catch (IOException ex) {
+                Logger.getLogger("SaveServer").log(Level.SEVERE, null, ex);
+                return Frame.response(OpCode.NEXTID, Frame.STATUS_ERROR);
+            }
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied NEXTID from {0} for t: {1}", new Object[]{user, type});
+            return Frame.response(OpCode.NEXTID, Frame.STATUS_DENIED);
+        }
+    }
+    
+    private Frame processPUT(String user, PayloadReader request) throws ProtocolException {
+        Saveable saveable = request.readJson(gson, Saveable.class);
+        String type = saveable.getSaveableModuleName();
+        requestType = type;
+        if (userManager.userHasAccessRight(user, type, ACTION.PUT)) {
+            long changeID;
+            try {
+                //The lock is checked in the same transaction that stores the object
+                changeID = writePipeline.write(user, saveable);
+            } catch (IOException ex) {
+                Logger.getLogger("SaveServer").log(Level.SEVERE, null, ex);
+                return Frame.response(OpCode.PUT, Frame.STATUS_ERROR);
+            }
+            if (changeID >= 0) {
+                Logger.getLogger("SaveServer").log(Level.INFO, "PUT from {0}", new Object[]{user});
+                return longResponse(OpCode.PUT, changeID);
+            } else if (changeID == ChangeJournal.CONFLICT) {
+                Logger.getLogger("SaveServer").log(Level.INFO, "Denied PUT from {0}-Conflict", new Object[]{user});
+                return conflictResponse(user, type, saveable.getUniqueId());
+            } else {
+                Logger.getLogger("SaveServer").log(Level.INFO, "Denied PUT from {0}-Locked", new Object[]{user});
+                return Frame.response(OpCode.PUT, Frame.STATUS_LOCKED);
+            }
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied PUT from {0}", new Object[]{user});
+            return Frame.response(OpCode.PUT, Frame.STATUS_DENIED);
+        }
+    }
+
+    /**
+     * Answers a PUT whose version was out of date with the current version
+     * and the current object, which is null if it was removed, so the client
+     * can merge its edit
+     */
+    private Frame conflictResponse(String user, String type, String id) {
+        long stamp = changeJournal.getVersionStamp();
+        Saveable current = saveManager.getSaveable(type, id);
+        long version = getVersion(type, id, stamp);
+        if (current != null) {
+            current.setLocked(isLockedFor(user, saveManager.getLockHolder(type, id), true));
+            current.setVersion(version);
+        }
+        PayloadWriter response = new PayloadWriter();
+        response.writeLong(version);
+        response.writeBoolean(current != null);
+        if (current != null) {
+            response.writeJson(gson, current, Saveable.class);
+        }
+        return Frame.response(OpCode.PUT, Frame.STATUS_CONFLICT, response);
+    }
+
+    /**
+     * Persist a batch of objects and journal them in one storage transaction
+     */
+    private Frame processMULTIPUT(String user, PayloadReader request) throws ProtocolException {
+        Saveable[] saveables = request.readJson(gson, Saveable[].class);
+        if (saveables.length > 0 && saveables[0] != null) {
+            requestType = saveables[0].getSaveableModuleName();
+        }
+        long[] changeIds = new long[saveables.length];
+        Arrays.fill(changeIds, -1);
+        //Only pass on the objects this user may write
+        ArrayList<Integer> allowed = new ArrayList<Integer>(saveables.length);
+        for (int i = 0; i < saveables.length; i++) {
+            Saveable saveable = saveables[i];
+            if (saveable != null && userManager.userHasAccessRight(user, saveable.getSaveableModuleName(), ACTION.PUT)) {
+                allowed.add(i);
+            }
+        }
+        Saveable[] batch = new Saveable[allowed.size()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = saveables[allowed.get(i)];
+        }
+        int recorded = 0;
+        try {
+            long[] batchIds = writePipeline.writeAll(user, batch);
+            for (int i = 0; i < batchIds.length; i++) {
+                changeIds[allowed.get(i)] = batchIds[i];
+                if (batchIds[i] >= 0) {
+                    recorded++;
+                }
+            }
+        } catch (IOException ex) {
+            //Leave every id at -1, nothing was persisted
+            Logger.getLogger("SaveServer").log(Level.SEVERE, null, ex);
+        }
+        Logger.getLogger("SaveServer").log(Level.INFO, "MULTIPUT from {0}: {1} of {2} persisted", new Object[]{user, recorded, saveables.length});
+        PayloadWriter response = new PayloadWriter(4 + changeIds.length * 8);
+        response.writeLongArray(changeIds);
+        return Frame.response(OpCode.MULTIPUT, Frame.STATUS_OK, response);
+    }
+
+    private Frame processLEASE(String user, PayloadReader request) throws ProtocolException {
+        if (request.readBoolean()) {
+            lockTable.renew(user);
+        }
+        Logger.getLogger("SaveServer").log(Level.FINE, "LEASE from {0}", user);
+        return longResponse(OpCode.LEASE, lockTable.getLeaseRemaining(user));
+    }
+
+    private Frame processREMOVE(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String id = request.readString();
+        if (userManager.userHasAccessRight(user, type, ACTION.REMOVE)) {
+            if (saveManager.getLockHolder(type, id).equals(user)) {
+                //Removed and journaled in one transaction, only the holder can release the lock meanwhile
+                if (changeJournal.recordRemovals(user, type, new String[]{id}) == null) {
+                    return Frame.response(OpCode.REMOVE, Frame.STATUS_ERROR);
+                }
+                Logger.getLogger("SaveServer").log(Level.INFO, "REMOVE from {0} for {1} {2}", new Object[]{user, type, id});
+                return Frame.response(OpCode.REMOVE, Frame.STATUS_OK);
+            } else {
+                Logger.getLogger("SaveServer").log(Level.INFO, "Denied REMOVE from {0} for {1} {2}", new Object[]{user, type, id});
+                return Frame.response(OpCode.REMOVE, Frame.STATUS_LOCKED);
+            }
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied REMOVE from {0} for {1} {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.REMOVE, Frame.STATUS_DENIED);
+        }
+    }
+
+    private Frame processMULTIREMOVE(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String[] ids = request.readStringArray();
+        if (userManager.userHasAccessRight(user, type, ACTION.REMOVE)) {
+            long[] changeIds = changeJournal.recordRemovals(user, type, ids);
+            boolean[] removed = new boolean[ids.length];
+            for (int i = 0; changeIds != null && i < ids.length; i++) {
+                removed[i] = changeIds[i] >= 0;
+            }
+            Logger.getLogger("SaveServer").log(Level.INFO, "MULTIREMOVE from {0} for t: {1} count: {2}", new Object[]{user, type, ids.length});
+            PayloadWriter response = new PayloadWriter(4 + removed.length);
+            response.writeBooleanArray(removed);
+            return Frame.response(OpCode.MULTIREMOVE, Frame.STATUS_OK, response);
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied MULTIREMOVE from {0} for t: {1}", new Object[]{user, type});
+            return Frame.response(OpCode.MULTIREMOVE, Frame.STATUS_DENIED);
+        }
+    }
+
+    private Frame processRELEASE(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String id = request.readString();
+        if (unlock(user, type, id)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "RELEASE from {0} for {1} {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.RELEASE, Frame.STATUS_OK);
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied RELEASE from {0} for {1} {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.RELEASE, Frame.STATUS_DENIED);
+        }
+    }
+
+    private Frame processLOCKMANY(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String[] ids = request.readStringArray();
+        boolean all = request.readBoolean();
+        boolean[] held = lockAll(user, type, ids, all);
+        Logger.getLogger("SaveServer").log(Level.INFO, "LOCKMANY from {0} for {1} count: {2}", new Object[]{user, type, ids.length});
+        PayloadWriter response = new PayloadWriter(4 + held.length);
+        response.writeBooleanArray(held);
+        return Frame.response(OpCode.LOCKMANY, Frame.STATUS_OK, response);
+    }
+
+    private Frame processRELEASEMANY(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String[] ids = request.readStringArray();
+        int released = unlockAll(user, type, ids);
+        Logger.getLogger("SaveServer").log(Level.INFO, "RELEASEMANY from {0} for {1}: {2} of {3} released", new Object[]{user, type, released, ids.length});
+        return longResponse(OpCode.RELEASEMANY, released);
+    }
+
+    /**
+     * Releases the locks taken over this session, of one type or of every type
+     */
+    private Frame processRELEASEALL(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        int released = 0;
+        synchronized (sessionLocks) {
+            String[] types = type.isEmpty() ? sessionLocks.keySet().toArray(new String[sessionLocks.size()]) : new String[]{type};
+            for (String lockType : types) {
+                HashSet<String> ids = sessionLocks.remove(lockType);
+                if (ids != null) {
+                    released += saveManager.removeLocks(user, lockType, ids.toArray(new String[ids.size()]));
+                }
+            }
+        }
+        Logger.getLogger("SaveServer").log(Level.INFO, "RELEASEALL from {0} for {1}: {2} released", new Object[]{user, type, released});
+        return longResponse(OpCode.RELEASEALL, released);
+    }
+
+    private Frame processLOCK(String user, PayloadReader request) throws ProtocolException {
+        String type = request.readString();
+        String id = request.readString();
+
+        String lockHolder = saveManager.getLockHolder(type, id);
+        if (lockHolder.equals("") && lock(user, type, id)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "LOCK from {0} for {1} {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.LOCK, Frame.STATUS_OK);
+        } else if (lockHolder.equals(user)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "LOCK CHECK from {0} for {1} {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.LOCK, Frame.STATUS_ALREADY_HELD);
+        } else {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied LOCK from {0} for {1} {2}", new Object[]{user, type, id});
+            return Frame.response(OpCode.LOCK, Frame.STATUS_DENIED);
+        }
+    }
+    
+    private Frame processREADJOURNAL(String user, PayloadReader request) throws ProtocolException {
+        long startId = request.readLong();
+        ChangeRecord[] changes = changeJournal.getChangesSince(startId);
+        PayloadWriter response = new PayloadWriter();
+        response.writeJson(gson, changes, ChangeRecord[].class);
+        return Frame.response(OpCode.READJOURNAL, Frame.STATUS_OK, response);
+    }
+
+    private Frame processJOURNALSIZE(String user, PayloadReader request) {
+        return longResponse(OpCode.JOURNALSIZE, changeJournal.getLatestChangeId());
+    }
+
+    /**
+     * Starts pushing changes to the requested types. The subscription answers
+     * on its own thread, starting with an empty batch once it is active.
+     */
+    private Frame processSUBSCRIBE(String user, PayloadReader request, int requestId) throws ProtocolException {
+        String[] types = request.readStringArray();
+        long resumeFromId = request.readLong();
+        if (subscriptions.containsKey(requestId)) {
+            return Frame.response(OpCode.SUBSCRIBE, Frame.STATUS_BAD_REQUEST);
+        }
+        for (String type : types) {
+            if (!userManager.userHasAccessRight(user, type, ACTION.GET)) {
+                return Frame.response(OpCode.SUBSCRIBE, Frame.STATUS_DENIED);
+            }
+        }
+        JournalSubscription subscription = new JournalSubscription(user, requestId, new HashSet<String>(Arrays.asList(types)), resumeFromId, codec, changeJournal);
+        subscriptions.put(requestId, subscription);
+        subscription.start();
+        Logger.getLogger("SaveServer").log(Level.INFO, "SUBSCRIBE from {0} for t: {1} after {2}", new Object[]{user, Arrays.toString(types), resumeFromId});
+        return null;
+    }
+
+    private Frame processUNSUBSCRIBE(String user, PayloadReader request) throws ProtocolException {
+        JournalSubscription subscription = subscriptions.remove(request.readInt());
+        if (subscription == null) {
+            return Frame.response(OpCode.UNSUBSCRIBE, Frame.STATUS_NOT_FOUND);
+        }
+        subscription.stop();
+        return Frame.response(OpCode.UNSUBSCRIBE, Frame.STATUS_OK);
+    }
+
+    private Frame processACK(String user, PayloadReader request) throws ProtocolException {
+        JournalSubscription subscription = subscriptions.get(request.readInt());
+        long changeId = request.readLong();
+        if (subscription != null) {
+            subscription.ack(changeId);
+        }
+        return null;
+    }
+
+    /**
+     * Makes room for more chunks of a stream, or ends it early
+     */
+    private Frame processCREDIT(PayloadReader request) throws ProtocolException {
+        ChunkWriter stream = streams.get(request.readInt());
+        int frames = request.readInt();
+        //The stream may already have ended
+        if (stream != null) {
+            stream.grant(frames);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the server statistics, only to users holding the
+     * {@link ServerStatistics#ACCESS_RIGHT} right
+     */
+    private Frame processSTATS(String user, PayloadReader request) {
+        if (!userManager.userHasAccessRight(user, ServerStatistics.ACCESS_RIGHT, ACTION.GET)) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Denied STATS from {0}", new Object[]{user});
+            return Frame.response(OpCode.STATS, Frame.STATUS_DENIED);
+        }
+        PayloadWriter response = new PayloadWriter();
+        response.writeJson(gson, serverStatistics.getReport(), StatisticsReport.class);
+        return Frame.response(OpCode.STATS, Frame.STATUS_OK, response);
+    }
+
+    private static String peekType(Frame request) {
+        try {
+            return request.reader().readString();
+        } catch (ProtocolException ex) {
+            return null;
+        }
+    }
+
+    private void stopSubscriptions() {
+        for (JournalSubscription subscription : subscriptions.values()) {
+            subscription.stop();
+        }
+        subscriptions.clear();
+    }
+
+    private void stopStreams() {
+        for (ChunkWriter stream : streams.values()) {
+            stream.stop();
+        }
+        streams.clear();
+    }
+
+    /**
+     * Streams a result to the client from a thread of the SessionExecutor,
+     * so the session keeps serving requests while the client works through
+     * it. A stream counts against the connection cap like a session and is
+     * refused when the executor is full. Every chunk
+     * is written as a partial frame, so a streamed result is never held in
+     * memory as a whole. Only {@link FrameCodec#STREAM_WINDOW} chunks are
+     * sent ahead of the credit the client has granted, like the window of a
+     * {@link JournalSubscription}.
+     */
+    private abstract class ChunkWriter implements SaveableVisitor, Runnable {
+        private final OpCode opCode;
+        private final int requestId;
+        private final String type = requestType;
+        private final int requestLength = requestBytes;
+        private long count = 0;
+        private long streamedBytes = 0;
+        private int credit = FrameCodec.STREAM_WINDOW;
+        private boolean cancelled = false;
+        private boolean abandoned = false;
+        private IOException failure;
+        private boolean stopped = false;
+        /**
+         * Thread running the stream, null while it waits to run
+         */
+        private Thread thread;
+
+        ChunkWriter(OpCode opCode, int requestId) {
+            this.opCode = opCode;
+            this.requestId = requestId;
+        }
+
+        /**
+         * Hands the result to {@link #visit(Saveable[])} a chunk at a time
+         */
+        abstract void produce();
+
+        /**
+         * Starts streaming, the final frame is sent by the stream itself
+         *
+         * @return null, as the request is not answered directly, or an
+         * error if the SessionExecutor is full
+         */
+        Frame start() {
+            streams.put(requestId, this);
+            if (!sessionExecutor.submitStream(this)) {
+                streams.remove(requestId);
+                Logger.getLogger("SaveServer").log(Level.WARNING, "Refused {0} stream of {1}: {2} active, {3} queued", new Object[]{opCode, user, sessionExecutor.getActiveSessions(), sessionExecutor.getQueuedSessions()});
+                return Frame.response(opCode, Frame.STATUS_ERROR);
+            }
+            streamStarted = true;
+            return null;
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Called when the client has room for more chunks
+         *
+         * @param frames Number of further chunks, 0 to end the stream early
+         */
+        synchronized void grant(int frames) {
+            if (frames <= 0) {
+                cancelled = true;
+            } else {
+                credit += frames;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (stopped) {
+                    streams.remove(requestId);
+                    return;
+                }
+                thread = Thread.currentThread();
+            }
+            try {
+                stream();
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                }
+                //A stop that came too late must not interrupt the next task of the thread
+                Thread.interrupted();
+            }
+        }
+
+        private void stream() {
+            long start = System.nanoTime();
+            Frame trailer = null;
+            try {
+                produce();
+                trailer = finish();
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger("SaveServer").log(Level.INFO, "Rejected {0} from {1} for t: {2}: {3}", new Object[]{opCode, user, type, ex.getMessage()});
+                trailer = Frame.response(opCode, Frame.STATUS_BAD_REQUEST);
+            } catch (IOException ex) {
+                Logger.getLogger("SaveServer").log(Level.FINE, "Stream for " + user + " ended", ex);
+            } finally {
+                streams.remove(requestId);
+            }
+            if (trailer != null) {
+                try {
+                    codec.writeFrame(trailer.withRequestId(requestId));
+                } catch (IOException ex) {
+                    Logger.getLogger("SaveServer").log(Level.FINE, "Stream for " + user + " ended", ex);
+                }
+            }
+            long responseBytes = streamedBytes + (trailer == null ? 0 : trailer.getPayloadLength());
+            boolean error = trailer == null || trailer.getStatus() >= Frame.STATUS_BAD_REQUEST;
+            serverStatistics.record(opCode.name(), type, System.nanoTime() - start, requestLength, responseBytes, error);
+        }
+
+        @Override
+        public boolean visit(Saveable[] chunk) {
+            PayloadWriter payload = new PayloadWriter();
+            payload.writeJson(gson, chunk, Saveable[].class);
+            try {
+                if (!awaitCredit()) {
+                    return false;
+                }
+                codec.writeFrame(Frame.response(opCode, Frame.STATUS_PARTIAL, payload).withRequestId(requestId));
+            } catch (InterruptedException ex) {
+                failure = new InterruptedIOException("Session ended");
+                return false;
+            } catch (IOException ex) {
+                failure = ex;
+                return false;
+            }
+            count += chunk.length;
+            streamedBytes += payload.size();
+            return true;
+        }
+
+        /**
+         * Waits until the client has room for another chunk and takes it
+         *
+         * @return false if the stream should end early
+         */
+        private synchronized boolean awaitCredit() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + STREAM_CREDIT_TIMEOUT_MILLIS;
+            while (credit == 0 && !cancelled) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Logger.getLogger("SaveServer").log(Level.INFO, "Abandoned {0} stream of {1}, the client stopped reading", new Object[]{opCode, user});
+                    abandoned = true;
+                    return false;
+                }
+                wait(remaining);
+            }
+            if (cancelled) {
+                return false;
+            }
+            credit--;
+            return true;
+        }
+
+        /**
+         * @return The final frame of the stream, holding the number of objects sent
+         * @throws IOException Thrown if a chunk could not be written
+         */
+        private synchronized Frame finish() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (abandoned) {
+                return Frame.response(opCode, Frame.STATUS_ERROR);
+            }
+            return longResponse(opCode, count);
+        }
+    }
+
+    private static Frame longResponse(OpCode opCode, long value) {
+        PayloadWriter response = new PayloadWriter(8);
+        response.writeLong(value);
+        return Frame.response(opCode, Frame.STATUS_OK, response);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically closes sessions that have not received a frame for too long.
+ * Read timeouts already end sessions waiting for a request, the reaper also
+ * catches sessions stuck writing to a client that has gone away. Closing the
+ * socket makes the session thread fail and clean up, which includes
+ * releasing its locks.
+ *
+ * @author Manuel Gauto
+ */
+class SessionReaper implements Runnable {
+    private final long idleTimeoutMillis;
+    private final Set<SaveServerRequestProcessor> sessions = Collections.newSetFromMap(new ConcurrentHashMap<SaveServerRequestProcessor, Boolean>());
+    private final AtomicLong reapedSessions = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    SessionReaper(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    synchronized void start(long intervalMillis) {
+        if (scheduler != null || idleTimeoutMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SaveServer-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    void register(SaveServerRequestProcessor session) {
+        sessions.add(session);
+    }
+
+    void unregister(SaveServerRequestProcessor session) {
+        sessions.remove(session);
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        for (SaveServerRequestProcessor session : sessions) {
+            if (now - session.getLastActivity() > idleTimeoutMillis) {
+                Logger.getLogger("SaveServer").log(Level.INFO, "Reaping session of {0}, idle for {1} ms", new Object[]{session.getUser(), now - session.getLastActivity()});
+                sessions.remove(session);
+                session.close();
+                reapedSessions.incrementAndGet();
+            }
+        }
+    }
+
+    int getSessionCount() {
+        return sessions.size();
+    }
+
+    long getReapedSessions() {
+        return reapedSessions.get();
+    }
+}
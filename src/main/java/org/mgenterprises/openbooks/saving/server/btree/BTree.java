@@ -0,0 +1,824 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded B+tree of byte keys and values in a single memory-mapped file.
+ *
+ * Pages are copied on write: a change writes new copies of the pages from
+ * the leaf up to the root and the commit then switches to the new root by
+ * writing one of the two meta pages. A crash before that leaves the other
+ * meta page and the tree it points to untouched, so opening the file always
+ * finds the last complete commit. Pages a commit no longer uses are handed
+ * out again once readers that may still walk the old tree have finished.
+ *
+ * Keys are ordered as unsigned bytes and may be scanned by range. Values
+ * that do not fit into a leaf are kept in chains of overflow pages. Pages
+ * are not merged when they empty out, except that empty pages are dropped.
+ *
+ * One writer at a time, any number of readers, readers never wait for the
+ * writer's disk syncs.
+ *
+ * @author Manuel Gauto
+ */
+public class BTree implements Closeable {
+    private static final byte META = 4;
+    private static final int MAGIC = 0x4F424254;
+    private static final int FORMAT_VERSION = 1;
+    private static final int META_BYTES = 49;
+    private static final int MIN_PAGE_SIZE = 512;
+    private static final int MAX_PAGE_SIZE = 32768;
+    private static final int OVERFLOW_HEADER = 13;
+
+    private final File path;
+    private final PageFile pageFile;
+    private final int pageSize;
+    private final int maxKeyLength;
+    private final int maxInlineValue;
+    private final boolean syncOnCommit;
+    /**
+     * Serializes writers
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * Held shared by every read. The writer takes it exclusively for a moment
+     * after a commit to know that nobody walks the old tree any more.
+     */
+    private final ReentrantReadWriteLock readers = new ReentrantReadWriteLock();
+    private volatile long root;
+    private volatile long entryCount;
+    private volatile boolean closed;
+    /**
+     * Set when a commit failed half way, the file has to be opened again
+     */
+    private volatile boolean failed;
+    private long transactionId;
+    private long pageCount;
+    private final ArrayDeque<Long> freePages = new ArrayDeque<Long>();
+    /**
+     * Pages allocated by the running transaction, they may be changed in place
+     */
+    private final HashSet<Long> freshPages = new HashSet<Long>();
+    /**
+     * Pages of the committed tree that the running transaction replaced
+     */
+    private final ArrayList<Long> releasedPages = new ArrayList<Long>();
+    private long workingRoot;
+    private long workingCount;
+    private final TreeWriter writer = new TreeWriter();
+
+    public BTree(File path) throws IOException {
+        this(path, new BTreeConfiguration());
+    }
+
+    public BTree(File path, BTreeConfiguration configuration) throws IOException {
+        this.path = path;
+        this.syncOnCommit = configuration.isSyncOnCommit();
+        boolean created = !path.exists() || path.length() == 0;
+        this.pageSize = created ? checkPageSize(configuration.getPageSize()) : readPageSize(path);
+        this.maxKeyLength = pageSize / 8;
+        this.maxInlineValue = pageSize / 4;
+        this.pageFile = new PageFile(path, pageSize, configuration.getMapChunkBytes());
+        if (created) {
+            pageCount = 2;
+            pageFile.ensureCapacity(pageCount);
+            writeMeta(1, 0, pageCount, 0);
+            pageFile.force();
+            transactionId = 1;
+        } else {
+            Meta meta = newest(readMeta(0), readMeta(1));
+            if (meta == null) {
+                pageFile.close();
+                throw new IOException(path + " has no intact meta page");
+            }
+            transactionId = meta.transactionId;
+            root = meta.root;
+            entryCount = meta.entryCount;
+            pageCount = meta.pageCount;
+            pageFile.ensureCapacity(pageCount);
+            findFreePages();
+        }
+        workingRoot = root;
+        workingCount = entryCount;
+    }
+
+    /**
+     * A key and its value
+     */
+    public static final class Entry {
+        private final byte[] key;
+        private final byte[] value;
+
+        Entry(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        /**
+         * @return The value, or null if the scan was for keys only
+         */
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    public byte[] get(byte[] key) throws IOException {
+        readers.readLock().lock();
+        try {
+            checkOpen();
+            return find(root, key);
+        } finally {
+            readers.readLock().unlock();
+        }
+    }
+
+    public boolean contains(byte[] key) throws IOException {
+        readers.readLock().lock();
+        try {
+            checkOpen();
+            return locate(root, key) != null;
+        } finally {
+            readers.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns entries in key order
+     *
+     * @param from Smallest key, inclusive
+     * @param to Key to stop before, or null to scan to the end
+     * @param limit Maximum number of entries
+     * @param withValues False to only read the keys
+     * @return Entries of the range, at most limit of them
+     */
+    public List<Entry> scan(byte[] from, byte[] to, int limit, boolean withValues) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        readers.readLock().lock();
+        try {
+            checkOpen();
+            if (root != 0 && limit > 0) {
+                collect(root, from, to, limit, withValues, entries);
+            }
+        } finally {
+            readers.readLock().unlock();
+        }
+        return entries;
+    }
+
+    /**
+     * Counts the keys of a range
+     *
+     * @param from Smallest key, inclusive
+     * @param to Key to stop before, or null to count to the end
+     */
+    public long count(byte[] from, byte[] to) throws IOException {
+        readers.readLock().lock();
+        try {
+            checkOpen();
+            return root == 0 ? 0 : count(root, from, to);
+        } finally {
+            readers.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the largest key of a range
+     *
+     * @param from Smallest key, inclusive
+     * @param to Key to stop before, or null for no upper bound
+     * @return Largest key, or null if the range is empty
+     */
+    public byte[] lastKey(byte[] from, byte[] to) throws IOException {
+        readers.readLock().lock();
+        try {
+            checkOpen();
+            byte[] key = root == 0 ? null : lower(root, to);
+            return key == null || Node.compare(key, from) < 0 ? null : key;
+        } finally {
+            readers.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs changes as one transaction. Readers see all of them once the
+     * commit is done or none of them if the work throws.
+     */
+    public <T> T write(BTreeWork<T> work) throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            T result;
+            try {
+                result = work.execute(writer);
+                commit();
+            } catch (IOException | RuntimeException ex) {
+                rollback();
+                throw ex;
+            }
+            return result;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public byte[] put(final byte[] key, final byte[] value) throws IOException {
+        return write(new BTreeWork<byte[]>() {
+            @Override
+            public byte[] execute(BTreeWriter writer) throws IOException {
+                byte[] previous = writer.get(key);
+                writer.put(key, value);
+                return previous;
+            }
+        });
+    }
+
+    public boolean delete(final byte[] key) throws IOException {
+        return write(new BTreeWork<Boolean>() {
+            @Override
+            public Boolean execute(BTreeWriter writer) throws IOException {
+                return writer.delete(key);
+            }
+        });
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return Pages in use or free, including the two meta pages
+     */
+    public long getPageCount() {
+        writeLock.lock();
+        try {
+            return pageCount;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int getFreePageCount() {
+        writeLock.lock();
+        try {
+            return freePages.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public long getFileBytes() throws IOException {
+        return pageFile.getFileBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        readers.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pageFile.force();
+            pageFile.close();
+        } finally {
+            readers.writeLock().unlock();
+            writeLock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException(path + " is closed");
+        }
+        if (failed) {
+            throw new IOException("A commit to " + path + " failed, it has to be opened again");
+        }
+    }
+
+    private byte[] find(long page, byte[] key) throws IOException {
+        Location location = locate(page, key);
+        return location == null ? null : readValue(Node.value(pageFile, location.page, location.index));
+    }
+
+    private static final class Location {
+        final long page;
+        final int index;
+
+        Location(long page, int index) {
+            this.page = page;
+            this.index = index;
+        }
+    }
+
+    private Location locate(long page, byte[] key) throws IOException {
+        while (page != 0) {
+            byte kind = Node.kind(pageFile, page);
+            if (kind == Node.BRANCH) {
+                page = Node.child(pageFile, page, Node.childIndex(pageFile, page, key));
+            } else if (kind == Node.LEAF) {
+                int index = Node.searchLeaf(pageFile, page, key);
+                return index < 0 ? null : new Location(page, index);
+            } else {
+                throw corrupt(page);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return False once the scan has to stop, because the limit is reached
+     * or the range ends
+     */
+    private boolean collect(long page, byte[] from, byte[] to, int limit, boolean withValues, List<Entry> entries) throws IOException {
+        byte kind = Node.kind(pageFile, page);
+        int count = Node.count(pageFile, page);
+        if (kind == Node.BRANCH) {
+            for (int child = from == null ? 0 : Node.childIndex(pageFile, page, from); child <= count; child++) {
+                //Every key of this child is at least its separator
+                if (child > 0 && to != null && Node.compare(Node.key(pageFile, page, child - 1), to) >= 0) {
+                    return false;
+                }
+                if (!collect(Node.child(pageFile, page, child), from, to, limit, withValues, entries)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (kind != Node.LEAF) {
+            throw corrupt(page);
+        }
+        int index = from == null ? 0 : Node.searchLeaf(pageFile, page, from);
+        for (int i = index < 0 ? -(index + 1) : index; i < count; i++) {
+            byte[] key = Node.key(pageFile, page, i);
+            if (to != null && Node.compare(key, to) >= 0) {
+                return false;
+            }
+            entries.add(new Entry(key, withValues ? readValue(Node.value(pageFile, page, i)) : null));
+            if (entries.size() >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long count(long page, byte[] from, byte[] to) throws IOException {
+        byte kind = Node.kind(pageFile, page);
+        int count = Node.count(pageFile, page);
+        if (kind == Node.BRANCH) {
+            long total = 0;
+            for (int child = from == null ? 0 : Node.childIndex(pageFile, page, from); child <= count; child++) {
+                if (child > 0 && to != null && Node.compare(Node.key(pageFile, page, child - 1), to) >= 0) {
+                    break;
+                }
+                total += count(Node.child(pageFile, page, child), from, to);
+            }
+            return total;
+        } else if (kind != Node.LEAF) {
+            throw corrupt(page);
+        }
+        int start = from == null ? 0 : Node.searchLeaf(pageFile, page, from);
+        start = start < 0 ? -(start + 1) : start;
+        int end = to == null ? count : Node.searchLeaf(pageFile, page, to);
+        end = end < 0 ? -(end + 1) : end;
+        return Math.max(0, end - start);
+    }
+
+    /**
+     * @return Largest key below the bound in the subtree, or null
+     */
+    private byte[] lower(long page, byte[] to) throws IOException {
+        byte kind = Node.kind(pageFile, page);
+        int count = Node.count(pageFile, page);
+        if (kind == Node.BRANCH) {
+            //Children after the last separator below the bound only hold larger keys
+            int child = to == null ? count : Node.childIndex(pageFile, page, to);
+            if (to != null && child > 0 && Node.compare(Node.key(pageFile, page, child - 1), to) == 0) {
+                child--;
+            }
+            for (; child >= 0; child--) {
+                byte[] key = lower(Node.child(pageFile, page, child), to);
+                if (key != null) {
+                    return key;
+                }
+            }
+            return null;
+        } else if (kind != Node.LEAF) {
+            throw corrupt(page);
+        }
+        int index = to == null ? count : Node.searchLeaf(pageFile, page, to);
+        index = index < 0 ? -(index + 1) : index;
+        return index == 0 ? null : Node.key(pageFile, page, index - 1);
+    }
+
+    private byte[] readValue(Node.Value value) throws IOException {
+        if (value.inline != null) {
+            return value.inline;
+        }
+        byte[] bytes = new byte[value.length];
+        int offset = 0;
+        long page = value.overflow;
+        while (offset < bytes.length) {
+            if (page <= 1 || Node.kind(pageFile, page) != Node.OVERFLOW) {
+                throw corrupt(page);
+            }
+            int length = pageFile.getInt(page, 9);
+            pageFile.getBytes(page, OVERFLOW_HEADER, bytes, offset, length);
+            offset += length;
+            page = pageFile.getLong(page, 1);
+        }
+        return bytes;
+    }
+
+    private IOException corrupt(long page) {
+        return new IOException("Page " + page + " of " + path + " is damaged");
+    }
+
+    /**
+     * Writer of the running transaction, only used while holding the write lock
+     */
+    private class TreeWriter implements BTreeWriter {
+
+        @Override
+        public byte[] get(byte[] key) throws IOException {
+            return find(workingRoot, key);
+        }
+
+        @Override
+        public boolean put(byte[] key, byte[] value) throws IOException {
+            if (key.length == 0 || key.length > maxKeyLength) {
+                throw new IllegalArgumentException("Keys must be 1 to " + maxKeyLength + " bytes long");
+            }
+            Node.Value stored = value.length > maxInlineValue ? new Node.Value(writeOverflow(value), value.length) : new Node.Value(value);
+            if (workingRoot == 0) {
+                Node leaf = new Node(true);
+                leaf.keys.add(key);
+                leaf.values.add(stored);
+                workingRoot = store(0, leaf);
+                workingCount++;
+                return false;
+            }
+            ArrayList<Long> pages = new ArrayList<Long>();
+            ArrayList<byte[]> separators = new ArrayList<byte[]>();
+            boolean replaced = insert(workingRoot, key, stored, pages, separators);
+            //Grow the tree while the root splits
+            while (pages.size() > 1) {
+                Node branch = new Node(false);
+                branch.children.addAll(pages);
+                branch.keys.addAll(separators);
+                pages.clear();
+                separators.clear();
+                storeSplit(0, branch, pages, separators);
+            }
+            workingRoot = pages.get(0);
+            if (!replaced) {
+                workingCount++;
+            }
+            return replaced;
+        }
+
+        @Override
+        public boolean delete(byte[] key) throws IOException {
+            if (locate(workingRoot, key) == null) {
+                return false;
+            }
+            workingRoot = remove(workingRoot, key);
+            workingCount--;
+            return true;
+        }
+    }
+
+    /**
+     * Inserts into a subtree
+     *
+     * @param pages Receives the pages that replace the subtree, more than one
+     * if it split
+     * @param separators Receives the keys between those pages
+     * @return Whether the key already existed
+     */
+    private boolean insert(long page, byte[] key, Node.Value value, List<Long> pages, List<byte[]> separators) throws IOException {
+        Node node = Node.read(pageFile, page);
+        boolean replaced;
+        if (node.leaf) {
+            int index = node.search(key);
+            replaced = index >= 0;
+            if (replaced) {
+                releaseValue(node.values.get(index));
+                node.values.set(index, value);
+            } else {
+                node.keys.add(-(index + 1), key);
+                node.values.add(-(index + 1), value);
+            }
+        } else {
+            int child = node.childIndex(key);
+            ArrayList<Long> childPages = new ArrayList<Long>();
+            ArrayList<byte[]> childSeparators = new ArrayList<byte[]>();
+            replaced = insert(node.children.get(child), key, value, childPages, childSeparators);
+            node.children.set(child, childPages.get(0));
+            for (int i = 1; i < childPages.size(); i++) {
+                node.keys.add(child + i - 1, childSeparators.get(i - 1));
+                node.children.add(child + i, childPages.get(i));
+            }
+        }
+        storeSplit(page, node, pages, separators);
+        return replaced;
+    }
+
+    /**
+     * Removes a key that is known to exist from a subtree
+     *
+     * @return Page that replaces the subtree, or 0 if it is empty now
+     */
+    private long remove(long page, byte[] key) throws IOException {
+        Node node = Node.read(pageFile, page);
+        if (node.leaf) {
+            int index = node.search(key);
+            releaseValue(node.values.get(index));
+            node.keys.remove(index);
+            node.values.remove(index);
+            if (node.keys.isEmpty()) {
+                release(page);
+                return 0;
+            }
+            return store(page, node);
+        }
+        int child = node.childIndex(key);
+        long replacement = remove(node.children.get(child), key);
+        if (replacement == 0) {
+            node.children.remove(child);
+            node.keys.remove(child > 0 ? child - 1 : 0);
+        } else {
+            node.children.set(child, replacement);
+        }
+        if (node.children.size() == 1) {
+            //A branch with one child is replaced by the child
+            release(page);
+            return node.children.get(0);
+        }
+        return store(page, node);
+    }
+
+    /**
+     * Stores a node, splitting it over several pages if it does not fit
+     */
+    private void storeSplit(long page, Node node, List<Long> pages, List<byte[]> separators) throws IOException {
+        if (node.encodedSize() <= pageSize) {
+            pages.add(store(page, node));
+            return;
+        }
+        Node right = new Node(node.leaf);
+        byte[] separator = node.splitTo(right);
+        storeSplit(page, node, pages, separators);
+        separators.add(separator);
+        storeSplit(0, right, pages, separators);
+    }
+
+    /**
+     * Writes a node over the page if the transaction allocated the page,
+     * otherwise to a new page
+     *
+     * @param page Page the node was read from, or 0 for a new node
+     * @return Page holding the node
+     */
+    private long store(long page, Node node) throws IOException {
+        if (page == 0 || !freshPages.contains(page)) {
+            if (page != 0) {
+                release(page);
+            }
+            page = allocate();
+        }
+        node.write(pageFile, page);
+        return page;
+    }
+
+    private long writeOverflow(byte[] value) throws IOException {
+        int perPage = pageSize - OVERFLOW_HEADER;
+        long next = 0;
+        //Written back to front so every page knows its successor
+        for (int start = ((value.length - 1) / perPage) * perPage; start >= 0; start -= perPage) {
+            long page = allocate();
+            int length = Math.min(perPage, value.length - start);
+            pageFile.putByte(page, 0, Node.OVERFLOW);
+            pageFile.putLong(page, 1, next);
+            pageFile.putInt(page, 9, length);
+            pageFile.putBytes(page, OVERFLOW_HEADER, value, start, length);
+            next = page;
+        }
+        return next;
+    }
+
+    private void releaseValue(Node.Value value) {
+        for (long page = value.overflow; page != 0; ) {
+            long next = pageFile.getLong(page, 1);
+            release(page);
+            page = next;
+        }
+    }
+
+    private long allocate() throws IOException {
+        Long page = freePages.pollFirst();
+        if (page == null) {
+            page = pageCount++;
+            pageFile.ensureCapacity(pageCount);
+        }
+        freshPages.add(page);
+        return page;
+    }
+
+    private void release(long page) {
+        if (freshPages.remove(page)) {
+            //Never part of a committed tree
+            freePages.add(page);
+        } else {
+            releasedPages.add(page);
+        }
+    }
+
+    private void commit() throws IOException {
+        if (freshPages.isEmpty() && releasedPages.isEmpty()) {
+            return;
+        }
+        try {
+            if (syncOnCommit) {
+                pageFile.force();
+            }
+            writeMeta(transactionId + 1, workingRoot, pageCount, workingCount);
+            if (syncOnCommit) {
+                pageFile.force();
+            }
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+        transactionId++;
+        root = workingRoot;
+        entryCount = workingCount;
+        freshPages.clear();
+        if (!releasedPages.isEmpty()) {
+            //Wait for readers that started on the old root before reusing its pages
+            readers.writeLock().lock();
+            readers.writeLock().unlock();
+            freePages.addAll(releasedPages);
+            releasedPages.clear();
+        }
+    }
+
+    private void rollback() {
+        freePages.addAll(freshPages);
+        freshPages.clear();
+        releasedPages.clear();
+        workingRoot = root;
+        workingCount = entryCount;
+    }
+
+    /**
+     * Marks every page reachable from the root, the rest are free
+     */
+    private void findFreePages() throws IOException {
+        BitSet used = new BitSet();
+        used.set(0, 2);
+        if (root != 0) {
+            mark(root, used);
+        }
+        for (long page = 2; page < pageCount; page++) {
+            if (!used.get((int) page)) {
+                freePages.add(page);
+            }
+        }
+    }
+
+    private void mark(long page, BitSet used) throws IOException {
+        if (page <= 1 || page >= pageCount) {
+            throw corrupt(page);
+        }
+        used.set((int) page);
+        Node node = Node.read(pageFile, page);
+        if (node.leaf) {
+            for (Node.Value value : node.values) {
+                for (long overflow = value.overflow; overflow != 0; overflow = pageFile.getLong(overflow, 1)) {
+                    used.set((int) overflow);
+                }
+            }
+        } else {
+            for (long child : node.children) {
+                mark(child, used);
+            }
+        }
+    }
+
+    private static final class Meta {
+        long transactionId;
+        long root;
+        long pageCount;
+        long entryCount;
+        int pageSize;
+    }
+
+    private void writeMeta(long transactionId, long root, long pageCount, long entryCount) {
+        ByteBuffer buffer = ByteBuffer.allocate(META_BYTES);
+        buffer.put(META).putInt(MAGIC).putInt(FORMAT_VERSION).putInt(pageSize);
+        buffer.putLong(transactionId).putLong(root).putLong(pageCount).putLong(entryCount);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, META_BYTES - 4);
+        buffer.putInt((int) crc.getValue());
+        //Meta pages alternate, so the previous commit survives a torn write
+        pageFile.putBytes(transactionId % 2, 0, buffer.array(), 0, META_BYTES);
+    }
+
+    private Meta readMeta(long page) {
+        return parseMeta(ByteBuffer.wrap(pageFile.getBytes(page, 0, META_BYTES)));
+    }
+
+    private static Meta parseMeta(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, META_BYTES - 4);
+        if (buffer.get() != META || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        Meta meta = new Meta();
+        meta.pageSize = buffer.getInt();
+        meta.transactionId = buffer.getLong();
+        meta.root = buffer.getLong();
+        meta.pageCount = buffer.getLong();
+        meta.entryCount = buffer.getLong();
+        return buffer.getInt() == (int) crc.getValue() ? meta : null;
+    }
+
+    private static Meta newest(Meta first, Meta second) {
+        if (first == null || (second != null && second.transactionId > first.transactionId)) {
+            return second;
+        }
+        return first;
+    }
+
+    private static int checkPageSize(int pageSize) {
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("Page size must be a power of two from " + MIN_PAGE_SIZE + " to " + MAX_PAGE_SIZE);
+        }
+        return pageSize;
+    }
+
+    /**
+     * Reads the page size of an existing file from the first intact meta page
+     */
+    private static int readPageSize(File path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            for (long offset = 0; offset <= MAX_PAGE_SIZE; offset = offset == 0 ? MIN_PAGE_SIZE : offset * 2) {
+                if (file.length() < offset + META_BYTES) {
+                    break;
+                }
+                byte[] bytes = new byte[META_BYTES];
+                file.seek(offset);
+                file.readFully(bytes);
+                Meta meta = parseMeta(ByteBuffer.wrap(bytes));
+                //The second meta page sits one page in
+                if (meta != null && (offset == 0 || meta.pageSize == offset)) {
+                    return meta.pageSize;
+                }
+            }
+        }
+        throw new IOException(path + " is not a B+tree file");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+/**
+ * Settings of a {@link BTree}
+ *
+ * @author Manuel Gauto
+ */
+public class BTreeConfiguration {
+    /**
+     * Size of a page in bytes, a power of two from 512 to 32768. Only used
+     * when the file is created, an existing file keeps its page size.
+     */
+    private int pageSize = 4096;
+    /**
+     * Bytes mapped at a time, the file grows in steps of this size
+     */
+    private int mapChunkBytes = 16 * 1024 * 1024;
+    /**
+     * Whether a commit waits until its pages are on disk. A crash of the
+     * process never loses a commit, but without the sync a power failure
+     * can lose the latest commits or damage the tree.
+     */
+    private boolean syncOnCommit = true;
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public int getMapChunkBytes() {
+        return mapChunkBytes;
+    }
+
+    public void setMapChunkBytes(int mapChunkBytes) {
+        this.mapChunkBytes = mapChunkBytes;
+    }
+
+    public boolean isSyncOnCommit() {
+        return syncOnCommit;
+    }
+
+    public void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+}
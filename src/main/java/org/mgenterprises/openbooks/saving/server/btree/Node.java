@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A leaf or branch page decoded for a change. Readers do not decode pages,
+ * they search them in place with the static methods.
+ *
+ * Leaf: kind, count, a slot per entry with the offset of the entry. An entry
+ * is the key length, the key, an overflow flag, the value length and then
+ * the value or the first page of its overflow chain.
+ *
+ * Branch: kind, count, the first child, a slot per entry. An entry is the
+ * key length, the key and the child holding the keys from this key on.
+ *
+ * @author Manuel Gauto
+ */
+final class Node {
+    static final byte LEAF = 1;
+    static final byte BRANCH = 2;
+    static final byte OVERFLOW = 3;
+    private static final int LEAF_HEADER = 3;
+    private static final int BRANCH_HEADER = 11;
+
+    final boolean leaf;
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    /**
+     * Values of a leaf, in key order
+     */
+    final ArrayList<Value> values;
+    /**
+     * Children of a branch, one more than keys
+     */
+    final ArrayList<Long> children;
+
+    Node(boolean leaf) {
+        this.leaf = leaf;
+        this.values = leaf ? new ArrayList<Value>() : null;
+        this.children = leaf ? null : new ArrayList<Long>();
+    }
+
+    /**
+     * Value of a leaf entry, stored in the leaf or in a chain of overflow pages
+     */
+    static final class Value {
+        final byte[] inline;
+        final long overflow;
+        final int length;
+
+        Value(byte[] inline) {
+            this.inline = inline;
+            this.overflow = 0;
+            this.length = inline.length;
+        }
+
+        Value(long overflow, int length) {
+            this.inline = null;
+            this.overflow = overflow;
+            this.length = length;
+        }
+    }
+
+    static Node read(PageFile file, long page) throws IOException {
+        byte kind = file.getByte(page, 0);
+        int count = file.getUnsignedShort(page, 1);
+        if (kind == LEAF) {
+            Node node = new Node(true);
+            for (int i = 0; i < count; i++) {
+                int offset = file.getUnsignedShort(page, LEAF_HEADER + 2 * i);
+                int keyLength = file.getUnsignedShort(page, offset);
+                node.keys.add(file.getBytes(page, offset + 2, keyLength));
+                node.values.add(readValue(file, page, offset + 2 + keyLength));
+            }
+            return node;
+        } else if (kind == BRANCH) {
+            Node node = new Node(false);
+            node.children.add(file.getLong(page, 3));
+            for (int i = 0; i < count; i++) {
+                int offset = file.getUnsignedShort(page, BRANCH_HEADER + 2 * i);
+                int keyLength = file.getUnsignedShort(page, offset);
+                node.keys.add(file.getBytes(page, offset + 2, keyLength));
+                node.children.add(file.getLong(page, offset + 2 + keyLength));
+            }
+            return node;
+        }
+        throw new IOException("Page " + page + " is not a tree page");
+    }
+
+    private static Value readValue(PageFile file, long page, int position) {
+        boolean overflow = file.getByte(page, position) != 0;
+        int length = file.getInt(page, position + 1);
+        if (overflow) {
+            return new Value(file.getLong(page, position + 5), length);
+        }
+        return new Value(file.getBytes(page, position + 5, length));
+    }
+
+    int encodedSize() {
+        int size = leaf ? LEAF_HEADER : BRANCH_HEADER;
+        for (int i = 0; i < keys.size(); i++) {
+            size += entrySize(i);
+        }
+        return size;
+    }
+
+    private int entrySize(int i) {
+        if (leaf) {
+            Value value = values.get(i);
+            return 2 + 2 + keys.get(i).length + 5 + (value.inline != null ? value.length : 8);
+        }
+        return 2 + 2 + keys.get(i).length + 8;
+    }
+
+    void write(PageFile file, long page) {
+        int count = keys.size();
+        file.putByte(page, 0, leaf ? LEAF : BRANCH);
+        file.putShort(page, 1, count);
+        int slots = leaf ? LEAF_HEADER : BRANCH_HEADER;
+        if (!leaf) {
+            file.putLong(page, 3, children.get(0));
+        }
+        int offset = slots + 2 * count;
+        for (int i = 0; i < count; i++) {
+            byte[] key = keys.get(i);
+            file.putShort(page, slots + 2 * i, offset);
+            file.putShort(page, offset, key.length);
+            file.putBytes(page, offset + 2, key, 0, key.length);
+            offset += 2 + key.length;
+            if (leaf) {
+                Value value = values.get(i);
+                file.putByte(page, offset, (byte) (value.inline != null ? 0 : 1));
+                file.putInt(page, offset + 1, value.length);
+                if (value.inline != null) {
+                    file.putBytes(page, offset + 5, value.inline, 0, value.length);
+                    offset += 5 + value.length;
+                } else {
+                    file.putLong(page, offset + 5, value.overflow);
+                    offset += 13;
+                }
+            } else {
+                file.putLong(page, offset, children.get(i + 1));
+                offset += 8;
+            }
+        }
+    }
+
+    /**
+     * @return Index of the key, or -(insertion point) - 1
+     */
+    int search(byte[] key) {
+        int low = 0;
+        int high = keys.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(keys.get(middle), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return Index of the child whose keys include the key
+     */
+    int childIndex(byte[] key) {
+        int index = search(key);
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+
+    /**
+     * Moves the upper half of the entries, by size, to a new node
+     *
+     * @param right Empty node of the same kind that receives the entries
+     * @return Key that separates this node from the right one in the parent
+     */
+    byte[] splitTo(Node right) {
+        int half = encodedSize() / 2;
+        int size = leaf ? LEAF_HEADER : BRANCH_HEADER;
+        int middle = 0;
+        while (middle < keys.size() - 1 && size + entrySize(middle) < half) {
+            size += entrySize(middle);
+            middle++;
+        }
+        if (leaf) {
+            //Keep at least one entry on the left
+            middle = Math.max(middle, 1);
+            move(keys, middle, right.keys);
+            move(values, middle, right.values);
+            return right.keys.get(0);
+        }
+        //The middle key moves up, its child starts the right node
+        middle = Math.max(middle, 1);
+        byte[] separator = keys.get(middle);
+        move(keys, middle + 1, right.keys);
+        keys.remove(middle);
+        move(children, middle + 1, right.children);
+        return separator;
+    }
+
+    private static <T> void move(ArrayList<T> from, int start, List<T> to) {
+        List<T> tail = from.subList(start, from.size());
+        to.addAll(tail);
+        tail.clear();
+    }
+
+    /**
+     * Compares keys as unsigned bytes
+     */
+    static int compare(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    static byte kind(PageFile file, long page) {
+        return file.getByte(page, 0);
+    }
+
+    static int count(PageFile file, long page) {
+        return file.getUnsignedShort(page, 1);
+    }
+
+    /**
+     * Searches a leaf page without decoding it
+     *
+     * @return Index of the key, or -(insertion point) - 1
+     */
+    static int searchLeaf(PageFile file, long page, byte[] key) {
+        int low = 0;
+        int high = count(file, page) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = file.getUnsignedShort(page, LEAF_HEADER + 2 * middle);
+            int comparison = file.compare(page, offset + 2, file.getUnsignedShort(page, offset), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return Index of the child of a branch page whose keys include the key
+     */
+    static int childIndex(PageFile file, long page, byte[] key) {
+        int low = 0;
+        int high = count(file, page) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = file.getUnsignedShort(page, BRANCH_HEADER + 2 * middle);
+            int comparison = file.compare(page, offset + 2, file.getUnsignedShort(page, offset), key);
+            if (comparison <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    static long child(PageFile file, long page, int index) {
+        if (index == 0) {
+            return file.getLong(page, 3);
+        }
+        int offset = file.getUnsignedShort(page, BRANCH_HEADER + 2 * (index - 1));
+        return file.getLong(page, offset + 2 + file.getUnsignedShort(page, offset));
+    }
+
+    /**
+     * @return Key of an entry of a leaf or branch page
+     */
+    static byte[] key(PageFile file, long page, int index) {
+        int header = kind(file, page) == LEAF ? LEAF_HEADER : BRANCH_HEADER;
+        int offset = file.getUnsignedShort(page, header + 2 * index);
+        return file.getBytes(page, offset + 2, file.getUnsignedShort(page, offset));
+    }
+
+    static Value value(PageFile file, long page, int index) {
+        int offset = file.getUnsignedShort(page, LEAF_HEADER + 2 * index);
+        return readValue(file, page, offset + 2 + file.getUnsignedShort(page, offset));
+    }
+}
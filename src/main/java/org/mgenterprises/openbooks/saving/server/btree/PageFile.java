@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A file of fixed size pages, mapped into memory in chunks. Pages are read
+ * with absolute gets, so any number of threads may read while one thread
+ * writes pages that the readers do not look at.
+ *
+ * @author Manuel Gauto
+ */
+class PageFile implements Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int pagesPerChunk;
+    /**
+     * Replaced as a whole when the file grows, readers keep using the chunks
+     * they already have
+     */
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    /**
+     * Chunks written since the last {@link #force()}, only used by the writer
+     */
+    private final BitSet dirty = new BitSet();
+
+    PageFile(File path, int pageSize, int mapChunkBytes) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.pageSize = pageSize;
+        this.pagesPerChunk = Math.max(1, mapChunkBytes / pageSize);
+        ensureCapacity((file.length() + pageSize - 1) / pageSize);
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Maps enough of the file to hold the pages, growing the file if needed
+     */
+    void ensureCapacity(long pages) throws IOException {
+        int needed = (int) ((pages + pagesPerChunk - 1) / pagesPerChunk);
+        MappedByteBuffer[] current = chunks;
+        if (needed <= current.length) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(current, needed);
+        long chunkBytes = (long) pagesPerChunk * pageSize;
+        for (int i = current.length; i < needed; i++) {
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * chunkBytes, chunkBytes);
+        }
+        chunks = grown;
+    }
+
+    long getFileBytes() throws IOException {
+        return channel.size();
+    }
+
+    byte getByte(long page, int position) {
+        return chunk(page).get(base(page) + position);
+    }
+
+    int getUnsignedShort(long page, int position) {
+        return chunk(page).getShort(base(page) + position) & 0xFFFF;
+    }
+
+    int getInt(long page, int position) {
+        return chunk(page).getInt(base(page) + position);
+    }
+
+    long getLong(long page, int position) {
+        return chunk(page).getLong(base(page) + position);
+    }
+
+    byte[] getBytes(long page, int position, int length) {
+        byte[] bytes = new byte[length];
+        getBytes(page, position, bytes, 0, length);
+        return bytes;
+    }
+
+    void getBytes(long page, int position, byte[] destination, int offset, int length) {
+        ByteBuffer view = chunk(page).duplicate();
+        view.position(base(page) + position);
+        view.get(destination, offset, length);
+    }
+
+    /**
+     * Compares stored bytes with a key as unsigned bytes
+     *
+     * @return Negative, zero or positive as the stored bytes sort before,
+     * equal to or after the key
+     */
+    int compare(long page, int position, int length, byte[] key) {
+        ByteBuffer chunk = chunk(page);
+        int start = base(page) + position;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (chunk.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length;
+    }
+
+    void putByte(long page, int position, byte value) {
+        chunk(page).put(base(page) + position, value);
+        markDirty(page);
+    }
+
+    void putShort(long page, int position, int value) {
+        chunk(page).putShort(base(page) + position, (short) value);
+        markDirty(page);
+    }
+
+    void putInt(long page, int position, int value) {
+        chunk(page).putInt(base(page) + position, value);
+        markDirty(page);
+    }
+
+    void putLong(long page, int position, long value) {
+        chunk(page).putLong(base(page) + position, value);
+        markDirty(page);
+    }
+
+    void putBytes(long page, int position, byte[] source, int offset, int length) {
+        ByteBuffer view = chunk(page).duplicate();
+        view.position(base(page) + position);
+        view.put(source, offset, length);
+        markDirty(page);
+    }
+
+    /**
+     * Writes the changed chunks to disk
+     */
+    void force() {
+        MappedByteBuffer[] current = chunks;
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            current[i].force();
+        }
+        dirty.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+    private ByteBuffer chunk(long page) {
+        return chunks[(int) (page / pagesPerChunk)];
+    }
+
+    private int base(long page) {
+        return (int) (page % pagesPerChunk) * pageSize;
+    }
+
+    private void markDirty(long page) {
+        dirty.set((int) (page / pagesPerChunk));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.cache;
+
+import com.google.common.cache.Weigher;
+import org.mgenterprises.openbooks.saving.Saveable;
+
+/**
+ * How the objects of one type are cached by {@link CachingSaveManager}
+ *
+ * @author Manuel Gauto
+ */
+public class CachePolicy {
+    private boolean enabled = true;
+    /**
+     * Most objects kept, ignored when a weigher is set
+     */
+    private long maximumSize = 10000;
+    /**
+     * Largest total weight kept when a weigher is set
+     */
+    private long maximumWeight = -1;
+    /**
+     * Weighs cached objects, null to bound the cache by object count
+     */
+    private Weigher<String, Saveable> weigher;
+    /**
+     * Seconds an object is served from the cache after it was loaded, -1 for no limit
+     */
+    private long expireAfterWriteSeconds = 600;
+    /**
+     * Seconds an object stays cached without being read, -1 for no limit
+     */
+    private long expireAfterAccessSeconds = -1;
+
+    public CachePolicy() {
+    }
+
+    public CachePolicy(long maximumSize, long expireAfterWriteSeconds) {
+        this.maximumSize = maximumSize;
+        this.expireAfterWriteSeconds = expireAfterWriteSeconds;
+    }
+
+    /**
+     * @return Policy that does not cache at all
+     */
+    public static CachePolicy disabled() {
+        CachePolicy cachePolicy = new CachePolicy();
+        cachePolicy.setEnabled(false);
+        return cachePolicy;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public Weigher<String, Saveable> getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * Bounds the cache by total weight instead of object count
+     *
+     * @param maximumWeight Largest total weight kept
+     * @param weigher Weighs each object when it is cached
+     */
+    public void setMaximumWeight(long maximumWeight, Weigher<String, Saveable> weigher) {
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+    }
+
+    public long getExpireAfterWriteSeconds() {
+        return expireAfterWriteSeconds;
+    }
+
+    public void setExpireAfterWriteSeconds(long expireAfterWriteSeconds) {
+        this.expireAfterWriteSeconds = expireAfterWriteSeconds;
+    }
+
+    public long getExpireAfterAccessSeconds() {
+        return expireAfterAccessSeconds;
+    }
+
+    public void setExpireAfterAccessSeconds(long expireAfterAccessSeconds) {
+        this.expireAfterAccessSeconds = expireAfterAccessSeconds;
+    }
+}
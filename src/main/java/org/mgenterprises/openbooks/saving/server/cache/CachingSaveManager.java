@@ -0,0 +1,410 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.server.ResourceLock;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+
+/**
+ * Keeps recently read objects in memory in front of another SaveManager.
+ *
+ * Only lookups by id are cached. Queries and full listings always go to the
+ * backing SaveManager, since their results cannot be invalidated per object.
+ * Writes and removals made through this class invalidate the objects they
+ * touch, so the cache never serves stale data for writes it has seen. Writes
+ * that bypass it are picked up once the entry expires.
+ *
+ * Cached objects are never handed out themselves, every read returns a copy.
+ * Callers mark the objects they read as locked and stamp their version for
+ * one session, which must not show up in what other sessions read.
+ *
+ * @author Manuel Gauto
+ */
+public class CachingSaveManager implements SaveManager {
+    private final SaveManager saveManager;
+    private volatile CachePolicy defaultPolicy;
+    private final ConcurrentHashMap<String, CachePolicy> policies = new ConcurrentHashMap<String, CachePolicy>();
+    private final ConcurrentHashMap<String, TypeCache> caches = new ConcurrentHashMap<String, TypeCache>();
+    private final Gson gson = new Gson();
+
+    public CachingSaveManager(SaveManager saveManager) {
+        this(saveManager, new CachePolicy());
+    }
+
+    public CachingSaveManager(SaveManager saveManager, CachePolicy defaultPolicy) {
+        this.saveManager = saveManager;
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * Sets how one type is cached. Drops whatever is cached for the type.
+     *
+     * @param type Saveable module name
+     * @param policy Policy for the type
+     */
+    public void setPolicy(String type, CachePolicy policy) {
+        policies.put(type, policy);
+        caches.remove(type);
+    }
+
+    /**
+     * Sets how types without their own policy are cached. Drops the caches of
+     * those types.
+     *
+     * @param policy Policy for the remaining types
+     */
+    public void setDefaultPolicy(CachePolicy policy) {
+        this.defaultPolicy = policy;
+        for (String type : caches.keySet()) {
+            if (!policies.containsKey(type)) {
+                caches.remove(type);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached object
+     */
+    public void invalidateAll() {
+        caches.clear();
+    }
+
+    /**
+     * @param type Saveable module name
+     * @return Hits, misses and evictions for the type, or null if nothing of
+     * the type was read yet
+     */
+    public CacheStats getStatistics(String type) {
+        TypeCache typeCache = caches.get(type);
+        return typeCache == null || typeCache.cache == null ? null : typeCache.cache.stats();
+    }
+
+    /**
+     * @return Statistics of every type that was read
+     */
+    public Map<String, CacheStats> getStatistics() {
+        TreeMap<String, CacheStats> statistics = new TreeMap<String, CacheStats>();
+        for (Map.Entry<String, TypeCache> entry : caches.entrySet()) {
+            if (entry.getValue().cache != null) {
+                statistics.put(entry.getKey(), entry.getValue().cache.stats());
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @return A copy of the object made with a round trip through json, null
+     * if the object is null
+     */
+    private Saveable copy(Saveable saveable) {
+        return saveable == null ? null : gson.fromJson(gson.toJsonTree(saveable), saveable.getClass());
+    }
+
+    private TypeCache getTypeCache(String type) {
+        TypeCache typeCache = caches.get(type);
+        if (typeCache == null) {
+            CachePolicy policy = policies.get(type);
+            TypeCache created = new TypeCache(policy == null ? defaultPolicy : policy);
+            typeCache = caches.putIfAbsent(type, created);
+            if (typeCache == null) {
+                typeCache = created;
+            }
+        }
+        return typeCache;
+    }
+
+    @Override
+    public Saveable getSaveable(String type, String id) {
+        TypeCache typeCache = getTypeCache(type);
+        if (typeCache.cache == null) {
+            return saveManager.getSaveable(type, id);
+        }
+        Saveable saveable = typeCache.cache.getIfPresent(id);
+        if (saveable == null) {
+            long generation = typeCache.generation.get();
+            saveable = saveManager.getSaveable(type, id);
+            if (saveable != null) {
+                typeCache.putIfUnchanged(generation, id, saveable);
+            }
+        }
+        return copy(saveable);
+    }
+
+    @Override
+    public Saveable[] getSaveables(String type, String[] ids) {
+        TypeCache typeCache = getTypeCache(type);
+        if (typeCache.cache == null) {
+            return saveManager.getSaveables(type, ids);
+        }
+        Saveable[] saveables = new Saveable[ids.length];
+        ArrayList<String> missing = new ArrayList<String>();
+        for (int i = 0; i < ids.length; i++) {
+            saveables[i] = copy(typeCache.cache.getIfPresent(ids[i]));
+            if (saveables[i] == null) {
+                missing.add(ids[i]);
+            }
+        }
+        if (missing.isEmpty()) {
+            return saveables;
+        }
+        long generation = typeCache.generation.get();
+        Saveable[] loaded = saveManager.getSaveables(type, missing.toArray(new String[missing.size()]));
+        int next = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (saveables[i] == null) {
+                Saveable saveable = loaded[next++];
+                if (saveable != null) {
+                    typeCache.putIfUnchanged(generation, ids[i], saveable);
+                }
+                saveables[i] = copy(saveable);
+            }
+        }
+        return saveables;
+    }
+
+    @Override
+    public boolean persistSaveable(String type, String holder, Saveable saveable) {
+        TypeCache typeCache = getTypeCache(type);
+        typeCache.beginWrite();
+        try {
+            return saveManager.persistSaveable(type, holder, saveable);
+        } finally {
+            typeCache.endWrite(saveable.getUniqueId());
+        }
+    }
+
+    @Override
+    public boolean[] persistSaveables(String holder, Saveable[] saveables) {
+        for (Saveable saveable : saveables) {
+            getTypeCache(saveable.getSaveableModuleName()).beginWrite();
+        }
+        try {
+            return saveManager.persistSaveables(holder, saveables);
+        } finally {
+            for (Saveable saveable : saveables) {
+                getTypeCache(saveable.getSaveableModuleName()).endWrite(saveable.getUniqueId());
+            }
+        }
+    }
+
+    @Override
+    public ChangeRecord[] persistJournaled(String[] holders, Saveable[] saveables, long firstChangeId) {
+        for (Saveable saveable : saveables) {
+            getTypeCache(saveable.getSaveableModuleName()).beginWrite();
+        }
+        try {
+            return saveManager.persistJournaled(holders, saveables, firstChangeId);
+        } finally {
+            for (Saveable saveable : saveables) {
+                getTypeCache(saveable.getSaveableModuleName()).endWrite(saveable.getUniqueId());
+            }
+        }
+    }
+
+    @Override
+    public void removeSaveable(String type, String id) {
+        TypeCache typeCache = getTypeCache(type);
+        typeCache.beginWrite();
+        try {
+            saveManager.removeSaveable(type, id);
+        } finally {
+            typeCache.endWrite(id);
+        }
+    }
+
+    @Override
+    public boolean[] removeSaveables(String holder, String type, String[] ids) {
+        TypeCache typeCache = getTypeCache(type);
+        typeCache.beginWrite();
+        try {
+            return saveManager.removeSaveables(holder, type, ids);
+        } finally {
+            for (String id : ids) {
+                typeCache.endWrite(id);
+            }
+        }
+    }
+
+    @Override
+    public ChangeRecord[] removeJournaled(String holder, String type, String[] ids, long firstChangeId) {
+        TypeCache typeCache = getTypeCache(type);
+        typeCache.beginWrite();
+        try {
+            return saveManager.removeJournaled(holder, type, ids, firstChangeId);
+        } finally {
+            for (String id : ids) {
+                typeCache.endWrite(id);
+            }
+        }
+    }
+
+    @Override
+    public Saveable[] getWhere(String type, Predicate predicate) {
+        return saveManager.getWhere(type, predicate);
+    }
+
+    @Override
+    public void streamWhere(String type, Predicate predicate, int chunkSize, SaveableVisitor visitor) {
+        saveManager.streamWhere(type, predicate, chunkSize, visitor);
+    }
+
+    @Override
+    public Saveable[] getByIndex(String type, String property, Object value) {
+        return saveManager.getByIndex(type, property, value);
+    }
+
+    @Override
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high) {
+        return saveManager.getByIndexRange(type, property, low, high);
+    }
+
+    @Override
+    public void removeLock(String type, String id) {
+        saveManager.removeLock(type, id);
+    }
+
+    @Override
+    public int removeLocks(String holder, String type, String[] ids) {
+        return saveManager.removeLocks(holder, type, ids);
+    }
+
+    @Override
+    public boolean createLock(String holder, String type, String id) {
+        return saveManager.createLock(holder, type, id);
+    }
+
+    @Override
+    public ResourceLock[] getLocks() {
+        return saveManager.getLocks();
+    }
+
+    @Override
+    public boolean hasLock(String type, String id) {
+        return saveManager.hasLock(type, id);
+    }
+
+    @Override
+    public boolean isLockedForUser(String user, String type, String id) {
+        return saveManager.isLockedForUser(user, type, id);
+    }
+
+    @Override
+    public String getLockHolder(String type, String id) {
+        return saveManager.getLockHolder(type, id);
+    }
+
+    @Override
+    public Saveable[] getAllSaveables(String type) {
+        return saveManager.getAllSaveables(type);
+    }
+
+    @Override
+    public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor) {
+        saveManager.streamAllSaveables(type, chunkSize, visitor);
+    }
+
+    @Override
+    public long getSaveableCount(String type) {
+        return saveManager.getSaveableCount(type);
+    }
+
+    @Override
+    public long getHighestUniqueId(String type) {
+        return saveManager.getHighestUniqueId(type);
+    }
+
+    @Override
+    public boolean exists(String type, String id) {
+        TypeCache typeCache = getTypeCache(type);
+        if (typeCache.cache != null && typeCache.cache.getIfPresent(id) != null) {
+            return true;
+        }
+        return saveManager.exists(type, id);
+    }
+
+    /**
+     * The cache of one type. A load only fills the cache if no write to the
+     * type started or finished while it ran, otherwise a read that raced a
+     * write could cache the old object after the write invalidated it.
+     */
+    private static class TypeCache {
+        private final Cache<String, Saveable> cache;
+        private final AtomicLong generation = new AtomicLong();
+
+        TypeCache(CachePolicy policy) {
+            this.cache = policy.isEnabled() ? buildCache(policy) : null;
+        }
+
+        private static Cache<String, Saveable> buildCache(CachePolicy policy) {
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+            if (policy.getWeigher() != null) {
+                builder.maximumWeight(policy.getMaximumWeight()).weigher(policy.getWeigher());
+            } else {
+                builder.maximumSize(policy.getMaximumSize());
+            }
+            if (policy.getExpireAfterWriteSeconds() >= 0) {
+                builder.expireAfterWrite(policy.getExpireAfterWriteSeconds(), TimeUnit.SECONDS);
+            }
+            if (policy.getExpireAfterAccessSeconds() >= 0) {
+                builder.expireAfterAccess(policy.getExpireAfterAccessSeconds(), TimeUnit.SECONDS);
+            }
+            return builder.build();
+        }
+
+        void putIfUnchanged(long loadedAt, String id, Saveable saveable) {
+            synchronized (this) {
+                if (generation.get() == loadedAt) {
+                    cache.put(id, saveable);
+                }
+            }
+        }
+
+        void beginWrite() {
+            generation.incrementAndGet();
+        }
+
+        void endWrite(String id) {
+            synchronized (this) {
+                generation.incrementAndGet();
+                if (cache != null) {
+                    cache.invalidate(id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.catalog;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.server.ResourceLock;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+
+/**
+ * Keeps the live ids of every type in memory in front of another
+ * SaveManager, so existence checks, counts and the highest id are answered
+ * without touching storage.
+ *
+ * The ids of a type are read from the backing SaveManager the first time the
+ * type is asked about, and kept current by every persist and remove made
+ * through this class. Writes must not bypass it once a type is cataloged.
+ * Types with ids that are not numbers ask the backing SaveManager for their
+ * highest id, since backends disagree on what it is for them.
+ *
+ * @author Manuel Gauto
+ */
+public class CatalogingSaveManager implements SaveManager {
+    /**
+     * Objects read at a time while loading the ids of a type
+     */
+    private static final int LOAD_CHUNK_SIZE = 1024;
+    private final SaveManager saveManager;
+    private final ConcurrentHashMap<String, TypeCatalog> catalogs = new ConcurrentHashMap<String, TypeCatalog>();
+
+    public CatalogingSaveManager(SaveManager saveManager) {
+        this.saveManager = saveManager;
+    }
+
+    /**
+     * @return The SaveManager the objects are stored in
+     */
+    public SaveManager getSaveManager() {
+        return saveManager;
+    }
+
+    /**
+     * @return Approximate bytes used by the ids of every cataloged type
+     */
+    public Map<String, Long> getMemoryBytes() {
+        TreeMap<String, Long> bytes = new TreeMap<String, Long>();
+        for (Map.Entry<String, TypeCatalog> entry : catalogs.entrySet()) {
+            bytes.put(entry.getKey(), entry.getValue().getMemoryBytes());
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the ids of a type, they are loaded again on next use. Needed
+     * after the type was written without going through this class.
+     */
+    public void invalidate(String type) {
+        catalogs.remove(type);
+    }
+
+    /**
+     * Returns the loaded catalog of a type, loading it first if needed
+     *
+     * @return The catalog, or null if its ids could not be loaded
+     */
+    private TypeCatalog getCatalog(String type) {
+        TypeCatalog catalog = catalogs.get(type);
+        if (catalog == null) {
+            TypeCatalog created = new TypeCatalog();
+            catalog = catalogs.putIfAbsent(type, created);
+            if (catalog == null) {
+                catalog = created;
+                load(type, catalog);
+            }
+        }
+        return catalog.awaitLoaded() ? catalog : null;
+    }
+
+    private void load(String type, final TypeCatalog catalog) {
+        try {
+            saveManager.streamAllSaveables(type, LOAD_CHUNK_SIZE, new SaveableVisitor() {
+                @Override
+                public boolean visit(Saveable[] chunk) {
+                    for (Saveable saveable : chunk) {
+                        catalog.load(saveable.getUniqueId());
+                    }
+                    return true;
+                }
+            });
+            catalog.finishLoading();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(CatalogingSaveManager.class.getName()).log(Level.SEVERE, null, ex);
+            catalogs.remove(type, catalog);
+            catalog.abandon();
+        }
+    }
+
+    /**
+     * Records a change in the catalog of the type, if the type is cataloged.
+     * Types that are not are read in their current state once they are.
+     */
+    private void record(String type, String id, boolean present) {
+        TypeCatalog catalog = catalogs.get(type);
+        if (catalog != null) {
+            catalog.record(id, present);
+        }
+    }
+
+    @Override
+    public boolean exists(String type, String id) {
+        TypeCatalog catalog = getCatalog(type);
+        return catalog == null ? saveManager.exists(type, id) : catalog.contains(id);
+    }
+
+    @Override
+    public long getSaveableCount(String type) {
+        TypeCatalog catalog = getCatalog(type);
+        return catalog == null ? saveManager.getSaveableCount(type) : catalog.size();
+    }
+
+    @Override
+    public long getHighestUniqueId(String type) {
+        TypeCatalog catalog = getCatalog(type);
+        return catalog == null || !catalog.isNumeric() ? saveManager.getHighestUniqueId(type) : catalog.getHighestId();
+    }
+
+    @Override
+    public boolean persistSaveable(String type, String holder, Saveable saveable) {
+        boolean persisted = saveManager.persistSaveable(type, holder, saveable);
+        if (persisted) {
+            record(saveable.getSaveableModuleName(), saveable.getUniqueId(), true);
+        }
+        return persisted;
+    }
+
+    @Override
+    public boolean[] persistSaveables(String holder, Saveable[] saveables) {
+        boolean[] persisted = saveManager.persistSaveables(holder, saveables);
+        for (int i = 0; i < saveables.length; i++) {
+            if (persisted[i]) {
+                record(saveables[i].getSaveableModuleName(), saveables[i].getUniqueId(), true);
+            }
+        }
+        return persisted;
+    }
+
+    @Override
+    public ChangeRecord[] persistJournaled(String[] holders, Saveable[] saveables, long firstChangeId) {
+        ChangeRecord[] changes = saveManager.persistJournaled(holders, saveables, firstChangeId);
+        if (changes != null) {
+            for (int i = 0; i < saveables.length; i++) {
+                if (changes[i] != null) {
+                    record(saveables[i].getSaveableModuleName(), saveables[i].getUniqueId(), true);
+                    record(changes[i].getSaveableModuleName(), changes[i].getUniqueId(), true);
+                }
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public void removeSaveable(String type, String id) {
+        saveManager.removeSaveable(type, id);
+        record(type, id, false);
+    }
+
+    @Override
+    public boolean[] removeSaveables(String holder, String type, String[] ids) {
+        boolean[] removed = saveManager.removeSaveables(holder, type, ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (removed[i]) {
+                record(type, ids[i], false);
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public ChangeRecord[] removeJournaled(String holder, String type, String[] ids, long firstChangeId) {
+        ChangeRecord[] changes = saveManager.removeJournaled(holder, type, ids, firstChangeId);
+        if (changes != null) {
+            for (int i = 0; i < ids.length; i++) {
+                if (changes[i] != null) {
+                    record(type, ids[i], false);
+                    record(changes[i].getSaveableModuleName(), changes[i].getUniqueId(), true);
+                }
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public Saveable[] getWhere(String type, Predicate predicate) {
+        return saveManager.getWhere(type, predicate);
+    }
+
+    @Override
+    public void streamWhere(String type, Predicate predicate, int chunkSize, SaveableVisitor visitor) {
+        saveManager.streamWhere(type, predicate, chunkSize, visitor);
+    }
+
+    @Override
+    public Saveable[] getByIndex(String type, String property, Object value) {
+        return saveManager.getByIndex(type, property, value);
+    }
+
+    @Override
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high) {
+        return saveManager.getByIndexRange(type, property, low, high);
+    }
+
+    @Override
+    public void removeLock(String type, String id) {
+        saveManager.removeLock(type, id);
+    }
+
+    @Override
+    public int removeLocks(String holder, String type, String[] ids) {
+        return saveManager.removeLocks(holder, type, ids);
+    }
+
+    @Override
+    public boolean createLock(String holder, String type, String id) {
+        return saveManager.createLock(holder, type, id);
+    }
+
+    @Override
+    public ResourceLock[] getLocks() {
+        return saveManager.getLocks();
+    }
+
+    @Override
+    public boolean hasLock(String type, String id) {
+        return saveManager.hasLock(type, id);
+    }
+
+    @Override
+    public boolean isLockedForUser(String user, String type, String id) {
+        return saveManager.isLockedForUser(user, type, id);
+    }
+
+    @Override
+    public String getLockHolder(String type, String id) {
+        return saveManager.getLockHolder(type, id);
+    }
+
+    @Override
+    public Saveable getSaveable(String type, String id) {
+        return saveManager.getSaveable(type, id);
+    }
+
+    @Override
+    public Saveable[] getSaveables(String type, String[] ids) {
+        return saveManager.getSaveables(type, ids);
+    }
+
+    @Override
+    public Saveable[] getAllSaveables(String type) {
+        return saveManager.getAllSaveables(type);
+    }
+
+    @Override
+    public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor) {
+        saveManager.streamAllSaveables(type, chunkSize, visitor);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.catalog;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compressed set of long ids. Ids are grouped by their upper 48 bits into
+ * containers of 65536 ids. Sparse containers keep their ids in a sorted
+ * array, dense ones switch to a plain bitmap, so runs of consecutive ids
+ * take about one bit each and scattered ids about two bytes each.
+ * 
+ * Not thread safe.
+ * 
+ * @author Manuel Gauto
+ */
+public class IdBitmap {
+    /**
+     * Containers with more ids than this are stored as bitmaps
+     */
+    private static final int ARRAY_LIMIT = 4096;
+    private final TreeMap<Long, Container> containers = new TreeMap<Long, Container>();
+    private long size;
+
+    /**
+     * @return true if the id was not in the set
+     */
+    public boolean add(long id) {
+        Long high = id >> 16;
+        Container container = containers.get(high);
+        if (container == null) {
+            container = new ArrayContainer();
+            containers.put(high, container);
+        }
+        if (!container.add((char) id)) {
+            return false;
+        }
+        if (container instanceof ArrayContainer && container.size() > ARRAY_LIMIT) {
+            containers.put(high, ((ArrayContainer) container).toBitmap());
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * @return true if the id was in the set
+     */
+    public boolean remove(long id) {
+        Long high = id >> 16;
+        Container container = containers.get(high);
+        if (container == null || !container.remove((char) id)) {
+            return false;
+        }
+        if (container.size() == 0) {
+            containers.remove(high);
+        } else if (container instanceof BitmapContainer && container.size() <= ARRAY_LIMIT / 2) {
+            containers.put(high, ((BitmapContainer) container).toArray());
+        }
+        size--;
+        return true;
+    }
+
+    public boolean contains(long id) {
+        Container container = containers.get(id >> 16);
+        return container != null && container.contains((char) id);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The largest id
+     * @throws IllegalStateException If the set is empty
+     */
+    public long max() {
+        if (size == 0) {
+            throw new IllegalStateException("The set is empty");
+        }
+        Map.Entry<Long, Container> last = containers.lastEntry();
+        return last.getKey() << 16 | last.getValue().max();
+    }
+
+    public void clear() {
+        containers.clear();
+        size = 0;
+    }
+
+    /**
+     * @return Bytes used by the containers, not counting the map holding them
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Container container : containers.values()) {
+            bytes += container.memoryBytes();
+        }
+        return bytes;
+    }
+
+    private static abstract class Container {
+        abstract boolean add(char low);
+
+        abstract boolean remove(char low);
+
+        abstract boolean contains(char low);
+
+        abstract int size();
+
+        abstract int max();
+
+        abstract long memoryBytes();
+    }
+
+    /**
+     * Sorted low 16 bits of the ids
+     */
+    private static class ArrayContainer extends Container {
+        private char[] values = new char[4];
+        private int size;
+
+        @Override
+        boolean add(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = low;
+            size++;
+            return true;
+        }
+
+        @Override
+        boolean remove(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            if (values.length > 4 && size < values.length / 4) {
+                values = Arrays.copyOf(values, values.length / 2);
+            }
+            return true;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int max() {
+            return values[size - 1];
+        }
+
+        @Override
+        long memoryBytes() {
+            return 2L * values.length;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * One bit for each of the 65536 possible low 16 bits
+     */
+    private static class BitmapContainer extends Container {
+        private final long[] words = new long[1024];
+        private int size;
+
+        @Override
+        boolean add(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) != 0) {
+                return false;
+            }
+            words[low >>> 6] |= bit;
+            size++;
+            return true;
+        }
+
+        @Override
+        boolean remove(char low) {
+            long bit = 1L << low;
+            if ((words[low >>> 6] & bit) == 0) {
+                return false;
+            }
+            words[low >>> 6] &= ~bit;
+            size--;
+            return true;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & 1L << low) != 0;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int max() {
+            for (int i = words.length - 1; i >= 0; i--) {
+                if (words[i] != 0) {
+                    return i * 64 + 63 - Long.numberOfLeadingZeros(words[i]);
+                }
+            }
+            throw new IllegalStateException("The container is empty");
+        }
+
+        @Override
+        long memoryBytes() {
+            return 8L * words.length;
+        }
+
+        ArrayContainer toArray() {
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[Math.max(4, size)];
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    array.values[array.size++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return array;
+        }
+    }
+}
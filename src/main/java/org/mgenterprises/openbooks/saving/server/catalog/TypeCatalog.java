@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.catalog;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Live ids of one type. Ids that read back the same from a long are kept in
+ * an {@link IdBitmap}, all others in a hash set.
+ * 
+ * A catalog starts out loading. Changes recorded while it loads are held
+ * back and replayed once every stored id has been added, so a change that
+ * races with the load always wins over the stored state the load saw.
+ * 
+ * @author Manuel Gauto
+ */
+class TypeCatalog {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final IdBitmap numericIds = new IdBitmap();
+    private final HashSet<String> otherIds = new HashSet<String>();
+    /**
+     * Whether each id touched during the load is present afterwards, null
+     * once loaded. Guarded by the write lock
+     */
+    private LinkedHashMap<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+    private volatile boolean failed;
+
+    /**
+     * Adds a stored id while loading
+     */
+    void load(String id) {
+        lock.writeLock().lock();
+        try {
+            apply(id, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replays the changes recorded during the load and lets readers in
+     */
+    void finishLoading() {
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+                apply(change.getKey(), change.getValue());
+            }
+            pending = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        loaded.countDown();
+    }
+
+    /**
+     * Gives up on a catalog whose ids could not be loaded
+     */
+    void abandon() {
+        failed = true;
+        loaded.countDown();
+    }
+
+    /**
+     * Waits until the catalog is loaded
+     *
+     * @return false if loading failed or the wait was interrupted
+     */
+    boolean awaitLoaded() {
+        try {
+            loaded.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !failed;
+    }
+
+    /**
+     * Records a persisted or removed id
+     */
+    void record(String id, boolean present) {
+        lock.writeLock().lock();
+        try {
+            if (pending != null) {
+                pending.put(id, present);
+            } else {
+                apply(id, present);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean contains(String id) {
+        lock.readLock().lock();
+        try {
+            return isNumeric(id) ? numericIds.contains(Long.parseLong(id)) : otherIds.contains(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long size() {
+        lock.readLock().lock();
+        try {
+            return numericIds.size() + otherIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if every id is a number
+     */
+    boolean isNumeric() {
+        lock.readLock().lock();
+        try {
+            return otherIds.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The largest numeric id, or 0 if there is none or it is negative
+     */
+    long getHighestId() {
+        lock.readLock().lock();
+        try {
+            return numericIds.isEmpty() ? 0 : Math.max(0, numericIds.max());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = numericIds.getMemoryBytes();
+            for (String id : otherIds) {
+                bytes += 2L * id.length();
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void apply(String id, boolean present) {
+        if (isNumeric(id)) {
+            if (present) {
+                numericIds.add(Long.parseLong(id));
+            } else {
+                numericIds.remove(Long.parseLong(id));
+            }
+        } else if (present) {
+            otherIds.add(id);
+        } else {
+            otherIds.remove(id);
+        }
+    }
+
+    /**
+     * Only ids that read back the same from a long go into the bitmap, so
+     * "007" and "7" stay different ids
+     */
+    static boolean isNumeric(String id) {
+        int length = id.length();
+        if (length == 0 || length > 20) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && !(i == 0 && c == '-' && length > 1)) {
+                return false;
+            }
+        }
+        try {
+            return Long.toString(Long.parseLong(id)).equals(id);
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.execution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs SaveServer client sessions. Every session holds one admission permit
+ * from the time it is accepted until it ends, so the number of sessions that
+ * are queued or running can never exceed the configured connection cap.
+ * Connections over the cap are refused instead of being queued without bound.
+ * The results a session streams run here as well and count as sessions, so
+ * they share the cap and show up in the same figures. On a bounded pool they
+ * get a pool of their own, as sessions hold their thread while connected.
+ *
+ * @author Manuel Gauto
+ */
+public class SessionExecutor {
+    private final SessionExecutorConfiguration configuration;
+    private final ExecutorService executorService;
+    private final ExecutorService streamExecutorService;
+    private final ExecutionMode effectiveMode;
+    private final Semaphore admissionPermits;
+    /**
+     * Sessions that have been admitted but are still waiting for a thread
+     */
+    private final AtomicInteger queuedSessions = new AtomicInteger();
+    /**
+     * Sessions that currently own a thread
+     */
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong rejectedSessions = new AtomicLong();
+    private final AtomicLong completedSessions = new AtomicLong();
+
+    public SessionExecutor(SessionExecutorConfiguration configuration) {
+        this.configuration = configuration;
+        this.admissionPermits = new Semaphore(configuration.getMaxConnections());
+        ExecutorService virtualExecutor = null;
+        if (configuration.getExecutionMode() == ExecutionMode.VIRTUAL_THREADS) {
+            virtualExecutor = createVirtualThreadExecutor();
+        }
+        if (virtualExecutor != null) {
+            this.executorService = virtualExecutor;
+            this.streamExecutorService = virtualExecutor;
+            this.effectiveMode = ExecutionMode.VIRTUAL_THREADS;
+        } else {
+            this.executorService = createBoundedPool(configuration, "SaveServer-session-");
+            this.streamExecutorService = createBoundedPool(configuration, "SaveServer-stream-");
+            this.effectiveMode = ExecutionMode.BOUNDED_POOL;
+        }
+        Logger.getLogger("SaveServer").log(Level.INFO, "Running sessions using {0}, connection cap {1}", new Object[]{effectiveMode, configuration.getMaxConnections()});
+    }
+
+    /**
+     * Tries to schedule a session. Returns false if the connection cap has been
+     * reached or the admission queue is full; the caller is then responsible
+     * for closing the connection.
+     *
+     * @param session Session to run
+     * @return true if the session was accepted
+     */
+    public boolean submit(Runnable session) {
+        return submit(executorService, session);
+    }
+
+    /**
+     * Tries to schedule a stream started by a session, which counts against
+     * the connection cap like a session
+     *
+     * @param stream Stream to run
+     * @return true if the stream was accepted
+     */
+    public boolean submitStream(Runnable stream) {
+        return submit(streamExecutorService, stream);
+    }
+
+    private boolean submit(ExecutorService executorService, final Runnable session) {
+        if (!admissionPermits.tryAcquire()) {
+            rejectedSessions.incrementAndGet();
+            return false;
+        }
+        queuedSessions.incrementAndGet();
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuedSessions.decrementAndGet();
+                    activeSessions.incrementAndGet();
+                    try {
+                        session.run();
+                    } finally {
+                        activeSessions.decrementAndGet();
+                        completedSessions.incrementAndGet();
+                        admissionPermits.release();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            queuedSessions.decrementAndGet();
+            admissionPermits.release();
+            rejectedSessions.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting sessions. Running sessions are left to finish on their own.
+     */
+    public void shutdown() {
+        executorService.shutdown();
+        streamExecutorService.shutdown();
+    }
+
+    public ExecutionMode getEffectiveMode() {
+        return effectiveMode;
+    }
+
+    /**
+     * @return Number of sessions admitted but still waiting for a thread
+     */
+    public int getQueuedSessions() {
+        return queuedSessions.get();
+    }
+
+    /**
+     * @return Number of sessions currently being served
+     */
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    public long getRejectedSessions() {
+        return rejectedSessions.get();
+    }
+
+    public long getCompletedSessions() {
+        return completedSessions.get();
+    }
+
+    public SessionExecutorConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Virtual threads only exist on newer JDKs so they have to be looked up
+     * reflectively while we still compile for older ones.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            Logger.getLogger("SaveServer").log(Level.INFO, "Virtual threads are not available on this JVM, using a bounded pool");
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger("SaveServer").log(Level.WARNING, "Could not create virtual thread executor, using a bounded pool", ex);
+        }
+        return null;
+    }
+
+    private static ExecutorService createBoundedPool(SessionExecutorConfiguration configuration, final String threadName) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new ThreadPoolExecutor(configuration.getPoolSize(), configuration.getPoolSize(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, configuration.getAdmissionQueueCapacity())),
+                threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.execution;
+
+/**
+ * Settings that control how many client sessions the SaveServer will run
+ * and how it runs them
+ *
+ * @author Manuel Gauto
+ */
+public class SessionExecutorConfiguration {
+    private ExecutionMode executionMode = ExecutionMode.VIRTUAL_THREADS;
+    /**
+     * Number of platform threads used when running in {@link ExecutionMode#BOUNDED_POOL}
+     */
+    private int poolSize = 64;
+    /**
+     * Number of sessions that may wait for a pool thread before new connections are refused
+     */
+    private int admissionQueueCapacity = 128;
+    /**
+     * Hard cap on the number of sessions that are running or waiting to run
+     */
+    private int maxConnections = 1024;
+    /**
+     * Backlog passed to the listening socket
+     */
+    private int acceptBacklog = 50;
+    /**
+     * Milliseconds a session may wait for the next frame before it is
+     * dropped, 0 waits forever. Must be longer than the client heartbeat.
+     */
+    private int readTimeoutMillis = 90000;
+    /**
+     * Milliseconds without any frame from the client after which the reaper
+     * closes a session, even one that is stuck writing. 0 disables the reaper.
+     */
+    private long idleTimeoutMillis = 120000;
+    /**
+     * Milliseconds between two reaper runs
+     */
+    private long reaperIntervalMillis = 30000;
+
+    public SessionExecutorConfiguration() {
+    }
+
+    public SessionExecutorConfiguration(ExecutionMode executionMode, int poolSize, int admissionQueueCapacity, int maxConnections) {
+        this.executionMode = executionMode;
+        this.poolSize = poolSize;
+        this.admissionQueueCapacity = admissionQueueCapacity;
+        this.maxConnections = maxConnections;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public int getAdmissionQueueCapacity() {
+        return admissionQueueCapacity;
+    }
+
+    public void setAdmissionQueueCapacity(int admissionQueueCapacity) {
+        this.admissionQueueCapacity = admissionQueueCapacity;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getReaperIntervalMillis() {
+        return reaperIntervalMillis;
+    }
+
+    public void setReaperIntervalMillis(long reaperIntervalMillis) {
+        this.reaperIntervalMillis = reaperIntervalMillis;
+    }
+}
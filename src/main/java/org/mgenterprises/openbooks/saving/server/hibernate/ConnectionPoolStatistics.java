@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how busy the JDBC connection pool is
+ *
+ * @author Manuel Gauto
+ */
+public class ConnectionPoolStatistics {
+    private final int poolSize;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger idleConnections = new AtomicInteger();
+    private final AtomicLong connectionsCreated = new AtomicLong();
+    private final AtomicLong connectionsDiscarded = new AtomicLong();
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong checkoutTimeouts = new AtomicLong();
+    private final AtomicLong checkoutWaitNanos = new AtomicLong();
+    private final AtomicLong maxCheckoutWaitNanos = new AtomicLong();
+
+    ConnectionPoolStatistics(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    void recordCheckout(long waitNanos) {
+        checkouts.incrementAndGet();
+        activeConnections.incrementAndGet();
+        checkoutWaitNanos.addAndGet(waitNanos);
+        long max = maxCheckoutWaitNanos.get();
+        while (waitNanos > max && !maxCheckoutWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxCheckoutWaitNanos.get();
+        }
+    }
+
+    void recordCheckin() {
+        activeConnections.decrementAndGet();
+    }
+
+    void recordTimeout() {
+        checkoutTimeouts.incrementAndGet();
+    }
+
+    void recordCreated() {
+        connectionsCreated.incrementAndGet();
+    }
+
+    void recordDiscarded() {
+        connectionsDiscarded.incrementAndGet();
+    }
+
+    void setIdleConnections(int idle) {
+        idleConnections.set(idle);
+    }
+
+    /**
+     * @return Most connections the pool will open at once
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return Connections currently handed out
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * @return Open connections waiting to be handed out
+     */
+    public int getIdleConnections() {
+        return idleConnections.get();
+    }
+
+    public long getConnectionsCreated() {
+        return connectionsCreated.get();
+    }
+
+    /**
+     * @return Connections closed because they failed validation or could not be reset
+     */
+    public long getConnectionsDiscarded() {
+        return connectionsDiscarded.get();
+    }
+
+    public long getCheckouts() {
+        return checkouts.get();
+    }
+
+    /**
+     * @return Checkouts that gave up because the pool stayed exhausted
+     */
+    public long getCheckoutTimeouts() {
+        return checkoutTimeouts.get();
+    }
+
+    /**
+     * @return Average time a checkout waited for a connection, in milliseconds
+     */
+    public double getAverageCheckoutWaitMillis() {
+        long count = checkouts.get();
+        return count == 0 ? 0 : (double) checkoutWaitNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return Longest time a checkout waited for a connection, in milliseconds
+     */
+    public long getMaxCheckoutWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxCheckoutWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d connections active, %d idle, %d created, %d discarded, %d checkouts (avg wait %.2f ms, max %d ms, %d timed out)",
+                getActiveConnections(), poolSize, getIdleConnections(), getConnectionsCreated(), getConnectionsDiscarded(),
+                getCheckouts(), getAverageCheckoutWaitMillis(), getMaxCheckoutWaitMillis(), getCheckoutTimeouts());
+    }
+}
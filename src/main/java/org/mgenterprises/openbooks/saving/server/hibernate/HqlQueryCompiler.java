@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.mgenterprises.openbooks.saving.query.BetweenPredicate;
+import org.mgenterprises.openbooks.saving.query.Comparison;
+import org.mgenterprises.openbooks.saving.query.InPredicate;
+import org.mgenterprises.openbooks.saving.query.Junction;
+import org.mgenterprises.openbooks.saving.query.LikePredicate;
+import org.mgenterprises.openbooks.saving.query.NotPredicate;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.PredicateVisitor;
+
+/**
+ * Compiles predicates to HQL with bound parameters. Compiled plans are cached
+ * by entity and predicate shape, that is the predicate with its values left
+ * out, so repeated queries that only differ in their values skip compilation.
+ *
+ * @author Manuel Gauto
+ */
+public class HqlQueryCompiler {
+    private static final int PLAN_CACHE_SIZE = 512;
+    private static final String ALIAS = "e";
+
+    private final SessionFactory sessionFactory;
+    private final Cache<String, HqlQueryPlan> plans = CacheBuilder.newBuilder()
+            .maximumSize(PLAN_CACHE_SIZE)
+            .recordStats()
+            .build();
+
+    public HqlQueryCompiler(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Creates a query for the objects of a type that match a predicate
+     *
+     * @param session Session to create the query in
+     * @param entityName Entity to query, the Saveable module name
+     * @param entityClassName Unqualified class name used in HQL
+     * @param predicate Condition the results must meet
+     * @return Query with every parameter bound
+     */
+    public Query createQuery(ReadSession session, String entityName, String entityClassName, Predicate predicate) {
+        HqlQueryPlan plan = getPlan(entityName, entityClassName, predicate);
+        Query query = session.createQuery(plan.getHql());
+        query.setString("type", entityName);
+        List<Object> values = new ArrayList<Object>();
+        predicate.accept(new ValueCollector(values));
+        plan.bind(query, values);
+        return query;
+    }
+
+    HqlQueryPlan getPlan(String entityName, String entityClassName, Predicate predicate) {
+        String key = entityName + "|" + predicate.accept(new ShapeWriter(new StringBuilder())).toString();
+        HqlQueryPlan plan = plans.getIfPresent(key);
+        if (plan == null) {
+            plan = compile(entityName, entityClassName, predicate);
+            plans.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @return Hits and misses of the plan cache
+     */
+    public CacheStats getPlanCacheStatistics() {
+        return plans.stats();
+    }
+
+    private HqlQueryPlan compile(String entityName, String entityClassName, Predicate predicate) {
+        HqlWriter writer = new HqlWriter(sessionFactory.getClassMetadata(entityName));
+        predicate.accept(writer);
+        String hql = "select " + ALIAS + " from " + entityClassName + " " + ALIAS
+                + " where " + ALIAS + ".saveableModuleName=:type and (" + writer.hql + ")";
+        return new HqlQueryPlan(hql, writer.parameterTypes.toArray(new Class<?>[writer.parameterTypes.size()]));
+    }
+
+    static String parameterName(int index) {
+        return "p" + index;
+    }
+
+    /**
+     * Renders the HQL condition and notes the property type behind every parameter
+     */
+    private static class HqlWriter implements PredicateVisitor<Void> {
+        private final ClassMetadata classMetadata;
+        private final StringBuilder hql = new StringBuilder();
+        private final List<Class<?>> parameterTypes = new ArrayList<Class<?>>();
+
+        HqlWriter(ClassMetadata classMetadata) {
+            this.classMetadata = classMetadata;
+        }
+
+        private String parameter(String property) {
+            Class<?> type = null;
+            if (classMetadata != null && property.indexOf('.') < 0) {
+                try {
+                    type = classMetadata.getPropertyType(property).getReturnedClass();
+                } catch (HibernateException ex) {
+                    //Unknown property, Hibernate reports it when the query is created
+                }
+            }
+            parameterTypes.add(type);
+            return ":" + parameterName(parameterTypes.size() - 1);
+        }
+
+        @Override
+        public Void visit(Comparison comparison) {
+            hql.append(ALIAS).append('.').append(comparison.getProperty())
+                    .append(' ').append(comparison.getOperation().getOpString()).append(' ')
+                    .append(parameter(comparison.getProperty()));
+            return null;
+        }
+
+        @Override
+        public Void visit(InPredicate in) {
+            hql.append(ALIAS).append('.').append(in.getProperty())
+                    .append(" in (").append(parameter(in.getProperty())).append(')');
+            return null;
+        }
+
+        @Override
+        public Void visit(BetweenPredicate between) {
+            hql.append(ALIAS).append('.').append(between.getProperty())
+                    .append(" between ").append(parameter(between.getProperty()))
+                    .append(" and ").append(parameter(between.getProperty()));
+            return null;
+        }
+
+        @Override
+        public Void visit(LikePredicate like) {
+            hql.append(ALIAS).append('.').append(like.getProperty())
+                    .append(" like ").append(parameter(like.getProperty()));
+            return null;
+        }
+
+        @Override
+        public Void visit(NotPredicate not) {
+            hql.append("not (");
+            not.getOperand().accept(this);
+            hql.append(')');
+            return null;
+        }
+
+        @Override
+        public Void visit(Junction junction) {
+            if (junction.getOperands().isEmpty()) {
+                hql.append(junction.getType() == Junction.Type.AND ? "1=1" : "1=0");
+                return null;
+            }
+            String separator = junction.getType() == Junction.Type.AND ? " and " : " or ";
+            hql.append('(');
+            for (int i = 0; i < junction.getOperands().size(); i++) {
+                if (i > 0) {
+                    hql.append(separator);
+                }
+                junction.getOperands().get(i).accept(this);
+            }
+            hql.append(')');
+            return null;
+        }
+    }
+
+    /**
+     * Describes a predicate without its values
+     */
+    private static class ShapeWriter implements PredicateVisitor<StringBuilder> {
+        private final StringBuilder shape;
+
+        ShapeWriter(StringBuilder shape) {
+            this.shape = shape;
+        }
+
+        @Override
+        public StringBuilder visit(Comparison comparison) {
+            return shape.append(comparison.getProperty()).append(comparison.getOperation().getOpString()).append('?');
+        }
+
+        @Override
+        public StringBuilder visit(InPredicate in) {
+            return shape.append(in.getProperty()).append(" in ?");
+        }
+
+        @Override
+        public StringBuilder visit(BetweenPredicate between) {
+            return shape.append(between.getProperty()).append(" between ?");
+        }
+
+        @Override
+        public StringBuilder visit(LikePredicate like) {
+            return shape.append(like.getProperty()).append(" like ?");
+        }
+
+        @Override
+        public StringBuilder visit(NotPredicate not) {
+            shape.append("!(");
+            not.getOperand().accept(this);
+            return shape.append(')');
+        }
+
+        @Override
+        public StringBuilder visit(Junction junction) {
+            shape.append(junction.getType()).append('(');
+            for (Predicate operand : junction.getOperands()) {
+                operand.accept(this);
+                shape.append(',');
+            }
+            return shape.append(')');
+        }
+    }
+
+    /**
+     * Collects the values of a predicate in the order {@link HqlWriter}
+     * numbers its parameters
+     */
+    private static class ValueCollector implements PredicateVisitor<Void> {
+        private final List<Object> values;
+
+        ValueCollector(List<Object> values) {
+            this.values = values;
+        }
+
+        @Override
+        public Void visit(Comparison comparison) {
+            values.add(comparison.getValue());
+            return null;
+        }
+
+        @Override
+        public Void visit(InPredicate in) {
+            values.add(in.getValues());
+            return null;
+        }
+
+        @Override
+        public Void visit(BetweenPredicate between) {
+            values.add(between.getLow());
+            values.add(between.getHigh());
+            return null;
+        }
+
+        @Override
+        public Void visit(LikePredicate like) {
+            values.add(like.getPattern());
+            return null;
+        }
+
+        @Override
+        public Void visit(NotPredicate not) {
+            not.getOperand().accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visit(Junction junction) {
+            for (Predicate operand : junction.getOperands()) {
+                operand.accept(this);
+            }
+            return null;
+        }
+    }
+}
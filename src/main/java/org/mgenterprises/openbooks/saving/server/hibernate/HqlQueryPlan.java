@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import org.hibernate.Query;
+
+/**
+ * A predicate compiled to HQL. Values are bound as parameters, so every
+ * predicate with the same shape shares one plan and one HQL string, which in
+ * turn lets Hibernate reuse its own translation of the query.
+ *
+ * @author Manuel Gauto
+ */
+public class HqlQueryPlan {
+    private final String hql;
+    /**
+     * Java type of the property each parameter is compared to, null where
+     * the mapping did not tell
+     */
+    private final Class<?>[] parameterTypes;
+
+    HqlQueryPlan(String hql, Class<?>[] parameterTypes) {
+        this.hql = hql;
+        this.parameterTypes = parameterTypes;
+    }
+
+    public String getHql() {
+        return hql;
+    }
+
+    /**
+     * Binds the values of a predicate with the same shape as the one this
+     * plan was compiled from
+     *
+     * @param query Query created from {@link #getHql()}
+     * @param values Values in the order {@link HqlQueryCompiler} collects them
+     */
+    void bind(Query query, List<Object> values) {
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if (value instanceof Collection) {
+                List<Object> coerced = new ArrayList<Object>();
+                for (Object element : (Collection<?>) value) {
+                    coerced.add(coerce(element, parameterTypes[i]));
+                }
+                query.setParameterList(HqlQueryCompiler.parameterName(i), coerced);
+            } else {
+                query.setParameter(HqlQueryCompiler.parameterName(i), coerce(value, parameterTypes[i]));
+            }
+        }
+    }
+
+    /**
+     * Converts a predicate value to the type of the mapped property, so
+     * drivers are never handed a Long for an int column
+     */
+    static Object coerce(Object value, Class<?> type) {
+        if (type == null || type.isInstance(value)) {
+            return value;
+        }
+        if (type == String.class) {
+            return value.toString();
+        }
+        if (value instanceof Date && (type == Long.class || type == long.class)) {
+            return ((Date) value).getTime();
+        }
+        if (value instanceof Long && Date.class.isAssignableFrom(type)) {
+            return new Date((Long) value);
+        }
+        Number number;
+        if (value instanceof Number) {
+            number = (Number) value;
+        } else if (value instanceof String) {
+            try {
+                number = new BigDecimal(((String) value).trim());
+            } catch (NumberFormatException ex) {
+                if (type == Boolean.class || type == boolean.class) {
+                    return Boolean.valueOf((String) value);
+                }
+                throw new IllegalArgumentException("Cannot use " + value + " as " + type.getSimpleName());
+            }
+        } else {
+            return value;
+        }
+        if (type == Integer.class || type == int.class) {
+            return number.intValue();
+        } else if (type == Long.class || type == long.class) {
+            return number.longValue();
+        } else if (type == Short.class || type == short.class) {
+            return number.shortValue();
+        } else if (type == Byte.class || type == byte.class) {
+            return number.byteValue();
+        } else if (type == Double.class || type == double.class) {
+            return number.doubleValue();
+        } else if (type == Float.class || type == float.class) {
+            return number.floatValue();
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(number.toString());
+        } else if (type == BigInteger.class) {
+            return new BigDecimal(number.toString()).toBigInteger();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hibernate.EntityMode;
+import org.hibernate.MappingException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.mgenterprises.openbooks.saving.server.index.IndexedProperty;
+
+/**
+ * Creates a database index for every {@link org.mgenterprises.openbooks.saving.Indexed}
+ * property of the mapped entities that is not the first column of an index
+ * yet. hbm2ddl only creates indexes declared with Hibernate's own annotations,
+ * so the ones declared on saveables are kept here.
+ *
+ * @author Manuel Gauto
+ */
+public class IndexMaintainer {
+    private final SessionFactory sessionFactory;
+    private final SessionTemplate sessionTemplate;
+
+    public IndexMaintainer(SessionFactory sessionFactory, SessionTemplate sessionTemplate) {
+        this.sessionFactory = sessionFactory;
+        this.sessionTemplate = sessionTemplate;
+    }
+
+    /**
+     * Creates the missing indexes
+     *
+     * @return Number of indexes created
+     */
+    public int ensureIndexes() {
+        final List<String[]> wanted = findIndexedColumns();
+        if (wanted.isEmpty()) {
+            return 0;
+        }
+        return sessionTemplate.write(new UnitOfWork<Integer>() {
+            @Override
+            public Integer execute(Session session) {
+                final int[] created = new int[1];
+                session.doWork(new Work() {
+                    @Override
+                    public void execute(Connection connection) throws SQLException {
+                        DatabaseMetaData metaData = connection.getMetaData();
+                        for (String[] column : wanted) {
+                            if (hasIndex(metaData, column[0], column[1])) {
+                                continue;
+                            }
+                            String name = indexName(column[0], column[1]);
+                            try (Statement statement = connection.createStatement()) {
+                                statement.executeUpdate("create index " + name + " on " + column[0] + " (" + column[1] + ")");
+                            }
+                            created[0]++;
+                            Logger.getLogger(IndexMaintainer.class.getName()).log(Level.INFO, "Created index {0}", name);
+                        }
+                    }
+                });
+                return created[0];
+            }
+        });
+    }
+
+    /**
+     * @return Table and column of every indexed property
+     */
+    private List<String[]> findIndexedColumns() {
+        SessionFactoryImplementor factory = (SessionFactoryImplementor) sessionFactory;
+        List<String[]> columns = new ArrayList<String[]>();
+        for (Object value : sessionFactory.getAllClassMetadata().values()) {
+            ClassMetadata metadata = (ClassMetadata) value;
+            Class<?> mappedClass = metadata.getMappedClass(EntityMode.POJO);
+            EntityPersister persister = factory.getEntityPersister(metadata.getEntityName());
+            if (mappedClass == null || !(persister instanceof AbstractEntityPersister)) {
+                continue;
+            }
+            Map<String, IndexedProperty> properties = IndexedProperty.of(mappedClass);
+            AbstractEntityPersister entityPersister = (AbstractEntityPersister) persister;
+            for (IndexedProperty property : properties.values()) {
+                String[] propertyColumns;
+                try {
+                    propertyColumns = entityPersister.getPropertyColumnNames(property.getName());
+                } catch (MappingException ex) {
+                    Logger.getLogger(IndexMaintainer.class.getName()).log(Level.WARNING, "{0}.{1} is indexed but not mapped", new Object[]{mappedClass.getName(), property.getName()});
+                    continue;
+                }
+                if (propertyColumns.length == 1) {
+                    columns.add(new String[]{entityPersister.getTableName(), propertyColumns[0]});
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns whether the column leads an existing index, which the primary
+     * key counts as
+     */
+    private static boolean hasIndex(DatabaseMetaData metaData, String table, String column) throws SQLException {
+        String tableName = table.substring(table.lastIndexOf('.') + 1);
+        if (metaData.storesUpperCaseIdentifiers()) {
+            tableName = tableName.toUpperCase();
+        } else if (metaData.storesLowerCaseIdentifiers()) {
+            tableName = tableName.toLowerCase();
+        }
+        try (ResultSet indexes = metaData.getIndexInfo(null, null, tableName, false, true)) {
+            while (indexes.next()) {
+                if (indexes.getShort("ORDINAL_POSITION") == 1 && column.equalsIgnoreCase(indexes.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String indexName(String table, String column) {
+        return ("IDX_" + table.substring(table.lastIndexOf('.') + 1) + "_" + column).replaceAll("[^A-Za-z0-9_]", "_").toUpperCase();
+    }
+}
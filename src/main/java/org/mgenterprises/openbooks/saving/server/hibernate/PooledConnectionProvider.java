@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.util.PropertiesHelper;
+
+/**
+ * Bounded JDBC connection pool for Hibernate. Enable it with
+ * hibernate.connection.provider_class. Reads the usual connection properties
+ * plus:
+ * <ul>
+ * <li>hibernate.connection.pool_size: most connections open at once, 20 by default</li>
+ * <li>hibernate.connection.checkout_timeout: milliseconds to wait for a free
+ * connection before failing, 10000 by default</li>
+ * </ul>
+ * Connections that sat idle for a while are validated before they are handed
+ * out again, so ones dropped by the database are replaced transparently.
+ *
+ * @author Manuel Gauto
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+    public static final String CHECKOUT_TIMEOUT = "hibernate.connection.checkout_timeout";
+    private static final int DEFAULT_POOL_SIZE = 20;
+    private static final int DEFAULT_CHECKOUT_TIMEOUT = 10000;
+    /**
+     * Idle time after which a connection is validated before reuse
+     */
+    private static final long VALIDATE_AFTER_MILLIS = 30000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private String url;
+    private Properties connectionProperties;
+    private Integer isolation;
+    private boolean autocommit;
+    private long checkoutTimeoutMillis;
+    /**
+     * Idle connections, most recently used first so the warm ones are reused
+     */
+    private final LinkedBlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<IdleConnection>();
+    /**
+     * One permit per connection that may still be handed out
+     */
+    private Semaphore permits;
+    private ConnectionPoolStatistics statistics;
+    private volatile boolean closed;
+
+    @Override
+    public void configure(Properties properties) throws HibernateException {
+        String driverClass = properties.getProperty(Environment.DRIVER);
+        if (driverClass != null) {
+            try {
+                Class.forName(driverClass);
+            } catch (ClassNotFoundException ex) {
+                throw new HibernateException("JDBC driver class not found: " + driverClass, ex);
+            }
+        }
+        url = properties.getProperty(Environment.URL);
+        if (url == null) {
+            throw new HibernateException("No JDBC URL specified by property " + Environment.URL);
+        }
+        connectionProperties = ConnectionProviderFactory.getConnectionProperties(properties);
+        isolation = PropertiesHelper.getInteger(Environment.ISOLATION, properties);
+        autocommit = PropertiesHelper.getBoolean(Environment.AUTOCOMMIT, properties);
+        int poolSize = PropertiesHelper.getInt(Environment.POOL_SIZE, properties, DEFAULT_POOL_SIZE);
+        checkoutTimeoutMillis = PropertiesHelper.getInt(CHECKOUT_TIMEOUT, properties, DEFAULT_CHECKOUT_TIMEOUT);
+        permits = new Semaphore(poolSize, true);
+        statistics = new ConnectionPoolStatistics(poolSize);
+        Logger.getLogger(PooledConnectionProvider.class.getName()).log(Level.INFO, "Connection pool for {0}: {1} connections, {2} ms checkout timeout", new Object[]{url, poolSize, checkoutTimeoutMillis});
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(checkoutTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                statistics.recordTimeout();
+                throw new SQLException("No connection available after " + checkoutTimeoutMillis + " ms, all " + statistics.getPoolSize() + " are in use");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", ex);
+        }
+        try {
+            Connection connection = takeIdleConnection();
+            if (connection == null) {
+                connection = openConnection();
+            }
+            statistics.recordCheckout(System.nanoTime() - start);
+            return connection;
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    private Connection takeIdleConnection() {
+        IdleConnection idleConnection;
+        while ((idleConnection = idleConnections.pollFirst()) != null) {
+            statistics.setIdleConnections(idleConnections.size());
+            Connection connection = idleConnection.connection;
+            if (System.currentTimeMillis() - idleConnection.idleSince < VALIDATE_AFTER_MILLIS || isValid(connection)) {
+                return connection;
+            }
+            discard(connection);
+        }
+        return null;
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, connectionProperties);
+        if (isolation != null) {
+            connection.setTransactionIsolation(isolation);
+        }
+        if (connection.getAutoCommit() != autocommit) {
+            connection.setAutoCommit(autocommit);
+        }
+        statistics.recordCreated();
+        return connection;
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        try {
+            if (closed || connection.isClosed()) {
+                discard(connection);
+                return;
+            }
+            //Never hand out a connection with someone else's transaction on it
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            if (connection.getAutoCommit() != autocommit) {
+                connection.setAutoCommit(autocommit);
+            }
+            idleConnections.offerFirst(new IdleConnection(connection));
+            statistics.setIdleConnections(idleConnections.size());
+        } catch (SQLException ex) {
+            Logger.getLogger(PooledConnectionProvider.class.getName()).log(Level.WARNING, "Discarding connection that could not be reset", ex);
+            discard(connection);
+        } finally {
+            statistics.recordCheckin();
+            permits.release();
+        }
+    }
+
+    private void discard(Connection connection) {
+        statistics.recordDiscarded();
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            Logger.getLogger(PooledConnectionProvider.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    @Override
+    public void close() throws HibernateException {
+        closed = true;
+        IdleConnection idleConnection;
+        while ((idleConnection = idleConnections.pollFirst()) != null) {
+            try {
+                idleConnection.connection.close();
+            } catch (SQLException ex) {
+                Logger.getLogger(PooledConnectionProvider.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        statistics.setIdleConnections(0);
+        Logger.getLogger(PooledConnectionProvider.class.getName()).log(Level.INFO, "Connection pool closed: {0}", statistics);
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+    public ConnectionPoolStatistics getStatistics() {
+        return statistics;
+    }
+
+    private static class IdleConnection {
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        IdleConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
+
+/**
+ * Runs units of work against a session factory. Every session opened here is
+ * closed again before the call returns, whether the work succeeds or not, so
+ * its JDBC connection goes back to the pool.
+ *
+ * Reads of entities without associations use stateless sessions, which skip
+ * the first level cache and dirty checking. Stateless sessions cannot load
+ * collections, so entities with associations are read with a regular session
+ * that is set to read only and never flushed.
+ *
+ * @author Manuel Gauto
+ */
+public class SessionTemplate {
+    private final SessionFactory sessionFactory;
+    /**
+     * Whether an entity can be read with a stateless session, by entity name
+     */
+    private final ConcurrentHashMap<String, Boolean> statelessEntities = new ConcurrentHashMap<String, Boolean>();
+
+    public SessionTemplate(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Runs the work in a new session and transaction. The transaction is
+     * rolled back and the exception rethrown if the work fails.
+     *
+     * @param work Work to run
+     * @return Whatever the work returned
+     */
+    public <T> T write(UnitOfWork<T> work) {
+        Session session = sessionFactory.openSession();
+        Transaction transaction = null;
+        try {
+            transaction = session.beginTransaction();
+            T result = work.execute(session);
+            transaction.commit();
+            return result;
+        } catch (RuntimeException ex) {
+            rollback(transaction);
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Runs read only work in the lightest session that can load the entity
+     *
+     * @param entityName Entity the work reads
+     * @param work Work to run
+     * @return Whatever the work returned
+     */
+    public <T> T read(String entityName, ReadWork<T> work) {
+        if (isStateless(entityName)) {
+            StatelessSession session = sessionFactory.openStatelessSession();
+            Transaction transaction = null;
+            try {
+                transaction = session.beginTransaction();
+                T result = work.execute(new StatelessReadSession(session));
+                transaction.commit();
+                return result;
+            } catch (RuntimeException ex) {
+                rollback(transaction);
+                throw ex;
+            } finally {
+                session.close();
+            }
+        }
+        Session session = sessionFactory.openSession();
+        Transaction transaction = null;
+        try {
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            transaction = session.beginTransaction();
+            T result = work.execute(readSession(session));
+            transaction.commit();
+            return result;
+        } catch (RuntimeException ex) {
+            rollback(transaction);
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Lets read helpers run on a session that a unit of work already has open
+     *
+     * @param session Open session
+     * @return View of the session that can be passed to read helpers
+     */
+    public static ReadSession readSession(Session session) {
+        return new StatefulReadSession(session);
+    }
+
+    /**
+     * @return Counters of the connection pool, or null if the session factory
+     * does not use {@link PooledConnectionProvider}
+     */
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        if (sessionFactory instanceof SessionFactoryImplementor) {
+            ConnectionProvider connectionProvider = ((SessionFactoryImplementor) sessionFactory).getConnectionProvider();
+            if (connectionProvider instanceof PooledConnectionProvider) {
+                return ((PooledConnectionProvider) connectionProvider).getStatistics();
+            }
+        }
+        return null;
+    }
+
+    private boolean isStateless(String entityName) {
+        Boolean stateless = statelessEntities.get(entityName);
+        if (stateless == null) {
+            stateless = Boolean.TRUE;
+            ClassMetadata classMetadata = sessionFactory.getClassMetadata(entityName);
+            if (classMetadata == null) {
+                stateless = Boolean.FALSE;
+            } else {
+                for (Type type : classMetadata.getPropertyTypes()) {
+                    if (type.isAssociationType()) {
+                        stateless = Boolean.FALSE;
+                        break;
+                    }
+                }
+            }
+            statelessEntities.put(entityName, stateless);
+        }
+        return stateless;
+    }
+
+    private static void rollback(Transaction transaction) {
+        if (transaction == null || !transaction.isActive()) {
+            return;
+        }
+        try {
+            transaction.rollback();
+        } catch (HibernateException ex) {
+            Logger.getLogger(SessionTemplate.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static class StatefulReadSession implements ReadSession {
+        private final Session session;
+
+        StatefulReadSession(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public Query createQuery(String queryString) {
+            return session.createQuery(queryString);
+        }
+
+        @Override
+        public Criteria createCriteria(String entityName) {
+            return session.createCriteria(entityName);
+        }
+
+        @Override
+        public void clear() {
+            session.clear();
+        }
+    }
+
+    private static class StatelessReadSession implements ReadSession {
+        private final StatelessSession session;
+
+        StatelessReadSession(StatelessSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public Query createQuery(String queryString) {
+            return session.createQuery(queryString);
+        }
+
+        @Override
+        public Criteria createCriteria(String entityName) {
+            return session.createCriteria(entityName);
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
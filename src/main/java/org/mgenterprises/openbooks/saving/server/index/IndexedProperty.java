@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.index;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.mgenterprises.openbooks.saving.Indexed;
+
+/**
+ * A property of a saveable class that is declared {@link Indexed}. Turns
+ * property values and looked up values into index keys of one type, so that
+ * values that compare equal in a query also share a key: whole numbers and
+ * dates become Long, other numbers Double, characters and enums String.
+ *
+ * @author Manuel Gauto
+ */
+public final class IndexedProperty {
+    /**
+     * Indexed properties by class, in declaration order
+     */
+    private static final ConcurrentHashMap<Class<?>, Map<String, IndexedProperty>> PROPERTIES = new ConcurrentHashMap<Class<?>, Map<String, IndexedProperty>>();
+
+    private final String name;
+    private final boolean ordered;
+    private final Class<?> keyType;
+    private final AccessibleObject accessor;
+
+    private IndexedProperty(String name, boolean ordered, Class<?> valueType, AccessibleObject accessor) {
+        this.name = name;
+        this.ordered = ordered;
+        this.keyType = keyType(valueType);
+        this.accessor = accessor;
+        if (keyType == null) {
+            throw new IllegalArgumentException("Property " + name + " of type " + valueType.getName() + " cannot be indexed");
+        }
+    }
+
+    /**
+     * Returns the indexed properties declared on a class and its superclasses
+     *
+     * @param type Saveable class
+     * @return Properties by name, empty if none are indexed
+     * @throws IllegalArgumentException If an indexed property has a type that
+     * cannot be indexed
+     */
+    public static Map<String, IndexedProperty> of(Class<?> type) {
+        Map<String, IndexedProperty> properties = PROPERTIES.get(type);
+        if (properties == null) {
+            properties = Collections.unmodifiableMap(find(type));
+            PROPERTIES.putIfAbsent(type, properties);
+        }
+        return properties;
+    }
+
+    /**
+     * Returns one indexed property of a class
+     *
+     * @throws IllegalArgumentException If the property is not indexed
+     */
+    public static IndexedProperty of(Class<?> type, String name) {
+        IndexedProperty property = of(type).get(name);
+        if (property == null) {
+            throw new IllegalArgumentException("Property " + name + " of " + type.getName() + " is not indexed");
+        }
+        return property;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Returns the class of the keys, Long, Double, Boolean or String
+     */
+    public Class<?> getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * Reads the key of an object
+     *
+     * @return The key, or null if the property is null
+     */
+    public Object keyOf(Object object) {
+        try {
+            Object value = accessor instanceof Method ? ((Method) accessor).invoke(object) : ((Field) accessor).get(object);
+            return toKey(value);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            throw new IllegalArgumentException("Cannot read " + name + " of " + object.getClass().getName(), ex);
+        }
+    }
+
+    /**
+     * Converts a value to look up to the key type of the index
+     *
+     * @return The key, or null if the value is null
+     * @throws IllegalArgumentException If the value cannot be compared to the
+     * property
+     */
+    public Object toKey(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Date) {
+            value = ((Date) value).getTime();
+        } else if (value instanceof Enum) {
+            value = ((Enum<?>) value).name();
+        } else if (value instanceof Character) {
+            value = value.toString();
+        }
+        try {
+            if (keyType == Long.class) {
+                if (value instanceof Number) {
+                    Number number = (Number) value;
+                    if (number.doubleValue() != number.longValue()) {
+                        throw new IllegalArgumentException("Property " + name + " is a whole number, not " + value);
+                    }
+                    return number.longValue();
+                }
+                if (value instanceof String) {
+                    return Long.valueOf(((String) value).trim());
+                }
+            } else if (keyType == Double.class) {
+                if (value instanceof Number) {
+                    return ((Number) value).doubleValue();
+                }
+                if (value instanceof String) {
+                    return Double.valueOf(((String) value).trim());
+                }
+            } else if (keyType == Boolean.class) {
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                if (value instanceof String) {
+                    return Boolean.valueOf(((String) value).trim());
+                }
+            } else {
+                return value.toString();
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Property " + name + " is a number, not " + value, ex);
+        }
+        throw new IllegalArgumentException("Cannot compare property " + name + " to " + value);
+    }
+
+    private static Class<?> keyType(Class<?> valueType) {
+        if (valueType == long.class || valueType == int.class || valueType == short.class || valueType == byte.class
+                || valueType == Long.class || valueType == Integer.class || valueType == Short.class || valueType == Byte.class
+                || Date.class.isAssignableFrom(valueType)) {
+            return Long.class;
+        }
+        if (valueType == double.class || valueType == float.class || valueType == Double.class || valueType == Float.class) {
+            return Double.class;
+        }
+        if (valueType == boolean.class || valueType == Boolean.class) {
+            return Boolean.class;
+        }
+        if (valueType == String.class || valueType == char.class || valueType == Character.class || valueType.isEnum()) {
+            return String.class;
+        }
+        return null;
+    }
+
+    private static Map<String, IndexedProperty> find(Class<?> type) {
+        Map<String, IndexedProperty> properties = new LinkedHashMap<String, IndexedProperty>();
+        for (Method method : type.getMethods()) {
+            Indexed indexed = method.getAnnotation(Indexed.class);
+            if (indexed == null) {
+                continue;
+            }
+            String methodName = method.getName();
+            int prefix = methodName.startsWith("get") ? 3 : methodName.startsWith("is") ? 2 : 0;
+            if (prefix == 0 || methodName.length() == prefix || method.getParameterTypes().length != 0) {
+                throw new IllegalArgumentException(type.getName() + "." + methodName + " is not a getter and cannot be indexed");
+            }
+            String name = Character.toLowerCase(methodName.charAt(prefix)) + methodName.substring(prefix + 1);
+            properties.put(name, new IndexedProperty(name, indexed.ordered(), method.getReturnType(), method));
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                Indexed indexed = field.getAnnotation(Indexed.class);
+                if (indexed == null || Modifier.isStatic(field.getModifiers()) || properties.containsKey(field.getName())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                properties.put(field.getName(), new IndexedProperty(field.getName(), indexed.ordered(), field.getType(), field));
+            }
+        }
+        return properties;
+    }
+}
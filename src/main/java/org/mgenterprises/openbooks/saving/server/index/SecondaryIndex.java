@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.index;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Ids of the objects of one type by the key of one indexed property. Ordered
+ * properties are kept in a skip list so ranges can be read, the others in a
+ * hash map. Updates must not run concurrently with each other, lookups may
+ * run at any time.
+ *
+ * @author Manuel Gauto
+ */
+class SecondaryIndex {
+    private final IndexedProperty property;
+    private final ConcurrentMap<Object, Set<String>> idsByKey;
+    /**
+     * Current key of every indexed id, to find the entry to drop on update
+     */
+    private final ConcurrentHashMap<String, Object> keysById = new ConcurrentHashMap<String, Object>();
+
+    SecondaryIndex(IndexedProperty property) {
+        this.property = property;
+        if (property.isOrdered()) {
+            this.idsByKey = new ConcurrentSkipListMap<Object, Set<String>>();
+        } else {
+            this.idsByKey = new ConcurrentHashMap<Object, Set<String>>();
+        }
+    }
+
+    IndexedProperty getProperty() {
+        return property;
+    }
+
+    /**
+     * Indexes an object, moving it if its key changed. Null keys are not
+     * indexed, as null never equals anything in a query.
+     */
+    void put(String id, Object object) {
+        Object key = property.keyOf(object);
+        Object previous = key == null ? keysById.remove(id) : keysById.put(id, key);
+        if (previous != null && !previous.equals(key)) {
+            removeId(previous, id);
+        }
+        if (key != null) {
+            Set<String> ids = idsByKey.get(key);
+            if (ids == null) {
+                ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                idsByKey.put(key, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    void remove(String id) {
+        Object previous = keysById.remove(id);
+        if (previous != null) {
+            removeId(previous, id);
+        }
+    }
+
+    /**
+     * @return Ids whose key equals the value
+     */
+    Set<String> get(Object value) {
+        Set<String> ids = idsByKey.get(property.toKey(value));
+        return ids == null ? new HashSet<String>() : new HashSet<String>(ids);
+    }
+
+    /**
+     * @param low Lowest value, or null for no lower bound
+     * @param high Highest value, or null for no upper bound
+     * @return Ids whose key lies in the range
+     * @throws IllegalArgumentException If the index is not ordered
+     */
+    @SuppressWarnings("unchecked")
+    Set<String> range(Object low, boolean lowInclusive, Object high, boolean highInclusive) {
+        if (!property.isOrdered()) {
+            throw new IllegalArgumentException("Index on " + property.getName() + " is not ordered");
+        }
+        ConcurrentNavigableMap<Object, Set<String>> range = (ConcurrentNavigableMap<Object, Set<String>>) idsByKey;
+        Object lowKey = property.toKey(low);
+        Object highKey = property.toKey(high);
+        if (lowKey != null && highKey != null) {
+            if (((Comparable<Object>) lowKey).compareTo(highKey) > 0) {
+                return new HashSet<String>();
+            }
+            range = range.subMap(lowKey, lowInclusive, highKey, highInclusive);
+        } else if (lowKey != null) {
+            range = range.tailMap(lowKey, lowInclusive);
+        } else if (highKey != null) {
+            range = range.headMap(highKey, highInclusive);
+        }
+        return union(range.values());
+    }
+
+    int size() {
+        return keysById.size();
+    }
+
+    private void removeId(Object key, String id) {
+        Set<String> ids = idsByKey.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                idsByKey.remove(key, ids);
+            }
+        }
+    }
+
+    private static Set<String> union(Collection<Set<String>> sets) {
+        Set<String> ids = new HashSet<String>();
+        for (Set<String> set : sets) {
+            ids.addAll(set);
+        }
+        return ids;
+    }
+}
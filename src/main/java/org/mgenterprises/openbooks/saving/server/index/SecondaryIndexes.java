@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.index;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.mgenterprises.openbooks.saving.query.BetweenPredicate;
+import org.mgenterprises.openbooks.saving.query.Comparison;
+import org.mgenterprises.openbooks.saving.query.InPredicate;
+import org.mgenterprises.openbooks.saving.query.Junction;
+import org.mgenterprises.openbooks.saving.query.LikePredicate;
+import org.mgenterprises.openbooks.saving.query.NotPredicate;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.PredicateVisitor;
+
+/**
+ * In memory indexes on the {@link org.mgenterprises.openbooks.saving.Indexed}
+ * properties of one saveable type. Used by save managers that cannot ask a
+ * database to do the lookup. Updates must not run concurrently with each
+ * other, lookups may run at any time.
+ *
+ * @author Manuel Gauto
+ */
+public class SecondaryIndexes {
+    private final Map<String, SecondaryIndex> indexes = new LinkedHashMap<String, SecondaryIndex>();
+    private final Class<?> type;
+
+    public SecondaryIndexes(Class<?> type) {
+        this.type = type;
+        for (IndexedProperty property : IndexedProperty.of(type).values()) {
+            indexes.put(property.getName(), new SecondaryIndex(property));
+        }
+    }
+
+    /**
+     * Returns whether the type has no indexed properties
+     */
+    public boolean isEmpty() {
+        return indexes.isEmpty();
+    }
+
+    /**
+     * Adds or updates an object in every index
+     */
+    public void put(String id, Object object) {
+        for (SecondaryIndex index : indexes.values()) {
+            index.put(id, object);
+        }
+    }
+
+    /**
+     * Drops an id from every index
+     */
+    public void remove(String id) {
+        for (SecondaryIndex index : indexes.values()) {
+            index.remove(id);
+        }
+    }
+
+    /**
+     * @return Ids of the objects whose property equals the value
+     * @throws IllegalArgumentException If the property is not indexed or the
+     * value cannot be compared to it
+     */
+    public Set<String> lookup(String property, Object value) {
+        return index(property).get(value);
+    }
+
+    /**
+     * @param low Lowest value, inclusive, or null for no lower bound
+     * @param high Highest value, inclusive, or null for no upper bound
+     * @return Ids of the objects whose property lies in the range
+     * @throws IllegalArgumentException If the property is not indexed and
+     * ordered, or a bound cannot be compared to it
+     */
+    public Set<String> lookupRange(String property, Object low, Object high) {
+        return index(property).range(low, true, high, true);
+    }
+
+    /**
+     * Narrows a query down with the indexes. Every object that matches the
+     * predicate is among the returned ids, but not every returned id has to
+     * match, so the predicate still has to be evaluated on them.
+     *
+     * @return Candidate ids, or null if no index helps and every object has
+     * to be read
+     */
+    public Set<String> candidates(Predicate predicate) {
+        if (indexes.isEmpty()) {
+            return null;
+        }
+        return predicate.accept(new Planner());
+    }
+
+    private SecondaryIndex index(String property) {
+        SecondaryIndex index = indexes.get(property);
+        if (index == null) {
+            throw new IllegalArgumentException("Property " + property + " of " + type.getName() + " is not indexed");
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of a property if it can answer comparisons with the
+     * value exactly the way the predicate evaluator does
+     */
+    private SecondaryIndex usableIndex(String property, Object value) {
+        SecondaryIndex index = indexes.get(property);
+        if (index == null || value == null) {
+            return null;
+        }
+        //The evaluator compares numeric strings as numbers, "05" would equal 5
+        if (index.getProperty().getKeyType() == String.class && !(value instanceof String)) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Finds candidate ids for a predicate, null meaning everything
+     */
+    private class Planner implements PredicateVisitor<Set<String>> {
+
+        @Override
+        public Set<String> visit(Comparison comparison) {
+            SecondaryIndex index = usableIndex(comparison.getProperty(), comparison.getValue());
+            if (index == null) {
+                return null;
+            }
+            Object value = comparison.getValue();
+            try {
+                switch (comparison.getOperation()) {
+                    case EQUALS:
+                        return index.get(value);
+                    case GREATER:
+                        return index.getProperty().isOrdered() ? index.range(value, false, null, false) : null;
+                    case GREATER_EQUALS:
+                        return index.getProperty().isOrdered() ? index.range(value, true, null, false) : null;
+                    case LESS:
+                        return index.getProperty().isOrdered() ? index.range(null, false, value, false) : null;
+                    case LESS_EQUALS:
+                        return index.getProperty().isOrdered() ? index.range(null, false, value, true) : null;
+                    default:
+                        return null;
+                }
+            } catch (IllegalArgumentException ex) {
+                //Let the evaluator report it
+                return null;
+            }
+        }
+
+        @Override
+        public Set<String> visit(InPredicate in) {
+            Set<String> ids = new HashSet<String>();
+            for (Object value : in.getValues()) {
+                SecondaryIndex index = usableIndex(in.getProperty(), value);
+                if (index == null) {
+                    return null;
+                }
+                try {
+                    ids.addAll(index.get(value));
+                } catch (IllegalArgumentException ex) {
+                    return null;
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public Set<String> visit(BetweenPredicate between) {
+            SecondaryIndex index = usableIndex(between.getProperty(), between.getLow());
+            if (index == null || !index.getProperty().isOrdered() || usableIndex(between.getProperty(), between.getHigh()) == null) {
+                return null;
+            }
+            try {
+                return index.range(between.getLow(), true, between.getHigh(), true);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public Set<String> visit(LikePredicate like) {
+            return null;
+        }
+
+        @Override
+        public Set<String> visit(NotPredicate not) {
+            return null;
+        }
+
+        @Override
+        public Set<String> visit(Junction junction) {
+            if (junction.getType() == Junction.Type.AND) {
+                //Any operand narrows it down, intersect the ones that can
+                Set<String> ids = null;
+                for (Predicate operand : junction.getOperands()) {
+                    Set<String> operandIds = operand.accept(this);
+                    if (operandIds == null) {
+                        continue;
+                    }
+                    if (ids == null) {
+                        ids = operandIds;
+                    } else {
+                        ids.retainAll(operandIds);
+                    }
+                }
+                return ids;
+            }
+            //Every operand has to be narrowed down or nothing is
+            Set<String> ids = new HashSet<String>();
+            for (Predicate operand : junction.getOperands()) {
+                Set<String> operandIds = operand.accept(this);
+                if (operandIds == null) {
+                    return null;
+                }
+                ids.addAll(operandIds);
+            }
+            return ids;
+        }
+    }
+}
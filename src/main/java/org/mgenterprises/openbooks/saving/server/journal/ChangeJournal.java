@@ -26,24 +26,50 @@ package org.mgenterprises.openbooks.saving.server.journal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.mgenterprises.openbooks.saving.EqualityOperation;
 import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicates;
 import org.mgenterprises.openbooks.saving.server.SaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
 
 /**
  *
  * @author Manuel Gauto
  */
 public class ChangeJournal {
+    /**
+     * Returned by {@link #recordWrites} for an object of an optimistic type
+     * whose version did not match
+     */
+    public static final long CONFLICT = -2;
+    private static final int VERSION_CHUNK_SIZE = 500;
     String type = new ChangeRecord().getSaveableModuleName();
     private SaveManager saveManager;
     private int cacheCount=100;
-    private long changeId = 0;
-    private long cacheStartId;
-    private HashMap<Long, ChangeRecord> changeMap = new HashMap<Long, ChangeRecord>();
+    private volatile long changeId = 0;
+    /**
+     * Version of every journaled object of the optimistic types, by type and
+     * id. The version of an object is one past the id of its latest change.
+     */
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> versions = new ConcurrentHashMap<String, ConcurrentHashMap<String, Long>>();
+    /**
+     * The most recent ChangeRecords, older entries are evicted as new ones
+     * are recorded so the window always ends at {@link #changeId}
+     */
+    private LinkedHashMap<Long, ChangeRecord> changeMap = new LinkedHashMap<Long, ChangeRecord>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ChangeRecord> eldest) {
+            return size() > cacheCount;
+        }
+    };
+    private CopyOnWriteArrayList<ChangeJournalListener> listeners = new CopyOnWriteArrayList<ChangeJournalListener>();
 
     public ChangeJournal(SaveManager saveManager) {
         this.saveManager = saveManager;
@@ -53,20 +79,21 @@ public class ChangeJournal {
         //Get the last Id used
         changeId = curSize-1;
         //Lets grab that last 100 entries and cache them
-        String[] keys = {"changeId"};
-        EqualityOperation[] operations = {EqualityOperation.GREATER_EQUALS};
         long startIndex = curSize-cacheCount;
-        String[] values = {String.valueOf(startIndex)};
-        String[] conjunctions = {""};
         Logger.getLogger("SaveServer").info("Caching last "+cacheCount+" ChangeRecords");
-        Saveable[] saveables = saveManager.getWhere(type, keys, operations, values, conjunctions);
+        Saveable[] saveables = saveManager.getWhere(type, Predicates.ge("changeId", startIndex));
         
         //If there are some entries lets cast them
         if(saveables.length>0) {
             Logger.getLogger("SaveServer").info("ChangeRecords retrieved");
             
-            for(Saveable saveable : saveables) {
-                ChangeRecord changeRecord = (ChangeRecord) saveable;
+            ChangeRecord[] changes = new ChangeRecord[saveables.length];
+            for(int i = 0; i < saveables.length; i++) {
+                changes[i] = (ChangeRecord) saveables[i];
+            }
+            //The cache window is kept in id order
+            sortById(changes);
+            for(ChangeRecord changeRecord : changes) {
                 changeMap.put(changeRecord.getChangeId(), changeRecord);
             }
             Logger.getLogger("SaveServer").info("ChangeRecords stored");
@@ -76,37 +103,62 @@ public class ChangeJournal {
     }
     
     /**
-     * Retrieves all ChangeRecords that are logged since the id indicated
+     * Retrieves all ChangeRecords that are logged after the id indicated
      * 
-     * @param id Id to start search at
-     * @return Requested ChangeRecords
+     * @param id Last id the caller has already seen
+     * @return Requested ChangeRecords, oldest first
      */
     public synchronized ChangeRecord[] getChangesSince(long id) {
-        if(changeMap.size()==0) {
+        if(id>=changeId) {
             return new ChangeRecord[0];
         }
-        if(id>=cacheStartId) {
-            int responseSize = changeMap.size()-((int)id-(int)cacheStartId);
+        long cacheStartId = changeMap.isEmpty() ? changeId+1 : changeMap.keySet().iterator().next();
+        if(id+1>=cacheStartId) {
+            int responseSize = (int) (changeId-id);
             ChangeRecord[] response = new ChangeRecord[responseSize];
             for(int i = 0; i < responseSize; i++) {
-                response[i] = changeMap.get(new Long(i));
+                response[i] = changeMap.get(id+1+i);
             }
             return response;
         } else {
-            String[] keys = {"changeId"};
-            EqualityOperation[] operations = {EqualityOperation.GREATER_EQUALS};
-            String[] values = {String.valueOf(id)};
-            String[] conjunctions = {""};
-            Saveable[] saveables = saveManager.getWhere(type, keys, operations, values, conjunctions);
+            Saveable[] saveables = saveManager.getWhere(type, Predicates.gt("changeId", id));
             ChangeRecord[] changes = new ChangeRecord[saveables.length];
             for(int i =0;i < saveables.length; i++) {
                 changes[i] = (ChangeRecord) saveables[i];
             }
-            
+            sortById(changes);
             return changes;
         }
     }
     
+    private static void sortById(ChangeRecord[] changes) {
+        Arrays.sort(changes, new Comparator<ChangeRecord>() {
+            @Override
+            public int compare(ChangeRecord a, ChangeRecord b) {
+                return Long.compare(a.getChangeId(), b.getChangeId());
+            }
+        });
+    }
+    
+    /**
+     * Registers a listener that is told about every change as it is recorded
+     * 
+     * @param listener Listener to add
+     */
+    public void addChangeJournalListener(ChangeJournalListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeChangeJournalListener(ChangeJournalListener listener) {
+        listeners.remove(listener);
+    }
+    
+    private void fireChangesRecorded(ChangeRecord[] changes) {
+        for(ChangeJournalListener listener : listeners) {
+            listener.changesRecorded(changes);
+        }
+    }
+    
     /**
      * Get a ChangeRecord by ID
      * 
@@ -132,15 +184,171 @@ public class ChangeJournal {
     }
     
     /**
-     * Save ChangeRecord to Journal
+     * Returns the latest change id without waiting for a write in progress.
+     * Every change up to the stamp is committed, so an object read after
+     * taking the stamp is at least as new as its version if its latest
+     * change is not newer than the stamp.
+     * 
+     * @return Latest change id that is committed
+     */
+    public long getVersionStamp() {
+        return this.changeId;
+    }
+    
+    /**
+     * Switches a type between optimistic and pessimistic concurrency. The
+     * versions of an optimistic type are loaded from the journal, writes
+     * wait until that is done.
+     * 
+     * @param saveableType Saveable module name
+     * @param optimistic true to compare versions on every write of the type
+     */
+    public synchronized void setOptimistic(String saveableType, boolean optimistic) {
+        if(!optimistic) {
+            versions.remove(saveableType);
+            return;
+        }
+        if(versions.containsKey(saveableType)) {
+            return;
+        }
+        final ConcurrentHashMap<String, Long> typeVersions = new ConcurrentHashMap<String, Long>();
+        saveManager.streamWhere(type, Predicates.eq("type", saveableType), VERSION_CHUNK_SIZE, new SaveableVisitor() {
+            @Override
+            public boolean visit(Saveable[] chunk) {
+                for(Saveable saveable : chunk) {
+                    ChangeRecord change = (ChangeRecord) saveable;
+                    Long version = typeVersions.get(change.getObjectId());
+                    if(version == null || version < change.getChangeId()+1) {
+                        typeVersions.put(change.getObjectId(), change.getChangeId()+1);
+                    }
+                }
+                return true;
+            }
+        });
+        versions.put(saveableType, typeVersions);
+        Logger.getLogger("SaveServer").log(Level.INFO, "Loaded versions of {0} objects of {1}", new Object[]{typeVersions.size(), saveableType});
+    }
+    
+    /**
+     * @param saveableType Saveable module name
+     * @return true if writes of the type compare versions
+     */
+    public boolean isOptimistic(String saveableType) {
+        return versions.containsKey(saveableType);
+    }
+    
+    /**
+     * Returns the version of an object of an optimistic type
+     * 
+     * @param saveableType Saveable module name
+     * @param id Id of the object
+     * @return Version of the object, 0 if it was never journaled or the type
+     * is not optimistic
+     */
+    public long getVersion(String saveableType, String id) {
+        ConcurrentHashMap<String, Long> typeVersions = versions.get(saveableType);
+        if(typeVersions == null) {
+            return 0;
+        }
+        Long version = typeVersions.get(id);
+        return version == null ? 0 : version;
+    }
+    
+    /**
+     * Persists objects and journals them in the same transaction, so a
+     * change id is only handed out once the object is stored. The records
+     * of the persisted objects receive consecutive ids. Objects of an
+     * optimistic type are only written if their version is still current.
      * 
-     * @param change ChangeRecord to save
+     * @param holders User each object is persisted for
+     * @param saveables Objects to persist
+     * @return The change id of each object in the same order, -1 where the
+     * object is locked by someone else, {@link #CONFLICT} where its version is
+     * out of date, or null if nothing could be committed
      */
-    public synchronized long recordChange(ChangeRecord change) {
-        changeId++;
-        change.setChangeId(changeId);
-        saveManager.persistSaveable(type, "SERVER", change);
-        this.changeMap.put(change.getChangeId(), change);
-        return changeId;
+    public synchronized long[] recordWrites(String[] holders, Saveable[] saveables) {
+        if(versions.isEmpty()) {
+            return accept(saveManager.persistJournaled(holders, saveables, changeId+1));
+        }
+        boolean[] conflicts = new boolean[saveables.length];
+        int conflictCount = 0;
+        HashSet<String> written = new HashSet<String>();
+        for(int i = 0; i < saveables.length; i++) {
+            String saveableType = saveables[i].getSaveableModuleName();
+            if(!isOptimistic(saveableType)) {
+                continue;
+            }
+            String id = saveables[i].getUniqueId();
+            //A second write of the same object in one batch was based on the version the first one replaces
+            if(!written.add(saveableType+'\u0000'+id) || saveables[i].getVersion() != getVersion(saveableType, id)) {
+                conflicts[i] = true;
+                conflictCount++;
+            }
+        }
+        if(conflictCount == 0) {
+            return accept(saveManager.persistJournaled(holders, saveables, changeId+1));
+        }
+        String[] passedHolders = new String[saveables.length-conflictCount];
+        Saveable[] passed = new Saveable[passedHolders.length];
+        for(int i = 0, j = 0; i < saveables.length; i++) {
+            if(!conflicts[i]) {
+                passedHolders[j] = holders[i];
+                passed[j++] = saveables[i];
+            }
+        }
+        long[] passedIds = passed.length == 0 ? new long[0] : accept(saveManager.persistJournaled(passedHolders, passed, changeId+1));
+        if(passedIds == null) {
+            return null;
+        }
+        long[] ids = new long[saveables.length];
+        for(int i = 0, j = 0; i < saveables.length; i++) {
+            ids[i] = conflicts[i] ? CONFLICT : passedIds[j++];
+        }
+        return ids;
+    }
+    
+    /**
+     * Removes objects and journals them in the same transaction, so clients
+     * that keep objects learn about every removal.
+     * 
+     * @param holder User that must hold the lock of each object
+     * @param type Saveable module name
+     * @param ids Ids of the objects to remove
+     * @return The change id of each object in the same order, -1 where the
+     * object does not exist or is not locked by the holder, or null if
+     * nothing could be committed
+     */
+    public synchronized long[] recordRemovals(String holder, String type, String[] ids) {
+        return accept(saveManager.removeJournaled(holder, type, ids, changeId+1));
+    }
+    
+    /**
+     * Takes in the records of a committed transaction, whose ids follow the
+     * latest change id
+     */
+    private long[] accept(ChangeRecord[] records) {
+        if(records == null) {
+            return null;
+        }
+        long[] ids = new long[records.length];
+        ArrayList<ChangeRecord> recorded = new ArrayList<ChangeRecord>(records.length);
+        for(int i = 0; i < records.length; i++) {
+            if(records[i] == null) {
+                ids[i] = -1;
+            } else {
+                ids[i] = records[i].getChangeId();
+                recorded.add(records[i]);
+                this.changeMap.put(records[i].getChangeId(), records[i]);
+                ConcurrentHashMap<String, Long> typeVersions = versions.get(records[i].getType());
+                if(typeVersions != null) {
+                    typeVersions.put(records[i].getObjectId(), records[i].getChangeId()+1);
+                }
+            }
+        }
+        changeId += recorded.size();
+        if(!recorded.isEmpty()) {
+            fireChangesRecorded(recorded.toArray(new ChangeRecord[recorded.size()]));
+        }
+        return ids;
     }
 }
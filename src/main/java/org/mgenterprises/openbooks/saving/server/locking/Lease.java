@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lease of one holder on all of its locks. Any request of the holder renews
+ * it, when it runs out the locks are released by the {@link LeaseSweeper}.
+ *
+ * The keys and the expired flag are guarded by the monitor of the lease, so
+ * a lock cannot be added to a lease while it is being expired.
+ *
+ * @author Manuel Gauto
+ */
+final class Lease {
+    private final String holder;
+    private volatile long expiresAt;
+    private final Set<LockKey> keys = new HashSet<LockKey>();
+    private boolean expired = false;
+
+    Lease(String holder, long expiresAt) {
+        this.holder = holder;
+        this.expiresAt = expiresAt;
+    }
+
+    String getHolder() {
+        return holder;
+    }
+
+    /**
+     * @return Time in milliseconds since the epoch at which the lease ends
+     * unless it is renewed
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    void renew(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Must be called holding the monitor of the lease
+     */
+    boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Marks the lease expired and hands out its keys. Must be called holding
+     * the monitor of the lease.
+     */
+    List<LockKey> expire() {
+        expired = true;
+        List<LockKey> expiredKeys = new ArrayList<LockKey>(keys);
+        keys.clear();
+        return expiredKeys;
+    }
+
+    /**
+     * Must be called holding the monitor of the lease
+     */
+    void add(LockKey key) {
+        keys.add(key);
+    }
+
+    /**
+     * Must be called holding the monitor of the lease
+     */
+    void remove(LockKey key) {
+        keys.remove(key);
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+}
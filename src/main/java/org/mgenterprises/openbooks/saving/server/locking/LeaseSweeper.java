@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expires leases from a delay queue, so each pass only looks at leases that
+ * are due instead of scanning every lock. Every lease sits in the queue once
+ * with the deadline it had when it was queued. A lease that was renewed
+ * meanwhile is queued again with its new deadline, so renewals themselves
+ * never touch the queue.
+ *
+ * @author Manuel Gauto
+ */
+class LeaseSweeper implements Runnable {
+    private final LockTable lockTable;
+    private final DelayQueue<Expiry> queue = new DelayQueue<Expiry>();
+    private Thread thread;
+
+    LeaseSweeper(LockTable lockTable) {
+        this.lockTable = lockTable;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "SaveServer-lease-sweeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Queues a lease to be looked at once its current deadline has passed
+     */
+    void schedule(Lease lease) {
+        queue.offer(new Expiry(lease, lease.getExpiresAt()));
+    }
+
+    /**
+     * @return Number of leases waiting for their deadline
+     */
+    int getQueuedLeases() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Lease lease = queue.take().lease;
+                if (!lockTable.expire(lease)) {
+                    schedule(lease);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                Logger.getLogger(LeaseSweeper.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static final class Expiry implements Delayed {
+        final Lease lease;
+        final long deadline;
+
+        Expiry(Lease lease, long deadline) {
+            this.lease = lease;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = deadline - ((Expiry) other).deadline;
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.server.ResourceLock;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+
+/**
+ * Holds the lock of every object in memory, so a lock check is a map lookup
+ * instead of a storage query.
+ *
+ * A lock is acquired with a compare-and-set on the table, so of several
+ * users asking for a free lock exactly one wins. With write-through on, which
+ * is the default, acquired locks are also stored through a SaveManager and
+ * the stored locks are read back by {@link #load}, so they survive a crash.
+ * Acquires and releases that write through hold the monitor of the key's
+ * stripe while they change storage, so the stored locks of a key change in
+ * the same order as the table.
+ *
+ * The locks of a holder are held on a {@link Lease} that {@link #renew}
+ * extends. Once {@link #start} was called, the locks of a lease that was not
+ * renewed for the lease time are released, so abandoned locks do not block
+ * other users forever. The monitor of a lease is always taken before the
+ * monitor of a stripe.
+ *
+ * @author Manuel Gauto
+ */
+public class LockTable {
+    /**
+     * Time locks stay held without a request from their holder, unless set
+     * otherwise
+     */
+    public static final long DEFAULT_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    private static final int STRIPES = 64;
+    private final SaveManager store;
+    private final ConcurrentHashMap<LockKey, LockEntry> locks = new ConcurrentHashMap<LockKey, LockEntry>(1024, 0.75f, STRIPES);
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+    private final LeaseSweeper sweeper = new LeaseSweeper(this);
+    private final Object[] stripes = new Object[STRIPES];
+    private final AtomicLong expiredLocks = new AtomicLong();
+    private volatile boolean writeThrough = true;
+    private volatile long leaseMillis = DEFAULT_LEASE_MILLIS;
+
+    /**
+     * @param store SaveManager the locks are written through to
+     */
+    public LockTable(SaveManager store) {
+        this.store = store;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Reads the stored locks into the table. They get a fresh lease, the
+     * time they were taken is not stored precisely enough to continue the
+     * old one.
+     *
+     * @return Number of locks read
+     */
+    public int load() {
+        ResourceLock[] stored = store.getLocks();
+        for (ResourceLock lock : stored) {
+            LockKey key = new LockKey(lock.getType(), lock.getId());
+            Lease lease = getLease(lock.getHolder());
+            synchronized (lease) {
+                locks.put(key, new LockEntry(lock.getHolder(), true, lease));
+                lease.add(key);
+            }
+        }
+        return stored.length;
+    }
+
+    /**
+     * Starts releasing the locks of leases that ran out
+     */
+    public void start() {
+        sweeper.start();
+    }
+
+    public void stop() {
+        sweeper.stop();
+    }
+
+    /**
+     * @return Whether acquired locks are stored as well
+     */
+    public boolean isWriteThrough() {
+        return writeThrough;
+    }
+
+    /**
+     * Turning write-through off keeps new locks in memory only, they are lost
+     * when the server stops. Locks that were stored are still removed from
+     * storage when they are released.
+     */
+    public void setWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Sets how long locks stay held without a request from their holder.
+     * Leases that exist keep their current deadline until they are renewed.
+     *
+     * @param leaseMillis Lease time, 0 or less to never expire locks
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * @return Number of locks held
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    /**
+     * @return Number of holders with a lease
+     */
+    public int getLeaseCount() {
+        return leases.size();
+    }
+
+    /**
+     * @return Number of locks released because their lease ran out
+     */
+    public long getExpiredLocks() {
+        return expiredLocks.get();
+    }
+
+    /**
+     * @return Holder of the lock, or null if the object is not locked
+     */
+    public String getHolder(String type, String id) {
+        LockEntry entry = locks.get(new LockKey(type, id));
+        return entry == null ? null : entry.holder;
+    }
+
+    /**
+     * Extends the lease of a holder by the lease time from now
+     */
+    public void renew(String holder) {
+        Lease lease = leases.get(holder);
+        if (lease != null) {
+            lease.renew(deadline());
+        }
+    }
+
+    /**
+     * @return Milliseconds until the locks of the holder are released unless
+     * it is renewed, 0 if the holder has no lease and -1 if locks do not
+     * expire
+     */
+    public long getLeaseRemaining(String holder) {
+        if (leaseMillis <= 0) {
+            return -1;
+        }
+        Lease lease = leases.get(holder);
+        return lease == null ? 0 : Math.max(0, lease.getExpiresAt() - System.currentTimeMillis());
+    }
+
+    /**
+     * Locks an object for the holder unless someone else holds its lock
+     *
+     * @return true if the holder holds the lock afterwards, also when it
+     * already did before
+     */
+    public boolean acquire(String holder, String type, String id) {
+        LockKey key = new LockKey(type, id);
+        LockEntry entry = locks.get(key);
+        if (entry != null && !entry.holder.equals(holder)) {
+            return false;
+        }
+        while (true) {
+            Lease lease = getLease(holder);
+            synchronized (lease) {
+                if (lease.isExpired()) {
+                    //The sweeper took it, the holder gets a new one
+                    continue;
+                }
+                LockEntry acquired = new LockEntry(holder, writeThrough, lease);
+                if (!acquired.persisted) {
+                    entry = locks.putIfAbsent(key, acquired);
+                } else {
+                    synchronized (stripe(key)) {
+                        entry = locks.putIfAbsent(key, acquired);
+                        if (entry == null && !store.createLock(holder, type, id)) {
+                            locks.remove(key, acquired);
+                            return false;
+                        }
+                    }
+                }
+                if (entry != null) {
+                    //A lock of an expired lease is about to be released
+                    return entry.lease == lease;
+                }
+                lease.add(key);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Locks several objects of one type for the holder in one pass over the
+     * table. The lease of the holder is held throughout, so its locks cannot
+     * expire or be released half way.
+     *
+     * @param all true to lock every object or none: if one of them is held
+     * by someone else the locks taken by this call are released again
+     * @return Whether the holder holds each lock afterwards, aligned with ids
+     */
+    public boolean[] acquireAll(String holder, String type, String[] ids, boolean all) {
+        boolean[] held = new boolean[ids.length];
+        while (true) {
+            Lease lease = getLease(holder);
+            synchronized (lease) {
+                if (lease.isExpired()) {
+                    continue;
+                }
+                Map<LockKey, LockEntry> taken = new HashMap<LockKey, LockEntry>();
+                boolean complete = true;
+                for (int i = 0; i < ids.length; i++) {
+                    LockKey key = new LockKey(type, ids[i]);
+                    LockEntry entry = locks.get(key);
+                    //Once the set is incomplete nothing more is taken, but locks held before are still reported
+                    if (entry == null && (complete || !all)) {
+                        LockEntry acquired = new LockEntry(holder, writeThrough, lease);
+                        if (!acquired.persisted) {
+                            entry = locks.putIfAbsent(key, acquired);
+                        } else {
+                            synchronized (stripe(key)) {
+                                entry = locks.putIfAbsent(key, acquired);
+                                if (entry == null && !store.createLock(holder, type, ids[i])) {
+                                    locks.remove(key, acquired);
+                                    complete = false;
+                                    continue;
+                                }
+                            }
+                        }
+                        if (entry == null) {
+                            lease.add(key);
+                            taken.put(key, acquired);
+                            held[i] = true;
+                            continue;
+                        }
+                    }
+                    held[i] = entry != null && entry.lease == lease;
+                    complete &= held[i];
+                }
+                if (all && !complete && !taken.isEmpty()) {
+                    List<String> stored = new ArrayList<String>();
+                    for (Map.Entry<LockKey, LockEntry> lock : taken.entrySet()) {
+                        if (remove(lock.getKey(), lock.getValue())) {
+                            lease.remove(lock.getKey());
+                            if (lock.getValue().persisted) {
+                                stored.add(lock.getKey().getId());
+                            }
+                        }
+                    }
+                    if (!stored.isEmpty()) {
+                        store.removeLocks(holder, type, stored.toArray(new String[stored.size()]));
+                    }
+                    //Only the locks held before the call are left
+                    for (int i = 0; i < ids.length; i++) {
+                        held[i] = held[i] && !taken.containsKey(new LockKey(type, ids[i]));
+                    }
+                }
+                return held;
+            }
+        }
+    }
+
+    /**
+     * Releases a lock if the holder holds it
+     *
+     * @return true if the lock was released
+     */
+    public boolean release(String holder, String type, String id) {
+        LockKey key = new LockKey(type, id);
+        LockEntry entry = locks.get(key);
+        if (entry == null || !entry.holder.equals(holder)) {
+            return false;
+        }
+        synchronized (entry.lease) {
+            if (!entry.persisted) {
+                if (!locks.remove(key, entry)) {
+                    return false;
+                }
+            } else {
+                synchronized (stripe(key)) {
+                    if (!locks.remove(key, entry)) {
+                        return false;
+                    }
+                    store.removeLocks(holder, type, new String[]{id});
+                }
+            }
+            entry.lease.remove(key);
+            return true;
+        }
+    }
+
+    /**
+     * Releases the lock of an object whoever holds it
+     *
+     * @return true if a lock was released
+     */
+    public boolean release(String type, String id) {
+        LockEntry entry = locks.get(new LockKey(type, id));
+        return entry != null && release(entry.holder, type, id);
+    }
+
+    /**
+     * Releases the locks of one type that the holder holds. The stored locks
+     * are removed with a single write after the table is updated, until then
+     * an acquire that writes through is refused as if the lock were held.
+     *
+     * @return Number of locks released
+     */
+    public int releaseAll(String holder, String type, String[] ids) {
+        Lease lease = leases.get(holder);
+        if (lease == null) {
+            return 0;
+        }
+        List<String> stored = new ArrayList<String>();
+        int released = 0;
+        synchronized (lease) {
+            if (lease.isExpired()) {
+                return 0;
+            }
+            for (String id : ids) {
+                LockKey key = new LockKey(type, id);
+                LockEntry entry = locks.get(key);
+                if (entry != null && entry.lease == lease && remove(key, entry)) {
+                    lease.remove(key);
+                    released++;
+                    if (entry.persisted) {
+                        stored.add(id);
+                    }
+                }
+            }
+            if (!stored.isEmpty()) {
+                store.removeLocks(holder, type, stored.toArray(new String[stored.size()]));
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Releases the locks of a lease if it ran out. Called by the sweeper.
+     *
+     * @return false if the lease was renewed and has to be looked at again
+     */
+    boolean expire(Lease lease) {
+        int released = 0;
+        synchronized (lease) {
+            if (lease.getExpiresAt() > System.currentTimeMillis()) {
+                return false;
+            }
+            leases.remove(lease.getHolder(), lease);
+            Map<String, List<String>> stored = new HashMap<String, List<String>>();
+            for (LockKey key : lease.expire()) {
+                LockEntry entry = locks.get(key);
+                if (entry != null && entry.lease == lease && remove(key, entry)) {
+                    released++;
+                    if (entry.persisted) {
+                        List<String> ids = stored.get(key.getType());
+                        if (ids == null) {
+                            ids = new ArrayList<String>();
+                            stored.put(key.getType(), ids);
+                        }
+                        ids.add(key.getId());
+                    }
+                }
+            }
+            for (Map.Entry<String, List<String>> type : stored.entrySet()) {
+                List<String> ids = type.getValue();
+                store.removeLocks(lease.getHolder(), type.getKey(), ids.toArray(new String[ids.size()]));
+            }
+        }
+        if (released > 0) {
+            expiredLocks.addAndGet(released);
+            Logger.getLogger("SaveServer").log(Level.INFO, "Lease of {0} ran out, released {1} locks", new Object[]{lease.getHolder(), released});
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lease of a holder, starting one if it has none
+     */
+    private Lease getLease(String holder) {
+        Lease lease = leases.get(holder);
+        if (lease == null) {
+            Lease created = new Lease(holder, deadline());
+            lease = leases.putIfAbsent(holder, created);
+            if (lease == null) {
+                lease = created;
+                sweeper.schedule(created);
+            }
+        }
+        return lease;
+    }
+
+    private long deadline() {
+        long millis = leaseMillis;
+        return millis > 0 ? System.currentTimeMillis() + millis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Removes an entry from the table if it is still there. Stored locks are
+     * left to the caller, so they can be removed in one write.
+     */
+    private boolean remove(LockKey key, LockEntry entry) {
+        if (!entry.persisted) {
+            return locks.remove(key, entry);
+        }
+        synchronized (stripe(key)) {
+            return locks.remove(key, entry);
+        }
+    }
+
+    private Object stripe(LockKey key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Holder of a lock, whether the lock is stored and the lease it is held
+     * on. Entries are compared by identity, so a release only removes the
+     * entry it looked at.
+     */
+    private static final class LockEntry {
+        final String holder;
+        final boolean persisted;
+        final Lease lease;
+
+        LockEntry(String holder, boolean persisted, Lease lease) {
+            this.holder = holder;
+            this.persisted = persisted;
+            this.lease = lease;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.server.ResourceLock;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+
+/**
+ * Serves the locks of another SaveManager from a {@link LockTable}, so lock
+ * checks never touch storage.
+ *
+ * Writes and removes are checked against the table before they are handed
+ * to the backing SaveManager, which only sees the locks the table writes
+ * through. Locks must not be changed without going through this class.
+ *
+ * @author Manuel Gauto
+ */
+public class LockingSaveManager implements SaveManager {
+    private final SaveManager saveManager;
+    private final LockTable lockTable;
+
+    /**
+     * Loads the locks stored by the SaveManager into a new LockTable
+     */
+    public LockingSaveManager(SaveManager saveManager) {
+        this.saveManager = saveManager;
+        this.lockTable = new LockTable(saveManager);
+        lockTable.load();
+    }
+
+    /**
+     * @return The table the locks are held in
+     */
+    public LockTable getLockTable() {
+        return lockTable;
+    }
+
+    /**
+     * @return The SaveManager the objects are stored in
+     */
+    public SaveManager getSaveManager() {
+        return saveManager;
+    }
+
+    @Override
+    public boolean createLock(String holder, String type, String id) {
+        return lockTable.acquire(holder, type, id);
+    }
+
+    @Override
+    public void removeLock(String type, String id) {
+        lockTable.release(type, id);
+    }
+
+    @Override
+    public int removeLocks(String holder, String type, String[] ids) {
+        return lockTable.releaseAll(holder, type, ids);
+    }
+
+    @Override
+    public boolean hasLock(String type, String id) {
+        return lockTable.getHolder(type, id) != null;
+    }
+
+    @Override
+    public boolean isLockedForUser(String user, String type, String id) {
+        String holder = lockTable.getHolder(type, id);
+        return holder != null && !holder.equals(user);
+    }
+
+    @Override
+    public String getLockHolder(String type, String id) {
+        String holder = lockTable.getHolder(type, id);
+        return holder == null ? "" : holder;
+    }
+
+    @Override
+    public ResourceLock[] getLocks() {
+        return saveManager.getLocks();
+    }
+
+    @Override
+    public boolean persistSaveable(String type, String holder, Saveable saveable) {
+        return !isLockedForUser(holder, type, saveable.getUniqueId()) && saveManager.persistSaveable(type, holder, saveable);
+    }
+
+    @Override
+    public boolean[] persistSaveables(String holder, Saveable[] saveables) {
+        int[] writable = new int[saveables.length];
+        int count = 0;
+        for (int i = 0; i < saveables.length; i++) {
+            if (!isLockedForUser(holder, saveables[i].getSaveableModuleName(), saveables[i].getUniqueId())) {
+                writable[count++] = i;
+            }
+        }
+        if (count == saveables.length) {
+            return saveManager.persistSaveables(holder, saveables);
+        }
+        Saveable[] allowed = new Saveable[count];
+        for (int i = 0; i < count; i++) {
+            allowed[i] = saveables[writable[i]];
+        }
+        boolean[] persisted = saveManager.persistSaveables(holder, allowed);
+        boolean[] result = new boolean[saveables.length];
+        for (int i = 0; i < count; i++) {
+            result[writable[i]] = persisted[i];
+        }
+        return result;
+    }
+
+    @Override
+    public ChangeRecord[] persistJournaled(String[] holders, Saveable[] saveables, long firstChangeId) {
+        int[] writable = new int[saveables.length];
+        int count = 0;
+        for (int i = 0; i < saveables.length; i++) {
+            if (!isLockedForUser(holders[i], saveables[i].getSaveableModuleName(), saveables[i].getUniqueId())) {
+                writable[count++] = i;
+            }
+        }
+        if (count == saveables.length) {
+            return saveManager.persistJournaled(holders, saveables, firstChangeId);
+        }
+        String[] allowedHolders = new String[count];
+        Saveable[] allowed = new Saveable[count];
+        for (int i = 0; i < count; i++) {
+            allowedHolders[i] = holders[writable[i]];
+            allowed[i] = saveables[writable[i]];
+        }
+        ChangeRecord[] changes = saveManager.persistJournaled(allowedHolders, allowed, firstChangeId);
+        if (changes == null) {
+            return null;
+        }
+        ChangeRecord[] result = new ChangeRecord[saveables.length];
+        for (int i = 0; i < count; i++) {
+            result[writable[i]] = changes[i];
+        }
+        return result;
+    }
+
+    @Override
+    public void removeSaveable(String type, String id) {
+        saveManager.removeSaveable(type, id);
+    }
+
+    /**
+     * Only objects whose lock is held by the holder are removed
+     */
+    @Override
+    public boolean[] removeSaveables(String holder, String type, String[] ids) {
+        int[] held = heldBy(holder, type, ids);
+        boolean[] removed = saveManager.removeSaveables(holder, type, select(ids, held));
+        boolean[] result = new boolean[ids.length];
+        for (int i = 0; i < removed.length; i++) {
+            result[held[i]] = removed[i];
+        }
+        return result;
+    }
+
+    /**
+     * Only objects whose lock is held by the holder are removed
+     */
+    @Override
+    public ChangeRecord[] removeJournaled(String holder, String type, String[] ids, long firstChangeId) {
+        int[] held = heldBy(holder, type, ids);
+        ChangeRecord[] changes = saveManager.removeJournaled(holder, type, select(ids, held), firstChangeId);
+        if (changes == null) {
+            return null;
+        }
+        ChangeRecord[] result = new ChangeRecord[ids.length];
+        for (int i = 0; i < changes.length; i++) {
+            result[held[i]] = changes[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return Positions of the ids whose lock the holder holds
+     */
+    private int[] heldBy(String holder, String type, String[] ids) {
+        int[] held = new int[ids.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (holder.equals(lockTable.getHolder(type, ids[i]))) {
+                held[count++] = i;
+            }
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(held, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private static String[] select(String[] ids, int[] positions) {
+        String[] selected = new String[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            selected[i] = ids[positions[i]];
+        }
+        return selected;
+    }
+
+    /**
+     * Sets the locked flag of objects from the table, backends only know
+     * the locks that were written through
+     */
+    private Saveable[] markLocks(String type, Saveable[] saveables) {
+        if (saveables != null) {
+            for (Saveable saveable : saveables) {
+                if (saveable != null) {
+                    saveable.setLocked(hasLock(type, saveable.getUniqueId()));
+                }
+            }
+        }
+        return saveables;
+    }
+
+    private SaveableVisitor markLocks(final String type, final SaveableVisitor visitor) {
+        return new SaveableVisitor() {
+            @Override
+            public boolean visit(Saveable[] chunk) {
+                return visitor.visit(markLocks(type, chunk));
+            }
+        };
+    }
+
+    @Override
+    public Saveable getSaveable(String type, String id) {
+        Saveable saveable = saveManager.getSaveable(type, id);
+        if (saveable != null) {
+            saveable.setLocked(hasLock(type, id));
+        }
+        return saveable;
+    }
+
+    @Override
+    public Saveable[] getSaveables(String type, String[] ids) {
+        return markLocks(type, saveManager.getSaveables(type, ids));
+    }
+
+    @Override
+    public Saveable[] getAllSaveables(String type) {
+        return markLocks(type, saveManager.getAllSaveables(type));
+    }
+
+    @Override
+    public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor) {
+        saveManager.streamAllSaveables(type, chunkSize, markLocks(type, visitor));
+    }
+
+    @Override
+    public Saveable[] getWhere(String type, Predicate predicate) {
+        return markLocks(type, saveManager.getWhere(type, predicate));
+    }
+
+    @Override
+    public void streamWhere(String type, Predicate predicate, int chunkSize, SaveableVisitor visitor) {
+        saveManager.streamWhere(type, predicate, chunkSize, markLocks(type, visitor));
+    }
+
+    @Override
+    public Saveable[] getByIndex(String type, String property, Object value) {
+        return markLocks(type, saveManager.getByIndex(type, property, value));
+    }
+
+    @Override
+    public Saveable[] getByIndexRange(String type, String property, Object low, Object high) {
+        return markLocks(type, saveManager.getByIndexRange(type, property, low, high));
+    }
+
+    @Override
+    public long getSaveableCount(String type) {
+        return saveManager.getSaveableCount(type);
+    }
+
+    @Override
+    public long getHighestUniqueId(String type) {
+        return saveManager.getHighestUniqueId(type);
+    }
+
+    @Override
+    public boolean exists(String type, String id) {
+        return saveManager.exists(type, id);
+    }
+}
@@ -0,0 +1,1116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.log;
+
+import com.google.common.base.Charsets;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only store of values and locks keyed by type and id.
+ *
+ * Every change is a record appended to the active segment file: an int
+ * length, the CRC32 of the body and the body itself, which holds the record
+ * kind, the type, the id and the value. Once a segment is larger than the
+ * configured size it is sealed and a new one is started. An index in memory
+ * points every live value and lock at the record holding it, so a read is a
+ * single positional read. The index is saved to {@value #INDEX_FILE_NAME} at
+ * checkpoints and on close, and opening the store only replays the log written
+ * after the last checkpoint. A record torn by a crash at the end of the log is
+ * cut off.
+ *
+ * Sealed segments that are mostly dead records are compacted in the
+ * background: their live records are copied to the end of the log, the index
+ * is saved and the segment is deleted. Delete records are carried along while
+ * an older segment could still hold the value they delete.
+ *
+ * @author Manuel Gauto
+ */
+public class LogStore implements Closeable {
+    static final String INDEX_FILE_NAME = "index.dat";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int INDEX_MAGIC = 0x4F42494E;
+    private static final int INDEX_VERSION = 1;
+    /**
+     * Length and CRC in front of every record body
+     */
+    private static final int HEADER_BYTES = 8;
+    /**
+     * Bodies claiming to be larger than this are treated as corrupt rather
+     * than allocated
+     */
+    private static final int MAX_BODY_BYTES = 256 * 1024 * 1024;
+    private static final long CHECKPOINT_CHECK_SECONDS = 5;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte LOCK = 3;
+    private static final byte UNLOCK = 4;
+
+    private final File directory;
+    private final LogStoreConfiguration configuration;
+    /**
+     * Record of every live value, by type and id
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, RecordPointer>> values = new ConcurrentHashMap<String, ConcurrentHashMap<String, RecordPointer>>();
+    /**
+     * Holder and record of every lock, by type and id
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LockEntry>> locks = new ConcurrentHashMap<String, ConcurrentHashMap<String, LockEntry>>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    /**
+     * Serializes appends. Guards the active segment and its size.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    /**
+     * Held for reading while a segment is read and for writing while one is
+     * deleted
+     */
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final LogWriter writer = new Writer();
+    private volatile Segment activeSegment;
+    /**
+     * Bytes appended since the store was opened
+     */
+    private volatile long writtenSequence;
+    private final Object syncMonitor = new Object();
+    /**
+     * Bytes appended since open that are known to be on disk, guarded by syncMonitor
+     */
+    private long syncedSequence;
+    /**
+     * Whether a thread is forcing the log to disk, guarded by syncMonitor
+     */
+    private boolean syncing;
+    private volatile long checkpointSequence;
+    private volatile boolean closed;
+    private ScheduledExecutorService maintenance;
+
+    public LogStore(File directory) throws IOException {
+        this(directory, new LogStoreConfiguration());
+    }
+
+    /**
+     * Opens the store in the directory, creating it if needed, and recovers
+     * the index from the last checkpoint and the log written after it
+     *
+     * @param directory Directory holding the segments and the index
+     * @param configuration Settings of the store
+     * @throws IOException If the directory cannot be read
+     */
+    public LogStore(File directory, LogStoreConfiguration configuration) throws IOException {
+        this.directory = directory;
+        this.configuration = configuration;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        openSegments();
+        RecordPointer start = loadIndex();
+        if (start == null) {
+            start = new RecordPointer(segments.isEmpty() ? 0 : segments.firstKey(), 0, 0);
+        }
+        replay(start);
+        if (segments.isEmpty()) {
+            Segment first = openSegment(1);
+            segments.put(first.id, first);
+            syncDirectory();
+        }
+        activeSegment = segments.lastEntry().getValue();
+        startMaintenance();
+    }
+
+    /**
+     * Returns the value of an id
+     *
+     * @return The value, or null if the id has none
+     * @throws IOException If the record cannot be read or is corrupt
+     */
+    public byte[] get(String type, String id) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            ensureOpen();
+            ConcurrentHashMap<String, RecordPointer> pointers = values.get(type);
+            RecordPointer pointer = pointers == null ? null : pointers.get(id);
+            if (pointer == null) {
+                return null;
+            }
+            return readRecord(pointer).value;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether the id has a value
+     */
+    public boolean contains(String type, String id) {
+        ConcurrentHashMap<String, RecordPointer> pointers = values.get(type);
+        return pointers != null && pointers.containsKey(id);
+    }
+
+    /**
+     * Returns the holder of a lock
+     *
+     * @return The holder, or null if the id is not locked
+     */
+    public String getLockHolder(String type, String id) {
+        ConcurrentHashMap<String, LockEntry> entries = locks.get(type);
+        LockEntry entry = entries == null ? null : entries.get(id);
+        return entry == null ? null : entry.holder;
+    }
+
+    /**
+     * Returns the holder of every lock by type and id, as they were when
+     * called
+     */
+    public Map<String, Map<String, String>> getLocks() {
+        Map<String, Map<String, String>> holders = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LockEntry>> type : locks.entrySet()) {
+            Map<String, String> ids = new HashMap<String, String>();
+            for (Map.Entry<String, LockEntry> entry : type.getValue().entrySet()) {
+                ids.put(entry.getKey(), entry.getValue().holder);
+            }
+            if (!ids.isEmpty()) {
+                holders.put(type.getKey(), ids);
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Returns the ids of a type that have a value, as they were when called
+     */
+    public List<String> getIds(String type) {
+        ConcurrentHashMap<String, RecordPointer> pointers = values.get(type);
+        if (pointers == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(pointers.keySet());
+    }
+
+    /**
+     * Returns the types that have at least one id with a value
+     */
+    public List<String> getTypes() {
+        List<String> types = new ArrayList<String>();
+        for (Map.Entry<String, ConcurrentHashMap<String, RecordPointer>> entry : values.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                types.add(entry.getKey());
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Returns the number of ids of a type that have a value
+     */
+    public int getCount(String type) {
+        ConcurrentHashMap<String, RecordPointer> pointers = values.get(type);
+        return pointers == null ? 0 : pointers.size();
+    }
+
+    public void put(final String type, final String id, final byte[] value) throws IOException {
+        write(new LogWork<Void>() {
+            @Override
+            public Void execute(LogWriter writer) throws IOException {
+                writer.put(type, id, value);
+                return null;
+            }
+        });
+    }
+
+    public boolean delete(final String type, final String id) throws IOException {
+        return write(new LogWork<Boolean>() {
+            @Override
+            public Boolean execute(LogWriter writer) throws IOException {
+                return writer.delete(type, id);
+            }
+        });
+    }
+
+    /**
+     * Runs the work while no other writer can append, then waits until its
+     * records are on disk as far as the sync policy promises. Under
+     * {@link SyncPolicy#GROUP} the wait happens after other writers may
+     * append again, so they can share one sync.
+     *
+     * @param work Reads and appends to run as one unit
+     * @return Whatever the work returned
+     * @throws IOException If appending or syncing failed. Records appended
+     * before the failure stay in the log.
+     */
+    public <T> T write(LogWork<T> work) throws IOException {
+        T result;
+        long sequence;
+        appendLock.lock();
+        try {
+            ensureOpen();
+            long before = writtenSequence;
+            try {
+                result = work.execute(writer);
+            } finally {
+                sequence = writtenSequence;
+                if (sequence != before && configuration.getSyncPolicy() == SyncPolicy.ALWAYS) {
+                    activeSegment.channel.force(false);
+                    markSynced(sequence);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        if (configuration.getSyncPolicy() == SyncPolicy.GROUP) {
+            awaitSynced(sequence);
+        }
+        return result;
+    }
+
+    /**
+     * Forces everything appended so far to disk
+     */
+    public void sync() throws IOException {
+        awaitSynced(writtenSequence);
+    }
+
+    /**
+     * Saves the index so the next open only replays what is appended after
+     * this
+     */
+    public synchronized void checkpoint() throws IOException {
+        byte[] snapshot;
+        long sequence;
+        appendLock.lock();
+        try {
+            ensureOpen();
+            sequence = writtenSequence;
+            snapshot = encodeIndex();
+        } finally {
+            appendLock.unlock();
+        }
+        //The index must never point at records that are not on disk yet
+        awaitSynced(sequence);
+        File temporary = new File(directory, INDEX_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), new File(directory, INDEX_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        checkpointSequence = sequence;
+    }
+
+    /**
+     * Compacts every sealed segment whose share of dead records has reached
+     * the configured threshold
+     *
+     * @return Number of segments compacted
+     */
+    public synchronized int compact() throws IOException {
+        int compacted = 0;
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment == activeSegment) {
+                continue;
+            }
+            double garbage = segment.size == 0 ? 1 : 1 - (double) segment.liveBytes.get() / segment.size;
+            if (garbage >= configuration.getCompactionThreshold()) {
+                compact(segment);
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the size of all segments, live and dead records
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the size of the records the index points at
+     */
+    public long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.liveBytes.get();
+        }
+        return live;
+    }
+
+    /**
+     * Stops the background tasks, saves the index and closes the segments
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkpoint();
+        } finally {
+            appendLock.lock();
+            segmentLock.writeLock().lock();
+            try {
+                closed = true;
+                for (Segment segment : segments.values()) {
+                    segment.channel.close();
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+                appendLock.unlock();
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        final Segment source = segment;
+        //Deletes only have to survive while an older segment may hold what they delete
+        final boolean olderSegments = segments.firstKey() < source.id;
+        scan(source, 0, new RecordHandler() {
+            @Override
+            public void handle(Record record) throws IOException {
+                appendLock.lock();
+                try {
+                    ensureOpen();
+                    copyIfLive(source, record, olderSegments);
+                } finally {
+                    appendLock.unlock();
+                }
+            }
+        });
+        //The copies must be in the saved index before the originals go away
+        checkpoint();
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(source.id);
+            source.channel.close();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        if (!source.file.delete()) {
+            Logger.getLogger(LogStore.class.getName()).log(Level.WARNING, "Could not delete compacted segment {0}", source.file);
+        }
+        Logger.getLogger(LogStore.class.getName()).log(Level.FINE, "Compacted segment {0}", source.file);
+    }
+
+    private void copyIfLive(Segment source, Record record, boolean olderSegments) throws IOException {
+        switch (record.kind) {
+            case PUT: {
+                ConcurrentHashMap<String, RecordPointer> pointers = values.get(record.type);
+                RecordPointer pointer = pointers == null ? null : pointers.get(record.id);
+                if (pointer != null && pointer.segment == source.id && pointer.offset == record.offset) {
+                    append(record.kind, record.type, record.id, record.value);
+                }
+                break;
+            }
+            case LOCK: {
+                ConcurrentHashMap<String, LockEntry> entries = locks.get(record.type);
+                LockEntry entry = entries == null ? null : entries.get(record.id);
+                if (entry != null && entry.pointer.segment == source.id && entry.pointer.offset == record.offset) {
+                    append(record.kind, record.type, record.id, record.value);
+                }
+                break;
+            }
+            case DELETE:
+                if (olderSegments && !contains(record.type, record.id)) {
+                    append(record.kind, record.type, record.id, record.value);
+                }
+                break;
+            case UNLOCK:
+                if (olderSegments && getLockHolder(record.type, record.id) == null) {
+                    append(record.kind, record.type, record.id, record.value);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Appends a record to the active segment and points the index at it.
+     * Must be called with the append lock held.
+     */
+    private void append(byte kind, String type, String id, byte[] value) throws IOException {
+        byte[] body = encodeBody(kind, type, id, value);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + body.length);
+        record.putInt(body.length);
+        record.putInt((int) crc.getValue());
+        record.put(body);
+        record.flip();
+
+        Segment segment = activeSegment;
+        if (segment.size > 0 && segment.size + record.remaining() > configuration.getMaxSegmentBytes()) {
+            segment = roll();
+        }
+        long offset = segment.size;
+        int length = record.remaining();
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+        segment.size += length;
+        apply(kind, type, id, value, new RecordPointer(segment.id, offset, length));
+        writtenSequence += length;
+    }
+
+    /**
+     * Seals the active segment and starts the next one
+     */
+    private Segment roll() throws IOException {
+        Segment sealed = activeSegment;
+        sealed.channel.force(false);
+        markSynced(writtenSequence);
+        Segment next = openSegment(sealed.id + 1);
+        segments.put(next.id, next);
+        syncDirectory();
+        activeSegment = next;
+        return next;
+    }
+
+    /**
+     * Points the index at a record, used both for appends and replay
+     */
+    private void apply(byte kind, String type, String id, byte[] value, RecordPointer pointer) {
+        switch (kind) {
+            case PUT: {
+                ConcurrentHashMap<String, RecordPointer> pointers = values.get(type);
+                if (pointers == null) {
+                    pointers = new ConcurrentHashMap<String, RecordPointer>();
+                    values.put(type, pointers);
+                }
+                addLive(pointer);
+                removeLive(pointers.put(id, pointer));
+                break;
+            }
+            case DELETE: {
+                ConcurrentHashMap<String, RecordPointer> pointers = values.get(type);
+                if (pointers != null) {
+                    removeLive(pointers.remove(id));
+                }
+                break;
+            }
+            case LOCK: {
+                ConcurrentHashMap<String, LockEntry> entries = locks.get(type);
+                if (entries == null) {
+                    entries = new ConcurrentHashMap<String, LockEntry>();
+                    locks.put(type, entries);
+                }
+                addLive(pointer);
+                LockEntry previous = entries.put(id, new LockEntry(new String(value, Charsets.UTF_8), pointer));
+                if (previous != null) {
+                    removeLive(previous.pointer);
+                }
+                break;
+            }
+            case UNLOCK: {
+                ConcurrentHashMap<String, LockEntry> entries = locks.get(type);
+                LockEntry previous = entries == null ? null : entries.remove(id);
+                if (previous != null) {
+                    removeLive(previous.pointer);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void addLive(RecordPointer pointer) {
+        Segment segment = segments.get(pointer.segment);
+        if (segment != null) {
+            segment.liveBytes.addAndGet(pointer.length);
+        }
+    }
+
+    private void removeLive(RecordPointer pointer) {
+        if (pointer == null) {
+            return;
+        }
+        Segment segment = segments.get(pointer.segment);
+        if (segment != null) {
+            segment.liveBytes.addAndGet(-pointer.length);
+        }
+    }
+
+    /**
+     * Waits until everything up to the sequence is on disk. The first waiter
+     * forces the log and everyone who arrived meanwhile shares that sync.
+     */
+    private void awaitSynced(long sequence) throws IOException {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (syncing && syncedSequence < sequence) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for sync");
+                    }
+                }
+                if (syncedSequence >= sequence) {
+                    return;
+                }
+                syncing = true;
+            }
+            //Everything written before the force is covered by it
+            long target = writtenSequence;
+            boolean forced = false;
+            try {
+                activeSegment.channel.force(false);
+                forced = true;
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (forced && target > syncedSequence) {
+                        syncedSequence = target;
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void markSynced(long sequence) {
+        synchronized (syncMonitor) {
+            if (sequence > syncedSequence) {
+                syncedSequence = sequence;
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Log store " + directory + " is closed");
+        }
+    }
+
+    private Record readRecord(RecordPointer pointer) throws IOException {
+        Segment segment = segments.get(pointer.segment);
+        if (segment == null) {
+            throw new IOException("Segment " + pointer.segment + " is missing from " + directory);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(pointer.length);
+        long position = pointer.offset;
+        while (buffer.hasRemaining()) {
+            int read = segment.channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Record at " + pointer.offset + " runs past the end of " + segment.file);
+            }
+            position += read;
+        }
+        buffer.flip();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length != pointer.length - HEADER_BYTES) {
+            throw new IOException("Corrupt record at " + pointer.offset + " in " + segment.file);
+        }
+        byte[] body = new byte[length];
+        buffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch at " + pointer.offset + " in " + segment.file);
+        }
+        return decodeBody(body, pointer.offset);
+    }
+
+    /**
+     * Reads the records of a segment in order, starting at an offset. A torn
+     * or corrupt record ends the scan.
+     *
+     * @return Offset after the last good record
+     */
+    private long scan(Segment segment, long start, RecordHandler handler) throws IOException {
+        long offset = start;
+        try (InputStream file = new FileInputStream(segment.file)) {
+            long skipped = 0;
+            while (skipped < start) {
+                long step = file.skip(start - skipped);
+                if (step <= 0) {
+                    return offset;
+                }
+                skipped += step;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+            while (offset < segment.size) {
+                int length;
+                int checksum;
+                byte[] body;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_BODY_BYTES || offset + HEADER_BYTES + length > segment.size) {
+                        return offset;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException ex) {
+                    return offset;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    return offset;
+                }
+                handler.handle(decodeBody(body, offset));
+                offset += HEADER_BYTES + length;
+            }
+        }
+        return offset;
+    }
+
+    private void replay(RecordPointer start) throws IOException {
+        for (final Segment segment : segments.tailMap(start.segment).values()) {
+            long from = segment.id == start.segment ? start.offset : 0;
+            long end = scan(segment, from, new RecordHandler() {
+                @Override
+                public void handle(Record record) {
+                    apply(record.kind, record.type, record.id, record.value, new RecordPointer(segment.id, record.offset, HEADER_BYTES + record.bodyLength));
+                }
+            });
+            if (end < segment.size) {
+                if (segment.id == segments.lastKey()) {
+                    Logger.getLogger(LogStore.class.getName()).log(Level.WARNING, "Cutting {0} bytes of torn records from the end of {1}", new Object[]{segment.size - end, segment.file});
+                    segment.channel.truncate(end);
+                    segment.channel.force(true);
+                    segment.size = end;
+                } else {
+                    Logger.getLogger(LogStore.class.getName()).log(Level.SEVERE, "Corrupt record at {0} in {1}, skipping the rest of the segment", new Object[]{end, segment.file});
+                }
+            }
+        }
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int id;
+            try {
+                id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(LogStore.class.getName()).log(Level.WARNING, "Ignoring {0}, not a segment", file);
+                continue;
+            }
+            segments.put(id, openSegment(id));
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel, channel.size());
+    }
+
+    /**
+     * Makes created, renamed and deleted files durable. Not every platform
+     * can open a directory, so failures are ignored.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            Logger.getLogger(LogStore.class.getName()).log(Level.FINEST, null, ex);
+        }
+    }
+
+    private void startMaintenance() {
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LogStore-" + directory.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (configuration.getSyncPolicy() == SyncPolicy.PERIODIC) {
+            maintenance.scheduleWithFixedDelay(new MaintenanceTask() {
+                @Override
+                protected void maintain() throws IOException {
+                    sync();
+                }
+            }, configuration.getSyncIntervalMillis(), configuration.getSyncIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (configuration.getCompactionIntervalSeconds() > 0) {
+            maintenance.scheduleWithFixedDelay(new MaintenanceTask() {
+                @Override
+                protected void maintain() throws IOException {
+                    compact();
+                }
+            }, configuration.getCompactionIntervalSeconds(), configuration.getCompactionIntervalSeconds(), TimeUnit.SECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(new MaintenanceTask() {
+            @Override
+            protected void maintain() throws IOException {
+                if (writtenSequence - checkpointSequence >= configuration.getCheckpointBytes()) {
+                    checkpoint();
+                }
+            }
+        }, CHECKPOINT_CHECK_SECONDS, CHECKPOINT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private byte[] encodeIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(activeSegment.id);
+        out.writeLong(activeSegment.size);
+        out.writeInt(values.size());
+        for (Map.Entry<String, ConcurrentHashMap<String, RecordPointer>> type : values.entrySet()) {
+            out.writeUTF(type.getKey());
+            out.writeInt(type.getValue().size());
+            for (Map.Entry<String, RecordPointer> entry : type.getValue().entrySet()) {
+                out.writeUTF(entry.getKey());
+                writePointer(out, entry.getValue());
+            }
+        }
+        out.writeInt(locks.size());
+        for (Map.Entry<String, ConcurrentHashMap<String, LockEntry>> type : locks.entrySet()) {
+            out.writeUTF(type.getKey());
+            out.writeInt(type.getValue().size());
+            for (Map.Entry<String, LockEntry> entry : type.getValue().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().holder);
+                writePointer(out, entry.getValue().pointer);
+            }
+        }
+        out.flush();
+        //The checksum itself is not covered
+        new DataOutputStream(bytes).writeLong(crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Loads the saved index
+     *
+     * @return Where replay has to start, or null if there is no usable index
+     * and the whole log has to be replayed
+     */
+    private RecordPointer loadIndex() {
+        File file = new File(directory, INDEX_FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (bytes.length < 8) {
+                throw new IOException("Index is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) {
+                throw new IOException("Index checksum mismatch");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            RecordPointer start = new RecordPointer(in.readInt(), in.readLong(), 0);
+            Segment startSegment = segments.get(start.segment);
+            if (startSegment == null || startSegment.size < start.offset) {
+                throw new IOException("Index covers more of the log than exists");
+            }
+            int typeCount = in.readInt();
+            for (int t = 0; t < typeCount; t++) {
+                String type = in.readUTF();
+                int count = in.readInt();
+                ConcurrentHashMap<String, RecordPointer> pointers = new ConcurrentHashMap<String, RecordPointer>(Math.max(16, count * 4 / 3 + 1));
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    RecordPointer pointer = readPointer(in);
+                    pointers.put(id, pointer);
+                    addLive(pointer);
+                }
+                values.put(type, pointers);
+            }
+            typeCount = in.readInt();
+            for (int t = 0; t < typeCount; t++) {
+                String type = in.readUTF();
+                int count = in.readInt();
+                ConcurrentHashMap<String, LockEntry> entries = new ConcurrentHashMap<String, LockEntry>();
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    String holder = in.readUTF();
+                    RecordPointer pointer = readPointer(in);
+                    entries.put(id, new LockEntry(holder, pointer));
+                    addLive(pointer);
+                }
+                locks.put(type, entries);
+            }
+            return start;
+        } catch (IOException ex) {
+            Logger.getLogger(LogStore.class.getName()).log(Level.WARNING, "Ignoring index of " + directory + ", replaying the whole log", ex);
+            values.clear();
+            locks.clear();
+            for (Segment segment : segments.values()) {
+                segment.liveBytes.set(0);
+            }
+            return null;
+        }
+    }
+
+    private void writePointer(DataOutputStream out, RecordPointer pointer) throws IOException {
+        out.writeInt(pointer.segment);
+        out.writeLong(pointer.offset);
+        out.writeInt(pointer.length);
+    }
+
+    private RecordPointer readPointer(DataInputStream in) throws IOException {
+        RecordPointer pointer = new RecordPointer(in.readInt(), in.readLong(), in.readInt());
+        Segment segment = segments.get(pointer.segment);
+        if (segment == null || pointer.offset + pointer.length > segment.size) {
+            throw new IOException("Index points past the end of segment " + pointer.segment);
+        }
+        return pointer;
+    }
+
+    private static byte[] encodeBody(byte kind, String type, String id, byte[] value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + type.length() + id.length() + (value == null ? 0 : value.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind);
+        out.writeUTF(type);
+        out.writeUTF(id);
+        if (value == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Record decodeBody(byte[] body, long offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte kind = in.readByte();
+        String type = in.readUTF();
+        String id = in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt record at " + offset);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return new Record(kind, type, id, value, offset, body.length);
+    }
+
+    private class Writer implements LogWriter {
+
+        @Override
+        public void put(String type, String id, byte[] value) throws IOException {
+            append(PUT, type, id, value);
+        }
+
+        @Override
+        public boolean delete(String type, String id) throws IOException {
+            if (!contains(type, id)) {
+                return false;
+            }
+            append(DELETE, type, id, null);
+            return true;
+        }
+
+        @Override
+        public void lock(String type, String id, String holder) throws IOException {
+            if (!holder.equals(LogStore.this.getLockHolder(type, id))) {
+                append(LOCK, type, id, holder.getBytes(Charsets.UTF_8));
+            }
+        }
+
+        @Override
+        public boolean unlock(String type, String id) throws IOException {
+            if (LogStore.this.getLockHolder(type, id) == null) {
+                return false;
+            }
+            append(UNLOCK, type, id, null);
+            return true;
+        }
+
+        @Override
+        public String getLockHolder(String type, String id) {
+            return LogStore.this.getLockHolder(type, id);
+        }
+
+        @Override
+        public boolean contains(String type, String id) {
+            return LogStore.this.contains(type, id);
+        }
+    }
+
+    /**
+     * Runs a maintenance step and logs its failure instead of cancelling the
+     * schedule
+     */
+    private abstract class MaintenanceTask implements Runnable {
+
+        protected abstract void maintain() throws IOException;
+
+        @Override
+        public void run() {
+            if (closed) {
+                return;
+            }
+            try {
+                maintain();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(LogStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private interface RecordHandler {
+
+        public void handle(Record record) throws IOException;
+    }
+
+    /**
+     * Where a record lives in the log
+     */
+    private static final class RecordPointer {
+        final int segment;
+        final long offset;
+        /**
+         * Length including the header
+         */
+        final int length;
+
+        RecordPointer(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class LockEntry {
+        final String holder;
+        final RecordPointer pointer;
+
+        LockEntry(String holder, RecordPointer pointer) {
+            this.holder = holder;
+            this.pointer = pointer;
+        }
+    }
+
+    private static final class Record {
+        final byte kind;
+        final String type;
+        final String id;
+        final byte[] value;
+        final long offset;
+        final int bodyLength;
+
+        Record(byte kind, String type, String id, byte[] value, long offset, int bodyLength) {
+            this.kind = kind;
+            this.type = type;
+            this.id = id;
+            this.value = value;
+            this.offset = offset;
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        /**
+         * Bytes of good records, only grows in the active segment
+         */
+        volatile long size;
+        /**
+         * Bytes of records the index points at
+         */
+        final AtomicLong liveBytes = new AtomicLong();
+
+        Segment(int id, File file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.log;
+
+import java.io.IOException;
+
+/**
+ * Writes that are appended to a {@link LogStore} as one unit
+ *
+ * @param <T> Result of the work
+ * @author Manuel Gauto
+ */
+public interface LogWork<T> {
+
+    /**
+     * Called while no other writer can append, so what the writer reads stays
+     * true until this returns. The records appended here are on disk, as far
+     * as the sync policy promises, when {@link LogStore#write} returns.
+     *
+     * @param writer Writer to read locks and append records with
+     * @return Result handed back to the caller
+     * @throws IOException If a record could not be appended
+     */
+    public T execute(LogWriter writer) throws IOException;
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.log;
+
+import java.io.IOException;
+
+/**
+ * Appends records to a {@link LogStore}. Only valid inside
+ * {@link LogWork#execute}.
+ *
+ * @author Manuel Gauto
+ */
+public interface LogWriter {
+
+    /**
+     * Stores a value, replacing the previous value of the id
+     */
+    public void put(String type, String id, byte[] value) throws IOException;
+
+    /**
+     * Removes a value
+     *
+     * @return Whether the id had a value
+     */
+    public boolean delete(String type, String id) throws IOException;
+
+    /**
+     * Sets the holder of a lock, replacing the previous holder
+     */
+    public void lock(String type, String id, String holder) throws IOException;
+
+    /**
+     * Removes a lock
+     *
+     * @return Whether the id was locked
+     */
+    public boolean unlock(String type, String id) throws IOException;
+
+    /**
+     * Returns the holder of a lock, or null if the id is not locked
+     */
+    public String getLockHolder(String type, String id);
+
+    /**
+     * Returns whether the id has a value
+     */
+    public boolean contains(String type, String id);
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.pipeline;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import org.mgenterprises.openbooks.saving.Saveable;
+
+/**
+ * Objects of one request waiting in the {@link WritePipeline}. They are
+ * always committed in the same batch.
+ *
+ * @author Manuel Gauto
+ */
+class PendingWrite {
+    private final String holder;
+    private final Saveable[] saveables;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private long[] changeIds;
+    private IOException failure;
+
+    PendingWrite(String holder, Saveable[] saveables) {
+        this.holder = holder;
+        this.saveables = saveables;
+    }
+
+    String getHolder() {
+        return holder;
+    }
+
+    Saveable[] getSaveables() {
+        return saveables;
+    }
+
+    int size() {
+        return saveables.length;
+    }
+
+    void complete(long[] changeIds) {
+        this.changeIds = changeIds;
+        done.countDown();
+    }
+
+    void fail(IOException failure) {
+        this.failure = failure;
+        done.countDown();
+    }
+
+    /**
+     * Waits until the batch holding this write has been committed
+     *
+     * @return The change id of each object, -1 where the object is locked
+     * @throws IOException If the batch could not be committed
+     */
+    long[] await() throws IOException {
+        boolean interrupted = false;
+        //The write is already queued, so wait for its outcome either way
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return changeIds;
+    }
+}
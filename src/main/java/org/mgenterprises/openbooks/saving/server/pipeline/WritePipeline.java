@@ -0,0 +1,242 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeJournal;
+
+/**
+ * Collects the writes of all sessions and commits them in batches. Every
+ * batch is persisted together with its ChangeRecords in one transaction
+ * through {@link ChangeJournal#recordWrites}, so many concurrent PUTs share
+ * one commit instead of paying for several each. A caller gets its change
+ * ids only after the batch has been committed.
+ *
+ * @author Manuel Gauto
+ */
+public class WritePipeline implements Closeable {
+    private static final long POLL_MILLIS = 100;
+    private final ChangeJournal changeJournal;
+    private final WritePipelineConfiguration configuration;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+    /**
+     * Write that did not fit into the previous batch and starts the next one
+     */
+    private PendingWrite carried;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    public WritePipeline(ChangeJournal changeJournal) {
+        this(changeJournal, new WritePipelineConfiguration());
+    }
+
+    public WritePipeline(ChangeJournal changeJournal, WritePipelineConfiguration configuration) {
+        this.changeJournal = changeJournal;
+        this.configuration = configuration;
+        this.queue = new ArrayBlockingQueue<PendingWrite>(configuration.getQueueCapacity());
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "SaveServer-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Persists an object and journals it
+     *
+     * @param holder User the object is persisted for
+     * @param saveable Object to persist
+     * @return Change id of the object, or -1 if it is locked by someone else
+     * @throws IOException If the write could not be committed
+     */
+    public long write(String holder, Saveable saveable) throws IOException {
+        return writeAll(holder, new Saveable[]{saveable})[0];
+    }
+
+    /**
+     * Persists several objects and journals them. The objects are committed
+     * in the same transaction.
+     *
+     * @param holder User the objects are persisted for
+     * @param saveables Objects to persist
+     * @return Change id of each object in the same order, -1 where the
+     * object is locked by someone else
+     * @throws IOException If the writes could not be committed
+     */
+    public long[] writeAll(String holder, Saveable[] saveables) throws IOException {
+        if (saveables.length == 0) {
+            return new long[0];
+        }
+        PendingWrite pending = new PendingWrite(holder, saveables);
+        if (!running) {
+            throw new IOException("Write pipeline is closed");
+        }
+        try {
+            queue.put(pending);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing a write", ex);
+        }
+        //close() may have drained the queue already, take the write back if nobody else did
+        if (!running && queue.remove(pending)) {
+            throw new IOException("Write pipeline is closed");
+        }
+        return pending.await();
+    }
+
+    /**
+     * @return Number of batches committed so far
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return Number of objects written so far
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * Commits what is still queued and stops the flusher
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        ArrayList<PendingWrite> left = new ArrayList<PendingWrite>();
+        queue.drainTo(left);
+        for (PendingWrite pending : left) {
+            pending.fail(new IOException("Write pipeline is closed"));
+        }
+    }
+
+    private void flushLoop() {
+        while (running || carried != null || !queue.isEmpty()) {
+            try {
+                List<PendingWrite> batch = nextBatch();
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+            } catch (InterruptedException ex) {
+                Logger.getLogger(WritePipeline.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Waits for a first write, then gathers more until the batch is full or
+     * the first write has waited the configured delay
+     */
+    private List<PendingWrite> nextBatch() throws InterruptedException {
+        ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>();
+        PendingWrite first = carried != null ? carried : queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        carried = null;
+        if (first == null) {
+            return batch;
+        }
+        batch.add(first);
+        int size = first.size();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(configuration.getMaxDelayMillis());
+        while (size < configuration.getMaxBatchSize()) {
+            long remaining = deadline - System.nanoTime();
+            PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            if (size + next.size() > configuration.getMaxBatchSize()) {
+                carried = next;
+                break;
+            }
+            batch.add(next);
+            size += next.size();
+        }
+        return batch;
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        int size = 0;
+        for (PendingWrite pending : batch) {
+            size += pending.size();
+        }
+        String[] holders = new String[size];
+        Saveable[] saveables = new Saveable[size];
+        int offset = 0;
+        for (PendingWrite pending : batch) {
+            for (Saveable saveable : pending.getSaveables()) {
+                holders[offset] = pending.getHolder();
+                saveables[offset] = saveable;
+                offset++;
+            }
+        }
+        long[] changeIds;
+        try {
+            changeIds = changeJournal.recordWrites(holders, saveables);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(WritePipeline.class.getName()).log(Level.SEVERE, null, ex);
+            changeIds = null;
+        }
+        if (changeIds == null) {
+            if (batch.size() > 1) {
+                //Commit each request on its own so one bad write does not fail the others
+                for (PendingWrite pending : batch) {
+                    flush(Collections.singletonList(pending));
+                }
+            } else {
+                batch.get(0).fail(new IOException("Write could not be committed"));
+            }
+            return;
+        }
+        batches.incrementAndGet();
+        writes.addAndGet(size);
+        offset = 0;
+        for (PendingWrite pending : batch) {
+            long[] ids = new long[pending.size()];
+            System.arraycopy(changeIds, offset, ids, 0, ids.length);
+            offset += ids.length;
+            pending.complete(ids);
+        }
+    }
+}
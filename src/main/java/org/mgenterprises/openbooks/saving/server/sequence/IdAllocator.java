@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.sequence;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+
+/**
+ * Hands out ids for new objects, one sequence per type. Sequences live in
+ * memory. Before an id past the saved {@link IdSequence} high-water mark is
+ * handed out, the mark is moved ahead by a reserve, so most allocations do
+ * not touch the SaveManager and a restart never repeats an id. Ids reserved
+ * but not handed out before a restart are skipped.
+ *
+ * @author Manuel Gauto
+ */
+public class IdAllocator {
+    /**
+     * Largest block one request may reserve
+     */
+    public static final int MAX_BLOCK_SIZE = 10000;
+    public static final int DEFAULT_RESERVE = 100;
+    private static final String HOLDER = "SERVER";
+    private final String sequenceType = new IdSequence().getSaveableModuleName();
+    private final SaveManager saveManager;
+    /**
+     * Ids the high-water mark is moved past the last one handed out
+     */
+    private final int reserve;
+    private final ConcurrentHashMap<String, Sequence> sequences = new ConcurrentHashMap<String, Sequence>();
+
+    public IdAllocator(SaveManager saveManager) {
+        this(saveManager, DEFAULT_RESERVE);
+    }
+
+    public IdAllocator(SaveManager saveManager, int reserve) {
+        this.saveManager = saveManager;
+        this.reserve = reserve;
+    }
+
+    /**
+     * Reserves a block of consecutive ids that no other call is given
+     *
+     * @param type Type the ids are for
+     * @param count Size of the block, 1 to {@link #MAX_BLOCK_SIZE}
+     * @return First id of the block
+     * @throws IOException If the new high-water mark could not be saved, no
+     * ids are handed out then
+     */
+    public long allocate(String type, int count) throws IOException {
+        if (count < 1 || count > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size " + count + " is not between 1 and " + MAX_BLOCK_SIZE);
+        }
+        Sequence sequence = sequences.get(type);
+        if (sequence == null) {
+            sequence = new Sequence();
+            Sequence existing = sequences.putIfAbsent(type, sequence);
+            if (existing != null) {
+                sequence = existing;
+            }
+        }
+        synchronized (sequence) {
+            if (!sequence.loaded) {
+                load(type, sequence);
+            }
+            long first = sequence.next;
+            long last = first + count - 1;
+            if (last > sequence.highWaterMark) {
+                long mark = last + reserve;
+                if (!saveManager.persistSaveable(sequenceType, HOLDER, new IdSequence(type, mark))) {
+                    throw new IOException("Could not save the id high-water mark of " + type);
+                }
+                sequence.highWaterMark = mark;
+            }
+            sequence.next = last + 1;
+            return first;
+        }
+    }
+
+    /**
+     * Starts a sequence after both its saved high-water mark and the highest
+     * id stored, which covers objects created without the allocator
+     */
+    private void load(String type, Sequence sequence) {
+        long highWaterMark = 0;
+        Saveable saved = saveManager.getSaveable(sequenceType, type);
+        if (saved instanceof IdSequence) {
+            highWaterMark = ((IdSequence) saved).getHighWaterMark();
+        }
+        long highestId = saveManager.getHighestUniqueId(type);
+        sequence.next = Math.max(highWaterMark, highestId) + 1;
+        sequence.highWaterMark = sequence.next - 1;
+        sequence.loaded = true;
+        Logger.getLogger("SaveServer").log(Level.INFO, "Id sequence of {0} starts at {1}", new Object[]{type, sequence.next});
+    }
+
+    /**
+     * Guarded by its own monitor
+     */
+    private static final class Sequence {
+        boolean loaded;
+        long next;
+        long highWaterMark;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.sequence;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import org.mgenterprises.openbooks.saving.Saveable;
+
+/**
+ * Highest id of a type that {@link IdAllocator} may have handed out. Ids up
+ * to it are never handed out again, even after a restart.
+ *
+ * @author Manuel Gauto
+ */
+@Entity
+@Table(name="IdSequence")
+public class IdSequence extends Saveable{
+    private String sequenceType;
+    private long highWaterMark;
+
+    public IdSequence() {
+    }
+
+    public IdSequence(String sequenceType, long highWaterMark) {
+        this.sequenceType = sequenceType;
+        this.highWaterMark = highWaterMark;
+    }
+
+    @Id
+    public String getSequenceType() {
+        return sequenceType;
+    }
+
+    public void setSequenceType(String sequenceType) {
+        this.sequenceType = sequenceType;
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public void setHighWaterMark(long highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    @Override
+    public String getSaveableModuleName() {
+        return this.getClass().getName();
+    }
+
+    @Override
+    public String getUniqueId() {
+        return sequenceType;
+    }
+
+    @Override
+    public void setUniqueId(String id) {
+        this.sequenceType = id;
+    }
+}
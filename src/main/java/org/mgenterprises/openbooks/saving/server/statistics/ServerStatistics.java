@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.statistics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects request statistics for the whole SaveServer, grouped both by
+ * verb and by the Saveable type a request was for
+ *
+ * @author Manuel Gauto
+ */
+public class ServerStatistics {
+    /**
+     * Access right needed to read the statistics with the STATS verb
+     */
+    public static final String ACCESS_RIGHT = "SaveServer.STATS";
+
+    private final long startedAt = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, RequestStatistics> verbs = new ConcurrentHashMap<String, RequestStatistics>();
+    private final ConcurrentHashMap<String, RequestStatistics> types = new ConcurrentHashMap<String, RequestStatistics>();
+
+    /**
+     * Records one handled request
+     *
+     * @param verb Name of the operation
+     * @param type Saveable type the request was for, null if it was not for one
+     * @param nanos Time taken to handle the request
+     * @param requestBytes Size of the request payload
+     * @param responseBytes Size of every response payload sent for it
+     * @param error True if the request was rejected or failed
+     */
+    public void record(String verb, String type, long nanos, int requestBytes, long responseBytes, boolean error) {
+        get(verbs, verb).record(nanos, requestBytes, responseBytes, error);
+        if (type != null) {
+            get(types, type).record(nanos, requestBytes, responseBytes, error);
+        }
+    }
+
+    public Map<String, RequestStatistics> getVerbStatistics() {
+        return verbs;
+    }
+
+    public Map<String, RequestStatistics> getTypeStatistics() {
+        return types;
+    }
+
+    /**
+     * @return Snapshot of every counter
+     */
+    public StatisticsReport getReport() {
+        return new StatisticsReport(startedAt, verbs, types);
+    }
+
+    private static RequestStatistics get(ConcurrentHashMap<String, RequestStatistics> map, String key) {
+        RequestStatistics statistics = map.get(key);
+        if (statistics == null) {
+            RequestStatistics created = new RequestStatistics();
+            statistics = map.putIfAbsent(key, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+}
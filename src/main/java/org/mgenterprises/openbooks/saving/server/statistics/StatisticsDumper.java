@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.statistics;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically writes a {@link StatisticsReport} to a file as json. The
+ * report is written to a temporary file first and then renamed over the
+ * previous one, so readers never see a partial report.
+ *
+ * @author Manuel Gauto
+ */
+public class StatisticsDumper implements Runnable {
+    private final ServerStatistics serverStatistics;
+    private final File file;
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private ScheduledExecutorService scheduler;
+
+    public StatisticsDumper(ServerStatistics serverStatistics, File file) {
+        this.serverStatistics = serverStatistics;
+        this.file = file;
+    }
+
+    /**
+     * Starts writing the report
+     *
+     * @param periodSeconds Seconds between two reports
+     */
+    public synchronized void start(long periodSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SaveServer-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(this, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the schedule and writes one last report
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+            run();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            dump();
+        } catch (IOException ex) {
+            Logger.getLogger("SaveServer").log(Level.WARNING, "Unable to write statistics to " + file, ex);
+        }
+    }
+
+    /**
+     * Writes the current report
+     *
+     * @throws IOException Thrown if the file cannot be written
+     */
+    public void dump() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            gson.toJson(serverStatistics.getReport(), writer);
+        }
+        if (!temp.renameTo(file)) {
+            //Some platforms will not rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+}
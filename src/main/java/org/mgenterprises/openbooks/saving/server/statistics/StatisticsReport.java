@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.statistics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Point in time copy of the {@link ServerStatistics}, shaped to be sent as
+ * json by the STATS verb and written by the {@link StatisticsDumper}
+ *
+ * @author Manuel Gauto
+ */
+public class StatisticsReport {
+    private long startedAt;
+    private long generatedAt;
+    private TreeMap<String, Entry> verbs = new TreeMap<String, Entry>();
+    private TreeMap<String, Entry> types = new TreeMap<String, Entry>();
+
+    public StatisticsReport() {
+    }
+
+    StatisticsReport(long startedAt, Map<String, RequestStatistics> verbs, Map<String, RequestStatistics> types) {
+        this.startedAt = startedAt;
+        this.generatedAt = System.currentTimeMillis();
+        for (Map.Entry<String, RequestStatistics> verb : verbs.entrySet()) {
+            this.verbs.put(verb.getKey(), new Entry(verb.getValue()));
+        }
+        for (Map.Entry<String, RequestStatistics> type : types.entrySet()) {
+            this.types.put(type.getKey(), new Entry(type.getValue()));
+        }
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getGeneratedAt() {
+        return generatedAt;
+    }
+
+    /**
+     * @return Statistics by verb name
+     */
+    public Map<String, Entry> getVerbs() {
+        return verbs;
+    }
+
+    /**
+     * @return Statistics by Saveable type
+     */
+    public Map<String, Entry> getTypes() {
+        return types;
+    }
+
+    /**
+     * Counters of one verb or type. Latencies are in microseconds.
+     */
+    public static class Entry {
+        private long count;
+        private long errors;
+        private long bytesIn;
+        private long bytesOut;
+        private double meanMicros;
+        private long p50Micros;
+        private long p90Micros;
+        private long p99Micros;
+        private long maxMicros;
+        private long[] buckets;
+
+        public Entry() {
+        }
+
+        Entry(RequestStatistics statistics) {
+            LatencyHistogram latency = statistics.getLatency();
+            this.count = statistics.getCount();
+            this.errors = statistics.getErrors();
+            this.bytesIn = statistics.getBytesIn();
+            this.bytesOut = statistics.getBytesOut();
+            this.meanMicros = latency.getMeanMicros();
+            this.p50Micros = latency.getPercentileMicros(50);
+            this.p90Micros = latency.getPercentileMicros(90);
+            this.p99Micros = latency.getPercentileMicros(99);
+            this.maxMicros = latency.getMaxNanos() / 1000;
+            this.buckets = latency.getBuckets();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * @return Request counts per latency bucket, see {@link LatencyHistogram}
+         */
+        public long[] getBuckets() {
+            return buckets;
+        }
+    }
+}
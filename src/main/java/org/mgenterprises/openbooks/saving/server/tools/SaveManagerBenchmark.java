@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicates;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.FileBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.HibernateBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
+
+/**
+ * Runs the same workload of customers against the Hibernate backend on a
+ * fresh H2 database, the file backend and the B+tree backend and prints how
+ * long each step took.
+ * 
+ * Run with the number of customers, 10000 by default.
+ * 
+ * @author Manuel Gauto
+ */
+public class SaveManagerBenchmark {
+    private static final String HOLDER = "benchmark";
+    private static final int BATCH_SIZE = 100;
+    private static final String TYPE = Customer.class.getName();
+    private final int customers;
+    private final long seed = System.nanoTime();
+
+    public SaveManagerBenchmark(int customers) {
+        this.customers = customers;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int customers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        File directory = Files.createTempDirectory("openbooks-benchmark").toFile();
+        SaveManagerBenchmark benchmark = new SaveManagerBenchmark(customers);
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s", "Backend", "Insert", "Update", "Get", "Scan", "Id range", "Filter"));
+
+        Configuration configuration = new Configuration().configure();
+        configuration.setProperty("hibernate.connection.url", "jdbc:h2:" + new File(directory, "db").getAbsolutePath());
+        configuration.setProperty("hibernate.hbm2ddl.auto", "create");
+        SessionFactory sessionFactory = configuration.buildSessionFactory();
+        try {
+            benchmark.run("Hibernate", new HibernateBackedSaveManager(sessionFactory));
+        } finally {
+            sessionFactory.close();
+        }
+        try (FileBackedSaveManager saveManager = new FileBackedSaveManager(new File(directory, "file"))) {
+            benchmark.run("File", saveManager);
+        }
+        try (BTreeBackedSaveManager saveManager = new BTreeBackedSaveManager(new File(directory, "data.btree"))) {
+            benchmark.run("B+tree", saveManager);
+        }
+    }
+
+    /**
+     * Runs the workload and prints one line of timings in milliseconds
+     */
+    public void run(String name, SaveManager saveManager) {
+        Random random = new Random(seed);
+        long[] timings = new long[6];
+
+        long start = System.nanoTime();
+        write(saveManager, random);
+        timings[0] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        write(saveManager, random);
+        timings[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int i = 0; i < customers; i++) {
+            saveManager.getSaveable(TYPE, String.valueOf(1 + random.nextInt(customers)));
+        }
+        timings[2] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final int[] scanned = new int[1];
+        saveManager.streamAllSaveables(TYPE, 256, new SaveableVisitor() {
+            @Override
+            public boolean visit(Saveable[] chunk) {
+                scanned[0] += chunk.length;
+                return true;
+            }
+        });
+        timings[3] = System.nanoTime() - start;
+        check(name, "scan", customers, scanned[0]);
+
+        start = System.nanoTime();
+        int low = customers / 2;
+        int found = saveManager.getWhere(TYPE, Predicates.between("customerNumber", low, low + 99)).length;
+        timings[4] = System.nanoTime() - start;
+        check(name, "id range", Math.min(100, customers - low + 1), found);
+
+        start = System.nanoTime();
+        saveManager.getWhere(TYPE, Predicates.eq("cityName", "City 7"));
+        timings[5] = System.nanoTime() - start;
+
+        StringBuilder line = new StringBuilder(String.format("%-10s", name));
+        for(long timing : timings) {
+            line.append(String.format(" %10d", timing / 1000000));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Writes every customer in batches, in random order
+     */
+    private void write(SaveManager saveManager, Random random) {
+        int[] order = new int[customers];
+        for(int i = 0; i < customers; i++) {
+            order[i] = i + 1;
+        }
+        for(int i = customers - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        for(int start = 0; start < customers; start += BATCH_SIZE) {
+            Saveable[] batch = new Saveable[Math.min(BATCH_SIZE, customers - start)];
+            for(int i = 0; i < batch.length; i++) {
+                batch[i] = createCustomer(order[start + i], random);
+            }
+            saveManager.persistSaveables(HOLDER, batch);
+        }
+    }
+
+    private static Customer createCustomer(int customerNumber, Random random) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(customerNumber);
+        customer.setCompanyName("Company " + customerNumber);
+        customer.setContactFirst("First " + random.nextInt(1000));
+        customer.setContactLast("Last " + random.nextInt(1000));
+        customer.setEmailAddress("customer" + customerNumber + "@example.com");
+        customer.setStreetAddress(random.nextInt(10000) + " Main Street");
+        customer.setCityName("City " + random.nextInt(100));
+        return customer;
+    }
+
+    private static void check(String name, String step, int expected, int actual) {
+        if(expected != actual) {
+            throw new IllegalStateException(name + " " + step + " returned " + actual + " objects instead of " + expected);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.metadata.ClassMetadata;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.FileBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.HibernateBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveManager;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
+
+/**
+ * Copies every object from one SaveManager to another, a chunk at a time.
+ * Locks are not copied, the server should be stopped while migrating.
+ * 
+ * Run with the source, either "hibernate" for the database configured in
+ * hibernate.cfg.xml or the data directory of a file backed server, and the
+ * B+tree file to migrate to.
+ * 
+ * @author Manuel Gauto
+ */
+public class SaveManagerMigrator {
+    private static final String HOLDER = "migration";
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Copies the objects of the types, replacing objects with the same id
+     *
+     * @return The number of objects copied
+     */
+    public static long migrate(SaveManager source, final SaveManager target, List<String> types) {
+        final long[] copied = new long[1];
+        for(final String type : types) {
+            source.streamAllSaveables(type, CHUNK_SIZE, new SaveableVisitor() {
+                @Override
+                public boolean visit(Saveable[] chunk) {
+                    boolean[] persisted = target.persistSaveables(HOLDER, chunk);
+                    for(int i = 0; i < chunk.length; i++) {
+                        if(!persisted[i]) {
+                            throw new IllegalStateException("Could not copy " + type + " " + chunk[i].getUniqueId());
+                        }
+                    }
+                    copied[0] += chunk.length;
+                    return true;
+                }
+            });
+            Logger.getLogger("SaveServer").info("Migrated " + type);
+        }
+        return copied[0];
+    }
+
+    /**
+     * @return The mapped entities of the session factory that are saveables
+     */
+    public static List<String> getTypes(SessionFactory sessionFactory) {
+        List<String> types = new ArrayList<String>();
+        for(ClassMetadata metadata : sessionFactory.getAllClassMetadata().values()) {
+            Class<?> mappedClass = metadata.getMappedClass(EntityMode.POJO);
+            if(Saveable.class.isAssignableFrom(mappedClass)) {
+                types.add(metadata.getEntityName());
+            }
+        }
+        return types;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: SaveManagerMigrator <hibernate|data directory> <B+tree file>");
+            System.exit(1);
+        }
+        try (BTreeBackedSaveManager target = new BTreeBackedSaveManager(new File(args[1]))) {
+            long copied;
+            if(args[0].equals("hibernate")) {
+                SessionFactory sessionFactory = new Configuration().configure().buildSessionFactory();
+                try {
+                    copied = migrate(new HibernateBackedSaveManager(sessionFactory), target, getTypes(sessionFactory));
+                } finally {
+                    sessionFactory.close();
+                }
+            } else {
+                try (FileBackedSaveManager source = new FileBackedSaveManager(new File(args[0]))) {
+                    copied = migrate(source, target, source.getTypes());
+                }
+            }
+            System.out.println("Copied " + copied + " objects");
+        }
+    }
+}
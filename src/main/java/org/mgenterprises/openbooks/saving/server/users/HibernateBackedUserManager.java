@@ -36,10 +36,16 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.gson.Gson;
+import org.hibernate.Hibernate;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.mgenterprises.openbooks.saving.server.access.ACTION;
 import org.mgenterprises.openbooks.saving.server.authentication.UserLoginAttempt;
+import org.mgenterprises.openbooks.saving.server.hibernate.ReadSession;
+import org.mgenterprises.openbooks.saving.server.hibernate.ReadWork;
+import org.mgenterprises.openbooks.saving.server.hibernate.SessionTemplate;
+import org.mgenterprises.openbooks.saving.server.hibernate.UnitOfWork;
 import org.mgenterprises.openbooks.saving.server.packets.UserAuth;
 import org.mgenterprises.openbooks.saving.server.security.BCrypt;
 import org.mgenterprises.openbooks.saving.server.security.CryptoUtils;
@@ -50,13 +56,13 @@ import org.mgenterprises.openbooks.saving.server.security.SecureMessage;
  * @author Manuel Gauto
  */
 public class HibernateBackedUserManager extends UserManager{
-    private final SessionFactory sessionFactory;
+    private final SessionTemplate sessionTemplate;
     private LoadingCache<String, UserProfile> userProfiles;
     private Gson gson = new Gson();
     private CryptoUtils cryptoUtils = new CryptoUtils();
 
     public HibernateBackedUserManager(final SessionFactory sessionFactory) {
-        this.sessionFactory = sessionFactory;
+        this.sessionTemplate = new SessionTemplate(sessionFactory);
         userProfiles = CacheBuilder.newBuilder()
                 .concurrencyLevel(4)
                 .maximumSize(10000)
@@ -64,11 +70,7 @@ public class HibernateBackedUserManager extends UserManager{
                 .build(
                         new CacheLoader<String, UserProfile>() {
                             public UserProfile load(String key) throws FileNotFoundException, IOException {
-                                Session session = sessionFactory.openSession();
-                                session.beginTransaction();
-                                UserProfile userProfile = (UserProfile) session.get(UserProfile.class, key);
-                                session.getTransaction().commit();
-                                return userProfile;
+                                return findUserProfile(key);
                             }
                         });
     }
@@ -129,19 +131,38 @@ public class HibernateBackedUserManager extends UserManager{
     @Override
     public boolean userHasAccessRight(String username, String accessRight, ACTION action) {
         if(username.equals("admin")) return true;
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        UserProfile userProfile = (UserProfile) session.get(UserProfile.class, username);
-        session.getTransaction().commit();
+        UserProfile userProfile = findUserProfile(username);
         return userProfile!=null&&userProfile.hasAccessRight(accessRight, action);
     }
 
     @Override
-    public void addUser(UserProfile userProfile) {
-        Session session = sessionFactory.openSession();
-        session.beginTransaction();
-        session.saveOrUpdate(userProfile);
-        session.getTransaction().commit();
+    public void addUser(final UserProfile userProfile) {
+        sessionTemplate.write(new UnitOfWork<Void>() {
+            @Override
+            public Void execute(Session session) {
+                session.saveOrUpdate(userProfile);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Loads a profile with its access rights, which stay usable after the
+     * session is closed
+     */
+    private UserProfile findUserProfile(final String username) {
+        return sessionTemplate.read(UserProfile.class.getName(), new ReadWork<UserProfile>() {
+            @Override
+            public UserProfile execute(ReadSession session) {
+                Query query = session.createQuery("From UserProfile where username=:username");
+                query.setString("username", username);
+                UserProfile userProfile = (UserProfile) query.uniqueResult();
+                if(userProfile != null) {
+                    Hibernate.initialize(userProfile.getAccessRights());
+                }
+                return userProfile;
+            }
+        });
     }
     
 }
@@ -48,6 +48,7 @@ import org.mgenterprises.openbooks.invoicing.invoice.InvoiceManager;
 import org.mgenterprises.openbooks.invoicing.item.ItemManager;
 import org.mgenterprises.openbooks.saving.companyfile.CompanyFile;
 import org.mgenterprises.openbooks.saving.SaveServerConnection;
+import org.mgenterprises.openbooks.saving.SaveServerSession;
 import org.mgenterprises.openbooks.saving.server.authentication.SaveServerAuthenticationFailureException;
 import org.mgenterprises.openbooks.saving.server.setup.ServerSetup;
 import org.mgenterprises.openbooks.views.actionlistener.DeleteCustomerActionListener;
@@ -65,6 +66,7 @@ import org.mgenterprises.openbooks.views.panel.customers.CustomerDetailPanel;
  */
 public class MainGUI extends javax.swing.JFrame implements WindowListener, OpenbooksCore{
     private ConfigurationManager configurationManager;
+    private SaveServerSession saveServerSession;
     private CustomerManager customerManager;
     private ItemManager itemManager;
     private InvoiceManager invoiceManager;
@@ -90,14 +92,16 @@ public class MainGUI extends javax.swing.JFrame implements WindowListener, Openb
         }
         setExtendedState(JFrame.MAXIMIZED_BOTH);
         try {
-            customerManager = new CustomerManager(saveServerConnection);
-            itemManager = new ItemManager(saveServerConnection);
-            invoiceManager = new InvoiceManager(saveServerConnection);
-            estimateManager = new EstimateManager(saveServerConnection);
+            //All managers share one login and connection
+            saveServerSession = new SaveServerSession(saveServerConnection);
+            customerManager = new CustomerManager(saveServerSession);
+            itemManager = new ItemManager(saveServerSession);
+            invoiceManager = new InvoiceManager(saveServerSession);
+            estimateManager = new EstimateManager(saveServerSession);
             configurationManager = companyFile.getConfigurationManager();
             configurationManager.loadDefaultConfiguration();
-            transactionManager = new TransactionManager(saveServerConnection);
-            accountManager = new AccountManager(saveServerConnection);
+            transactionManager = new TransactionManager(saveServerSession);
+            accountManager = new AccountManager(saveServerSession);
         } catch (IOException ex) {
             Logger.getLogger(MainGUI.class.getName()).log(Level.SEVERE, null, ex);
         } catch (SaveServerAuthenticationFailureException ex) {
@@ -255,6 +259,7 @@ public class MainGUI extends javax.swing.JFrame implements WindowListener, Openb
             customerManager.releaseAllLocks();
             itemManager.releaseAllLocks();
             invoiceManager.releaseAllLocks();
+            saveServerSession.close();
         } catch (IOException ex) {
             Logger.getLogger(MainGUI.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -25,6 +25,7 @@
 package org.mgenterprises.openbooks.views;
 
 import java.io.File;
+import java.io.IOException;
 import javax.swing.JFileChooser;
 import org.mgenterprises.openbooks.saving.server.FileBackedSaveManager;
 import org.mgenterprises.openbooks.saving.server.security.BCrypt;
@@ -170,8 +171,11 @@ public class SaveCreator extends javax.swing.JFrame {
         UserProfile userProfile = new UserProfile(username, passHash);
         File dataDir = new File(pathField.getText());
         dataDir.mkdirs();
-        FileBackedSaveManager saveManager = new FileBackedSaveManager(dataDir);
-        saveManager.persistSaveable(userProfile.getClass().getSimpleName(), "SERVER", userProfile);
+        try (FileBackedSaveManager saveManager = new FileBackedSaveManager(dataDir)) {
+            saveManager.persistSaveable(userProfile.getClass().getSimpleName(), "SERVER", userProfile);
+        } catch (IOException ex) {
+            java.util.logging.Logger.getLogger(SaveCreator.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+        }
         //saveManager.removeLock(userProfile.getSaveableModuleName(), userProfile.getUniqueId());
         //this.setVisible(false);
         //this.dispose();
@@ -28,7 +28,7 @@ import javax.swing.SwingWorker;
 import org.mgenterprises.openbooks.accounting.account.Account;
 import org.mgenterprises.openbooks.accounting.transaction.Transaction;
 import org.mgenterprises.openbooks.accounting.transaction.TransactionManager;
-import org.mgenterprises.openbooks.saving.EqualityOperation;
+import org.mgenterprises.openbooks.saving.query.Predicates;
 
 /**
  *
@@ -51,11 +51,7 @@ public class AccountDetailPanel extends javax.swing.JPanel {
 
             @Override
             protected Void doInBackground() throws Exception {
-                String[] keys = {"accountID"};
-                EqualityOperation[] operations = {EqualityOperation.EQUALS};
-                String[] values = new String[0];
-                String[] conjunctions = {""};
-                Transaction[] transactions = (Transaction[]) transactionManager.getWhere(keys, operations, values, conjunctions, false);
+                Transaction[] transactions = (Transaction[]) transactionManager.getWhere(Predicates.eq("accountID", account.getAccountID()), false);
                 return null;
             }
             
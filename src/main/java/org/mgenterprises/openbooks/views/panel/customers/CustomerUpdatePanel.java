@@ -358,7 +358,7 @@ public class CustomerUpdatePanel extends JPanel implements ViewChangeListener {
 
     private void newCustomerButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_newCustomerButtonActionPerformed
         try {
-            this.idField.setText(String.valueOf(customerManager.getHighestId()));
+            this.idField.setText(String.valueOf(customerManager.getNextId()));
         } catch (IOException ex) {
             Logger.getLogger(DeleteCustomerActionListener.class.getName()).log(Level.SEVERE, null, ex);
             JOptionPane.showConfirmDialog(null, "Unable to complete requested action because of connection problems.", "Warning!", JOptionPane.OK_OPTION);
@@ -591,9 +591,10 @@ public class InvoiceUpdatePanel extends JPanel implements ViewChangeListener{
             this.saveButton.setText("Save");
             this.saveButton.setFont(saveButton.getFont().deriveFont(Font.PLAIN));
             
-            long nextInvoiceID = invoiceManager.getHighestID();
+            long nextInvoiceID = invoiceManager.getNextID();
             this.invoiceNumberField.setText(String.valueOf(nextInvoiceID));
             while(!invoiceManager.tryLock(new Invoice().getSaveableModuleName(), invoiceNumberField.getText())){
+                nextInvoiceID = invoiceManager.getNextID();
                 this.invoiceNumberField.setText(String.valueOf(nextInvoiceID));
             }
             loadedInvoice.setLocked(false);
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.invoicing.invoice.Invoice;
+import org.mgenterprises.openbooks.invoicing.item.Item;
+import org.mgenterprises.openbooks.saving.protocol.Frame;
+import org.mgenterprises.openbooks.saving.protocol.FrameCodec;
+import org.mgenterprises.openbooks.saving.protocol.OpCode;
+import org.mgenterprises.openbooks.saving.protocol.PayloadReader;
+import org.mgenterprises.openbooks.saving.protocol.PayloadWriter;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a session against a scripted server on the loopback interface that
+ * holds back its answers until several requests are in flight and then
+ * sends them in reverse order
+ *
+ * @author Manuel Gauto
+ */
+public class MultiplexedConnectionTest {
+    private static final String KEYSTORE = "test.jks";
+    private static final char[] KEYSTORE_PASSWORD = "testtest".toCharArray();
+    private SSLServerSocket serverSocket;
+    private ExecutorService executor;
+    private SaveServerSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (FileInputStream input = new FileInputStream(KEYSTORE)) {
+            keyStore.load(input, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance("SunX509");
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+        //Ports are shorts in SaveServerConnection, so stay below the ephemeral range
+        for (int port = 17000; serverSocket == null; port++) {
+            try {
+                serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port, 1, InetAddress.getLoopbackAddress());
+            } catch (BindException ex) {
+                if (port == 17100) {
+                    throw ex;
+                }
+            }
+        }
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (session != null) {
+            session.close();
+        }
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void responsesInAnyOrderReachTheirRequests() throws Exception {
+        Future<List<Integer>> answered = serve(5);
+        session = connect();
+        List<PendingResponse> responses = new ArrayList<PendingResponse>();
+        for (int i = 0; i < 5; i++) {
+            PayloadWriter request = new PayloadWriter();
+            request.writeString("type" + i);
+            responses.add(session.getConnection().submit(Frame.request(OpCode.SIZE, request)));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(("type" + i).hashCode(), responses.get(i).await().reader().readLong());
+        }
+        session.close();
+        session = null;
+        List<Integer> order = answered.get(10, TimeUnit.SECONDS);
+        assertEquals(5, order.size());
+        for (int i = 1; i < order.size(); i++) {
+            assertTrue(order.get(i) < order.get(i - 1));
+        }
+    }
+
+    @Test
+    public void mapsSharingASessionGetTheirOwnAnswers() throws Exception {
+        serve(3);
+        session = connect();
+        List<Future<Long>> sizes = new ArrayList<Future<Long>>();
+        for (final Saveable type : new Saveable[]{new Customer(), new Item(), new Invoice()}) {
+            final ServerBackedMap<Saveable> map = new ServerBackedMap<Saveable>(type, session);
+            sizes.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return map.size();
+                }
+            }));
+        }
+
+        assertEquals(new Customer().getSaveableModuleName().hashCode(), sizes.get(0).get(10, TimeUnit.SECONDS).longValue());
+        assertEquals(new Item().getSaveableModuleName().hashCode(), sizes.get(1).get(10, TimeUnit.SECONDS).longValue());
+        assertEquals(new Invoice().getSaveableModuleName().hashCode(), sizes.get(2).get(10, TimeUnit.SECONDS).longValue());
+    }
+
+    private SaveServerSession connect() throws Exception {
+        SaveServerConnection connection = new SaveServerConnection("127.0.0.1", (short) serverSocket.getLocalPort(), "admin", "admin", KEYSTORE, KEYSTORE_PASSWORD);
+        connection.setHeartbeatIntervalMillis(0);
+        connection.setCompressionThreshold(-1);
+        return new SaveServerSession(connection);
+    }
+
+    /**
+     * Accepts one session, waits for the given number of requests and
+     * answers each with the hash of the type it names, last request first
+     *
+     * @return The request ids in the order they were answered
+     */
+    private Future<List<Integer>> serve(final int requests) {
+        return executor.submit(new Callable<List<Integer>>() {
+            @Override
+            public List<Integer> call() throws IOException {
+                try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                    FrameCodec codec = new FrameCodec(socket.getInputStream(), socket.getOutputStream());
+                    codec.negotiateAsServer();
+                    codec.readFrame();
+                    PayloadWriter login = new PayloadWriter();
+                    login.writeBoolean(false);
+                    codec.writeFrame(Frame.response(OpCode.LOGIN, Frame.STATUS_OK, login));
+
+                    List<Frame> received = new ArrayList<Frame>();
+                    while (received.size() < requests) {
+                        received.add(codec.readFrame());
+                    }
+                    Collections.reverse(received);
+                    List<Integer> answered = new ArrayList<Integer>();
+                    for (Frame request : received) {
+                        PayloadReader reader = request.reader();
+                        PayloadWriter response = new PayloadWriter();
+                        response.writeLong(reader.readString().hashCode());
+                        codec.writeFrame(Frame.response(request.getOpCode(), Frame.STATUS_OK, response).withRequestId(request.getRequestId()));
+                        answered.add(request.getRequestId());
+                    }
+                    //Keep the connection up until the client says goodbye
+                    codec.readFrame();
+                    return answered;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveServer;
+import org.mgenterprises.openbooks.saving.server.access.ACTION;
+import org.mgenterprises.openbooks.saving.server.authentication.UserLoginAttempt;
+import org.mgenterprises.openbooks.saving.server.security.BCrypt;
+import org.mgenterprises.openbooks.saving.server.users.FileBackedUserManager;
+import org.mgenterprises.openbooks.saving.server.users.UserProfile;
+import static org.junit.Assert.*;
+
+/**
+ * Runs PEEK against a SaveServer on the loopback interface, with a second
+ * user competing for the locks
+ *
+ * @author Manuel Gauto
+ */
+public class PeekTest {
+    private static final String KEYSTORE = "test.jks";
+    private static final char[] KEYSTORE_PASSWORD = "testtest".toCharArray();
+    /**
+     * Hash of the password "admin"
+     */
+    private static final String PASSWORD_HASH = "$2a$10$Kob.mJvhH6WbB9EcEVi97uenEt2F6q2wRT0zJCgm4KhJTOhY/WqCe";
+    private static final String TYPE = new Customer().getSaveableModuleName();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private BTreeBackedSaveManager store;
+    private SaveServer server;
+    private int port;
+    private ServerBackedMap<Customer> admin;
+    private ServerBackedMap<Customer> bob;
+
+    @Before
+    public void setUp() throws Exception {
+        FileBackedUserManager userManager = new PasswordUserManager(folder.newFolder("users"));
+        userManager.addUser(new UserProfile("admin", PASSWORD_HASH));
+        UserProfile profile = new UserProfile("bob", PASSWORD_HASH);
+        profile.addAccessRight(TYPE, ACTION.GET);
+        userManager.addUser(profile);
+        store = new BTreeBackedSaveManager(new File(folder.getRoot(), "peek.tree"));
+        port = freePort();
+        server = new SaveServer("127.0.0.1", (short) port, userManager, store, KEYSTORE, KEYSTORE_PASSWORD);
+        server.startServer();
+        admin = new ServerBackedMap<Customer>(new Customer(), connect("admin"));
+        bob = new ServerBackedMap<Customer>(new Customer(), connect("bob"));
+
+        Customer customer = new Customer();
+        customer.setCustomerNumber(1);
+        customer.setCompanyName("Original");
+        admin.put(customer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (admin != null) {
+            admin.getSession().close();
+        }
+        if (bob != null) {
+            bob.getSession().close();
+        }
+        server.stop();
+        //Wake the accept loop so it sees the server was stopped
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        } catch (IOException ex) {
+        }
+        store.close();
+    }
+
+    @Test
+    public void peekedObjectStaysLockableByAnotherHolder() throws IOException {
+        Snapshot<Customer> snapshot = admin.peek("1");
+
+        assertEquals("Original", snapshot.getSaveable().getCompanyName());
+        assertEquals("", snapshot.getLockHolder());
+        assertFalse(snapshot.getSaveable().isLocked());
+        assertNull(server.getLockTable().getHolder(TYPE, "1"));
+
+        assertTrue(bob.tryLock(TYPE, "1"));
+        assertEquals("bob", server.getLockTable().getHolder(TYPE, "1"));
+    }
+
+    @Test
+    public void peekLeavesTheLockOfAnotherHolder() throws IOException {
+        assertTrue(bob.tryLock(TYPE, "1"));
+
+        Snapshot<Customer> snapshot = admin.peek("1");
+
+        assertEquals("Original", snapshot.getSaveable().getCompanyName());
+        assertEquals("bob", snapshot.getLockHolder());
+        assertTrue(snapshot.getSaveable().isLocked());
+        assertEquals("bob", server.getLockTable().getHolder(TYPE, "1"));
+        assertFalse(admin.tryLock(TYPE, "1"));
+
+        assertTrue(bob.releaseLock(TYPE, "1"));
+        assertNull(server.getLockTable().getHolder(TYPE, "1"));
+    }
+
+    @Test
+    public void getLocksWherePeekDoesNot() throws IOException {
+        assertEquals("Original", admin.get("1").getCompanyName());
+
+        assertEquals("admin", server.getLockTable().getHolder(TYPE, "1"));
+        assertFalse(bob.tryLock(TYPE, "1"));
+    }
+
+    private SaveServerSession connect(String username) throws Exception {
+        //The server binds its socket on its own thread, retry until it listens
+        for (int attempt = 0; ; attempt++) {
+            SaveServerConnection connection = new SaveServerConnection("127.0.0.1", (short) port, username, "admin", KEYSTORE, KEYSTORE_PASSWORD);
+            connection.setHeartbeatIntervalMillis(0);
+            connection.setCompressionThreshold(-1);
+            try {
+                return new SaveServerSession(connection);
+            } catch (IOException ex) {
+                if (attempt == 50) {
+                    throw ex;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Ports are shorts in SaveServerConnection, so stay below the ephemeral range
+     */
+    private static int freePort() throws IOException {
+        for (int port = 17100; ; port++) {
+            try (ServerSocket socket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+                return port;
+            } catch (BindException ex) {
+                if (port == 17200) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks logins against the stored password hashes, which the
+     * FileBackedUserManager does not do yet
+     */
+    private static class PasswordUserManager extends FileBackedUserManager {
+        PasswordUserManager(File userprofileDirectory) {
+            super(userprofileDirectory);
+        }
+
+        @Override
+        public boolean checkUserLoginAttempt(UserLoginAttempt userLoginAttempt) {
+            try {
+                UserProfile userProfile = getUserProfile(userLoginAttempt.getUsername());
+                return userProfile != null && BCrypt.checkpw(userLoginAttempt.getPassword(), userProfile.getPasswordHash());
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class FrameCodecTest {
+
+    @Test
+    public void roundTripKeepsHeaderAndPayload() throws IOException {
+        PayloadWriter payload = new PayloadWriter();
+        payload.writeString("Invoice");
+        payload.writeLong(42);
+        Frame sent = Frame.response(OpCode.GET, Frame.STATUS_LOCKED, payload).withRequestId(7);
+
+        Frame received = roundTrip(sent, -1);
+
+        assertEquals(7, received.getRequestId());
+        assertEquals(OpCode.GET, received.getOpCode());
+        assertEquals(Frame.STATUS_LOCKED, received.getStatus());
+        PayloadReader reader = received.reader();
+        assertEquals("Invoice", reader.readString());
+        assertEquals(42, reader.readLong());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    public void requestIdsTellFramesApart() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec writer = new FrameCodec(new ByteArrayInputStream(new byte[0]), wire);
+        int[] ids = {3, 1, Integer.MAX_VALUE, 2};
+        for (int id : ids) {
+            PayloadWriter payload = new PayloadWriter();
+            payload.writeInt(id);
+            writer.writeFrame(Frame.request(OpCode.PING, payload).withRequestId(id));
+        }
+
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        for (int id : ids) {
+            Frame frame = reader.readFrame();
+            assertEquals(id, frame.getRequestId());
+            assertEquals(id, frame.reader().readInt());
+        }
+        assertNull(reader.readFrame());
+    }
+
+    @Test
+    public void emptyPayloadRoundTrips() throws IOException {
+        Frame received = roundTrip(Frame.request(OpCode.JOURNALSIZE).withRequestId(1), -1);
+        assertEquals(OpCode.JOURNALSIZE, received.getOpCode());
+        assertEquals(0, received.getPayloadLength());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsLengthShorterThanHeader() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(wire);
+        out.writeInt(3);
+        out.writeInt(0);
+        new FrameCodec(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream()).readFrame();
+    }
+
+    @Test
+    public void largePayloadsAreCompressed() throws IOException {
+        byte[] data = new byte[64 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 16);
+        }
+        PayloadWriter payload = new PayloadWriter();
+        payload.writeBytes(data, 0, data.length);
+        Frame sent = Frame.response(OpCode.GET_ALL, Frame.STATUS_PARTIAL, payload).withRequestId(9);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec writer = new FrameCodec(new ByteArrayInputStream(new byte[0]), wire);
+        writer.enableCompression(FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        writer.writeFrame(sent);
+        byte[] bytes = wire.toByteArray();
+        assertTrue(bytes.length < data.length / 4);
+        assertTrue((bytes[8] & FrameCodec.COMPRESSED_FLAG) != 0);
+
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(bytes), new ByteArrayOutputStream());
+        reader.enableCompression(FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        Frame received = reader.readFrame();
+        assertEquals(9, received.getRequestId());
+        assertEquals(OpCode.GET_ALL, received.getOpCode());
+        assertEquals(Frame.STATUS_PARTIAL, received.getStatus());
+        assertArrayEquals(data, received.reader().readBytes());
+        assertEquals(1, writer.getCompressionStatistics().getFramesCompressed());
+    }
+
+    @Test
+    public void smallPayloadsAreSentAsIs() throws IOException {
+        PayloadWriter payload = new PayloadWriter();
+        payload.writeString("small");
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec writer = new FrameCodec(new ByteArrayInputStream(new byte[0]), wire);
+        writer.enableCompression(FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        writer.writeFrame(Frame.request(OpCode.GET, payload).withRequestId(4));
+        byte[] bytes = wire.toByteArray();
+        assertEquals(OpCode.GET.getCode(), bytes[8]);
+
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(bytes), new ByteArrayOutputStream());
+        reader.enableCompression(FrameCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        assertEquals("small", reader.readFrame().reader().readString());
+    }
+
+    @Test
+    public void incompressiblePayloadsAreSentAsIs() throws IOException {
+        byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        PayloadWriter payload = new PayloadWriter();
+        payload.writeBytes(data, 0, data.length);
+
+        Frame received = roundTrip(Frame.request(OpCode.PUT, payload).withRequestId(5), 0);
+        assertArrayEquals(data, received.reader().readBytes());
+    }
+
+    @Test
+    public void handshakeAgreesOnVersion() throws Exception {
+        PipedOutputStream clientOut = new PipedOutputStream();
+        PipedOutputStream serverOut = new PipedOutputStream();
+        final FrameCodec client = new FrameCodec(new PipedInputStream(serverOut), clientOut);
+        final FrameCodec server = new FrameCodec(new PipedInputStream(clientOut), serverOut);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> serverVersion = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return server.negotiateAsServer();
+                }
+            });
+            assertEquals(FrameCodec.PROTOCOL_VERSION, client.negotiateAsClient());
+            assertEquals(FrameCodec.PROTOCOL_VERSION, (int) serverVersion.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void handshakeRejectsUnknownVersions() throws IOException {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(hello);
+        out.writeInt(FrameCodec.MAGIC);
+        out.writeByte(FrameCodec.PROTOCOL_VERSION + 2);
+        out.writeByte(FrameCodec.PROTOCOL_VERSION + 1);
+        ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        FrameCodec server = new FrameCodec(new ByteArrayInputStream(hello.toByteArray()), answer);
+        try {
+            server.negotiateAsServer();
+            fail("Expected the handshake to fail");
+        } catch (ProtocolException ex) {
+            byte[] bytes = answer.toByteArray();
+            assertEquals(5, bytes.length);
+            assertEquals(0, bytes[4]);
+        }
+    }
+
+    /**
+     * Writes a frame and reads it back, with compression on both sides if
+     * the threshold is not negative
+     */
+    private static Frame roundTrip(Frame frame, int compressionThreshold) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec writer = new FrameCodec(new ByteArrayInputStream(new byte[0]), wire);
+        if (compressionThreshold >= 0) {
+            writer.enableCompression(compressionThreshold);
+        }
+        writer.writeFrame(frame);
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        if (compressionThreshold >= 0) {
+            reader.enableCompression(compressionThreshold);
+        }
+        Frame received = reader.readFrame();
+        assertNull(reader.readFrame());
+        return received;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicates;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class BTreeBackedSaveManagerTest {
+    private static final String TYPE = Customer.class.getName();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+    private BTreeBackedSaveManager saveManager;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "save.tree");
+        saveManager = new BTreeBackedSaveManager(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        saveManager.close();
+    }
+
+    @Test
+    public void storesAndListsObjectsInIdOrder() {
+        //Ids that sort differently as text and as numbers
+        for (int number : new int[]{10, 9, 100, 1}) {
+            assertTrue(saveManager.persistSaveable(TYPE, "admin", customer(number, "Company " + number)));
+        }
+
+        assertEquals(4, saveManager.getSaveableCount(TYPE));
+        assertEquals(100, saveManager.getHighestUniqueId(TYPE));
+        assertTrue(saveManager.exists(TYPE, "9"));
+        assertFalse(saveManager.exists(TYPE, "8"));
+        assertEquals("Company 9", ((Customer) saveManager.getSaveable(TYPE, "9")).getCompanyName());
+        assertEquals("1 9 10 100", ids(saveManager.getAllSaveables(TYPE)));
+        Saveable[] some = saveManager.getSaveables(TYPE, new String[]{"100", "8", "1"});
+        assertEquals("100", some[0].getUniqueId());
+        assertNull(some[1]);
+        assertEquals("1", some[2].getUniqueId());
+    }
+
+    @Test
+    public void answersRangesAndOtherPredicates() {
+        for (int number = 1; number <= 30; number++) {
+            saveManager.persistSaveable(TYPE, "admin", customer(number, number % 3 == 0 ? "Fizz" : "Other"));
+        }
+
+        assertEquals("11 12 13", ids(saveManager.getWhere(TYPE, Predicates.between("customerNumber", 11, 13))));
+        assertEquals("29 30", ids(saveManager.getWhere(TYPE, Predicates.gt("customerNumber", 28))));
+        assertEquals("3 6 9", ids(saveManager.getWhere(TYPE, Predicates.and(Predicates.eq("companyName", "Fizz"), Predicates.lt("customerNumber", 10)))));
+        assertEquals(30, saveManager.getWhere(TYPE, Predicates.all()).length);
+    }
+
+    @Test
+    public void locksHaveOneHolderUntilReleased() {
+        assertTrue(saveManager.createLock("alice", TYPE, "1"));
+        assertTrue(saveManager.createLock("alice", TYPE, "1"));
+        assertFalse(saveManager.createLock("bob", TYPE, "1"));
+        assertEquals(0, saveManager.removeLocks("bob", TYPE, new String[]{"1"}));
+
+        assertEquals(1, saveManager.removeLocks("alice", TYPE, new String[]{"1", "2"}));
+        assertTrue(saveManager.createLock("bob", TYPE, "1"));
+        assertEquals("bob", saveManager.getLockHolder(TYPE, "1"));
+    }
+
+    @Test
+    public void removesReportWhichObjectsExisted() {
+        saveManager.persistSaveable(TYPE, "admin", customer(1, "Original"));
+
+        assertEquals("[true, false]", Arrays.toString(saveManager.removeSaveables("bob", TYPE, new String[]{"1", "2"})));
+        assertEquals(0, saveManager.getSaveableCount(TYPE));
+    }
+
+    @Test
+    public void journalsWritesAndRemovals() {
+        ChangeRecord[] written = saveManager.persistJournaled(new String[]{"admin", "admin"}, new Saveable[]{customer(1, "A"), customer(2, "B")}, 10);
+        ChangeRecord[] removed = saveManager.removeJournaled("admin", TYPE, new String[]{"2", "3"}, 12);
+
+        assertEquals(10, written[0].getChangeId());
+        assertEquals(11, written[1].getChangeId());
+        assertEquals(12, removed[0].getChangeId());
+        assertNull(removed[1]);
+        String changeType = new ChangeRecord().getSaveableModuleName();
+        assertEquals(3, saveManager.getSaveableCount(changeType));
+        assertEquals("2", ((ChangeRecord) saveManager.getSaveable(changeType, "12")).getObjectId());
+        assertEquals(1, saveManager.getSaveableCount(TYPE));
+    }
+
+    @Test
+    public void reopenKeepsObjectsAndLocks() throws IOException {
+        for (int number = 1; number <= 200; number++) {
+            saveManager.persistSaveable(TYPE, "admin", customer(number, "Company " + number));
+        }
+        saveManager.removeSaveable(TYPE, "50");
+        saveManager.createLock("alice", TYPE, "7");
+        saveManager.close();
+
+        saveManager = new BTreeBackedSaveManager(file);
+
+        assertEquals(199, saveManager.getSaveableCount(TYPE));
+        assertNull(saveManager.getSaveable(TYPE, "50"));
+        assertEquals("Company 150", ((Customer) saveManager.getSaveable(TYPE, "150")).getCompanyName());
+        assertEquals("alice", saveManager.getLockHolder(TYPE, "7"));
+        assertTrue(saveManager.isLockedForUser("bob", TYPE, "7"));
+        assertEquals(1, saveManager.getLocks().length);
+    }
+
+    private static Customer customer(int number, String companyName) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(number);
+        customer.setCompanyName(companyName);
+        return customer;
+    }
+
+    private static String ids(Saveable[] saveables) {
+        StringBuilder ids = new StringBuilder();
+        for (Saveable saveable : saveables) {
+            if (ids.length() > 0) {
+                ids.append(' ');
+            }
+            ids.append(saveable.getUniqueId());
+        }
+        return ids.toString();
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class BTreeTest {
+    private static final int PAGE_SIZE = 512;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+    private BTree tree;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "test.tree");
+        tree = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    @Test
+    public void sequentialInsertsSplitPages() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            assertNull(tree.put(key(i), value(i)));
+        }
+
+        assertEquals(2000, tree.getEntryCount());
+        //Far more entries than one 512 byte page holds
+        assertTrue(tree.getPageCount() > 20);
+        for (int i = 0; i < 2000; i++) {
+            assertArrayEquals(value(i), tree.get(key(i)));
+        }
+        assertNull(tree.get(key(2000)));
+        assertOrdered(tree.scan(key(0), null, Integer.MAX_VALUE, true), 2000);
+    }
+
+    @Test
+    public void randomInsertsMatchASortedMap() throws IOException {
+        TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(new KeyComparator());
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            int number = random.nextInt(5000);
+            byte[] value = value(random.nextInt());
+            tree.put(key(number), value);
+            expected.put(key(number), value);
+        }
+        for (int i = 0; i < 1000; i++) {
+            int number = random.nextInt(5000);
+            assertEquals(expected.remove(key(number)) != null, tree.delete(key(number)));
+        }
+
+        assertEquals(expected.size(), tree.getEntryCount());
+        List<BTree.Entry> entries = tree.scan(new byte[0], null, Integer.MAX_VALUE, true);
+        assertEquals(expected.size(), entries.size());
+        int i = 0;
+        for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getKey(), entries.get(i).getKey());
+            assertArrayEquals(entry.getValue(), entries.get(i).getValue());
+            i++;
+        }
+    }
+
+    @Test
+    public void scansCountsAndLastKeysOfRanges() throws IOException {
+        for (int i = 0; i < 500; i += 2) {
+            tree.put(key(i), value(i));
+        }
+
+        List<BTree.Entry> range = tree.scan(key(100), key(200), Integer.MAX_VALUE, false);
+        assertEquals(50, range.size());
+        assertArrayEquals(key(100), range.get(0).getKey());
+        assertArrayEquals(key(198), range.get(49).getKey());
+        assertNull(range.get(0).getValue());
+        assertEquals(10, tree.scan(key(101), null, 10, true).size());
+        assertArrayEquals(key(102), tree.scan(key(101), null, 1, true).get(0).getKey());
+        assertTrue(tree.scan(key(600), null, 10, true).isEmpty());
+
+        assertEquals(50, tree.count(key(100), key(200)));
+        assertEquals(50, tree.count(key(99), key(199)));
+        assertEquals(250, tree.count(new byte[0], null));
+        assertEquals(0, tree.count(key(101), key(102)));
+
+        assertArrayEquals(key(198), tree.lastKey(key(100), key(200)));
+        assertArrayEquals(key(498), tree.lastKey(key(0), null));
+        assertArrayEquals(key(100), tree.lastKey(key(100), key(101)));
+        assertNull(tree.lastKey(key(101), key(102)));
+        assertNull(tree.lastKey(key(600), null));
+    }
+
+    @Test
+    public void deletingEverythingLeavesAnEmptyTree() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            tree.put(key(i), value(i));
+        }
+        for (int i = 999; i >= 0; i--) {
+            assertTrue(tree.delete(key(i)));
+        }
+
+        assertFalse(tree.delete(key(0)));
+        assertEquals(0, tree.getEntryCount());
+        assertTrue(tree.scan(new byte[0], null, Integer.MAX_VALUE, true).isEmpty());
+        assertEquals(0, tree.count(new byte[0], null));
+        assertNull(tree.lastKey(new byte[0], null));
+        assertTrue(tree.getFreePageCount() > 0);
+
+        //Dropped pages are handed out again
+        long pages = tree.getPageCount();
+        for (int i = 0; i < 100; i++) {
+            tree.put(key(i), value(i));
+        }
+        assertEquals(pages, tree.getPageCount());
+        assertArrayEquals(value(50), tree.get(key(50)));
+    }
+
+    @Test
+    public void largeValuesGoToOverflowPages() throws IOException {
+        byte[] large = new byte[10 * PAGE_SIZE + 7];
+        new Random(7).nextBytes(large);
+        tree.put(key(1), large);
+        tree.put(key(2), value(2));
+
+        assertArrayEquals(large, tree.get(key(1)));
+        assertArrayEquals(large, tree.scan(key(1), key(2), 1, true).get(0).getValue());
+
+        byte[] larger = new byte[20 * PAGE_SIZE];
+        new Random(8).nextBytes(larger);
+        tree.put(key(1), larger);
+        assertArrayEquals(larger, tree.get(key(1)));
+        tree.put(key(1), value(1));
+        assertArrayEquals(value(1), tree.get(key(1)));
+        assertTrue(tree.delete(key(1)));
+        assertNull(tree.get(key(1)));
+        assertArrayEquals(value(2), tree.get(key(2)));
+    }
+
+    @Test
+    public void reopenFindsTheLastCommit() throws IOException {
+        byte[] large = new byte[3 * PAGE_SIZE];
+        new Random(3).nextBytes(large);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(key(i), value(i));
+        }
+        tree.put(key(5000), large);
+        tree.delete(key(10));
+        tree.close();
+
+        tree = open();
+
+        assertEquals(1000, tree.getEntryCount());
+        assertEquals(PAGE_SIZE, tree.getPageSize());
+        assertNull(tree.get(key(10)));
+        assertArrayEquals(value(999), tree.get(key(999)));
+        assertArrayEquals(large, tree.get(key(5000)));
+        tree.put(key(10), value(10));
+        assertArrayEquals(value(10), tree.get(key(10)));
+    }
+
+    @Test
+    public void closedTreeRejectsCalls() throws IOException {
+        tree.close();
+        try {
+            tree.get(key(1));
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            tree.put(key(1), value(1));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void failedWriteLeavesTheTreeUnchanged() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            tree.put(key(i), value(i));
+        }
+        try {
+            tree.write(new BTreeWork<Void>() {
+                @Override
+                public Void execute(BTreeWriter writer) throws IOException {
+                    for (int i = 0; i < 500; i++) {
+                        writer.put(key(i), value(-i));
+                    }
+                    writer.delete(key(5));
+                    throw new IOException("Abort");
+                }
+            });
+            fail();
+        } catch (IOException expected) {
+            assertEquals("Abort", expected.getMessage());
+        }
+
+        assertEquals(100, tree.getEntryCount());
+        assertEquals(100, tree.count(new byte[0], null));
+        assertArrayEquals(value(5), tree.get(key(5)));
+        assertArrayEquals(value(50), tree.get(key(50)));
+        assertNull(tree.get(key(200)));
+        //The pages of the failed write are free for the next one
+        assertTrue(tree.getFreePageCount() > 0);
+        long pages = tree.getPageCount();
+        tree.put(key(100), value(100));
+        assertEquals(pages, tree.getPageCount());
+        tree.close();
+        tree = open();
+        assertEquals(101, tree.getEntryCount());
+        assertArrayEquals(value(5), tree.get(key(5)));
+    }
+
+    @Test
+    public void writeSeesItsOwnChanges() throws IOException {
+        tree.put(key(1), value(1));
+        boolean replaced = tree.write(new BTreeWork<Boolean>() {
+            @Override
+            public Boolean execute(BTreeWriter writer) throws IOException {
+                assertFalse(writer.put(key(2), value(2)));
+                assertArrayEquals(value(2), writer.get(key(2)));
+                assertTrue(writer.delete(key(2)));
+                assertNull(writer.get(key(2)));
+                return writer.put(key(1), value(11));
+            }
+        });
+
+        assertTrue(replaced);
+        assertArrayEquals(value(11), tree.get(key(1)));
+        assertEquals(1, tree.getEntryCount());
+    }
+
+    private void assertOrdered(List<BTree.Entry> entries, int expected) {
+        assertEquals(expected, entries.size());
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(Node.compare(entries.get(i - 1).getKey(), entries.get(i).getKey()) < 0);
+        }
+    }
+
+    private BTree open() throws IOException {
+        BTreeConfiguration configuration = new BTreeConfiguration();
+        configuration.setPageSize(PAGE_SIZE);
+        configuration.setMapChunkBytes(64 * 1024);
+        configuration.setSyncOnCommit(false);
+        return new BTree(file, configuration);
+    }
+
+    private static byte[] key(int number) {
+        return ByteBuffer.allocate(4).putInt(number).array();
+    }
+
+    private static byte[] value(int number) {
+        return ("value " + number).getBytes(Charsets.UTF_8);
+    }
+
+    private static final class KeyComparator implements Comparator<byte[]> {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return Node.compare(a, b);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class NodeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private PageFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new PageFile(new File(folder.getRoot(), "nodes.tree"), 512, 4096);
+        file.ensureCapacity(4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        file.close();
+    }
+
+    @Test
+    public void comparesKeysAsUnsignedBytes() {
+        assertTrue(Node.compare(new byte[]{(byte) 0x80}, new byte[]{0x7F}) > 0);
+        assertTrue(Node.compare(new byte[]{1, 2}, new byte[]{1, 2, 0}) < 0);
+        assertTrue(Node.compare(new byte[0], new byte[]{0}) < 0);
+        assertEquals(0, Node.compare(new byte[]{(byte) 0xFF, 3}, new byte[]{(byte) 0xFF, 3}));
+    }
+
+    @Test
+    public void leafSurvivesWriteAndRead() throws IOException {
+        Node leaf = new Node(true);
+        leaf.keys.add(bytes("a"));
+        leaf.values.add(new Node.Value(bytes("first")));
+        leaf.keys.add(bytes("b"));
+        leaf.values.add(new Node.Value(42, 5000));
+        leaf.write(file, 2);
+
+        Node read = Node.read(file, 2);
+
+        assertTrue(read.leaf);
+        assertEquals(Node.LEAF, Node.kind(file, 2));
+        assertEquals(2, Node.count(file, 2));
+        assertArrayEquals(bytes("a"), read.keys.get(0));
+        assertArrayEquals(bytes("first"), read.values.get(0).inline);
+        assertNull(read.values.get(1).inline);
+        assertEquals(42, read.values.get(1).overflow);
+        assertEquals(5000, read.values.get(1).length);
+        assertEquals(1, Node.searchLeaf(file, 2, bytes("b")));
+        assertEquals(-2, Node.searchLeaf(file, 2, bytes("ab")));
+        assertArrayEquals(bytes("first"), Node.value(file, 2, 0).inline);
+        assertEquals(leaf.encodedSize(), read.encodedSize());
+    }
+
+    @Test
+    public void branchSurvivesWriteAndRead() throws IOException {
+        Node branch = new Node(false);
+        branch.children.add(10L);
+        branch.keys.add(bytes("m"));
+        branch.children.add(11L);
+        branch.keys.add(bytes("t"));
+        branch.children.add(12L);
+        branch.write(file, 3);
+
+        Node read = Node.read(file, 3);
+
+        assertFalse(read.leaf);
+        assertEquals(3, read.children.size());
+        assertEquals(10, Node.child(file, 3, Node.childIndex(file, 3, bytes("a"))));
+        assertEquals(11, Node.child(file, 3, Node.childIndex(file, 3, bytes("m"))));
+        assertEquals(11, Node.child(file, 3, Node.childIndex(file, 3, bytes("s"))));
+        assertEquals(12, Node.child(file, 3, Node.childIndex(file, 3, bytes("z"))));
+        assertEquals(read.childIndex(bytes("s")), Node.childIndex(file, 3, bytes("s")));
+    }
+
+    @Test
+    public void searchReturnsInsertionPoints() {
+        Node leaf = leaf("b", "d", "f");
+
+        assertEquals(1, leaf.search(bytes("d")));
+        assertEquals(-1, leaf.search(bytes("a")));
+        assertEquals(-3, leaf.search(bytes("e")));
+        assertEquals(-4, leaf.search(bytes("g")));
+    }
+
+    @Test
+    public void leafSplitMovesTheUpperHalf() {
+        Node left = leaf("a", "b", "c", "d", "e", "f");
+        Node right = new Node(true);
+
+        byte[] separator = left.splitTo(right);
+
+        assertEquals(6, left.keys.size() + right.keys.size());
+        assertEquals(left.keys.size(), left.values.size());
+        assertEquals(right.keys.size(), right.values.size());
+        assertTrue(left.keys.size() >= 2 && right.keys.size() >= 2);
+        assertArrayEquals(right.keys.get(0), separator);
+        assertTrue(Node.compare(left.keys.get(left.keys.size() - 1), separator) < 0);
+    }
+
+    @Test
+    public void leafSplitKeepsAnEntryOnTheLeft() {
+        Node left = leaf("a", "b");
+        left.values.set(1, new Node.Value(new byte[300]));
+        Node right = new Node(true);
+
+        assertArrayEquals(bytes("b"), left.splitTo(right));
+        assertEquals(1, left.keys.size());
+        assertEquals(1, right.keys.size());
+    }
+
+    @Test
+    public void branchSplitMovesTheMiddleKeyUp() {
+        Node left = new Node(false);
+        left.children.add(0L);
+        for (int i = 1; i <= 5; i++) {
+            left.keys.add(bytes("k" + i));
+            left.children.add((long) i);
+        }
+        Node right = new Node(false);
+
+        byte[] separator = left.splitTo(right);
+
+        assertEquals(4, left.keys.size() + right.keys.size());
+        assertEquals(left.keys.size() + 1, left.children.size());
+        assertEquals(right.keys.size() + 1, right.children.size());
+        for (byte[] key : left.keys) {
+            assertTrue(Node.compare(key, separator) < 0);
+        }
+        for (byte[] key : right.keys) {
+            assertTrue(Node.compare(key, separator) > 0);
+        }
+    }
+
+    private static Node leaf(String... keys) {
+        Node leaf = new Node(true);
+        for (String key : keys) {
+            leaf.keys.add(bytes(key));
+            leaf.values.add(new Node.Value(bytes("value " + key)));
+        }
+        return leaf;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(Charsets.UTF_8);
+    }
+}
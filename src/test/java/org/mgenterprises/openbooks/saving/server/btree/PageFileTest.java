@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.btree;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class PageFileTest {
+    private static final int PAGE_SIZE = 512;
+    /**
+     * Four pages per mapped chunk
+     */
+    private static final int CHUNK_BYTES = 4 * PAGE_SIZE;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void growsInWholeChunks() throws IOException {
+        PageFile file = new PageFile(new File(folder.getRoot(), "pages"), PAGE_SIZE, CHUNK_BYTES);
+        try {
+            file.ensureCapacity(1);
+            assertEquals(CHUNK_BYTES, file.getFileBytes());
+            file.ensureCapacity(4);
+            assertEquals(CHUNK_BYTES, file.getFileBytes());
+            file.ensureCapacity(5);
+            assertEquals(2 * CHUNK_BYTES, file.getFileBytes());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasWrittenInEveryChunk() throws IOException {
+        PageFile file = new PageFile(new File(folder.getRoot(), "pages"), PAGE_SIZE, CHUNK_BYTES);
+        try {
+            file.ensureCapacity(10);
+            for (long page = 0; page < 10; page++) {
+                file.putByte(page, 0, (byte) page);
+                file.putShort(page, 1, 0xFFFF);
+                file.putInt(page, 3, (int) page * 1000);
+                file.putLong(page, PAGE_SIZE - 8, Long.MAX_VALUE - page);
+            }
+            for (long page = 0; page < 10; page++) {
+                assertEquals(page, file.getByte(page, 0));
+                assertEquals(0xFFFF, file.getUnsignedShort(page, 1));
+                assertEquals(page * 1000, file.getInt(page, 3));
+                assertEquals(Long.MAX_VALUE - page, file.getLong(page, PAGE_SIZE - 8));
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void comparesStoredBytesWithKeys() throws IOException {
+        PageFile file = new PageFile(new File(folder.getRoot(), "pages"), PAGE_SIZE, CHUNK_BYTES);
+        try {
+            file.ensureCapacity(6);
+            byte[] stored = {1, (byte) 0x90, 3};
+            file.putBytes(5, 100, stored, 0, stored.length);
+
+            assertArrayEquals(stored, file.getBytes(5, 100, 3));
+            assertEquals(0, file.compare(5, 100, 3, stored));
+            assertTrue(file.compare(5, 100, 3, new byte[]{1, 0x10, 3}) > 0);
+            assertTrue(file.compare(5, 100, 2, stored) < 0);
+            assertTrue(file.compare(5, 100, 3, new byte[]{1}) > 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void keepsPagesAcrossReopen() throws IOException {
+        File path = new File(folder.getRoot(), "pages");
+        PageFile file = new PageFile(path, PAGE_SIZE, CHUNK_BYTES);
+        file.ensureCapacity(7);
+        file.putLong(6, 8, 123456789L);
+        file.force();
+        file.close();
+
+        file = new PageFile(path, PAGE_SIZE, CHUNK_BYTES);
+        try {
+            assertEquals(123456789L, file.getLong(6, 8));
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class CachingSaveManagerTest {
+    private static final String TYPE = Customer.class.getName();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private PausingSaveManager store;
+    private CachingSaveManager saveManager;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new PausingSaveManager(new File(folder.getRoot(), "save.tree"));
+        saveManager = new CachingSaveManager(store);
+        saveManager.persistSaveable(TYPE, "admin", customer(1, "Original"));
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        store.close();
+    }
+
+    @Test
+    public void readsAreServedFromTheCache() {
+        assertEquals("Original", companyName("1"));
+        assertEquals("Original", companyName("1"));
+
+        assertEquals(1, store.reads.get());
+        assertEquals(1, saveManager.getStatistics(TYPE).hitCount());
+    }
+
+    @Test
+    public void readersGetCopiesOfTheCachedObject() {
+        Customer read = (Customer) saveManager.getSaveable(TYPE, "1");
+        read.setCompanyName("Changed by a session");
+        read.setLocked(true);
+
+        Customer again = (Customer) saveManager.getSaveable(TYPE, "1");
+        assertEquals("Original", again.getCompanyName());
+        assertFalse(again.isLocked());
+    }
+
+    @Test
+    public void readRacingAWriteDoesNotCacheTheOldObject() throws Exception {
+        store.pause();
+        Future<Saveable> read = executor.submit(new Callable<Saveable>() {
+            @Override
+            public Saveable call() {
+                return saveManager.getSaveable(TYPE, "1");
+            }
+        });
+        //The read has the old object but has not cached it yet
+        assertTrue(store.read.await(10, TimeUnit.SECONDS));
+        saveManager.persistJournaled(new String[]{"admin"}, new Saveable[]{customer(1, "Written")}, 1);
+        store.resume();
+
+        assertEquals("Original", ((Customer) read.get(10, TimeUnit.SECONDS)).getCompanyName());
+        assertEquals("Written", companyName("1"));
+        assertEquals(2, store.reads.get());
+    }
+
+    @Test
+    public void journaledWritesAndRemovesInvalidate() {
+        assertEquals("Original", companyName("1"));
+        saveManager.persistJournaled(new String[]{"admin"}, new Saveable[]{customer(1, "Written")}, 1);
+        assertEquals("Written", companyName("1"));
+
+        assertNotNull(saveManager.removeJournaled("admin", TYPE, new String[]{"1"}, 2)[0]);
+        assertNull(saveManager.getSaveable(TYPE, "1"));
+        assertFalse(saveManager.exists(TYPE, "1"));
+        assertEquals("[null]", Arrays.toString(saveManager.getSaveables(TYPE, new String[]{"1"})));
+    }
+
+    private String companyName(String id) {
+        return ((Customer) saveManager.getSaveable(TYPE, id)).getCompanyName();
+    }
+
+    private static Customer customer(int number, String companyName) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(number);
+        customer.setCompanyName(companyName);
+        return customer;
+    }
+
+    /**
+     * Counts the reads that reach storage and can hold one back after it
+     * has read the object
+     */
+    private static class PausingSaveManager extends BTreeBackedSaveManager {
+        private final CountDownLatch read = new CountDownLatch(1);
+        private final CountDownLatch resumed = new CountDownLatch(1);
+        private volatile boolean paused;
+        private final AtomicInteger reads = new AtomicInteger();
+
+        PausingSaveManager(File file) throws IOException {
+            super(file);
+        }
+
+        void pause() {
+            paused = true;
+        }
+
+        void resume() {
+            paused = false;
+            resumed.countDown();
+        }
+
+        @Override
+        public Saveable getSaveable(String type, String id) {
+            Saveable saveable = super.getSaveable(type, id);
+            reads.incrementAndGet();
+            if (paused) {
+                read.countDown();
+                try {
+                    resumed.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return saveable;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.catalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.SaveableVisitor;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class CatalogingSaveManagerTest {
+    private static final String TYPE = Customer.class.getName();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private SlowLoadingSaveManager store;
+    private CatalogingSaveManager saveManager;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new SlowLoadingSaveManager(new File(folder.getRoot(), "save.tree"));
+        saveManager = new CatalogingSaveManager(store);
+        for (int number = 1; number <= 3; number++) {
+            saveManager.persistSaveable(TYPE, "admin", customer(number));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void writesMadeWhileTheCatalogLoadsAreKept() {
+        store.duringLoad = new Runnable() {
+            @Override
+            public void run() {
+                saveManager.removeSaveable(TYPE, "2");
+                saveManager.persistSaveable(TYPE, "admin", customer(10));
+            }
+        };
+
+        assertTrue(saveManager.exists(TYPE, "1"));
+        assertFalse(saveManager.exists(TYPE, "2"));
+        assertTrue(saveManager.exists(TYPE, "10"));
+        assertEquals(3, saveManager.getSaveableCount(TYPE));
+        assertEquals(10, saveManager.getHighestUniqueId(TYPE));
+        assertEquals(1, store.loads);
+    }
+
+    @Test
+    public void catalogFollowsWritesOnceLoaded() {
+        assertEquals(3, saveManager.getSaveableCount(TYPE));
+        saveManager.removeSaveables("admin", TYPE, new String[]{"3", "4"});
+        saveManager.persistSaveables("admin", new Saveable[]{customer(70000)});
+
+        assertFalse(saveManager.exists(TYPE, "3"));
+        assertTrue(saveManager.exists(TYPE, "70000"));
+        assertEquals(3, saveManager.getSaveableCount(TYPE));
+        assertEquals(70000, saveManager.getHighestUniqueId(TYPE));
+        assertEquals(1, store.loads);
+    }
+
+    private static Customer customer(int number) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(number);
+        customer.setCompanyName("Company " + number);
+        return customer;
+    }
+
+    /**
+     * Hands the stored objects to a loading catalog only after running a
+     * write, as if the write landed while the load was under way
+     */
+    private static class SlowLoadingSaveManager extends BTreeBackedSaveManager {
+        private Runnable duringLoad;
+        private int loads;
+
+        SlowLoadingSaveManager(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void streamAllSaveables(String type, int chunkSize, SaveableVisitor visitor) {
+            loads++;
+            final List<Saveable[]> chunks = new ArrayList<Saveable[]>();
+            super.streamAllSaveables(type, chunkSize, new SaveableVisitor() {
+                @Override
+                public boolean visit(Saveable[] chunk) {
+                    chunks.add(chunk);
+                    return true;
+                }
+            });
+            if (duringLoad != null) {
+                duringLoad.run();
+            }
+            for (Saveable[] chunk : chunks) {
+                visitor.visit(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.catalog;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class IdBitmapTest {
+
+    @Test
+    public void idsOnBothSidesOfAContainerBoundaryStayApart() {
+        IdBitmap ids = new IdBitmap();
+        assertTrue(ids.add(65535));
+        assertTrue(ids.add(65536));
+        assertFalse(ids.add(65536));
+
+        assertTrue(ids.contains(65535));
+        assertTrue(ids.contains(65536));
+        assertFalse(ids.contains(65537));
+        assertFalse(ids.contains(131071));
+        assertEquals(2, ids.size());
+        assertEquals(65536, ids.max());
+
+        assertTrue(ids.remove(65536));
+        assertFalse(ids.remove(65536));
+        assertFalse(ids.contains(65536));
+        assertTrue(ids.contains(65535));
+        assertEquals(65535, ids.max());
+    }
+
+    @Test
+    public void negativeAndLargeIdsGetTheirOwnContainers() {
+        IdBitmap ids = new IdBitmap();
+        ids.add(-1);
+        ids.add(0);
+        ids.add(1L << 40);
+
+        assertTrue(ids.contains(-1));
+        assertTrue(ids.contains(0));
+        assertTrue(ids.contains(1L << 40));
+        assertFalse(ids.contains(65535));
+        assertFalse(ids.contains((1L << 40) + 1));
+        assertEquals(1L << 40, ids.max());
+        assertTrue(ids.remove(1L << 40));
+        assertEquals(0, ids.max());
+    }
+
+    @Test
+    public void denseContainerBecomesABitmapAndBack() {
+        IdBitmap ids = new IdBitmap();
+        for (long id = 65536; id < 65536 + 5000; id++) {
+            ids.add(id);
+        }
+        assertEquals(8192, ids.getMemoryBytes());
+        assertEquals(5000, ids.size());
+        assertTrue(ids.contains(65536 + 4999));
+        assertFalse(ids.contains(65536 + 5000));
+        assertFalse(ids.contains(65535));
+
+        for (long id = 65536; id < 65536 + 3000; id++) {
+            assertTrue(ids.remove(id));
+        }
+        assertTrue(ids.getMemoryBytes() < 8192);
+        assertEquals(2000, ids.size());
+        assertFalse(ids.contains(65536 + 2999));
+        assertTrue(ids.contains(65536 + 3000));
+        assertEquals(65536 + 4999, ids.max());
+    }
+
+    @Test
+    public void emptiedContainerIsDropped() {
+        IdBitmap ids = new IdBitmap();
+        ids.add(70000);
+        ids.remove(70000);
+
+        assertTrue(ids.isEmpty());
+        assertEquals(0, ids.getMemoryBytes());
+        try {
+            ids.max();
+            fail("An empty set has no largest id");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
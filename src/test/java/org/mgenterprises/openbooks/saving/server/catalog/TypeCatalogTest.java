@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.catalog;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class TypeCatalogTest {
+
+    @Test
+    public void changesDuringTheLoadWinOverTheStoredIds() {
+        TypeCatalog catalog = new TypeCatalog();
+        catalog.load("1");
+        catalog.record("1", false);
+        catalog.record("2", true);
+        //The load read its ids before the changes were made
+        catalog.load("2");
+        catalog.load("3");
+        catalog.record("3", false);
+        catalog.record("3", true);
+        catalog.finishLoading();
+
+        assertTrue(catalog.awaitLoaded());
+        assertFalse(catalog.contains("1"));
+        assertTrue(catalog.contains("2"));
+        assertTrue(catalog.contains("3"));
+        assertEquals(2, catalog.size());
+    }
+
+    @Test
+    public void writesRacingTheLoadAreKept() throws InterruptedException {
+        final TypeCatalog catalog = new TypeCatalog();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int id = 0; id < 20000; id += 2) {
+                    catalog.record(Integer.toString(id), false);
+                }
+                for (int id = 20000; id < 21000; id++) {
+                    catalog.record(Integer.toString(id), true);
+                }
+            }
+        });
+        writer.start();
+        start.countDown();
+        for (int id = 0; id < 20000; id++) {
+            catalog.load(Integer.toString(id));
+        }
+        writer.join();
+        catalog.finishLoading();
+
+        assertEquals(11000, catalog.size());
+        assertFalse(catalog.contains("0"));
+        assertTrue(catalog.contains("1"));
+        assertFalse(catalog.contains("19998"));
+        assertTrue(catalog.contains("20999"));
+        assertEquals(20999, catalog.getHighestId());
+    }
+
+    @Test
+    public void onlyCanonicalNumbersGoIntoTheBitmap() {
+        TypeCatalog catalog = new TypeCatalog();
+        catalog.load("7");
+        catalog.load("007");
+        catalog.finishLoading();
+
+        assertTrue(catalog.contains("7"));
+        assertTrue(catalog.contains("007"));
+        assertFalse(catalog.contains("07"));
+        assertFalse(catalog.isNumeric());
+        assertTrue(TypeCatalog.isNumeric("-5"));
+        assertFalse(TypeCatalog.isNumeric("-"));
+        assertFalse(TypeCatalog.isNumeric("99999999999999999999"));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.hibernate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.query.Predicate;
+import org.mgenterprises.openbooks.saving.query.PredicateEvaluator;
+import org.mgenterprises.openbooks.saving.server.HibernateBackedSaveManager;
+import static org.junit.Assert.*;
+import static org.mgenterprises.openbooks.saving.query.Predicates.*;
+
+/**
+ * Runs the same predicates through the compiled HQL and through
+ * {@link PredicateEvaluator}, which must agree on every object.
+ *
+ * @author Manuel Gauto
+ */
+public class HqlQueryCompilerTest {
+    private static final String TYPE = Customer.class.getName();
+    private static final String[] COMPANIES = {"Acme", "acme", "Bolt", null, "Crane", "Acme Tools", null, "Delta", "B", ""};
+    private static final String[] FIRST_NAMES = {"Ann", null, "Bob", "Cy", null};
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+    private static SessionFactory sessionFactory;
+    private static HibernateBackedSaveManager saveManager;
+    private static List<Customer> customers = new ArrayList<Customer>();
+
+    @BeforeClass
+    public static void setUp() {
+        Configuration configuration = new Configuration().configure();
+        configuration.setProperty("hibernate.connection.url", "jdbc:h2:" + new File(folder.getRoot(), "db").getAbsolutePath());
+        configuration.setProperty("hibernate.hbm2ddl.auto", "create");
+        sessionFactory = configuration.buildSessionFactory();
+        saveManager = new HibernateBackedSaveManager(sessionFactory);
+        for (int number = 1; number <= 30; number++) {
+            Customer customer = new Customer();
+            customer.setCustomerNumber(number);
+            customer.setCompanyName(COMPANIES[number % COMPANIES.length]);
+            customer.setContactFirst(FIRST_NAMES[number % FIRST_NAMES.length]);
+            customers.add(customer);
+        }
+        assertTrue(saveManager.persistSaveables("admin", customers.toArray(new Saveable[customers.size()]))[0]);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        sessionFactory.close();
+    }
+
+    @Test
+    public void comparisonsAgree() {
+        assertAgree(eq("customerNumber", 7));
+        assertAgree(ne("customerNumber", 7));
+        assertAgree(gt("customerNumber", 25));
+        assertAgree(ge("customerNumber", 25));
+        assertAgree(lt("customerNumber", 4));
+        assertAgree(le("customerNumber", 4));
+        assertAgree(eq("companyName", "Acme"));
+        assertAgree(gt("companyName", "B"));
+        assertAgree(le("companyName", "Bolt"));
+        assertAgree(eq("companyName", ""));
+    }
+
+    @Test
+    public void nullPropertiesNeverMatchComparisons() {
+        assertAgree(ne("companyName", "Acme"));
+        assertAgree(not(eq("companyName", "Acme")));
+        assertAgree(not(gt("companyName", "B")));
+        assertAgree(not(not(eq("companyName", "Acme"))));
+        assertAgree(in("companyName", "Acme", "Bolt"));
+        assertAgree(not(in("companyName", "Acme", "Bolt")));
+        assertAgree(between("companyName", "Acme", "Crane"));
+        assertAgree(not(between("companyName", "Acme", "Crane")));
+        assertAgree(not(like("contactFirst", "A%")));
+    }
+
+    @Test
+    public void junctionsAgree() {
+        assertAgree(and(gt("customerNumber", 5), eq("companyName", "Acme")));
+        assertAgree(or(eq("companyName", "Acme"), gt("customerNumber", 25)));
+        assertAgree(not(or(eq("companyName", "Acme"), gt("customerNumber", 25))));
+        assertAgree(not(and(eq("companyName", "Acme"), eq("contactFirst", "Ann"))));
+        assertAgree(or(not(eq("companyName", "Bolt")), not(eq("contactFirst", "Bob"))));
+        assertAgree(and(or(eq("contactFirst", "Ann"), eq("contactFirst", "Cy")), not(le("customerNumber", 10))));
+        assertAgree(and());
+        assertAgree(or());
+        assertAgree(in("customerNumber", Collections.emptyList()));
+        assertAgree(not(or()));
+    }
+
+    @Test
+    public void likePatternsAgree() {
+        assertAgree(like("companyName", "Acme%"));
+        assertAgree(like("companyName", "acme"));
+        assertAgree(like("companyName", "%o%"));
+        assertAgree(like("companyName", "_olt"));
+        assertAgree(like("companyName", "%"));
+        assertAgree(like("companyName", ""));
+        assertAgree(and(like("companyName", "A%"), like("contactFirst", "%n%")));
+    }
+
+    @Test
+    public void rangesAgree() {
+        assertAgree(between("customerNumber", 10, 20));
+        assertAgree(between("customerNumber", 20, 10));
+        assertAgree(in("customerNumber", 1, 2, 3, 99));
+        assertAgree(not(in("customerNumber", 1, 2, 3)));
+        assertAgree(range("customerNumber", null, 3));
+    }
+
+    private static void assertAgree(Predicate predicate) {
+        List<String> expected = new ArrayList<String>();
+        for (Customer customer : customers) {
+            if (PredicateEvaluator.matches(predicate, customer)) {
+                expected.add(customer.getUniqueId());
+            }
+        }
+        Saveable[] found = saveManager.getWhere(TYPE, predicate);
+        assertNotNull("Query failed: " + predicate, found);
+        List<String> actual = new ArrayList<String>();
+        for (Saveable saveable : found) {
+            actual.add(saveable.getUniqueId());
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(predicate.toString(), expected, actual);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.journal;
+
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class ChangeJournalTest {
+    private static final String TYPE = Customer.class.getName();
+    private static final String[] HOLDER = {"admin"};
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private BTreeBackedSaveManager saveManager;
+    private ChangeJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        saveManager = new BTreeBackedSaveManager(folder.newFile("journal.tree"));
+        journal = new ChangeJournal(saveManager);
+        journal.setOptimistic(TYPE, true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        saveManager.close();
+    }
+
+    @Test
+    public void currentVersionIsWritten() {
+        Customer customer = customer(1, 0);
+        long changeId = write(customer);
+
+        assertTrue(changeId >= 0);
+        assertEquals(changeId+1, journal.getVersion(TYPE, "1"));
+
+        Customer edit = customer(1, changeId+1);
+        long nextChangeId = write(edit);
+        assertEquals(changeId+1, nextChangeId);
+        assertEquals(nextChangeId+1, journal.getVersion(TYPE, "1"));
+    }
+
+    @Test
+    public void staleVersionConflicts() {
+        long changeId = write(customer(1, 0));
+        write(customer(1, changeId+1));
+
+        Customer stale = customer(1, changeId+1);
+        stale.setCompanyName("Stale");
+        assertEquals(ChangeJournal.CONFLICT, write(stale));
+        assertEquals(changeId+1, journal.getLatestChangeId());
+        assertFalse("Stale".equals(((Customer) saveManager.getSaveable(TYPE, "1")).getCompanyName()));
+    }
+
+    @Test
+    public void secondWriteInOneBatchConflicts() {
+        long[] ids = journal.recordWrites(new String[]{"admin", "admin"}, new Customer[]{customer(1, 0), customer(1, 0)});
+
+        assertTrue(ids[0] >= 0);
+        assertEquals(ChangeJournal.CONFLICT, ids[1]);
+    }
+
+    @Test
+    public void conflictOnlySkipsItsOwnWrite() {
+        long changeId = write(customer(1, 0));
+
+        long[] ids = journal.recordWrites(new String[]{"admin", "admin"}, new Customer[]{customer(1, 0), customer(2, 0)});
+
+        assertEquals(ChangeJournal.CONFLICT, ids[0]);
+        assertEquals(changeId+1, ids[1]);
+    }
+
+    @Test
+    public void versionsAreReloadedFromTheJournal() {
+        long changeId = write(customer(1, 0));
+
+        ChangeJournal reloaded = new ChangeJournal(saveManager);
+        reloaded.setOptimistic(TYPE, true);
+
+        assertEquals(changeId+1, reloaded.getVersion(TYPE, "1"));
+        assertEquals(ChangeJournal.CONFLICT, reloaded.recordWrites(HOLDER, new Customer[]{customer(1, 0)})[0]);
+        assertTrue(reloaded.recordWrites(HOLDER, new Customer[]{customer(1, changeId+1)})[0] > changeId);
+    }
+
+    @Test
+    public void pessimisticTypesIgnoreVersions() {
+        journal.setOptimistic(TYPE, false);
+        write(customer(1, 0));
+
+        assertTrue(write(customer(1, 0)) >= 0);
+    }
+
+    private long write(Customer customer) {
+        return journal.recordWrites(HOLDER, new Customer[]{customer})[0];
+    }
+
+    private static Customer customer(int number, long version) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(number);
+        customer.setCompanyName("Customer "+number);
+        customer.setVersion(version);
+        return customer;
+    }
+}
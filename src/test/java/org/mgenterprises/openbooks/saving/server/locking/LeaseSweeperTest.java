@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class LeaseSweeperTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private BTreeBackedSaveManager store;
+    private LeaseSweeper sweeper;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new BTreeBackedSaveManager(new File(folder.getRoot(), "locks.tree"));
+        sweeper = new LeaseSweeper(new LockTable(store));
+        sweeper.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sweeper.stop();
+        store.close();
+    }
+
+    @Test
+    public void dueLeaseIsExpired() throws InterruptedException {
+        Lease lease = new Lease("alice", System.currentTimeMillis() + 50);
+        sweeper.schedule(lease);
+
+        awaitEmptyQueue();
+
+        synchronized (lease) {
+            assertTrue(lease.isExpired());
+        }
+    }
+
+    @Test
+    public void renewedLeaseIsQueuedAgain() throws InterruptedException {
+        Lease lease = new Lease("alice", System.currentTimeMillis() + 50);
+        sweeper.schedule(lease);
+        lease.renew(System.currentTimeMillis() + 300);
+
+        Thread.sleep(150);
+        assertEquals(1, sweeper.getQueuedLeases());
+        synchronized (lease) {
+            assertFalse(lease.isExpired());
+        }
+
+        awaitEmptyQueue();
+        synchronized (lease) {
+            assertTrue(lease.isExpired());
+        }
+    }
+
+    @Test
+    public void leasesAreExpiredInDeadlineOrder() throws InterruptedException {
+        Lease later = new Lease("bob", System.currentTimeMillis() + 10000);
+        Lease sooner = new Lease("alice", System.currentTimeMillis() + 50);
+        sweeper.schedule(later);
+        sweeper.schedule(sooner);
+
+        long until = System.currentTimeMillis() + 5000;
+        while (sweeper.getQueuedLeases() > 1 && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+
+        synchronized (sooner) {
+            assertTrue(sooner.isExpired());
+        }
+        synchronized (later) {
+            assertFalse(later.isExpired());
+        }
+    }
+
+    private void awaitEmptyQueue() throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (sweeper.getQueuedLeases() > 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sweeper.getQueuedLeases());
+    }
+}
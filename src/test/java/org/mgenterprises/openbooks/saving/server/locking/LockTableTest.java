@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class LockTableTest {
+    private static final String TYPE = "Invoice";
+    private static final String OTHER_TYPE = "Customer";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private BTreeBackedSaveManager store;
+    private LockTable table;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new BTreeBackedSaveManager(new File(folder.getRoot(), "locks.tree"));
+        table = new LockTable(store);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        table.stop();
+        store.close();
+    }
+
+    @Test
+    public void onlyOneHolderGetsALock() {
+        assertTrue(table.acquire("alice", TYPE, "1"));
+        assertFalse(table.acquire("bob", TYPE, "1"));
+        assertFalse(table.release("bob", TYPE, "1"));
+
+        assertEquals("alice", table.getHolder(TYPE, "1"));
+        assertEquals("alice", store.getLockHolder(TYPE, "1"));
+        assertTrue(table.release("alice", TYPE, "1"));
+        assertFalse(store.hasLock(TYPE, "1"));
+        assertTrue(table.acquire("bob", TYPE, "1"));
+        assertEquals("bob", store.getLockHolder(TYPE, "1"));
+    }
+
+    @Test
+    public void concurrentHoldersGetOneWinnerPerLock() throws Exception {
+        final int locks = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (final String holder : new String[]{"alice", "bob"}) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int won = 0;
+                        for (int i = 0; i < locks; i++) {
+                            if (table.acquire(holder, TYPE, String.valueOf(i))) {
+                                won++;
+                            }
+                        }
+                        return won;
+                    }
+                }));
+            }
+            start.countDown();
+            assertEquals(locks, results.get(0).get() + results.get(1).get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(locks, table.size());
+        for (int i = 0; i < locks; i++) {
+            assertEquals(table.getHolder(TYPE, String.valueOf(i)), store.getLockHolder(TYPE, String.valueOf(i)));
+        }
+    }
+
+    @Test
+    public void holderMayAcquireItsLockAgain() {
+        assertTrue(table.acquire("alice", TYPE, "1"));
+        assertTrue(table.acquire("alice", TYPE, "1"));
+        assertTrue(table.acquireAll("alice", TYPE, new String[]{"1", "2"}, true)[0]);
+
+        assertEquals(2, table.size());
+        assertTrue(table.release("alice", TYPE, "1"));
+        assertNull(table.getHolder(TYPE, "1"));
+        assertFalse(table.release("alice", TYPE, "1"));
+    }
+
+    @Test
+    public void acquireAllTakesNothingWhenOneLockIsHeld() {
+        table.acquire("bob", TYPE, "2");
+
+        boolean[] held = table.acquireAll("alice", TYPE, new String[]{"1", "2", "3"}, true);
+
+        assertFalse(held[0] || held[1] || held[2]);
+        assertNull(table.getHolder(TYPE, "1"));
+        assertFalse(store.hasLock(TYPE, "1"));
+        assertNull(table.getHolder(TYPE, "3"));
+        held = table.acquireAll("alice", TYPE, new String[]{"1", "2", "3"}, false);
+        assertTrue(held[0] && !held[1] && held[2]);
+    }
+
+    @Test
+    public void failedStoreWriteLeavesTheTableMatchingTheStore() {
+        //A lock in storage that the table does not know, so writing through is refused
+        assertTrue(store.createLock("bob", TYPE, "1"));
+
+        assertFalse(table.acquire("alice", TYPE, "1"));
+        assertNull(table.getHolder(TYPE, "1"));
+        assertEquals("bob", store.getLockHolder(TYPE, "1"));
+
+        boolean[] held = table.acquireAll("alice", TYPE, new String[]{"0", "1", "2"}, true);
+        assertFalse(held[0] || held[1] || held[2]);
+        assertEquals(0, table.size());
+        assertFalse(store.hasLock(TYPE, "0"));
+        assertFalse(store.hasLock(TYPE, "2"));
+        assertEquals(1, store.getLocks().length);
+    }
+
+    @Test
+    public void locksWithoutWriteThroughStayInMemory() {
+        table.setWriteThrough(false);
+        assertTrue(table.acquire("alice", TYPE, "1"));
+
+        assertEquals("alice", table.getHolder(TYPE, "1"));
+        assertEquals(0, store.getLocks().length);
+        assertTrue(table.release("alice", TYPE, "1"));
+    }
+
+    @Test
+    public void loadReadsTheStoredLocks() {
+        table.acquire("alice", TYPE, "1");
+        table.acquire("bob", OTHER_TYPE, "2");
+
+        LockTable reloaded = new LockTable(store);
+        assertEquals(2, reloaded.load());
+
+        assertEquals("alice", reloaded.getHolder(TYPE, "1"));
+        assertEquals("bob", reloaded.getHolder(OTHER_TYPE, "2"));
+        assertFalse(reloaded.acquire("bob", TYPE, "1"));
+        assertEquals(2, reloaded.releaseAll("alice", TYPE, new String[]{"1", "3"}) + reloaded.releaseAll("bob", OTHER_TYPE, new String[]{"2"}));
+        assertEquals(0, store.getLocks().length);
+    }
+
+    @Test
+    public void expiredLeaseReleasesAllLocksOfItsHolder() throws InterruptedException {
+        table.setLeaseMillis(100);
+        table.start();
+        table.acquire("alice", TYPE, "1");
+        table.acquire("alice", TYPE, "2");
+        table.acquire("alice", OTHER_TYPE, "1");
+        table.acquire("bob", TYPE, "3");
+
+        //Bob keeps renewing while alice's lease runs out
+        long until = System.currentTimeMillis() + 5000;
+        while (table.getExpiredLocks() < 3 && System.currentTimeMillis() < until) {
+            table.renew("bob");
+            Thread.sleep(10);
+        }
+
+        assertNull(table.getHolder(TYPE, "1"));
+        assertNull(table.getHolder(TYPE, "2"));
+        assertNull(table.getHolder(OTHER_TYPE, "1"));
+        assertEquals(3, table.getExpiredLocks());
+        assertEquals("bob", table.getHolder(TYPE, "3"));
+        assertEquals(1, store.getLocks().length);
+        assertEquals("bob", store.getLockHolder(TYPE, "3"));
+        //The expired holder starts over with a new lease
+        assertTrue(table.acquire("alice", TYPE, "1"));
+        assertTrue(table.getLeaseRemaining("alice") > 0);
+    }
+
+    @Test
+    public void renewedLeaseKeepsItsLocks() throws InterruptedException {
+        table.setLeaseMillis(100);
+        table.start();
+        table.acquire("alice", TYPE, "1");
+
+        for (int i = 0; i < 40; i++) {
+            table.renew("alice");
+            Thread.sleep(10);
+        }
+
+        assertEquals("alice", table.getHolder(TYPE, "1"));
+        assertEquals(0, table.getExpiredLocks());
+        assertTrue(table.getLeaseRemaining("alice") > 0);
+    }
+
+    @Test
+    public void locksDoNotExpireWithoutALeaseTime() {
+        table.setLeaseMillis(0);
+        table.acquire("alice", TYPE, "1");
+
+        assertEquals(-1, table.getLeaseRemaining("alice"));
+    }
+}
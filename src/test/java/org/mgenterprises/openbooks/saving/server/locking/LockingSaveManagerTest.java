@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.locking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class LockingSaveManagerTest {
+    private static final String TYPE = Customer.class.getName();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private BTreeBackedSaveManager store;
+    private LockingSaveManager saveManager;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new BTreeBackedSaveManager(new File(folder.getRoot(), "save.tree"));
+        saveManager = new LockingSaveManager(store);
+        store.persistSaveable(TYPE, "admin", customer(1, "Original"));
+        store.persistSaveable(TYPE, "admin", customer(2, "Original"));
+        assertTrue(saveManager.createLock("alice", TYPE, "1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        saveManager.getLockTable().stop();
+        store.close();
+    }
+
+    @Test
+    public void writesSkipObjectsLockedBySomeoneElse() {
+        assertFalse(saveManager.persistSaveable(TYPE, "bob", customer(1, "Bob")));
+        assertEquals("[false, true]", Arrays.toString(saveManager.persistSaveables("bob", new Saveable[]{customer(1, "Bob"), customer(2, "Bob")})));
+        ChangeRecord[] changes = saveManager.persistJournaled(new String[]{"bob", "alice"}, new Saveable[]{customer(1, "Bob"), customer(1, "Alice")}, 1);
+
+        assertNull(changes[0]);
+        assertEquals(1, changes[1].getChangeId());
+        assertEquals("Alice", companyName("1"));
+        assertEquals("Bob", companyName("2"));
+    }
+
+    @Test
+    public void removesOnlyTakeObjectsWhoseLockTheHolderHolds() {
+        assertEquals("[false, false]", Arrays.toString(saveManager.removeSaveables("bob", TYPE, new String[]{"1", "2"})));
+        ChangeRecord[] changes = saveManager.removeJournaled("alice", TYPE, new String[]{"1", "2"}, 1);
+
+        assertEquals(1, changes[0].getChangeId());
+        assertNull(changes[1]);
+        assertNull(store.getSaveable(TYPE, "1"));
+        assertNotNull(store.getSaveable(TYPE, "2"));
+    }
+
+    @Test
+    public void storeBehindDoesNotEnforceTheLocks() {
+        assertTrue(store.hasLock(TYPE, "1"));
+        assertTrue(store.persistSaveable(TYPE, "bob", customer(1, "Bob")));
+        assertEquals("Bob", companyName("1"));
+        assertTrue(store.removeSaveables("bob", TYPE, new String[]{"1"})[0]);
+        assertTrue(store.hasLock(TYPE, "1"));
+    }
+
+    private String companyName(String id) {
+        return ((Customer) store.getSaveable(TYPE, id)).getCompanyName();
+    }
+
+    private static Customer customer(int number, String companyName) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(number);
+        customer.setCompanyName(companyName);
+        return customer;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.log;
+
+import com.google.common.base.Charsets;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class LogStoreTest {
+    private static final String TYPE = "Invoice";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File directory;
+    private LogStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("log");
+        store = open(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void putGetAndDeleteAcrossSegments() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            store.put(TYPE, "id" + i, value("first " + i));
+        }
+        assertTrue(store.getSegmentCount() > 1);
+        for (int i = 0; i < 40; i += 2) {
+            assertTrue(store.delete(TYPE, "id" + i));
+        }
+        for (int i = 1; i < 40; i += 4) {
+            store.put(TYPE, "id" + i, value("second " + i));
+        }
+        assertFalse(store.delete(TYPE, "id0"));
+
+        assertStored();
+        store.close();
+        store = open(directory);
+        assertStored();
+    }
+
+    @Test
+    public void reopenCutsATruncatedLastRecord() throws IOException {
+        store.put(TYPE, "a", value("a"));
+        store.put(TYPE, "b", value("b"));
+        store.close();
+        File segment = lastSegment();
+        long size = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(size - 3);
+        }
+
+        store = open(directory);
+
+        assertArrayEquals(value("a"), store.get(TYPE, "a"));
+        assertNull(store.get(TYPE, "b"));
+        assertTrue(lastSegment().length() < size - 3);
+        store.put(TYPE, "c", value("c"));
+        store.close();
+        store = open(directory);
+        assertArrayEquals(value("c"), store.get(TYPE, "c"));
+        assertEquals(2, store.getCount(TYPE));
+    }
+
+    @Test
+    public void reopenCutsACorruptLastRecord() throws IOException {
+        store.put(TYPE, "a", value("a"));
+        store.put(TYPE, "b", value("b"));
+        store.close();
+        //Without the index the whole log is replayed, as after a crash before the first checkpoint
+        assertTrue(new File(directory, LogStore.INDEX_FILE_NAME).delete());
+        File segment = lastSegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(segment.length() - 1);
+            int last = file.read();
+            file.seek(segment.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        store = open(directory);
+
+        assertArrayEquals(value("a"), store.get(TYPE, "a"));
+        assertNull(store.get(TYPE, "b"));
+        assertEquals(1, store.getCount(TYPE));
+    }
+
+    @Test
+    public void replaysTheLogAfterTheCheckpoint() throws IOException {
+        store.put(TYPE, "a", value("a"));
+        store.put(TYPE, "b", value("b"));
+        store.checkpoint();
+        store.put(TYPE, "c", value("c"));
+        store.delete(TYPE, "a");
+        store.put(TYPE, "b", value("b2"));
+        store.sync();
+
+        //A copy of the files taken now is what a crash would leave behind
+        File crashed = folder.newFolder("crashed");
+        for (File file : directory.listFiles()) {
+            Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+        }
+        LogStore recovered = open(crashed);
+        try {
+            assertNull(recovered.get(TYPE, "a"));
+            assertArrayEquals(value("b2"), recovered.get(TYPE, "b"));
+            assertArrayEquals(value("c"), recovered.get(TYPE, "c"));
+            assertEquals(2, recovered.getCount(TYPE));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void locksSurviveReopen() throws IOException {
+        store.write(new LogWork<Void>() {
+            @Override
+            public Void execute(LogWriter writer) throws IOException {
+                writer.lock(TYPE, "a", "alice");
+                writer.lock(TYPE, "b", "bob");
+                assertTrue(writer.unlock(TYPE, "b"));
+                assertFalse(writer.unlock(TYPE, "c"));
+                return null;
+            }
+        });
+        store.close();
+        store = open(directory);
+
+        assertEquals("alice", store.getLockHolder(TYPE, "a"));
+        assertNull(store.getLockHolder(TYPE, "b"));
+    }
+
+    @Test
+    public void compactionKeepsLiveValuesAndShadowedDeletes() throws IOException {
+        //Segment 1 holds the value that is deleted later and values that stay live
+        store.put(TYPE, "deleted", value("old"));
+        int live = 0;
+        while (store.getSegmentCount() == 1) {
+            store.put(TYPE, "live" + live, value("live " + live));
+            live++;
+        }
+        //Segment 2 holds the delete and is otherwise overwritten churn
+        store.delete(TYPE, "deleted");
+        int churn = 0;
+        while (store.getSegmentCount() == 2) {
+            store.put(TYPE, "churn", value("churn " + churn++));
+        }
+        File first = segmentFile(1);
+        File second = segmentFile(2);
+        assertTrue(first.exists() && second.exists());
+
+        assertEquals(1, store.compact());
+
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertLive(live, churn);
+        store.close();
+        //A full replay reads segment 1 again, only the carried delete keeps its value dead
+        assertTrue(new File(directory, LogStore.INDEX_FILE_NAME).delete());
+        store = open(directory);
+        assertLive(live, churn);
+    }
+
+    private void assertLive(int live, int churn) throws IOException {
+        assertNull(store.get(TYPE, "deleted"));
+        for (int i = 0; i < live; i++) {
+            assertArrayEquals(value("live " + i), store.get(TYPE, "live" + i));
+        }
+        assertArrayEquals(value("churn " + (churn - 1)), store.get(TYPE, "churn"));
+        assertEquals(live + 1, store.getCount(TYPE));
+    }
+
+    private void assertStored() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            byte[] stored = store.get(TYPE, "id" + i);
+            if (i % 2 == 0) {
+                assertNull(stored);
+            } else if (i % 4 == 1) {
+                assertArrayEquals(value("second " + i), stored);
+            } else {
+                assertArrayEquals(value("first " + i), stored);
+            }
+        }
+        assertEquals(20, store.getCount(TYPE));
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%08d.log", id));
+    }
+
+    private File lastSegment() {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        for (int i = files.length - 1; i >= 0; i--) {
+            if (files[i].getName().endsWith(".log")) {
+                return files[i];
+            }
+        }
+        throw new AssertionError("No segment in " + directory);
+    }
+
+    private static LogStore open(File directory) throws IOException {
+        LogStoreConfiguration configuration = new LogStoreConfiguration();
+        configuration.setMaxSegmentBytes(1024);
+        configuration.setCompactionIntervalSeconds(0);
+        configuration.setSyncPolicy(SyncPolicy.ALWAYS);
+        return new LogStore(directory, configuration);
+    }
+
+    /**
+     * Pads the text so a few dozen records fill a segment
+     */
+    private static byte[] value(String text) {
+        StringBuilder padded = new StringBuilder(text);
+        while (padded.length() < 64) {
+            padded.append('.');
+        }
+        return padded.toString().getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.Saveable;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeJournal;
+import org.mgenterprises.openbooks.saving.server.journal.ChangeRecord;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class WritePipelineTest {
+    private static final String TYPE = Customer.class.getName();
+    private static final String BAD = "Bad";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private RecordingSaveManager store;
+    private WritePipeline pipeline;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new RecordingSaveManager(new File(folder.getRoot(), "pipeline.tree"));
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        executor.shutdownNow();
+        store.close();
+    }
+
+    @Test
+    public void fullBatchIsCommittedWithoutWaiting() throws Exception {
+        //The delay is far longer than the test may take, only the size can flush
+        pipeline = pipeline(3, TimeUnit.MINUTES.toMillis(10));
+
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int i = 1; i <= 3; i++) {
+            results.add(write(customer(i, "Company " + i)));
+        }
+        for (Future<Long> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS) >= 0);
+        }
+
+        assertEquals(Arrays.asList(3), store.batchSizes());
+        assertEquals(1, pipeline.getBatchCount());
+        assertEquals(3, pipeline.getWriteCount());
+    }
+
+    @Test
+    public void requestThatDoesNotFitStartsTheNextBatch() throws Exception {
+        //Whichever request comes last may not fill its batch, so it has to time out
+        pipeline = pipeline(3, 300);
+
+        Future<Long> first = write(customer(1, "Company 1"));
+        Future<long[]> pair = writeAll(customer(2, "Company 2"), customer(3, "Company 3"));
+        Future<long[]> carried = writeAll(customer(4, "Company 4"), customer(5, "Company 5"));
+        Future<long[]> last = writeAll(customer(6, "Company 6"), customer(7, "Company 7"));
+
+        first.get(10, TimeUnit.SECONDS);
+        pair.get(10, TimeUnit.SECONDS);
+        carried.get(10, TimeUnit.SECONDS);
+        last.get(10, TimeUnit.SECONDS);
+
+        //Batches only ever hold whole requests and never grow past the size
+        List<Integer> sizes = store.batchSizes();
+        int total = 0;
+        for (int size : sizes) {
+            assertTrue(sizes.toString(), size <= 3);
+            total += size;
+        }
+        assertEquals(7, total);
+        assertEquals(7, pipeline.getWriteCount());
+    }
+
+    @Test
+    public void partialBatchIsCommittedAfterTheDelay() throws Exception {
+        long delayMillis = 200;
+        pipeline = pipeline(100, delayMillis);
+
+        long start = System.nanoTime();
+        long changeId = pipeline.write("admin", customer(1, "Company 1"));
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(changeId >= 0);
+        assertTrue("Waited " + waitedMillis + "ms", waitedMillis >= delayMillis / 2);
+        assertEquals(Arrays.asList(1), store.batchSizes());
+        assertEquals(1, pipeline.getBatchCount());
+    }
+
+    @Test
+    public void writesThatArriveDuringTheDelayShareOneBatch() throws Exception {
+        pipeline = pipeline(100, 500);
+
+        Future<Long> first = write(customer(1, "Company 1"));
+        Future<Long> second = write(customer(2, "Company 2"));
+
+        long firstId = first.get(10, TimeUnit.SECONDS);
+        long secondId = second.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, Math.abs(firstId - secondId));
+        assertEquals(Arrays.asList(2), store.batchSizes());
+    }
+
+    @Test
+    public void badWriteFailsOnItsOwnWhileTheOthersCommit() throws Exception {
+        pipeline = pipeline(3, TimeUnit.MINUTES.toMillis(10));
+
+        Future<Long> good = write(customer(1, "Company 1"));
+        Future<Long> bad = write(customer(2, BAD));
+        Future<Long> other = write(customer(3, "Company 3"));
+
+        assertTrue(good.get(10, TimeUnit.SECONDS) >= 0);
+        assertTrue(other.get(10, TimeUnit.SECONDS) >= 0);
+        try {
+            bad.get(10, TimeUnit.SECONDS);
+            fail("The bad write was committed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+
+        //The failed batch is retried request by request
+        assertEquals(Arrays.asList(3, 1, 1, 1), store.batchSizes());
+        assertEquals(2, pipeline.getBatchCount());
+        assertEquals(2, pipeline.getWriteCount());
+        assertEquals("Company 1", ((Customer) store.getSaveable(TYPE, "1")).getCompanyName());
+        assertNull(store.getSaveable(TYPE, "2"));
+        assertEquals("Company 3", ((Customer) store.getSaveable(TYPE, "3")).getCompanyName());
+    }
+
+    private WritePipeline pipeline(int maxBatchSize, long maxDelayMillis) {
+        WritePipelineConfiguration configuration = new WritePipelineConfiguration();
+        configuration.setMaxBatchSize(maxBatchSize);
+        configuration.setMaxDelayMillis(maxDelayMillis);
+        return new WritePipeline(new ChangeJournal(store), configuration);
+    }
+
+    private Future<Long> write(final Customer customer) {
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return pipeline.write("admin", customer);
+            }
+        });
+    }
+
+    private Future<long[]> writeAll(final Customer... customers) {
+        return executor.submit(new Callable<long[]>() {
+            @Override
+            public long[] call() throws IOException {
+                return pipeline.writeAll("admin", customers);
+            }
+        });
+    }
+
+    private static Customer customer(int number, String companyName) {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(number);
+        customer.setCompanyName(companyName);
+        return customer;
+    }
+
+    /**
+     * Records the size of every commit and fails those that contain a
+     * customer named {@link #BAD}
+     */
+    private static class RecordingSaveManager extends BTreeBackedSaveManager {
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        RecordingSaveManager(File file) throws IOException {
+            super(file);
+        }
+
+        List<Integer> batchSizes() {
+            synchronized (batchSizes) {
+                return new ArrayList<Integer>(batchSizes);
+            }
+        }
+
+        @Override
+        public ChangeRecord[] persistJournaled(String[] holders, Saveable[] saveables, long firstChangeId) {
+            batchSizes.add(saveables.length);
+            for (Saveable saveable : saveables) {
+                if (saveable instanceof Customer && BAD.equals(((Customer) saveable).getCompanyName())) {
+                    return null;
+                }
+            }
+            return super.persistJournaled(holders, saveables, firstChangeId);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Manuel Gauto.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mgenterprises.openbooks.saving.server.sequence;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mgenterprises.openbooks.customer.Customer;
+import org.mgenterprises.openbooks.saving.server.BTreeBackedSaveManager;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Manuel Gauto
+ */
+public class IdAllocatorTest {
+    private static final String TYPE = Customer.class.getName();
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+    private BTreeBackedSaveManager saveManager;
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFile("ids.tree");
+        saveManager = new BTreeBackedSaveManager(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        saveManager.close();
+    }
+
+    @Test
+    public void blocksFollowEachOther() throws IOException {
+        IdAllocator allocator = new IdAllocator(saveManager);
+
+        assertEquals(1, allocator.allocate(TYPE, 5));
+        assertEquals(6, allocator.allocate(TYPE, 1));
+        assertEquals(1, allocator.allocate("other", 1));
+    }
+
+    @Test
+    public void startsAfterTheHighestStoredId() throws IOException {
+        Customer customer = new Customer();
+        customer.setCustomerNumber(50);
+        assertTrue(saveManager.persistSaveable(TYPE, "admin", customer));
+
+        assertEquals(51, new IdAllocator(saveManager).allocate(TYPE, 1));
+    }
+
+    @Test
+    public void idsAreNotRepeatedAfterARestart() throws IOException {
+        IdAllocator allocator = new IdAllocator(saveManager, 10);
+        long first = allocator.allocate(TYPE, 3);
+        long last = allocator.allocate(TYPE, 4) + 3;
+        saveManager.close();
+
+        saveManager = new BTreeBackedSaveManager(file);
+        long afterRestart = new IdAllocator(saveManager, 10).allocate(TYPE, 1);
+
+        assertEquals(1, first);
+        assertTrue(afterRestart > last);
+    }
+
+    @Test
+    public void blockLargerThanTheReserveMovesTheMarkPastIt() throws IOException {
+        IdAllocator allocator = new IdAllocator(saveManager, 10);
+        long first = allocator.allocate(TYPE, 500);
+
+        long afterRestart = new IdAllocator(saveManager, 10).allocate(TYPE, 1);
+
+        assertTrue(afterRestart >= first + 500);
+    }
+
+    @Test
+    public void concurrentCallsGetSeparateBlocks() throws Exception {
+        final IdAllocator allocator = new IdAllocator(saveManager, 5);
+        final int blockSize = 7;
+        final int blocksPerThread = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<long[]> task = new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    start.await();
+                    long[] firsts = new long[blocksPerThread];
+                    for (int i = 0; i < blocksPerThread; i++) {
+                        firsts[i] = allocator.allocate(TYPE, blockSize);
+                    }
+                    return firsts;
+                }
+            };
+            Future<long[]> a = executor.submit(task);
+            Future<long[]> b = executor.submit(task);
+            start.countDown();
+
+            Set<Long> ids = new HashSet<Long>();
+            for (long[] firsts : new long[][]{a.get(), b.get()}) {
+                for (long first : firsts) {
+                    for (long id = first; id < first + blockSize; id++) {
+                        assertTrue("Id " + id + " handed out twice", ids.add(id));
+                    }
+                }
+            }
+            assertEquals(2 * blocksPerThread * blockSize, ids.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsBlockSizesOutOfRange() throws IOException {
+        IdAllocator allocator = new IdAllocator(saveManager);
+        try {
+            allocator.allocate(TYPE, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            allocator.allocate(TYPE, IdAllocator.MAX_BLOCK_SIZE + 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, allocator.allocate(TYPE, 1));
+    }
+}